@@ -0,0 +1,93 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Account store operations, on uniformly picked accounts or on a few hot ones
+ * (zipfian). Run with <code>-t</code> to vary the number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccountStoreBenchmark {
+
+	@Param({ AccountStores.H2, AccountStores.MEMORY, AccountStores.LEDGER, AccountStores.SHARDED })
+	public String store;
+
+	@Param({ "uniform", "zipfian" })
+	public String distribution;
+
+	@Param({ "1000" })
+	public int accounts;
+
+	private AccountStore accountStore;
+	private long[] ids;
+	private Zipfian zipfian;
+
+	@State(Scope.Thread)
+	public static class Picker {
+
+		private final SplittableRandom random = new SplittableRandom();
+
+		long next(AccountStoreBenchmark benchmark) {
+			int i = benchmark.zipfian == null ? random.nextInt(benchmark.ids.length)
+					: benchmark.zipfian.next(random.nextDouble());
+			return benchmark.ids[i];
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Throwable {
+		// each trial runs in its own fork, before the store gets selected
+		System.setProperty("moneytransfer.store", store);
+		Main.dbSetup();
+		accountStore = AccountStores.getInstance();
+		ids = new long[accounts];
+		for (int i = 0; i < accounts; i++) {
+			ids[i] = accountStore.openAccount(new Account(1000000)).getId();
+		}
+		zipfian = "zipfian".equals(distribution) ? new Zipfian(accounts, 0.99) : null;
+	}
+
+	@Benchmark
+	public Account openAccount() throws Exception {
+		return accountStore.openAccount(new Account(100));
+	}
+
+	@Benchmark
+	public Account getAccount(Picker picker) throws Exception {
+		return accountStore.getAccount(picker.next(this));
+	}
+
+	@Benchmark
+	public Deposit deposit(Picker picker) throws Exception {
+		return accountStore.depositMoneyOnAccount(new Deposit(1, picker.next(this)));
+	}
+
+	@Benchmark
+	public Withdrawal withdrawal(Picker picker) throws Exception {
+		return accountStore.withdrawMoneyFromAccount(new Withdrawal(1, picker.next(this)));
+	}
+
+	@Benchmark
+	public Transfer transfer(Picker picker) throws Exception {
+		return accountStore.transferMoneyBetweenAccounts(new Transfer(1, picker.next(this), picker.next(this)));
+	}
+}
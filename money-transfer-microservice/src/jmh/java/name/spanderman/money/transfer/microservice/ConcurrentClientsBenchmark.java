@@ -0,0 +1,144 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * End to end POST /moneytransfer/transfers from <code>clients</code>
+ * concurrent clients, each invocation being one round of a transfer per
+ * client, with the requests run on the pool of platform threads or on
+ * virtual threads (see {@link RequestExecutor}). The time of a round is the
+ * latency of its slowest request, and <code>clients</code> divided by it the
+ * throughput in requests.
+ * <p>
+ * Virtual threads need a JDK 21 or later for the benchmark JVM, e.g.
+ * -Djmh.args="-jvm /path/to/jdk-21/bin/java ConcurrentClientsBenchmark".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConcurrentClientsBenchmark {
+
+	public static final String PLATFORM = "platform";
+	public static final String VIRTUAL = "virtual";
+
+	@Param({ PLATFORM, VIRTUAL })
+	public String threads;
+
+	@Param({ "100", "1000", "4000" })
+	public int clients;
+
+	@Param({ "1000" })
+	public int accounts;
+
+	@Param({ "18080" })
+	public int port;
+
+	private HttpServer server;
+	private ExecutorService clientThreads;
+	private URL transfers;
+	private long[] ids;
+	private final SplittableRandom random = new SplittableRandom();
+
+	@Setup(Level.Trial)
+	public void setup() throws Throwable {
+		System.setProperty("moneytransfer.async.virtual", Boolean.toString(VIRTUAL.equals(threads)));
+		// keep a connection per client alive between rounds
+		System.setProperty("http.maxConnections", Integer.toString(clients));
+		Main.dbSetup();
+		RequestExecutor executor = RequestExecutor.getInstance();
+		if (VIRTUAL.equals(threads) && !executor.isVirtual()) {
+			throw new IllegalStateException("no virtual threads on Java " + System.getProperty("java.version"));
+		}
+		// every client may wait, none is answered 503
+		server = Main.startServer(port, 0, executor.getThreads(), clients);
+		clientThreads = Executors.newFixedThreadPool(clients);
+		transfers = new URL("http://localhost:" + port + "/moneytransfer/transfers");
+		ObjectMapper mapper = new ObjectMapper();
+		URL open = new URL("http://localhost:" + port + "/moneytransfer/accounts");
+		ids = new long[accounts];
+		for (int i = 0; i < accounts; i++) {
+			ids[i] = mapper.readTree(post(open, "{\"balance\":1000000}")).get("id").asLong();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		clientThreads.shutdownNow();
+		server.shutdownNow();
+	}
+
+	private static String post(URL url, String json) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "application/json");
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(json.getBytes(StandardCharsets.UTF_8));
+		}
+		if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+			throw new IOException("HTTP " + connection.getResponseCode());
+		}
+		try (InputStream in = connection.getInputStream()) {
+			byte[] buffer = new byte[256];
+			StringBuilder body = new StringBuilder();
+			for (int n; (n = in.read(buffer)) > 0;) {
+				body.append(new String(buffer, 0, n, StandardCharsets.UTF_8));
+			}
+			return body.toString();
+		}
+	}
+
+	@Benchmark
+	public void round() throws Throwable {
+		CountDownLatch done = new CountDownLatch(clients);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		for (int i = 0; i < clients; i++) {
+			String json = "{\"amount\":1,\"fromAccount\":" + ids[random.nextInt(accounts)] + ",\"toAccount\":"
+					+ ids[random.nextInt(accounts)] + "}";
+			clientThreads.execute(() -> {
+				try {
+					post(transfers, json);
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				} finally {
+					done.countDown();
+				}
+			});
+		}
+		done.await();
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+	}
+}
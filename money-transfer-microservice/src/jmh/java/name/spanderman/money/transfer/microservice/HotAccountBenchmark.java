@@ -0,0 +1,76 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Concurrent deposits and withdrawals on one single H2 account, comparing the
+ * balance update modes of {@link AccountDAO}: 4 threads deposit while 4 others
+ * withdraw. The trial fails if the final balance does not match the movements
+ * applied.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotAccountBenchmark {
+
+	@Param({ "atomic", "select-for-update" })
+	public String balanceUpdate;
+
+	private AccountStore accountStore;
+	private long id;
+	private final LongAdder expectedBalance = new LongAdder();
+
+	@Setup(Level.Trial)
+	public void setup() throws Throwable {
+		System.setProperty("moneytransfer.balance.update", balanceUpdate);
+		Main.dbSetup();
+		accountStore = AccountDAO.getInstance();
+		id = accountStore.openAccount(new Account(0)).getId();
+	}
+
+	@TearDown(Level.Trial)
+	public void verify() throws Exception {
+		int balance = accountStore.getAccount(id).getBalance();
+		if (balance != expectedBalance.sum()) {
+			throw new IllegalStateException("lost updates: balance " + balance + ", expected " + expectedBalance.sum());
+		}
+	}
+
+	@Benchmark
+	@Group("hot")
+	@GroupThreads(4)
+	public Deposit deposit() throws Exception {
+		Deposit d = accountStore.depositMoneyOnAccount(new Deposit(3, id));
+		expectedBalance.add(3);
+		return d;
+	}
+
+	@Benchmark
+	@Group("hot")
+	@GroupThreads(4)
+	public Withdrawal withdrawal() throws Exception {
+		Withdrawal w = accountStore.withdrawMoneyFromAccount(new Withdrawal(2, id));
+		expectedBalance.add(-2);
+		return w;
+	}
+}
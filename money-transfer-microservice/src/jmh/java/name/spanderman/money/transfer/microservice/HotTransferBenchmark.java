@@ -0,0 +1,98 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Concurrent transfers from many payer accounts to a few hot merchant
+ * accounts, comparing the row locks of the h2 store with the single writer
+ * shards of the sharded store. The trial fails if the hot accounts did not
+ * receive every transfer made.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class HotTransferBenchmark {
+
+	@Param({ AccountStores.H2, AccountStores.SHARDED })
+	public String store;
+
+	@Param({ "1", "10", "1000" })
+	public int hotAccounts;
+
+	@Param({ "10000" })
+	public int payers;
+
+	private AccountStore accountStore;
+	private long[] payerIds;
+	private long[] hotIds;
+	private final LongAdder transferred = new LongAdder();
+
+	@State(Scope.Thread)
+	public static class Picker {
+
+		private final SplittableRandom random = new SplittableRandom();
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Throwable {
+		// each trial runs in its own fork, before the store gets selected
+		System.setProperty("moneytransfer.store", store);
+		Main.dbSetup();
+		accountStore = AccountStores.getInstance();
+		payerIds = open(payers, 1000000);
+		hotIds = open(hotAccounts, 0);
+	}
+
+	private long[] open(int count, int balance) throws Exception {
+		ImportBatch batch = new ImportBatch(count);
+		for (int i = 0; i < count; i++) {
+			batch.addAccount(balance);
+		}
+		accountStore.importBatch(batch);
+		long[] ids = new long[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = batch.accountId(i);
+		}
+		return ids;
+	}
+
+	@TearDown(Level.Trial)
+	public void verify() throws Exception {
+		long received = 0;
+		for (long id : hotIds) {
+			received += accountStore.getAccount(id).getBalance();
+		}
+		if (received != transferred.sum()) {
+			throw new IllegalStateException("hot accounts received " + received + ", expected " + transferred.sum());
+		}
+	}
+
+	@Benchmark
+	public Transfer transfer(Picker picker) throws Exception {
+		Transfer t = accountStore.transferMoneyBetweenAccounts(new Transfer(1,
+				payerIds[picker.random.nextInt(payerIds.length)], hotIds[picker.random.nextInt(hotIds.length)]));
+		transferred.increment();
+		return t;
+	}
+}
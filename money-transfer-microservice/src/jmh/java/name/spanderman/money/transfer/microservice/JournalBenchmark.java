@@ -0,0 +1,73 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Journal records appended and synced per millisecond by concurrent writers
+ * waiting for their own record, as the writes of {@link AccountDAO} do. The
+ * number of records per sync (the group commit batch size) is printed at the
+ * end of each iteration; run with -t 1, 8, 64... to see it grow.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class JournalBenchmark {
+
+	private Path file;
+	private Journal journal;
+	private final AtomicLong ids = new AtomicLong();
+	private long records;
+	private long syncs;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		file = Files.createTempFile("money-transfer", ".journal");
+		journal = new Journal(file);
+	}
+
+	@TearDown(Level.Iteration)
+	public void report() {
+		long r = journal.getRecords() - records;
+		long s = journal.getSyncs() - syncs;
+		records += r;
+		syncs += s;
+		System.out.println(String.format("%n%d records, %d syncs, %.1f records per sync (max %d)", r, s,
+				s == 0 ? 0 : (double) r / s, journal.getMaxRecordsPerSync()));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		journal.close();
+		Files.delete(file);
+	}
+
+	@Benchmark
+	public long deposit() {
+		long id = ids.incrementAndGet();
+		long ticket = journal.deposit(id, id, 1);
+		journal.await(ticket);
+		return ticket;
+	}
+}
@@ -0,0 +1,82 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
+
+/**
+ * Reading a transfer from its JSON request and writing it back as JSON, with
+ * the Jackson provider Jersey used for every entity or with the
+ * {@link JsonCodec}, called the way Jersey calls them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonCodecBenchmark {
+
+	private static final Annotation[] NO_ANNOTATIONS = {};
+
+	@Param({ "jackson", "codec" })
+	public String provider;
+
+	private MessageBodyReader<Object> reader;
+	private MessageBodyWriter<Object> writer;
+	private byte[] request;
+	private Transfer transfer;
+	private final ByteArrayOutputStream response = new ByteArrayOutputStream(256);
+	@SuppressWarnings("unchecked")
+	private final Class<Object> type = (Class<Object>) (Class<?>) Transfer.class;
+
+	@Setup
+	public void setUp() {
+		if (provider.equals("jackson")) {
+			JacksonJaxbJsonProvider jackson = new JacksonJaxbJsonProvider();
+			reader = jackson;
+			writer = jackson;
+		} else {
+			JsonCodec codec = new JsonCodec();
+			reader = codec;
+			writer = codec;
+		}
+		request = "{\"amount\":250,\"fromAccount\":1234567,\"toAccount\":7654321}".getBytes(StandardCharsets.UTF_8);
+		transfer = new Transfer(987654321L, 250, 1234567, 7654321);
+	}
+
+	@Benchmark
+	public Object readTransfer() throws IOException {
+		return reader.readFrom(type, Transfer.class, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, null,
+				new ByteArrayInputStream(request));
+	}
+
+	@Benchmark
+	public int writeTransfer() throws IOException {
+		response.reset();
+		writer.writeTo(transfer, Transfer.class, Transfer.class, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE,
+				null, response);
+		return response.size();
+	}
+}
@@ -0,0 +1,58 @@
+package name.spanderman.money.transfer.microservice;
+
+import static org.jooq.impl.DSL.field;
+import static org.jooq.impl.DSL.name;
+import static org.jooq.impl.DSL.table;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of building and rendering a query with jOOQ on every call, without
+ * touching the database. The DAOs pay it once per statement, see
+ * {@link Database}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryConstructionBenchmark {
+
+	private long id = 42;
+
+	@Benchmark
+	public String selectAccount() {
+		DSLContext ctx = DSL.using(SQLDialect.H2);
+		return ctx.select(field(name("id")), field(name("balance")), field(name("active"))).from(table("ACCOUNTS"))
+				.where(field(name("id"), SQLDataType.BIGINT).eq(id)).getSQL();
+	}
+
+	@Benchmark
+	public String closeAccount() {
+		DSLContext ctx = DSL.using(SQLDialect.H2);
+		return ctx.update(table(name("ACCOUNTS"))).set(field(name("active"), SQLDataType.BOOLEAN), false)
+				.where(field(name("id"), SQLDataType.BIGINT).eq(id)).getSQL();
+	}
+
+	@Benchmark
+	public String insertDeposit() {
+		DSLContext ctx = DSL.using(SQLDialect.H2);
+		return ctx.insertInto(table(name("DEPOSITS")), field(name("id")), field(name("amount")), field(name("account")))
+				.values(id, 100, id).getSQL();
+	}
+}
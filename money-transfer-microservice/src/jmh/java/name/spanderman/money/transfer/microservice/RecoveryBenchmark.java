@@ -0,0 +1,89 @@
+package name.spanderman.money.transfer.microservice;
+
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNTS;
+import static name.spanderman.money.transfer.microservice.Schema.DEPOSITS;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFERS;
+import static name.spanderman.money.transfer.microservice.Schema.WITHDRAWALS;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.jooq.DSLContext;
+import org.jooq.Table;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Startup time of an in-memory database kept by a journal, as a function of
+ * the number of accounts: each account is opened then gets
+ * <code>deposits</code> deposits, and startup replays the whole journal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RecoveryBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int accounts;
+
+	@Param({ "4" })
+	public int deposits;
+
+	private Path file;
+	private Journal journal;
+
+	@Setup(Level.Trial)
+	public void setup() throws Throwable {
+		Main.dbSetup();
+		file = Files.createTempFile("money-transfer", ".journal");
+		journal = new Journal(file);
+		long ticket = 0;
+		long id = 0;
+		for (long account = 1; account <= accounts; account++) {
+			ticket = journal.openAccount(account, 100);
+			for (int i = 0; i < deposits; i++) {
+				ticket = journal.deposit(++id, account, 1);
+			}
+		}
+		journal.await(ticket);
+	}
+
+	@Setup(Level.Invocation)
+	public void emptyTables() {
+		DSLContext ctx = Database.dsl();
+		ctx.execute("SET REFERENTIAL_INTEGRITY FALSE");
+		for (Table<?> table : Arrays.asList(TRANSFERS, WITHDRAWALS, DEPOSITS, ACCOUNTS)) {
+			ctx.truncate(table).execute();
+		}
+		ctx.execute("SET REFERENTIAL_INTEGRITY TRUE");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		journal.close();
+		Files.delete(file);
+	}
+
+	@Benchmark
+	public long recover() throws IOException {
+		JournalRecovery.recover(journal);
+		return journal.getReplayedRecords();
+	}
+}
@@ -0,0 +1,112 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * End to end POST /moneytransfer/transfers through Grizzly and Jersey, on a
+ * server started in the benchmark JVM, one transfer per request or
+ * {@value #BATCH_SIZE} per POST /moneytransfer/transfers/batch (scores are per
+ * transfer either way).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RestTransferBenchmark {
+
+	private static final int BATCH_SIZE = 100;
+
+	@Param({ AccountStores.H2, AccountStores.MEMORY })
+	public String store;
+
+	@Param({ "1000" })
+	public int accounts;
+
+	@Param({ "18080" })
+	public int port;
+
+	private HttpServer server;
+	private Client client;
+	private WebTarget transfers;
+	private WebTarget batch;
+	private long[] ids;
+
+	@State(Scope.Thread)
+	public static class Picker {
+
+		private final SplittableRandom random = new SplittableRandom();
+
+		long next(RestTransferBenchmark benchmark) {
+			return benchmark.ids[random.nextInt(benchmark.ids.length)];
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Throwable {
+		System.setProperty("moneytransfer.store", store);
+		Main.dbSetup();
+		server = Main.startServer(port);
+		client = ClientBuilder.newClient();
+		WebTarget base = client.target("http://localhost:" + port + "/moneytransfer");
+		transfers = base.path("transfers");
+		batch = transfers.path("batch").queryParam("mode", MoneyTransferRESTfulAPI.PER_ITEM);
+		ObjectMapper mapper = new ObjectMapper();
+		ids = new long[accounts];
+		for (int i = 0; i < accounts; i++) {
+			String account = base.path("accounts").request(MediaType.APPLICATION_JSON)
+					.post(Entity.json("{\"balance\":1000000}"), String.class);
+			ids[i] = mapper.readTree(account).get("id").asLong();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		client.close();
+		server.shutdownNow();
+	}
+
+	@Benchmark
+	public String transfer(Picker picker) {
+		String json = "{\"amount\":1,\"fromAccount\":" + picker.next(this) + ",\"toAccount\":" + picker.next(this)
+				+ "}";
+		return transfers.request(MediaType.APPLICATION_JSON).post(Entity.json(json), String.class);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public String transferBatch(Picker picker) {
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			json.append(i == 0 ? "" : ",").append("{\"amount\":1,\"fromAccount\":").append(picker.next(this))
+					.append(",\"toAccount\":").append(picker.next(this)).append('}');
+		}
+		return batch.request(MediaType.APPLICATION_JSON).post(Entity.json(json.append(']').toString()), String.class);
+	}
+}
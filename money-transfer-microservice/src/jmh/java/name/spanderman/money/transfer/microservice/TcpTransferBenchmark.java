@@ -0,0 +1,138 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Transfers sent to the {@link TcpIngress}, one per round trip or
+ * {@value #WINDOW} pipelined on the connection before reading their answers
+ * (scores are per transfer either way), to compare with
+ * {@link RestTransferBenchmark} on the same store. Each benchmark thread has
+ * its own connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TcpTransferBenchmark {
+
+	private static final int WINDOW = 100;
+	private static final int COMMAND_SIZE = TcpIngress.LENGTH_SIZE + TcpIngress.HEADER_SIZE
+			+ TcpIngress.TRANSFER_SIZE;
+
+	@Param({ AccountStores.H2, AccountStores.MEMORY })
+	public String store;
+
+	@Param({ "1000" })
+	public int accounts;
+
+	private TcpIngress ingress;
+	private long[] ids;
+
+	@State(Scope.Thread)
+	public static class Connection {
+
+		private final SplittableRandom random = new SplittableRandom();
+		private final ByteBuffer commands = ByteBuffer.allocateDirect(WINDOW * COMMAND_SIZE);
+		private final ByteBuffer answers = ByteBuffer.allocateDirect(WINDOW * COMMAND_SIZE);
+		private SocketChannel channel;
+		private long requestId;
+
+		@Setup(Level.Trial)
+		public void connect(TcpTransferBenchmark benchmark) throws IOException {
+			channel = SocketChannel.open(new InetSocketAddress("localhost", benchmark.ingress.getPort()));
+			channel.socket().setTcpNoDelay(true);
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException {
+			channel.close();
+		}
+
+		void put(long[] ids) {
+			commands.putInt(TcpIngress.HEADER_SIZE + TcpIngress.TRANSFER_SIZE).putLong(++requestId)
+					.put(TcpIngress.TRANSFER).putLong(0).putInt(1).putLong(ids[random.nextInt(ids.length)])
+					.putLong(ids[random.nextInt(ids.length)]);
+		}
+
+		/**
+		 * Writes the commands put and reads as many answers.
+		 *
+		 * @return the request id of the last answer
+		 */
+		long send(int count) throws IOException {
+			commands.flip();
+			while (commands.hasRemaining()) {
+				channel.write(commands);
+			}
+			commands.clear();
+			answers.clear();
+			int pos = 0;
+			long last = 0;
+			for (int i = 0; i < count; i++) {
+				while (answers.position() - pos < TcpIngress.LENGTH_SIZE
+						|| answers.position() - pos < TcpIngress.LENGTH_SIZE + answers.getInt(pos)) {
+					if (channel.read(answers) < 0) {
+						throw new EOFException();
+					}
+				}
+				last = answers.getLong(pos + TcpIngress.LENGTH_SIZE);
+				pos += TcpIngress.LENGTH_SIZE + answers.getInt(pos);
+			}
+			return last;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Throwable {
+		System.setProperty("moneytransfer.store", store);
+		Main.dbSetup();
+		ingress = TcpIngress.start(0);
+		ids = new long[accounts];
+		for (int i = 0; i < accounts; i++) {
+			ids[i] = MoneyTransferRESTfulAPI.STORE.openAccount(new Account(1000000)).getId();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		ingress.shutdownNow();
+	}
+
+	@Benchmark
+	public long transfer(Connection connection) throws IOException {
+		connection.put(ids);
+		return connection.send(1);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(WINDOW)
+	public long transferPipelined(Connection connection) throws IOException {
+		for (int i = 0; i < WINDOW; i++) {
+			connection.put(ids);
+		}
+		return connection.send(WINDOW);
+	}
+}
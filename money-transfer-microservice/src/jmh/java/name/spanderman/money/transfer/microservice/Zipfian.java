@@ -0,0 +1,46 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * Zipfian distribution of ranks in [0, items), rank 0 being the most popular
+ * (Gray et al., "Quickly generating billion-record synthetic databases", as
+ * used by YCSB).
+ */
+final class Zipfian {
+
+	private final int items;
+	private final double theta;
+	private final double zetan;
+	private final double alpha;
+	private final double eta;
+
+	Zipfian(int items, double theta) {
+		this.items = items;
+		this.theta = theta;
+		zetan = zeta(items, theta);
+		alpha = 1 / (1 - theta);
+		eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+	}
+
+	private static double zeta(int n, double theta) {
+		double sum = 0;
+		for (int i = 1; i <= n; i++) {
+			sum += 1 / Math.pow(i, theta);
+		}
+		return sum;
+	}
+
+	/**
+	 * @param u
+	 *            uniform random number in [0, 1)
+	 */
+	int next(double u) {
+		double uz = u * zetan;
+		if (uz < 1) {
+			return 0;
+		}
+		if (uz < 1 + Math.pow(0.5, theta)) {
+			return 1;
+		}
+		return Math.min(items - 1, (int) (items * Math.pow(eta * u - eta + 1, alpha)));
+	}
+}
@@ -0,0 +1,211 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+import javax.management.ObjectName;
+
+/**
+ * Read-through cache of the accounts read by
+ * {@link AccountDAO#getAccount(long)}, holding at most
+ * <code>moneytransfer.cache.size</code> accounts (0 disables it) for at most
+ * <code>moneytransfer.cache.ttl</code> milliseconds each.
+ * <p>
+ * Accounts are spread over stripes, each a least recently used map with its
+ * own lock. Every path writing a balance or closing an account invalidates it
+ * once its transaction is committed, before answering. Each invalidation also
+ * bumps the generation of the stripe, and a miss only caches what it read if
+ * the generation did not move meanwhile: a read that started before a write
+ * was committed can not cache the balance it saw after the write was
+ * invalidated. Hit, miss, eviction and invalidation counters are published
+ * over JMX.
+ */
+public class AccountCache implements AccountCacheMXBean {
+
+	private static final AccountCache INSTANCE = new AccountCache(Config.getInt("moneytransfer.cache.size", 10000),
+			Config.getLong("moneytransfer.cache.ttl", 60000));
+
+	private static final int STRIPES = 64;
+
+	private final int maxSize;
+	private final long ttlNanos;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	private static final class Entry {
+
+		private final int balance;
+		private final boolean active;
+		private final long expiresAt;
+
+		private Entry(int balance, boolean active, long expiresAt) {
+			this.balance = balance;
+			this.active = active;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final class Stripe extends LinkedHashMap<Long, Entry> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+		private long generation;
+
+		private Stripe(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+			if (size() > capacity) {
+				evictions.increment();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private AccountCache(int maxSize, long ttlMillis) {
+		this.maxSize = Math.max(maxSize, 0);
+		ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		int capacity = (this.maxSize + STRIPES - 1) / STRIPES;
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(capacity);
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("name.spanderman.money.transfer:type=AccountCache"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static AccountCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the cached account, or else the account read by
+	 *         <code>loader</code>, cached unless it is <code>null</code>
+	 */
+	public Account get(long id, LongFunction<Account> loader) {
+		if (maxSize == 0) {
+			return loader.apply(id);
+		}
+		Stripe stripe = stripe(id);
+		long generation;
+		synchronized (stripe) {
+			Entry entry = stripe.get(id);
+			if (entry != null) {
+				if (entry.expiresAt - System.nanoTime() > 0) {
+					hits.increment();
+					return new Account(id, entry.balance, entry.active);
+				}
+				stripe.remove(id);
+				expirations.increment();
+			}
+			generation = stripe.generation;
+		}
+		misses.increment();
+		Account account = loader.apply(id);
+		if (account != null) {
+			synchronized (stripe) {
+				// an invalidation since the read started may be newer than it
+				if (stripe.generation == generation) {
+					stripe.put(id, new Entry(account.getBalance(), account.isActive(), System.nanoTime() + ttlNanos));
+				}
+			}
+		}
+		return account;
+	}
+
+	/**
+	 * Drops an account that was written, to be called once the write is
+	 * committed.
+	 */
+	public void invalidate(long id) {
+		if (maxSize == 0) {
+			return;
+		}
+		Stripe stripe = stripe(id);
+		synchronized (stripe) {
+			stripe.generation++;
+			stripe.remove(id);
+		}
+		invalidations.increment();
+	}
+
+	/**
+	 * Drops the first <code>count</code> accounts of <code>ids</code>.
+	 *
+	 * @see #invalidate(long)
+	 */
+	public void invalidate(long[] ids, int count) {
+		for (int i = 0; i < count; i++) {
+			invalidate(ids[i]);
+		}
+	}
+
+	private Stripe stripe(long id) {
+		return stripes[(int) (id ^ (id >>> 32)) & (STRIPES - 1)];
+	}
+
+	@Override
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public int getSize() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public long getHits() {
+		return hits.sum();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	@Override
+	public double getHitRatio() {
+		long h = hits.sum();
+		long n = h + misses.sum();
+		return n == 0 ? 0 : (double) h / n;
+	}
+
+	@Override
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	@Override
+	public long getExpirations() {
+		return expirations.sum();
+	}
+
+	@Override
+	public long getInvalidations() {
+		return invalidations.sum();
+	}
+}
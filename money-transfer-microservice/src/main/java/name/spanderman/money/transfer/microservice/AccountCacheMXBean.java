@@ -0,0 +1,23 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * JMX view of the {@link AccountCache} statistics.
+ */
+public interface AccountCacheMXBean {
+
+	int getMaxSize();
+
+	int getSize();
+
+	long getHits();
+
+	long getMisses();
+
+	double getHitRatio();
+
+	long getEvictions();
+
+	long getExpirations();
+
+	long getInvalidations();
+}
@@ -1,25 +1,104 @@
 package name.spanderman.money.transfer.microservice;
 
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNTS;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_ACTIVE;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_BALANCE;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_ID;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_OPENING_BALANCE;
+import static name.spanderman.money.transfer.microservice.Schema.DEPOSITS;
+import static name.spanderman.money.transfer.microservice.Schema.MOVEMENT_ACCOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.MOVEMENT_AMOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.SEQ_ACCOUNT_ID;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFERS;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_AMOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_FROM_ACCOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_TO_ACCOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.WITHDRAWALS;
+import static org.jooq.impl.DSL.coalesce;
 import static org.jooq.impl.DSL.constraint;
 import static org.jooq.impl.DSL.field;
+import static org.jooq.impl.DSL.inline;
+import static org.jooq.impl.DSL.insertInto;
 import static org.jooq.impl.DSL.name;
-import static org.jooq.impl.DSL.sequence;
-import static org.jooq.impl.DSL.table;
+import static org.jooq.impl.DSL.param;
+import static org.jooq.impl.DSL.select;
+import static org.jooq.impl.DSL.selectCount;
+import static org.jooq.impl.DSL.sum;
+import static org.jooq.impl.DSL.update;
 
-import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.jooq.DSLContext;
-import org.jooq.Record;
-import org.jooq.SQLDialect;
+import org.jooq.Field;
+import org.jooq.Table;
 import org.jooq.impl.DSL;
 import org.jooq.impl.SQLDataType;
-import org.jooq.tools.jdbc.JDBCUtils;
 
-public class AccountDAO {
+public class AccountDAO implements AccountStore {
 
 	private static final AccountDAO INSTANCE = new AccountDAO();
 
+	/**
+	 * <code>atomic</code> (default) updates a balance with a single conditional
+	 * statement, <code>select-for-update</code> locks the row with a SELECT
+	 * before writing the new balance.
+	 */
+	private static final boolean ATOMIC_BALANCE_UPDATE = !"select-for-update"
+			.equals(Config.getString("moneytransfer.balance.update", "atomic"));
+	private static final boolean FUNDS_CHECK = Config.getBoolean("moneytransfer.funds.check", false);
+
+	static final IdAllocator ACCOUNT_IDS = new IdAllocator(SEQ_ACCOUNT_ID);
+
+	/**
+	 * Binds the id, the balance and the opening balance.
+	 */
+	static final String INSERT_ACCOUNT = Database
+			.render(insertInto(ACCOUNTS, ACCOUNT_ID, ACCOUNT_BALANCE, ACCOUNT_OPENING_BALANCE, ACCOUNT_ACTIVE).values(
+					param("id", SQLDataType.BIGINT), param("balance", SQLDataType.INTEGER),
+					param("openingBalance", SQLDataType.INTEGER), inline(true)));
+	private static final String SELECT_ACCOUNT = Database.render(select(ACCOUNT_BALANCE, ACCOUNT_ACTIVE)
+			.from(ACCOUNTS).where(ACCOUNT_ID.eq(param("id", SQLDataType.BIGINT))));
+	static final String CLOSE_ACCOUNT = Database.renderReturning(ACCOUNT_BALANCE,
+			update(ACCOUNTS).set(ACCOUNT_ACTIVE, inline(false)).where(ACCOUNT_ID.eq(param("id", SQLDataType.BIGINT)))
+					.and(ACCOUNT_ACTIVE));
+	private static final String SELECT_ACCOUNTS = Database.render(select(ACCOUNT_ID, ACCOUNT_BALANCE, ACCOUNT_ACTIVE)
+			.from(ACCOUNTS).where(ACCOUNT_ID.eq(field("any(?)", SQLDataType.BIGINT))));
+	private static final String SELECT_OPEN_ACCOUNT = Database.render(
+			select(ACCOUNT_BALANCE).from(ACCOUNTS).where(ACCOUNT_ID.eq(param("id", SQLDataType.BIGINT))).and(ACCOUNT_ACTIVE));
+
+	private static final String UPDATE_BALANCE = Database.renderReturning(ACCOUNT_BALANCE,
+			update(ACCOUNTS).set(ACCOUNT_BALANCE, ACCOUNT_BALANCE.plus(param("delta", SQLDataType.INTEGER)))
+					.where(ACCOUNT_ID.eq(param("id", SQLDataType.BIGINT))).and(ACCOUNT_ACTIVE));
+	private static final String UPDATE_BALANCE_CHECKING_FUNDS = Database.renderReturning(ACCOUNT_BALANCE,
+			update(ACCOUNTS).set(ACCOUNT_BALANCE, ACCOUNT_BALANCE.plus(param("delta", SQLDataType.INTEGER)))
+					.where(ACCOUNT_ID.eq(param("id", SQLDataType.BIGINT))).and(ACCOUNT_ACTIVE)
+					.and(ACCOUNT_BALANCE.plus(param("delta", SQLDataType.INTEGER)).ge(inline(0))));
+	private static final String LOCK_BALANCE = Database.render(
+			select(ACCOUNT_BALANCE).from(ACCOUNTS).where(ACCOUNT_ID.eq(param("id", SQLDataType.BIGINT))).forUpdate());
+	private static final String SELECT_BALANCE_FOR_UPDATE = Database.render(select(ACCOUNT_BALANCE).from(ACCOUNTS)
+			.where(ACCOUNT_ID.eq(param("id", SQLDataType.BIGINT))).and(ACCOUNT_ACTIVE).forUpdate());
+	private static final String LOCK_OPEN_ACCOUNTS = Database.render(select(ACCOUNT_ID, ACCOUNT_BALANCE).from(ACCOUNTS)
+			.where(ACCOUNT_ID.eq(field("any(?)", SQLDataType.BIGINT))).and(ACCOUNT_ACTIVE).orderBy(ACCOUNT_ID)
+			.forUpdate());
+	private static final String ADD_TO_BALANCE = Database.render(update(ACCOUNTS)
+			.set(ACCOUNT_BALANCE, ACCOUNT_BALANCE.plus(param("delta", SQLDataType.INTEGER)))
+			.where(ACCOUNT_ID.eq(param("id", SQLDataType.BIGINT))).and(ACCOUNT_ACTIVE));
+
+	private static final String ADJUST_BALANCE = Database.render(update(ACCOUNTS)
+			.set(ACCOUNT_BALANCE, ACCOUNT_BALANCE.plus(param("delta", SQLDataType.INTEGER)))
+			.where(ACCOUNT_ID.eq(param("id", SQLDataType.BIGINT))));
+
+	private static final String SET_BALANCE = Database.render(update(ACCOUNTS)
+			.set(ACCOUNT_BALANCE, param("balance", SQLDataType.INTEGER))
+			.where(ACCOUNT_ID.eq(param("id", SQLDataType.BIGINT))));
+
+	private static final Database.RowMapper<Integer> BALANCE = rs -> rs.getInt(1);
+
+	private final AccountCache cache = AccountCache.getInstance();
+	private final Journal journal = Journal.getInstance();
+
 	private AccountDAO() {
 	}
 
@@ -27,41 +106,45 @@ public class AccountDAO {
 		return INSTANCE;
 	}
 
-	private Connection getConnection() throws SQLException, ClassNotFoundException {
-		Class.forName("org.h2.Driver");
-		return java.sql.DriverManager.getConnection("jdbc:h2:mem:money-transfer;DB_CLOSE_DELAY=-1");
-	}
-
 	private AccountDAO createAccountsTable() throws Throwable {
-		Connection c = null;
 		try {
-			c = getConnection();
-			DSLContext ctx = DSL.using(c, SQLDialect.H2);
-			ctx.createTable(name("ACCOUNTS"))
-					.columns(field(name("id"), SQLDataType.BIGINT), field(name("balance"), SQLDataType.INTEGER),
-							field(name("active"), SQLDataType.BOOLEAN))
-					.constraints(constraint("PK_ACCOUNTS").primaryKey(field(name("id")))).execute();
+			DSLContext ctx = Database.dsl();
+			ctx.createTableIfNotExists(ACCOUNTS)
+					.columns(ACCOUNT_ID, ACCOUNT_BALANCE, ACCOUNT_ACTIVE, ACCOUNT_OPENING_BALANCE)
+					.constraints(constraint("PK_ACCOUNTS").primaryKey(ACCOUNT_ID)).execute();
+			// accounts of a file database created before the opening balances
+			ctx.execute("ALTER TABLE {0} ADD COLUMN IF NOT EXISTS {1} INT", ACCOUNTS, ACCOUNT_OPENING_BALANCE);
+			if (ctx.fetchOne(selectCount().from(ACCOUNTS).where(ACCOUNT_OPENING_BALANCE.isNull())).value1() > 0) {
+				ctx.update(ACCOUNTS).set(ACCOUNT_OPENING_BALANCE, ACCOUNT_BALANCE.minus(sumOf(DEPOSITS, MOVEMENT_AMOUNT,
+						MOVEMENT_ACCOUNT)).plus(sumOf(WITHDRAWALS, MOVEMENT_AMOUNT, MOVEMENT_ACCOUNT))
+						.plus(sumOf(TRANSFERS, TRANSFER_AMOUNT, TRANSFER_FROM_ACCOUNT))
+						.minus(sumOf(TRANSFERS, TRANSFER_AMOUNT, TRANSFER_TO_ACCOUNT)))
+						.where(ACCOUNT_OPENING_BALANCE.isNull()).execute();
+			}
 			return this;
 		} catch (Throwable e) {
 			e.printStackTrace();
 			throw e;
-		} finally {
-			JDBCUtils.safeClose(c);
 		}
 	}
 
+	/**
+	 * @return the sum of the amounts of the movements of the account of the
+	 *         enclosing UPDATE of ACCOUNTS
+	 */
+	private static Field<Integer> sumOf(Table<?> movements, Field<Integer> amount, Field<Long> account) {
+		Field<Long> id = field(name(ACCOUNTS.getName(), ACCOUNT_ID.getName()), SQLDataType.BIGINT);
+		return coalesce(field(select(sum(amount).cast(SQLDataType.INTEGER)).from(movements).where(account.eq(id))),
+				inline(0));
+	}
+
 	private AccountDAO createAccountsTableIdSequence() throws Throwable {
-		Connection c = null;
 		try {
-			c = getConnection();
-			DSLContext ctx = DSL.using(c, SQLDialect.H2);
-			ctx.createSequence(sequence(name("SEQ_ACCOUNT_ID"), SQLDataType.BIGINT)).execute();
+			ACCOUNT_IDS.createSequence(Database.dsl());
 			return this;
 		} catch (Throwable e) {
 			e.printStackTrace();
 			throw e;
-		} finally {
-			JDBCUtils.safeClose(c);
 		}
 	}
 
@@ -69,137 +152,307 @@ public class AccountDAO {
 		createAccountsTable().createAccountsTableIdSequence();
 	}
 
-	public Account openAccount(Account account) throws ClassNotFoundException, SQLException {
-		Connection c = null;
-		try {
-			c = getConnection();
-			DSLContext ctx = DSL.using(c, SQLDialect.H2);
-			long id = ctx.nextval(sequence(name("SEQ_ACCOUNT_ID"))).longValueExact();
-			int balance = account.getBalance();
-			ctx.insertInto(table(name("ACCOUNTS")), field(name("id")), field(name("balance")), field(name("active")))
-					.values(id, balance, true).execute();
-			return new Account(id, balance, true);
-		} finally {
-			JDBCUtils.safeClose(c);
-		}
+	@Override
+	public Account openAccount(Account account) throws SQLException {
+		journal.checkWritable();
+		int balance = account.getBalance();
+		DSLContext ctx = Database.dsl();
+		long id = ACCOUNT_IDS.next(ctx);
+		Database.execute(ctx, INSERT_ACCOUNT, id, balance, balance);
+		Durability.getInstance().committed();
+		journal.await(journal.openAccount(id, balance));
+		return new Account(id, balance, true);
 	}
 
-	public Account getAccount(long id) throws ClassNotFoundException, SQLException {
-		Connection c = null;
-		try {
-			c = getConnection();
-			DSLContext ctx = DSL.using(c, SQLDialect.H2);
-			Record r = ctx.select(field(name("id")), field(name("balance")), field(name("active")))
-					.from(table("ACCOUNTS")).where(field(name("id"), SQLDataType.BIGINT).eq(id)).fetchOne();
-			// no account found
-			if (r == null) {
-				return null;
-			}
-			return new Account(id, r.get(field(name("balance"), SQLDataType.INTEGER)), true);
-		} finally {
-			JDBCUtils.safeClose(c);
-		}
+	@Override
+	public Account getAccount(long id) throws SQLException {
+		// null if no account found
+		return cache.get(id, accountId -> readAccount(Database.dsl(), accountId));
+	}
+
+	/**
+	 * @return the account as it is in the database, bypassing the
+	 *         {@link AccountCache}, or <code>null</code> if there is no such
+	 *         account
+	 */
+	Account readAccount(DSLContext ctx, long id) {
+		return Database.fetchOne(ctx, SELECT_ACCOUNT, rs -> new Account(id, rs.getInt(1), rs.getBoolean(2)), id);
 	}
 
-	public Account closeAccount(long id) throws SQLException, ClassNotFoundException {
-		Connection c = null;
+	@Override
+	public Account closeAccount(long id) throws SQLException {
+		journal.checkWritable();
+		// null if no open account found
+		Account account = Database.fetchOne(Database.dsl(), CLOSE_ACCOUNT, rs -> new Account(id, rs.getInt(1), false),
+				id);
+		Durability.getInstance().committed();
 		try {
-			c = getConnection();
-			DSLContext ctx = DSL.using(c, SQLDialect.H2);
-			return ctx.transactionResult(configuration -> {
-				Record r = DSL.using(configuration).select(field(name("id")), field(name("balance")))
-						.from(table("ACCOUNTS")).where(field(name("id"), SQLDataType.BIGINT).eq(id))
-						.and(field(name("active"), SQLDataType.BOOLEAN)).fetchOne();
-				// no open account found
-				if (r == null) {
-					return null;
-				}
-				DSL.using(configuration).update(table(name("ACCOUNTS")))
-						.set(field(name("active"), SQLDataType.BOOLEAN), false)
-						.where(field(name("id"), SQLDataType.BIGINT).eq(id)).execute();
-				return new Account(id, r.get(field(name("balance"), SQLDataType.INTEGER)), false);
-			});
+			if (account != null) {
+				journal.await(journal.closeAccount(id));
+			}
 		} finally {
-			JDBCUtils.safeClose(c);
+			cache.invalidate(id);
 		}
+		return account;
 	}
 
 	public Deposit depositMoneyOnAccount(Deposit deposit, DSLContext ctx) {
 		long account = deposit.getAccount();
 		int amount = deposit.getAmount();
-		return ctx.transactionResult(configuration -> {
-			Record r = DSL.using(configuration).select(field(name("id")), field(name("balance")))
-					.from(table("ACCOUNTS")).where(field(name("id"), SQLDataType.BIGINT).eq(account))
-					.and(field(name("active"), SQLDataType.BOOLEAN)).fetchOne();
+		journal.checkWritable();
+		Deposit d = ctx.transactionResult(configuration -> {
+			DSLContext tx = DSL.using(configuration);
 			// no open account found
-			if (r == null) {
+			if (updateBalance(tx, account, amount) == null) {
 				return null;
 			}
-			DSL.using(configuration).update(table(name("ACCOUNTS")))
-					.set(field(name("balance"), SQLDataType.INTEGER),
-							r.get(field(name("balance"), SQLDataType.INTEGER)) + amount)
-					.where(field(name("id"), SQLDataType.BIGINT).eq(account)).execute();
-			return DepositDAO.getInstance().createDeposit(deposit, ctx);
+			return DepositDAO.getInstance().createDeposit(deposit, tx);
 		});
-	}
-
-	public Deposit depositMoneyOnAccount(Deposit deposit) throws ClassNotFoundException, SQLException {
-		Connection c = null;
 		try {
-			c = getConnection();
-			DSLContext ctx = DSL.using(c, SQLDialect.H2);
-			return depositMoneyOnAccount(deposit, ctx);
+			if (d != null) {
+				journal.await(journal.deposit(d.getId(), account, amount));
+			}
 		} finally {
-			JDBCUtils.safeClose(c);
+			cache.invalidate(account);
 		}
+		return d;
+	}
+
+	@Override
+	public Deposit depositMoneyOnAccount(Deposit deposit) throws SQLException {
+		return depositMoneyOnAccount(deposit, Database.dsl());
 	}
 
 	public Withdrawal withdrawMoneyFromAccount(Withdrawal withdrawal, DSLContext ctx) {
 		long account = withdrawal.getAccount();
 		int amount = withdrawal.getAmount();
-		return ctx.transactionResult(configuration -> {
-			Record r = DSL.using(configuration).select(field(name("id")), field(name("balance")))
-					.from(table("ACCOUNTS")).where(field(name("id"), SQLDataType.BIGINT).eq(account))
-					.and(field(name("active"), SQLDataType.BOOLEAN)).fetchOne();
+		journal.checkWritable();
+		Withdrawal w = ctx.transactionResult(configuration -> {
+			DSLContext tx = DSL.using(configuration);
 			// no open account found
-			if (r == null) {
+			if (updateBalance(tx, account, -amount) == null) {
 				return null;
 			}
-			DSL.using(configuration).update(table(name("ACCOUNTS")))
-					.set(field(name("balance"), SQLDataType.INTEGER),
-							r.get(field(name("balance"), SQLDataType.INTEGER)) - amount)
-					.where(field(name("id"), SQLDataType.BIGINT).eq(account)).execute();
-			return WithdrawalDAO.getInstance().createWithdrawal(withdrawal, ctx);
+			return WithdrawalDAO.getInstance().createWithdrawal(withdrawal, tx);
 		});
-	}
-
-	public Withdrawal withdrawMoneyFromAccount(Withdrawal withdrawal) throws ClassNotFoundException, SQLException {
-		Connection c = null;
 		try {
-			c = getConnection();
-			DSLContext ctx = DSL.using(c, SQLDialect.H2);
-			return withdrawMoneyFromAccount(withdrawal, ctx);
+			if (w != null) {
+				journal.await(journal.withdrawal(w.getId(), account, amount));
+			}
 		} finally {
-			JDBCUtils.safeClose(c);
+			cache.invalidate(account);
 		}
+		return w;
+	}
+
+	@Override
+	public Deposit getDeposit(long id) throws SQLException {
+		return DepositDAO.getInstance().getDeposit(id);
 	}
 
-	public Transfer transferMoneyBetweenAccounts(Transfer transfer) throws ClassNotFoundException, SQLException {
-		Connection c = null;
+	@Override
+	public Withdrawal withdrawMoneyFromAccount(Withdrawal withdrawal) throws SQLException {
+		return withdrawMoneyFromAccount(withdrawal, Database.dsl());
+	}
+
+	@Override
+	public Withdrawal getWithdrawal(long id) throws SQLException {
+		return WithdrawalDAO.getInstance().getWithdrawal(id);
+	}
+
+	/**
+	 * Adds <code>delta</code> to the balance of an open account, refusing to
+	 * go negative when <code>moneytransfer.funds.check</code> is enabled.
+	 *
+	 * @return the new balance or <code>null</code> if no open account was
+	 *         found
+	 * @throws InsufficientFundsException
+	 */
+	Integer updateBalance(DSLContext ctx, long account, int delta) {
+		boolean checkFunds = FUNDS_CHECK && delta < 0;
+		if (ATOMIC_BALANCE_UPDATE) {
+			Integer balance = checkFunds
+					? Database.fetchOne(ctx, UPDATE_BALANCE_CHECKING_FUNDS, BALANCE, delta, account, delta)
+					: Database.fetchOne(ctx, UPDATE_BALANCE, BALANCE, delta, account);
+			if (balance != null) {
+				return balance;
+			}
+			// only the refused update needs a second look, to tell why
+			if (checkFunds && Database.fetchOne(ctx, SELECT_OPEN_ACCOUNT, BALANCE, account) != null) {
+				throw new InsufficientFundsException(account);
+			}
+			return null;
+		}
+		Integer balance = Database.fetchOne(ctx, SELECT_BALANCE_FOR_UPDATE, BALANCE, account);
+		if (balance == null) {
+			return null;
+		}
+		balance += delta;
+		if (checkFunds && balance < 0) {
+			throw new InsufficientFundsException(account);
+		}
+		Database.execute(ctx, SET_BALANCE, balance, account);
+		return balance;
+	}
+
+	/**
+	 * Locks the row of account <code>id</code>, open or not, until the end of
+	 * the transaction of <code>ctx</code>.
+	 *
+	 * @return its balance, <code>null</code> if there is no such account
+	 */
+	Integer lockBalance(DSLContext ctx, long id) {
+		return Database.fetchOne(ctx, LOCK_BALANCE, BALANCE, id);
+	}
+
+	/**
+	 * Overwrites the balance of account <code>id</code>, locked by
+	 * {@link #lockBalance(DSLContext, long)}, to be invalidated in the
+	 * {@link AccountCache} once committed.
+	 */
+	void setBalance(DSLContext ctx, long id, int balance) {
+		Database.execute(ctx, SET_BALANCE, balance, id);
+	}
+
+	/**
+	 * Locks the rows of the open accounts among <code>ids</code>, in id
+	 * order, until the end of the transaction of <code>ctx</code>.
+	 *
+	 * @return the balances of the open accounts
+	 */
+	AccountTable lockOpenAccounts(DSLContext ctx, Long[] ids) {
+		AccountTable accounts = new AccountTable(ids.length);
+		Database.fetch(ctx, LOCK_OPEN_ACCOUNTS, rs -> accounts.put(rs.getLong(1), rs.getInt(2), true), (Object) ids);
+		return accounts;
+	}
+
+	/**
+	 * Adds <code>deltas[i]</code> to the balance of open account
+	 * <code>ids[i]</code>, in one JDBC batch.
+	 *
+	 * @return the number of accounts updated per id, 0 for an account that is
+	 *         not open
+	 */
+	int[] addToBalances(DSLContext ctx, long[] ids, int[] deltas, int count) {
+		return Database.executeBatch(ctx, ADD_TO_BALANCE, count, (ps, i) -> {
+			ps.setInt(1, deltas[i]);
+			ps.setLong(2, ids[i]);
+		});
+	}
+
+	/**
+	 * Reads the accounts among <code>ids</code> into <code>accounts</code>
+	 * with one query, bypassing the {@link AccountCache}.
+	 */
+	void readAccounts(DSLContext ctx, Long[] ids, AccountTable accounts) {
+		Database.fetch(ctx, SELECT_ACCOUNTS, rs -> accounts.put(rs.getLong(1), rs.getInt(2), rs.getBoolean(3)),
+				(Object) ids);
+	}
+
+	/**
+	 * Adds <code>deltas[i]</code> to the balance of account <code>ids[i]</code>,
+	 * open or not, in one JDBC batch, for writers checking the accounts
+	 * themselves (see {@link ShardedAccountStore}).
+	 */
+	void adjustBalances(DSLContext ctx, long[] ids, int[] deltas, int count) {
+		Database.executeBatch(ctx, ADJUST_BALANCE, count, (ps, i) -> {
+			ps.setInt(1, deltas[i]);
+			ps.setLong(2, ids[i]);
+		});
+	}
+
+	@Override
+	public Transfer transferMoneyBetweenAccounts(Transfer transfer) throws SQLException {
+		return TransferEngine.getInstance().transfer(transfer);
+	}
+
+	@Override
+	public List<TransferBatchItem> transferMoneyBetweenAccounts(List<Transfer> transfers, boolean allOrNothing)
+			throws SQLException {
+		return TransferEngine.getInstance().transfer(transfers, allOrNothing);
+	}
+
+	/**
+	 * Opens the accounts and makes the deposits of a batch in one transaction,
+	 * taking the ids of each table from its {@link IdAllocator} and writing its
+	 * rows with one JDBC batch.
+	 */
+	@Override
+	public void importBatch(ImportBatch batch) throws SQLException {
+		journal.checkWritable();
+		long[] depositIds = Database.dsl().transactionResult(configuration -> {
+			DSLContext tx = DSL.using(configuration);
+			int accounts = batch.accounts();
+			long[] ids = ACCOUNT_IDS.next(tx, accounts);
+			if (accounts > 0) {
+				Database.executeBatch(tx, INSERT_ACCOUNT, accounts, (ps, i) -> {
+					ps.setLong(1, ids[i]);
+					ps.setInt(2, batch.balance(i));
+					ps.setInt(3, batch.balance(i));
+				});
+			}
+			for (int i = 0; i < accounts; i++) {
+				batch.setAccountId(i, ids[i]);
+			}
+			int deposits = batch.deposits();
+			if (deposits > 0) {
+				int[] updated = addToBalances(tx, batch.depositAccounts(), batch.amounts(), deposits);
+				for (int i = 0; i < deposits; i++) {
+					batch.setDeposited(i, updated[i] > 0);
+				}
+				return DepositDAO.getInstance().createDeposits(batch, tx);
+			}
+			return null;
+		});
 		try {
-			c = getConnection();
-			DSLContext ctx = DSL.using(c, SQLDialect.H2);
-			long fromAccount = transfer.getFromAccount();
-			long toAccount = transfer.getToAccount();
-			int amount = transfer.getAmount();
-			return ctx.transactionResult(configuration -> {
-				withdrawMoneyFromAccount(
-						WithdrawalDAO.getInstance().createWithdrawal(new Withdrawal(amount, fromAccount), ctx), ctx);
-				depositMoneyOnAccount(DepositDAO.getInstance().createDeposit(new Deposit(amount, toAccount), ctx), ctx);
-				return TransferDAO.getInstance().createTransfer(transfer, ctx);
-			});
+			long ticket = 0;
+			for (int i = 0; i < batch.accounts(); i++) {
+				ticket = journal.openAccount(batch.accountId(i), batch.balance(i));
+			}
+			for (int i = 0; i < batch.deposits(); i++) {
+				if (batch.isDeposited(i)) {
+					ticket = journal.deposit(depositIds[i], batch.depositAccount(i), batch.amount(i));
+				}
+			}
+			journal.await(ticket);
 		} finally {
-			JDBCUtils.safeClose(c);
+			cache.invalidate(batch.depositAccounts(), batch.deposits());
+		}
+	}
+
+	@Override
+	public Transfer getTransfer(long id) throws SQLException {
+		return TransferDAO.getInstance().getTransfer(id);
+	}
+
+	/**
+	 * Reads at most <code>limit</code> + 1 movements of each type, each kind
+	 * through its index on the account and the id.
+	 */
+	@Override
+	public AccountHistory getHistory(long account, HistoryItem after, int limit) throws SQLException {
+		if (getAccount(account) == null) {
+			return null;
+		}
+		DSLContext ctx = Database.dsl();
+		List<HistoryItem> items = new ArrayList<>();
+		for (Deposit deposit : DepositDAO.getInstance().getDeposits(ctx, account,
+				AccountHistory.from(after, HistoryItem.Type.DEPOSIT), limit + 1)) {
+			items.add(HistoryItem.deposit(deposit));
+		}
+		for (Withdrawal withdrawal : WithdrawalDAO.getInstance().getWithdrawals(ctx, account,
+				AccountHistory.from(after, HistoryItem.Type.WITHDRAWAL), limit + 1)) {
+			items.add(HistoryItem.withdrawal(withdrawal));
+		}
+		TransferDAO transferDAO = TransferDAO.getInstance();
+		for (Transfer transfer : transferDAO.getTransfersFrom(ctx, account,
+				AccountHistory.from(after, HistoryItem.Type.TRANSFER_OUT), limit + 1)) {
+			items.add(HistoryItem.transferOut(transfer));
+		}
+		for (Transfer transfer : transferDAO.getTransfersTo(ctx, account,
+				AccountHistory.from(after, HistoryItem.Type.TRANSFER_IN), limit + 1)) {
+			items.add(HistoryItem.transferIn(transfer));
 		}
+		return AccountHistory.page(items, limit);
 	}
 }
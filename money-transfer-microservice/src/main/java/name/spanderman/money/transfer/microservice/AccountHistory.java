@@ -0,0 +1,84 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A page of the movements of an account, in id order, answered by GET
+ * /moneytransfer/accounts/{id}/history, with the cursor to pass as
+ * <code>after</code> for the next page, <code>null</code> on the last one.
+ * <p>
+ * Deposits, withdrawals and transfers draw their ids from sequences of their
+ * own, so movements of different types may share an id: they are ordered by
+ * id, then by {@link HistoryItem.Type}, and a cursor is the id and the type
+ * of the last movement of its page. A page reads at most <code>limit</code>
+ * + 1 movements of each type from the position of the cursor on, so it costs
+ * the same however long the history.
+ */
+public class AccountHistory {
+
+	public static final int MAX_LIMIT = 1000;
+
+	static final Comparator<HistoryItem> ORDER = Comparator.comparingLong(HistoryItem::getId)
+			.thenComparing(HistoryItem::getType);
+
+	private List<HistoryItem> items;
+	private String next;
+
+	public AccountHistory() {
+	}
+
+	private AccountHistory(List<HistoryItem> someItems, String aNext) {
+		items = someItems;
+		next = aNext;
+	}
+
+	/**
+	 * @return the page of the first <code>limit</code> of
+	 *         <code>candidates</code>, which are modified
+	 */
+	static AccountHistory page(List<HistoryItem> candidates, int limit) {
+		candidates.sort(ORDER);
+		if (candidates.size() <= limit) {
+			return new AccountHistory(candidates, null);
+		}
+		List<HistoryItem> items = candidates.subList(0, limit);
+		HistoryItem last = items.get(limit - 1);
+		return new AccountHistory(items, last.getId() + "-" + last.getType().ordinal());
+	}
+
+	/**
+	 * @return the position of a cursor, as a movement with a type and an id
+	 * @throws IllegalArgumentException
+	 *             if the cursor is malformed
+	 */
+	static HistoryItem parseCursor(String cursor) {
+		int dash = cursor.indexOf('-');
+		try {
+			long id = Long.parseLong(cursor.substring(0, Math.max(dash, 0)));
+			int type = Integer.parseInt(cursor.substring(dash + 1));
+			return new HistoryItem(HistoryItem.Type.values()[type], id, 0, null);
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("malformed cursor " + cursor);
+		}
+	}
+
+	/**
+	 * @return the first id of the movements of <code>type</code> after
+	 *         <code>after</code>, or after none if <code>null</code>
+	 */
+	static long from(HistoryItem after, HistoryItem.Type type) {
+		if (after == null) {
+			return Long.MIN_VALUE;
+		}
+		return type.compareTo(after.getType()) > 0 ? after.getId() : after.getId() + 1;
+	}
+
+	public List<HistoryItem> getItems() {
+		return items;
+	}
+
+	public String getNext() {
+		return next;
+	}
+}
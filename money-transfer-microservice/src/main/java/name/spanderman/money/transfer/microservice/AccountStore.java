@@ -0,0 +1,53 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Account operations exposed by {@link MoneyTransferRESTfulAPI}, implemented
+ * by the selectable storage engines (see {@link AccountStores}).
+ * <p>
+ * Operations on accounts that do not exist or are not open return
+ * <code>null</code>.
+ */
+public interface AccountStore {
+
+	Account openAccount(Account account) throws SQLException;
+
+	Account getAccount(long id) throws SQLException;
+
+	Account closeAccount(long id) throws SQLException;
+
+	Deposit depositMoneyOnAccount(Deposit deposit) throws SQLException;
+
+	Deposit getDeposit(long id) throws SQLException;
+
+	Withdrawal withdrawMoneyFromAccount(Withdrawal withdrawal) throws SQLException;
+
+	Withdrawal getWithdrawal(long id) throws SQLException;
+
+	Transfer transferMoneyBetweenAccounts(Transfer transfer) throws SQLException;
+
+	/**
+	 * Makes a batch of transfers in order, returning one outcome per transfer.
+	 * When <code>allOrNothing</code>, either all of them are made or none is.
+	 */
+	List<TransferBatchItem> transferMoneyBetweenAccounts(List<Transfer> transfers, boolean allOrNothing)
+			throws SQLException;
+
+	Transfer getTransfer(long id) throws SQLException;
+
+	/**
+	 * @return the first <code>limit</code> deposits, withdrawals and
+	 *         transfers of an account after the movement <code>after</code>
+	 *         (from the first one if <code>null</code>), in the order of
+	 *         {@link AccountHistory}
+	 */
+	AccountHistory getHistory(long account, HistoryItem after, int limit) throws SQLException;
+
+	/**
+	 * Opens the accounts and makes the deposits of a bulk import batch,
+	 * filling in the ids of the accounts and which deposits were made.
+	 */
+	void importBatch(ImportBatch batch) throws SQLException;
+}
@@ -0,0 +1,51 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * Selects the {@link AccountStore} engine once, at startup, from the
+ * <code>moneytransfer.store</code> setting:
+ * <ul>
+ * <li><code>h2</code> (default): {@link AccountDAO} on top of H2</li>
+ * <li><code>memory</code>: {@link InMemoryAccountStore}, lock-striped
+ * balances kept on heap</li>
+ * <li><code>ledger</code>: {@link LedgerAccountStore}, event-sourced on top of
+ * H2</li>
+ * <li><code>sharded</code>: {@link ShardedAccountStore}, single writer shards
+ * on top of H2</li>
+ * </ul>
+ */
+public class AccountStores {
+
+	public static final String H2 = "h2";
+	public static final String MEMORY = "memory";
+	public static final String LEDGER = "ledger";
+	public static final String SHARDED = "sharded";
+
+	private static final String NAME = Config.getString("moneytransfer.store", H2);
+	private static final AccountStore INSTANCE = create(NAME);
+
+	private AccountStores() {
+	}
+
+	public static AccountStore getInstance() {
+		return INSTANCE;
+	}
+
+	public static String getName() {
+		return NAME;
+	}
+
+	private static AccountStore create(String name) {
+		switch (name) {
+		case H2:
+			return AccountDAO.getInstance();
+		case MEMORY:
+			return InMemoryAccountStore.getInstance();
+		case LEDGER:
+			return LedgerAccountStore.getInstance();
+		case SHARDED:
+			return ShardedAccountStore.getInstance();
+		default:
+			throw new IllegalArgumentException("unknown account store: " + name);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * Open addressing hash table of account balances and active flags keyed by
+ * primitive account id, with no boxing per entry.
+ * <p>
+ * Not thread safe: callers guard it with their own lock. Account ids are
+ * strictly positive, id 0 marks an empty slot.
+ */
+public class AccountTable {
+
+	private long[] keys;
+	private int[] balances;
+	private boolean[] active;
+	private int size;
+
+	public AccountTable() {
+		this(16);
+	}
+
+	public AccountTable(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+		keys = new long[capacity];
+		balances = new int[capacity];
+		active = new boolean[capacity];
+	}
+
+	private static int hash(long id) {
+		long h = id * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * @return the slot of the account or -1 if there is no such account
+	 */
+	public int indexOf(long id) {
+		if (id <= 0) {
+			return -1;
+		}
+		int mask = keys.length - 1;
+		for (int i = hash(id) & mask;; i = (i + 1) & mask) {
+			long key = keys[i];
+			if (key == id) {
+				return i;
+			}
+			if (key == 0) {
+				return -1;
+			}
+		}
+	}
+
+	public long id(int slot) {
+		return keys[slot];
+	}
+
+	public int balance(int slot) {
+		return balances[slot];
+	}
+
+	public boolean isActive(int slot) {
+		return active[slot];
+	}
+
+	public void setBalance(int slot, int balance) {
+		balances[slot] = balance;
+	}
+
+	public void setActive(int slot, boolean isActive) {
+		active[slot] = isActive;
+	}
+
+	/**
+	 * Inserts or replaces an account.
+	 *
+	 * @return the slot of the account
+	 */
+	public int put(long id, int balance, boolean isActive) {
+		if (id <= 0) {
+			throw new IllegalArgumentException("invalid account id " + id);
+		}
+		if ((size + 1) * 4 > keys.length * 3) {
+			resize();
+		}
+		int mask = keys.length - 1;
+		int i = hash(id) & mask;
+		while (keys[i] != 0 && keys[i] != id) {
+			i = (i + 1) & mask;
+		}
+		if (keys[i] == 0) {
+			keys[i] = id;
+			size++;
+		}
+		balances[i] = balance;
+		active[i] = isActive;
+		return i;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of slots, for iterating with {@link #id(int)} (empty
+	 *         slots have id 0)
+	 */
+	public int capacity() {
+		return keys.length;
+	}
+
+	private void resize() {
+		long[] oldKeys = keys;
+		int[] oldBalances = balances;
+		boolean[] oldActive = active;
+		keys = new long[oldKeys.length * 2];
+		balances = new int[keys.length];
+		active = new boolean[keys.length];
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				put(oldKeys[i], oldBalances[i], oldActive[i]);
+			}
+		}
+	}
+}
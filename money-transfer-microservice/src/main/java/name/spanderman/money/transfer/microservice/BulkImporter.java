@@ -0,0 +1,181 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Opens accounts and makes deposits from a stream of newline delimited JSON
+ * records, <code>{"balance": 100}</code> for an account and
+ * <code>{"amount": 10, "account": 42}</code> for a deposit.
+ * <p>
+ * Records are parsed one at a time with the Jackson streaming parser, into an
+ * {@link ImportBatch} handed to the {@link AccountStore} each time
+ * <code>moneytransfer.import.batch</code> accounts or deposits are read, so
+ * memory stays constant whatever the length of the stream. Each batch is
+ * committed on its own: a malformed record stops the import, keeping the
+ * batches before it. Progress counters are published over JMX.
+ */
+public class BulkImporter implements BulkImporterMXBean {
+
+	public static final String NDJSON = "application/x-ndjson";
+
+	private static final BulkImporter INSTANCE = new BulkImporter(Config.getInt("moneytransfer.import.batch", 1000));
+
+	private static final int BALANCE = 1;
+	private static final int AMOUNT = 2;
+	private static final int ACCOUNT = 4;
+
+	private final int batchSize;
+	private final JsonFactory jsonFactory = new JsonFactory();
+
+	private final LongAdder imports = new LongAdder();
+	private final AtomicInteger activeImports = new AtomicInteger();
+	private final LongAdder records = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder accounts = new LongAdder();
+	private final LongAdder deposits = new LongAdder();
+	private final LongAdder rejectedDeposits = new LongAdder();
+
+	private BulkImporter(int batchSize) {
+		this.batchSize = Math.max(batchSize, 1);
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("name.spanderman.money.transfer:type=BulkImporter"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static BulkImporter getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             on a malformed record, telling what was imported before it
+	 */
+	public ImportResult importRecords(InputStream in) throws IOException, SQLException {
+		imports.increment();
+		activeImports.incrementAndGet();
+		ImportBatch batch = new ImportBatch(batchSize);
+		ImportResult result = new ImportResult();
+		long record = 0;
+		try (JsonParser parser = jsonFactory.createParser(in)) {
+			while (parser.nextToken() != null) {
+				record++;
+				read(parser, batch, record);
+				records.increment();
+				if (batch.isFull()) {
+					flush(batch, result);
+				}
+			}
+			flush(batch, result);
+			return result;
+		} catch (JsonProcessingException e) {
+			throw new IllegalArgumentException(
+					String.format("malformed record %d: %s (%d accounts and %d deposits imported before)", record,
+							e.getOriginalMessage(), result.getAccounts(), result.getDeposits()),
+					e);
+		} finally {
+			activeImports.decrementAndGet();
+		}
+	}
+
+	private static void read(JsonParser parser, ImportBatch batch, long record) throws IOException {
+		if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+			throw new JsonParseException(parser, "object expected");
+		}
+		int fields = 0;
+		int balance = 0;
+		int amount = 0;
+		long account = 0;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			parser.nextToken();
+			switch (name) {
+			case "balance":
+				balance = parser.getIntValue();
+				fields |= BALANCE;
+				break;
+			case "amount":
+				amount = parser.getIntValue();
+				fields |= AMOUNT;
+				break;
+			case "account":
+				account = parser.getLongValue();
+				fields |= ACCOUNT;
+				break;
+			default:
+				throw new JsonParseException(parser, "unknown field " + name);
+			}
+		}
+		if (fields == BALANCE) {
+			batch.addAccount(balance);
+		} else if (fields == (AMOUNT | ACCOUNT)) {
+			batch.addDeposit(amount, account, record);
+		} else {
+			throw new JsonParseException(parser, "account or deposit expected");
+		}
+	}
+
+	private void flush(ImportBatch batch, ImportResult result) throws SQLException {
+		if (batch.isEmpty()) {
+			return;
+		}
+		AccountStores.getInstance().importBatch(batch);
+		long rejected = result.getRejected();
+		result.add(batch);
+		batches.increment();
+		accounts.add(batch.accounts());
+		deposits.add(batch.deposits() - (result.getRejected() - rejected));
+		rejectedDeposits.add(result.getRejected() - rejected);
+		batch.clear();
+	}
+
+	@Override
+	public long getImports() {
+		return imports.sum();
+	}
+
+	@Override
+	public int getActiveImports() {
+		return activeImports.get();
+	}
+
+	@Override
+	public long getRecords() {
+		return records.sum();
+	}
+
+	@Override
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	@Override
+	public long getAccounts() {
+		return accounts.sum();
+	}
+
+	@Override
+	public long getDeposits() {
+		return deposits.sum();
+	}
+
+	@Override
+	public long getRejectedDeposits() {
+		return rejectedDeposits.sum();
+	}
+}
@@ -0,0 +1,22 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * JMX view of the {@link BulkImporter} progress counters, summed over all the
+ * imports.
+ */
+public interface BulkImporterMXBean {
+
+	long getImports();
+
+	int getActiveImports();
+
+	long getRecords();
+
+	long getBatches();
+
+	long getAccounts();
+
+	long getDeposits();
+
+	long getRejectedDeposits();
+}
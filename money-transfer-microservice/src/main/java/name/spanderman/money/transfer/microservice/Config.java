@@ -0,0 +1,70 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Runtime configuration. Every setting is looked up first as a system property
+ * (e.g. <code>-Dmoneytransfer.db.pool.size=32</code>), then as an environment
+ * variable with dots replaced by underscores and upper cased (e.g.
+ * <code>MONEYTRANSFER_DB_POOL_SIZE=32</code>) and last in the properties file
+ * named by the <code>moneytransfer.config.file</code> system property or
+ * environment variable, if any.
+ */
+public class Config {
+
+	private static final String FILE = "moneytransfer.config.file";
+
+	private static final Properties PROPERTIES = load(lookup(FILE));
+
+	private Config() {
+	}
+
+	private static String lookup(String name) {
+		String value = System.getProperty(name);
+		if (value == null) {
+			value = System.getenv(name.replace('.', '_').toUpperCase());
+		}
+		return value;
+	}
+
+	private static Properties load(String file) {
+		Properties properties = new Properties();
+		if (file != null && !file.trim().isEmpty()) {
+			try (Reader reader = Files.newBufferedReader(Paths.get(file.trim()), StandardCharsets.UTF_8)) {
+				properties.load(reader);
+			} catch (IOException e) {
+				throw new UncheckedIOException("error in reading the configuration file " + file, e);
+			}
+		}
+		return properties;
+	}
+
+	public static String getString(String name, String defaultValue) {
+		String value = lookup(name);
+		if (value == null) {
+			value = PROPERTIES.getProperty(name);
+		}
+		return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+	}
+
+	public static int getInt(String name, int defaultValue) {
+		String value = getString(name, null);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	public static long getLong(String name, long defaultValue) {
+		String value = getString(name, null);
+		return value == null ? defaultValue : Long.parseLong(value);
+	}
+
+	public static boolean getBoolean(String name, boolean defaultValue) {
+		String value = getString(name, null);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+}
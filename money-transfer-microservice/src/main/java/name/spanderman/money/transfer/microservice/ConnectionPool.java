@@ -0,0 +1,237 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.PooledConnection;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.jooq.ConnectionProvider;
+import org.jooq.exception.DataAccessException;
+
+/**
+ * Bounded pool of H2 connections shared by all the DAOs.
+ * <p>
+ * Physical connections are opened lazily up to
+ * <code>moneytransfer.db.pool.size</code> and handed out as logical handles:
+ * closing a handle returns the physical connection to the pool. Callers wait
+ * at most <code>moneytransfer.db.pool.timeout</code> milliseconds for a free
+ * connection before getting a {@link SQLTimeoutException}.
+ * <p>
+ * Each physical connection keeps the last
+ * <code>moneytransfer.db.statement.cache</code> parsed statements (H2
+ * QUERY_CACHE_SIZE), so preparing a hot statement again is a cache hit.
+ * <p>
+ * The delay before H2 writes a commit to a file database (WRITE_DELAY) is
+ * set by the durability mode, see {@link Durability}.
+ */
+public class ConnectionPool implements ConnectionPoolMXBean, ConnectionEventListener, ConnectionProvider {
+
+	public static final String DEFAULT_URL = "jdbc:h2:mem:money-transfer;DB_CLOSE_DELAY=-1";
+
+	private static final ConnectionPool INSTANCE = register(new ConnectionPool(
+			Config.getString("moneytransfer.db.url", DEFAULT_URL), Config.getInt("moneytransfer.db.pool.size", 16),
+			Config.getLong("moneytransfer.db.pool.timeout", 30000)));
+
+	private final JdbcDataSource dataSource = new JdbcDataSource();
+	private final boolean persistent;
+	private final int maxConnections;
+	private final long timeoutMillis;
+	private final Semaphore permits;
+	private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+
+	private final AtomicInteger active = new AtomicInteger();
+	private final LongAdder acquisitions = new LongAdder();
+	private final LongAdder created = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder totalWaitNanos = new LongAdder();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	ConnectionPool(String url, int maxConnections, long timeoutMillis) {
+		if (!url.toUpperCase().contains("QUERY_CACHE_SIZE")) {
+			url += ";QUERY_CACHE_SIZE=" + Config.getInt("moneytransfer.db.statement.cache", 64);
+		}
+		if (!url.toUpperCase().contains("WRITE_DELAY")) {
+			url += ";WRITE_DELAY=" + Durability.writeDelay();
+		}
+		persistent = !url.startsWith("jdbc:h2:mem:");
+		dataSource.setURL(url);
+		this.maxConnections = maxConnections;
+		this.timeoutMillis = timeoutMillis;
+		permits = new Semaphore(maxConnections);
+	}
+
+	private static ConnectionPool register(ConnectionPool pool) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(pool,
+					new ObjectName("name.spanderman.money.transfer:type=ConnectionPool"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return pool;
+	}
+
+	public static ConnectionPool getInstance() {
+		return INSTANCE;
+	}
+
+	public Connection getConnection() throws SQLException {
+		long start = System.nanoTime();
+		boolean acquired;
+		try {
+			acquired = permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("interrupted while waiting for a connection", e);
+		}
+		long waited = System.nanoTime() - start;
+		totalWaitNanos.add(waited);
+		maxWaitNanos.accumulateAndGet(waited, Math::max);
+		if (!acquired) {
+			timeouts.increment();
+			throw new SQLTimeoutException("no connection available within " + timeoutMillis + " ms");
+		}
+		try {
+			PooledConnection pc = idle.pollFirst();
+			if (pc == null) {
+				pc = dataSource.getPooledConnection();
+				pc.addConnectionEventListener(this);
+				created.increment();
+			}
+			Connection c = pc.getConnection();
+			active.incrementAndGet();
+			acquisitions.increment();
+			Trace trace = Tracer.current();
+			if (trace != null) {
+				trace.add(Trace.Phase.CONNECTION, start);
+			}
+			return c;
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return a new physical connection outside of the pool, to be closed by
+	 *         the caller
+	 */
+	Connection connect() throws SQLException {
+		return dataSource.getConnection();
+	}
+
+	/**
+	 * @return whether the database outlives the JVM, that is it is not an
+	 *         in-memory database
+	 */
+	public boolean isPersistent() {
+		return persistent;
+	}
+
+	@Override
+	public Connection acquire() {
+		try {
+			return getConnection();
+		} catch (SQLException e) {
+			throw new DataAccessException("error in getting a pooled connection", e);
+		}
+	}
+
+	@Override
+	public void release(Connection connection) {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			throw new DataAccessException("error in releasing a pooled connection", e);
+		}
+	}
+
+	@Override
+	public void connectionClosed(ConnectionEvent event) {
+		active.decrementAndGet();
+		idle.offerFirst((PooledConnection) event.getSource());
+		permits.release();
+	}
+
+	@Override
+	public void connectionErrorOccurred(ConnectionEvent event) {
+		active.decrementAndGet();
+		try {
+			((PooledConnection) event.getSource()).close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Closes the idle physical connections.
+	 */
+	public void close() {
+		PooledConnection pc;
+		while ((pc = idle.pollFirst()) != null) {
+			try {
+				pc.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	@Override
+	public int getActiveConnections() {
+		return active.get();
+	}
+
+	@Override
+	public int getIdleConnections() {
+		return idle.size();
+	}
+
+	@Override
+	public int getWaitingThreads() {
+		return permits.getQueueLength();
+	}
+
+	@Override
+	public long getAcquisitions() {
+		return acquisitions.sum();
+	}
+
+	@Override
+	public long getCreatedConnections() {
+		return created.sum();
+	}
+
+	@Override
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	@Override
+	public long getTotalWaitNanos() {
+		return totalWaitNanos.sum();
+	}
+
+	@Override
+	public long getMaxWaitNanos() {
+		return maxWaitNanos.get();
+	}
+}
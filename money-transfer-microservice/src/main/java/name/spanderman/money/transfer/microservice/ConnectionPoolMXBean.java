@@ -0,0 +1,25 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * JMX view of the {@link ConnectionPool} metrics.
+ */
+public interface ConnectionPoolMXBean {
+
+	int getMaxConnections();
+
+	int getActiveConnections();
+
+	int getIdleConnections();
+
+	int getWaitingThreads();
+
+	long getAcquisitions();
+
+	long getCreatedConnections();
+
+	long getTimeouts();
+
+	long getTotalWaitNanos();
+
+	long getMaxWaitNanos();
+}
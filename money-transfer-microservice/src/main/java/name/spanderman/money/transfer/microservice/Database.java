@@ -0,0 +1,180 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Query;
+import org.jooq.QueryPart;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.jooq.impl.DefaultConfiguration;
+
+/**
+ * The jOOQ context shared by the DAOs, drawing its connections from the
+ * {@link ConnectionPool}: each statement borrows a connection for its own
+ * duration, each transaction for the whole transaction.
+ * <p>
+ * Hot statements are built from the {@link Schema} and rendered once with
+ * {@link #render(QueryPart)}, then executed with
+ * {@link #fetchOne(DSLContext, String, RowMapper, Object...)} and
+ * {@link #execute(DSLContext, String, Object...)} straight on the JDBC
+ * connection of the context, skipping query construction, rendering and
+ * result materialization on every call. H2 keeps the parsed statements in a
+ * per connection cache (see <code>moneytransfer.db.statement.cache</code>).
+ * <p>
+ * Every commit of the context returns once it is as durable as
+ * {@link Durability} requires.
+ * <p>
+ * The statements run for a request sampled by the {@link Tracer} add to its
+ * {@link Trace}.
+ */
+public class Database {
+
+	/**
+	 * Key of an optional {@link LongAdder} in the configuration data of a
+	 * context, counting the statements executed through it.
+	 */
+	public static final String STATEMENT_COUNTER = "name.spanderman.money.transfer.statements";
+
+	private static final DSLContext DSL_CONTEXT = DSL.using(new DefaultConfiguration()
+			.set(ConnectionPool.getInstance()).set(SQLDialect.H2).set(Tracer.EXECUTE_LISTENER)
+			.set(Tracer.TRANSACTION_LISTENER, Durability.getInstance()));
+	private static final DSLContext RENDERER = DSL.using(SQLDialect.H2);
+
+	@FunctionalInterface
+	public interface RowMapper<T> {
+
+		T map(ResultSet rs) throws SQLException;
+	}
+
+	@FunctionalInterface
+	public interface RowBinder {
+
+		void bind(PreparedStatement ps, int row) throws SQLException;
+	}
+
+	private Database() {
+	}
+
+	public static DSLContext dsl() {
+		return DSL_CONTEXT;
+	}
+
+	/**
+	 * @return the SQL of a query with a <code>?</code> placeholder for each
+	 *         bind value
+	 */
+	public static String render(QueryPart query) {
+		return RENDERER.render(query);
+	}
+
+	/**
+	 * @return the SQL of an INSERT or UPDATE returning <code>field</code> of the
+	 *         rows it wrote, in a single statement
+	 */
+	public static String renderReturning(Field<?> field, Query dml) {
+		return "SELECT " + render(field) + " FROM FINAL TABLE (" + render(dml) + ")";
+	}
+
+	/**
+	 * @return the first row of a rendered query mapped by <code>mapper</code>,
+	 *         or <code>null</code> if there is none
+	 */
+	public static <T> T fetchOne(DSLContext ctx, String sql, RowMapper<T> mapper, Object... binds) {
+		return ctx.connectionResult(c -> {
+			Trace trace = Tracer.current();
+			long start = trace == null ? 0 : System.nanoTime();
+			try (PreparedStatement ps = c.prepareStatement(sql)) {
+				bind(ctx, ps, binds);
+				try (ResultSet rs = ps.executeQuery()) {
+					return rs.next() ? mapper.map(rs) : null;
+				}
+			} finally {
+				executed(trace, start);
+			}
+		});
+	}
+
+	/**
+	 * @return all the rows of a rendered query mapped by <code>mapper</code>
+	 */
+	public static <T> List<T> fetch(DSLContext ctx, String sql, RowMapper<T> mapper, Object... binds) {
+		return ctx.connectionResult(c -> {
+			Trace trace = Tracer.current();
+			long start = trace == null ? 0 : System.nanoTime();
+			try (PreparedStatement ps = c.prepareStatement(sql)) {
+				bind(ctx, ps, binds);
+				List<T> rows = new ArrayList<>();
+				try (ResultSet rs = ps.executeQuery()) {
+					while (rs.next()) {
+						rows.add(mapper.map(rs));
+					}
+				}
+				return rows;
+			} finally {
+				executed(trace, start);
+			}
+		});
+	}
+
+	/**
+	 * @return the number of rows written by a rendered statement
+	 */
+	public static int execute(DSLContext ctx, String sql, Object... binds) {
+		return ctx.connectionResult(c -> {
+			Trace trace = Tracer.current();
+			long start = trace == null ? 0 : System.nanoTime();
+			try (PreparedStatement ps = c.prepareStatement(sql)) {
+				bind(ctx, ps, binds);
+				return ps.executeUpdate();
+			} finally {
+				executed(trace, start);
+			}
+		});
+	}
+
+	/**
+	 * Executes a rendered statement once per row in a single JDBC batch, that
+	 * is a single round trip.
+	 *
+	 * @return the number of rows written per row
+	 */
+	public static int[] executeBatch(DSLContext ctx, String sql, int rows, RowBinder binder) {
+		return ctx.connectionResult(c -> {
+			Trace trace = Tracer.current();
+			long start = trace == null ? 0 : System.nanoTime();
+			try (PreparedStatement ps = c.prepareStatement(sql)) {
+				for (int i = 0; i < rows; i++) {
+					binder.bind(ps, i);
+					ps.addBatch();
+				}
+				bind(ctx, ps);
+				return ps.executeBatch();
+			} finally {
+				executed(trace, start);
+			}
+		});
+	}
+
+	private static void executed(Trace trace, long start) {
+		if (trace != null) {
+			trace.add(Trace.Phase.EXECUTE, start);
+		}
+	}
+
+	private static void bind(DSLContext ctx, PreparedStatement ps, Object... binds) throws SQLException {
+		for (int i = 0; i < binds.length; i++) {
+			ps.setObject(i + 1, binds[i]);
+		}
+		LongAdder statements = (LongAdder) ctx.configuration().data(STATEMENT_COUNTER);
+		if (statements != null) {
+			statements.increment();
+		}
+	}
+}
@@ -1,25 +1,42 @@
 package name.spanderman.money.transfer.microservice;
 
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNTS;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_ID;
+import static name.spanderman.money.transfer.microservice.Schema.MOVEMENT_ACCOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.MOVEMENT_AMOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.MOVEMENT_ID;
+import static name.spanderman.money.transfer.microservice.Schema.SEQ_DEPOSIT_ID;
+import static name.spanderman.money.transfer.microservice.Schema.DEPOSITS;
 import static org.jooq.impl.DSL.constraint;
-import static org.jooq.impl.DSL.field;
-import static org.jooq.impl.DSL.name;
-import static org.jooq.impl.DSL.sequence;
-import static org.jooq.impl.DSL.table;
+import static org.jooq.impl.DSL.insertInto;
+import static org.jooq.impl.DSL.param;
+import static org.jooq.impl.DSL.select;
 
-import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.List;
 
 import org.jooq.DSLContext;
-import org.jooq.Record;
-import org.jooq.SQLDialect;
-import org.jooq.impl.DSL;
 import org.jooq.impl.SQLDataType;
-import org.jooq.tools.jdbc.JDBCUtils;
 
 public class DepositDAO {
 
 	private static final DepositDAO INSTANCE = new DepositDAO();
 
+	static final IdAllocator DEPOSIT_IDS = new IdAllocator(SEQ_DEPOSIT_ID);
+
+	private static final String INSERT_DEPOSIT = Database
+			.render(insertInto(DEPOSITS, MOVEMENT_ID, MOVEMENT_AMOUNT, MOVEMENT_ACCOUNT).values(
+					param("id", SQLDataType.BIGINT), param("amount", SQLDataType.INTEGER),
+					param("account", SQLDataType.BIGINT)));
+	// ordered by the columns of the account index, read in index order up to the limit
+	private static final String SELECT_ACCOUNT_DEPOSITS = Database.render(select(MOVEMENT_ID, MOVEMENT_AMOUNT)
+			.from(DEPOSITS)
+			.where(MOVEMENT_ACCOUNT.eq(param("account", SQLDataType.BIGINT))
+					.and(MOVEMENT_ID.ge(param("from", SQLDataType.BIGINT))))
+			.orderBy(MOVEMENT_ACCOUNT, MOVEMENT_ID).limit(param("limit", SQLDataType.INTEGER)));
+	private static final String SELECT_DEPOSIT = Database.render(select(MOVEMENT_AMOUNT, MOVEMENT_ACCOUNT)
+			.from(DEPOSITS).where(MOVEMENT_ID.eq(param("id", SQLDataType.BIGINT))));
+
 	private DepositDAO() {
 	}
 
@@ -27,78 +44,112 @@ public class DepositDAO {
 		return INSTANCE;
 	}
 
-	private Connection getConnection() throws SQLException, ClassNotFoundException {
-		Class.forName("org.h2.Driver");
-		return java.sql.DriverManager.getConnection("jdbc:h2:mem:money-transfer;DB_CLOSE_DELAY=-1");
-	}
-
 	private DepositDAO createDepositsTable() throws Throwable {
-		Connection c = null;
 		try {
-			c = getConnection();
-			DSLContext ctx = DSL.using(c, SQLDialect.H2);
-			ctx.createTable(name("DEPOSITS"))
-					.columns(field(name("id"), SQLDataType.BIGINT), field(name("amount"), SQLDataType.INTEGER),
-							field(name("account"), SQLDataType.BIGINT))
-					.constraints(constraint("PK_DEPOSITS").primaryKey(field(name("id"))),
-							constraint("FK_DEPOSITS_ACCOUNTS").foreignKey(field(name("account")))
-									.references(table(name("ACCOUNTS")), field(name("id"))))
+			Database.dsl().createTableIfNotExists(DEPOSITS).columns(MOVEMENT_ID, MOVEMENT_AMOUNT, MOVEMENT_ACCOUNT)
+					.constraints(constraint("PK_DEPOSITS").primaryKey(MOVEMENT_ID),
+							constraint("FK_DEPOSITS_ACCOUNTS").foreignKey(MOVEMENT_ACCOUNT).references(ACCOUNTS,
+									ACCOUNT_ID))
 					.execute();
 			return this;
 		} catch (Throwable e) {
 			e.printStackTrace();
 			throw e;
-		} finally {
-			JDBCUtils.safeClose(c);
 		}
 	}
 
 	private DepositDAO createDepositsTableIdSequence() throws Throwable {
-		Connection c = null;
 		try {
-			c = getConnection();
-			DSLContext ctx = DSL.using(c, SQLDialect.H2);
-			ctx.createSequence(sequence(name("SEQ_DEPOSIT_ID"), SQLDataType.BIGINT)).execute();
+			DEPOSIT_IDS.createSequence(Database.dsl());
+			return this;
+		} catch (Throwable e) {
+			e.printStackTrace();
+			throw e;
+		}
+	}
+
+	private DepositDAO createDepositsTableAccountIndex() throws Throwable {
+		try {
+			// the deposits of an account in id order, for its history
+			Database.dsl().createIndexIfNotExists("IDX_DEPOSITS_ACCOUNT_ID")
+					.on(DEPOSITS, MOVEMENT_ACCOUNT, MOVEMENT_ID).execute();
 			return this;
 		} catch (Throwable e) {
 			e.printStackTrace();
 			throw e;
-		} finally {
-			JDBCUtils.safeClose(c);
 		}
 	}
 
 	public void dbSetup() throws Throwable {
-		createDepositsTable().createDepositsTableIdSequence();
+		createDepositsTable().createDepositsTableIdSequence().createDepositsTableAccountIndex();
 	}
 
 	public Deposit createDeposit(Deposit deposit, DSLContext ctx) {
 		long account = deposit.getAccount();
-		long id = ctx.nextval(sequence(name("SEQ_DEPOSIT_ID"))).longValueExact();
 		int amount = deposit.getAmount();
-		return ctx.transactionResult(configuration -> {
-			DSL.using(configuration).insertInto(table(name("DEPOSITS")), field(name("id")), field(name("amount")),
-					field(name("account"))).values(id, amount, account).execute();
-			return new Deposit(id, amount, account);
-		});
-
+		long id = DEPOSIT_IDS.next(ctx);
+		Database.execute(ctx, INSERT_DEPOSIT, id, amount, account);
+		return new Deposit(id, amount, account);
 	}
 
-	public Deposit getDeposit(long id) throws ClassNotFoundException, SQLException {
-		Connection c = null;
-		try {
-			c = getConnection();
-			DSLContext ctx = DSL.using(c, SQLDialect.H2);
-			Record r = ctx.select(field(name("id")), field(name("amount")), field(name("account")))
-					.from(table("DEPOSITS")).where(field(name("id"), SQLDataType.BIGINT).eq(id)).fetchOne();
-			// no deposit found
-			if (r == null) {
-				return null;
+	/**
+	 * Inserts the deposits of a batch that were made, with one JDBC batch.
+	 *
+	 * @return the id of each deposit of the batch, 0 for those not made
+	 */
+	public long[] createDeposits(ImportBatch batch, DSLContext ctx) {
+		int[] made = new int[batch.deposits()];
+		int count = 0;
+		for (int i = 0; i < batch.deposits(); i++) {
+			if (batch.isDeposited(i)) {
+				made[count++] = i;
 			}
-			return new Deposit(id, r.get(field(name("amount"), SQLDataType.INTEGER)),
-					r.get(field(name("account"), SQLDataType.BIGINT)));
-		} finally {
-			JDBCUtils.safeClose(c);
 		}
+		long[] ids = DEPOSIT_IDS.next(ctx, count);
+		if (count > 0) {
+			Database.executeBatch(ctx, INSERT_DEPOSIT, count, (ps, i) -> {
+				ps.setLong(1, ids[i]);
+				ps.setInt(2, batch.amount(made[i]));
+				ps.setLong(3, batch.depositAccount(made[i]));
+			});
+		}
+		long[] depositIds = new long[batch.deposits()];
+		for (int i = 0; i < count; i++) {
+			depositIds[made[i]] = ids[i];
+		}
+		return depositIds;
+	}
+
+	/**
+	 * Inserts deposits with one JDBC batch.
+	 *
+	 * @return the ids of the deposits, in order
+	 */
+	public long[] createDeposits(List<Deposit> deposits, DSLContext ctx) {
+		int count = deposits.size();
+		long[] ids = DEPOSIT_IDS.next(ctx, count);
+		if (count > 0) {
+			Database.executeBatch(ctx, INSERT_DEPOSIT, count, (ps, i) -> {
+				Deposit deposit = deposits.get(i);
+				ps.setLong(1, ids[i]);
+				ps.setInt(2, deposit.getAmount());
+				ps.setLong(3, deposit.getAccount());
+			});
+		}
+		return ids;
+	}
+
+	public Deposit getDeposit(long id) throws SQLException {
+		// null if no deposit found
+		return Database.fetchOne(Database.dsl(), SELECT_DEPOSIT, rs -> new Deposit(id, rs.getInt(1), rs.getLong(2)), id);
+	}
+
+	/**
+	 * @return the first <code>limit</code> deposits on <code>account</code>
+	 *         with ids from <code>from</code> on, in id order
+	 */
+	public List<Deposit> getDeposits(DSLContext ctx, long account, long from, int limit) {
+		return Database.fetch(ctx, SELECT_ACCOUNT_DEPOSITS,
+				rs -> new Deposit(rs.getLong(1), rs.getInt(2), account), account, from, limit);
 	}
 }
@@ -0,0 +1,149 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.jooq.TransactionContext;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DefaultTransactionListener;
+
+/**
+ * How far a write is on its way to the disk of a file database when it is
+ * answered, set by <code>moneytransfer.db.durability</code>:
+ * <ul>
+ * <li><code>sync</code>: every commit is written to the file right away and
+ * the file is forced to the disk before the commit returns, one sync per
+ * commit;</li>
+ * <li><code>group</code> (default): the same guarantee, but the commits made
+ * while a sync is running wait for the next one and share it (see
+ * {@link GroupCommit});</li>
+ * <li><code>async</code>: commits are written to the file in the background
+ * within <code>moneytransfer.db.write.delay</code> milliseconds (default 500)
+ * and never forced, a crash loses the last ones.</li>
+ * </ul>
+ * H2 itself never forces the file on commit, hence the explicit
+ * <code>CHECKPOINT SYNC</code> on a connection of its own, run after every
+ * commit of the shared context and after the writes outside transactions.
+ * Nothing is synced for an in-memory database. Commit and sync counters are
+ * published over JMX.
+ */
+public class Durability extends DefaultTransactionListener implements DurabilityMXBean {
+
+	public enum Mode {
+		SYNC, GROUP, ASYNC
+	}
+
+	public static final Mode MODE = Mode.valueOf(Config.getString("moneytransfer.db.durability", "group").toUpperCase());
+
+	private static final Durability INSTANCE = new Durability();
+
+	private final AtomicLong committed = new AtomicLong();
+	private final GroupCommit groupCommit = new GroupCommit(committed::get, this::sync, MODE == Mode.GROUP);
+	// used by one syncing thread at a time
+	private Connection connection;
+	private Statement statement;
+
+	private Durability() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("name.spanderman.money.transfer:type=Durability"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static Durability getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the H2 WRITE_DELAY of the mode, 0 to write every commit to the
+	 *         file as it is made
+	 */
+	static int writeDelay() {
+		return MODE == Mode.ASYNC ? Config.getInt("moneytransfer.db.write.delay", 500) : 0;
+	}
+
+	@Override
+	public void commitEnd(TransactionContext ctx) {
+		committed();
+	}
+
+	/**
+	 * Returns once a write committed by the calling thread is on disk, as far
+	 * as the mode requires.
+	 */
+	public void committed() {
+		if (MODE == Mode.ASYNC || !ConnectionPool.getInstance().isPersistent()) {
+			return;
+		}
+		Trace trace = Tracer.current();
+		long start = trace == null ? 0 : System.nanoTime();
+		groupCommit.await(committed.incrementAndGet());
+		if (trace != null) {
+			trace.add(Trace.Phase.SYNC, start);
+		}
+	}
+
+	private void sync() {
+		try {
+			if (connection == null) {
+				connection = ConnectionPool.getInstance().connect();
+				statement = connection.createStatement();
+			}
+			statement.execute("CHECKPOINT SYNC");
+		} catch (SQLException e) {
+			close();
+			throw new DataAccessException("error in syncing the database", e);
+		}
+	}
+
+	private void close() {
+		try {
+			if (connection != null) {
+				connection.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} finally {
+			connection = null;
+			statement = null;
+		}
+	}
+
+	@Override
+	public String getMode() {
+		return MODE.name().toLowerCase();
+	}
+
+	@Override
+	public long getCommits() {
+		return committed.get();
+	}
+
+	@Override
+	public long getSyncs() {
+		return groupCommit.getSyncs();
+	}
+
+	@Override
+	public double getCommitsPerSync() {
+		long n = groupCommit.getSyncs();
+		return n == 0 ? 0 : (double) groupCommit.getSynced() / n;
+	}
+
+	@Override
+	public long getMaxCommitsPerSync() {
+		return groupCommit.getMaxBatch();
+	}
+
+	@Override
+	public long getTotalSyncNanos() {
+		return groupCommit.getTotalSyncNanos();
+	}
+}
@@ -0,0 +1,19 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * JMX view of the {@link Durability} counters.
+ */
+public interface DurabilityMXBean {
+
+	String getMode();
+
+	long getCommits();
+
+	long getSyncs();
+
+	double getCommitsPerSync();
+
+	long getMaxCommitsPerSync();
+
+	long getTotalSyncNanos();
+}
@@ -0,0 +1,140 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.jooq.exception.DataAccessException;
+
+/**
+ * Makes writes durable with one sync per group of concurrent writers. Each
+ * write is numbered by its writer (its ticket) once it is handed to the
+ * storage; a writer then waits for a sync covering its ticket. The first one
+ * to find no sync running becomes the leader and syncs everything written so
+ * far, the writers arriving meanwhile waiting for the next sync.
+ * <p>
+ * When not <code>shared</code>, every writer runs a sync of its own, one at
+ * a time.
+ * <p>
+ * Writers wait on a {@link ReentrantLock} rather than a monitor, which would
+ * pin a virtual thread to its carrier during the sync.
+ */
+class GroupCommit {
+
+	private final LongSupplier written;
+	private final Runnable sync;
+	private final boolean shared;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition syncDone = lock.newCondition();
+	// guarded by lock
+	private long synced;
+	private boolean syncing;
+
+	private final LongAdder syncs = new LongAdder();
+	private final LongAdder totalSyncNanos = new LongAdder();
+	private final AtomicLong maxBatch = new AtomicLong();
+
+	/**
+	 * @param written
+	 *            the last ticket handed to the storage
+	 * @param sync
+	 *            forces to disk everything handed to the storage
+	 */
+	GroupCommit(LongSupplier written, Runnable sync, boolean shared) {
+		this.written = written;
+		this.sync = sync;
+		this.shared = shared;
+	}
+
+	/**
+	 * Returns once the write numbered <code>ticket</code> is synced.
+	 */
+	void await(long ticket) {
+		if (!shared) {
+			lock.lock();
+			try {
+				sync(synced, written.getAsLong());
+			} finally {
+				lock.unlock();
+			}
+			return;
+		}
+		for (;;) {
+			long from;
+			long target;
+			lock.lock();
+			try {
+				while (syncing && synced < ticket) {
+					try {
+						syncDone.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new DataAccessException("interrupted while waiting for a sync");
+					}
+				}
+				if (synced >= ticket) {
+					return;
+				}
+				syncing = true;
+				from = synced;
+				target = written.getAsLong();
+			} finally {
+				lock.unlock();
+			}
+			boolean done = false;
+			try {
+				sync(from, target);
+				done = true;
+			} finally {
+				lock.lock();
+				try {
+					syncing = false;
+					if (done) {
+						synced = Math.max(synced, target);
+					}
+					syncDone.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	private void sync(long from, long target) {
+		long start = System.nanoTime();
+		sync.run();
+		totalSyncNanos.add(System.nanoTime() - start);
+		syncs.increment();
+		maxBatch.accumulateAndGet(target - from, Math::max);
+		if (!shared) {
+			synced = target;
+		}
+	}
+
+	long getSynced() {
+		lock.lock();
+		try {
+			return synced;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getSyncs() {
+		return syncs.sum();
+	}
+
+	long getTotalSyncNanos() {
+		return totalSyncNanos.sum();
+	}
+
+	/**
+	 * @return the largest number of tickets covered by one sync
+	 */
+	long getMaxBatch() {
+		return maxBatch.get();
+	}
+}
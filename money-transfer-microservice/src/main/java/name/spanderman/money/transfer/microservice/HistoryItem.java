@@ -0,0 +1,63 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * One movement of the history of an account (see {@link AccountHistory}): a
+ * deposit on it, a withdrawal from it or a transfer from or to it, with the
+ * other account of the transfer.
+ */
+public class HistoryItem {
+
+	/**
+	 * Also the order of movements of different types sharing an id.
+	 */
+	public enum Type {
+		DEPOSIT, WITHDRAWAL, TRANSFER_OUT, TRANSFER_IN
+	}
+
+	private Type type;
+	private long id;
+	private int amount;
+	private Long otherAccount;
+
+	public HistoryItem() {
+	}
+
+	HistoryItem(Type aType, long anId, int anAmount, Long anOtherAccount) {
+		type = aType;
+		id = anId;
+		amount = anAmount;
+		otherAccount = anOtherAccount;
+	}
+
+	public static HistoryItem deposit(Deposit deposit) {
+		return new HistoryItem(Type.DEPOSIT, deposit.getId(), deposit.getAmount(), null);
+	}
+
+	public static HistoryItem withdrawal(Withdrawal withdrawal) {
+		return new HistoryItem(Type.WITHDRAWAL, withdrawal.getId(), withdrawal.getAmount(), null);
+	}
+
+	public static HistoryItem transferOut(Transfer transfer) {
+		return new HistoryItem(Type.TRANSFER_OUT, transfer.getId(), transfer.getAmount(), transfer.getToAccount());
+	}
+
+	public static HistoryItem transferIn(Transfer transfer) {
+		return new HistoryItem(Type.TRANSFER_IN, transfer.getId(), transfer.getAmount(), transfer.getFromAccount());
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public int getAmount() {
+		return amount;
+	}
+
+	public Long getOtherAccount() {
+		return otherAccount;
+	}
+}
@@ -0,0 +1,128 @@
+package name.spanderman.money.transfer.microservice;
+
+import static org.jooq.impl.DSL.createSequenceIfNotExists;
+import static org.jooq.impl.DSL.select;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jooq.DSLContext;
+import org.jooq.Sequence;
+
+/**
+ * Hands out the ids of a table from blocks of
+ * <code>moneytransfer.id.block</code> consecutive ids reserved from its
+ * sequence, so that only one id in a block costs a database round trip.
+ * <p>
+ * The sequence increments by the block size and each of its values is the
+ * last id of a block: value <code>v</code> reserves the ids from
+ * <code>v - blockSize + 1</code> to <code>v</code>. Since the next value
+ * after a restart is always past every block reserved before, ids stay unique
+ * across restarts of a file database, even if the block size changes in
+ * between; the ids left in the blocks of a stopped server are never used.
+ * <p>
+ * Ids are taken from the current block with a single atomic add; only the
+ * thread finding the block used up reserves the next one.
+ */
+public class IdAllocator {
+
+	public static final int BLOCK_SIZE = Math.max(Config.getInt("moneytransfer.id.block", 1000), 1);
+
+	private final Sequence<Long> sequence;
+	private final String nextValue;
+	private final AtomicReference<Block> block = new AtomicReference<>(new Block(1, 0));
+	// a lock rather than a monitor, not to pin a virtual thread reserving
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private static final class Block {
+
+		private final AtomicLong next;
+		private final long last;
+
+		private Block(long first, long last) {
+			next = new AtomicLong(first);
+			this.last = last;
+		}
+	}
+
+	public IdAllocator(Sequence<Long> sequence) {
+		this.sequence = sequence;
+		nextValue = Database.render(select(sequence.nextval()));
+	}
+
+	/**
+	 * Creates the sequence incrementing by the block size, or sets its
+	 * increment to the block size if it exists: each value stays the last id
+	 * of a block since the current value is the last id of the last block.
+	 */
+	public void createSequence(DSLContext ctx) {
+		ctx.execute(Database.render(createSequenceIfNotExists(sequence)) + " START WITH " + BLOCK_SIZE
+				+ " INCREMENT BY " + BLOCK_SIZE);
+		ctx.execute("ALTER SEQUENCE " + Database.render(sequence) + " INCREMENT BY " + BLOCK_SIZE);
+	}
+
+	/**
+	 * Restarts the sequence after <code>maxId</code>, the highest id written
+	 * to the table other than through the allocator.
+	 */
+	public void restartAfter(DSLContext ctx, long maxId) {
+		lock.lock();
+		try {
+			ctx.execute("ALTER SEQUENCE " + Database.render(sequence) + " RESTART WITH " + (maxId + BLOCK_SIZE));
+			block.set(new Block(1, 0));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param ctx
+	 *            the context reserving a new block if need be, so that a
+	 *            caller holding a transaction does not need a second
+	 *            connection
+	 */
+	public long next(DSLContext ctx) {
+		for (;;) {
+			Block b = block.get();
+			long id = b.next.getAndIncrement();
+			if (id <= b.last) {
+				return id;
+			}
+			reserve(ctx, b);
+		}
+	}
+
+	/**
+	 * @return <code>count</code> new ids
+	 * @see #next(DSLContext)
+	 */
+	public long[] next(DSLContext ctx, int count) {
+		long[] ids = new long[count];
+		int n = 0;
+		while (n < count) {
+			Block b = block.get();
+			long first = b.next.getAndAdd(count - n);
+			for (long id = first; id <= b.last && n < count; id++) {
+				ids[n++] = id;
+			}
+			if (n < count) {
+				reserve(ctx, b);
+			}
+		}
+		return ids;
+	}
+
+	private void reserve(DSLContext ctx, Block usedUp) {
+		lock.lock();
+		try {
+			// another thread may have reserved a block meanwhile
+			if (block.get() == usedUp) {
+				long last = Database.fetchOne(ctx, nextValue, rs -> rs.getLong(1));
+				block.set(new Block(last - BLOCK_SIZE + 1, last));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+}
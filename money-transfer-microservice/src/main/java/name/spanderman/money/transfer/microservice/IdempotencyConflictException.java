@@ -0,0 +1,28 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * Thrown when a request comes with an Idempotency-Key that is either still
+ * being used by a request in progress or was used for a different movement
+ * (see {@link IdempotencyStore}).
+ */
+public class IdempotencyConflictException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final boolean inProgress;
+
+	public IdempotencyConflictException(String key, boolean inProgress) {
+		super(inProgress ? "a request with idempotency key " + key + " is in progress"
+				: "idempotency key " + key + " was used for a different request");
+		this.inProgress = inProgress;
+	}
+
+	/**
+	 * @return <code>true</code> if the request holding the key may still
+	 *         complete, <code>false</code> if the key belongs to another
+	 *         movement
+	 */
+	public boolean isInProgress() {
+		return inProgress;
+	}
+}
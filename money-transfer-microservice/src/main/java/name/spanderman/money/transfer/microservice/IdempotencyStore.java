@@ -0,0 +1,391 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.ObjectName;
+
+/**
+ * Deposits, withdrawals and transfers made with an Idempotency-Key header,
+ * so that a client retrying a request gets the movement made the first time
+ * instead of making it again. At most <code>moneytransfer.idempotency.size</code>
+ * keys (default 100000, 0 disables the header) are kept for at most
+ * <code>moneytransfer.idempotency.ttl</code> milliseconds each (default one
+ * day), each endpoint having keys of its own.
+ * <p>
+ * The keys are spread over stripes, each a map in insertion order with its own
+ * lock, so a lookup is one hash probe under a lock shared with a sixty-fourth
+ * of the keys only. The oldest keys of a stripe are dropped first, whether
+ * expired or beyond its share of the size, but only once their movement is
+ * made: a stripe holding more claims in progress than its share grows past it
+ * until they complete. A key is claimed by its first
+ * request before the movement is made: a concurrent request with the same key
+ * is refused as in progress, and one with a different movement as a conflict.
+ * The key is released if the movement fails, so a retry makes it anew.
+ * <p>
+ * With <code>moneytransfer.idempotency.file</code> set, every movement stored
+ * is also appended to that file, and the keys not expired are loaded from it
+ * at startup, the file being rewritten with those only. Records are flushed
+ * to the operating system, not synced, and a torn last record is ignored.
+ * Counters are published over JMX.
+ */
+public class IdempotencyStore implements IdempotencyStoreMXBean {
+
+	public static final String HEADER = "Idempotency-Key";
+	public static final String REPLAYED = "Idempotent-Replayed";
+	public static final int MAX_KEY_LENGTH = 255;
+
+	private static final IdempotencyStore INSTANCE = register(
+			create(Config.getInt("moneytransfer.idempotency.size", 100000),
+					Config.getLong("moneytransfer.idempotency.ttl", 24 * 60 * 60 * 1000L),
+					Config.getString("moneytransfer.idempotency.file", null)));
+
+	private static final int STRIPES = 64;
+
+	private final int maxSize;
+	private final long ttl;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	private final Path path;
+	// guarded by fileLock
+	private DataOutputStream out;
+	private final ReentrantLock fileLock = new ReentrantLock();
+
+	private final LongAdder claims = new LongAdder();
+	private final LongAdder replays = new LongAdder();
+	private final LongAdder conflicts = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+
+	private static final class Entry {
+
+		// the request while in progress, then the movement made
+		private Object movement;
+		private boolean done;
+		private final long expiresAt;
+
+		private Entry(Object movement, boolean done, long expiresAt) {
+			this.movement = movement;
+			this.done = done;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final class Stripe extends LinkedHashMap<String, Entry> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		private Stripe(int capacity) {
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			if (size() <= capacity) {
+				return false;
+			}
+			// the oldest movement made, skipping the claims in progress
+			for (Iterator<Entry> entries = values().iterator(); entries.hasNext();) {
+				if (entries.next().done) {
+					entries.remove();
+					evictions.increment();
+					return false;
+				}
+			}
+			return false;
+		}
+
+		private void expire(long now) {
+			// in insertion order, the first key not expired ends the scan
+			for (Iterator<Entry> entries = values().iterator(); entries.hasNext();) {
+				Entry entry = entries.next();
+				if (entry.expiresAt > now) {
+					return;
+				}
+				if (entry.done) {
+					entries.remove();
+					expirations.increment();
+				}
+			}
+		}
+	}
+
+	IdempotencyStore(int maxSize, long ttl, Path path) throws IOException {
+		this.maxSize = Math.max(maxSize, 0);
+		this.ttl = ttl;
+		this.path = this.maxSize == 0 ? null : path;
+		int capacity = (this.maxSize + STRIPES - 1) / STRIPES;
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(capacity);
+		}
+		if (this.path != null) {
+			load();
+		}
+	}
+
+	private static IdempotencyStore create(int maxSize, long ttl, String file) {
+		try {
+			return new IdempotencyStore(maxSize, ttl, file == null ? null : Paths.get(file));
+		} catch (IOException e) {
+			throw new UncheckedIOException("error in loading the idempotency keys " + file, e);
+		}
+	}
+
+	private static IdempotencyStore register(IdempotencyStore store) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(store,
+					new ObjectName("name.spanderman.money.transfer:type=IdempotencyStore"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return store;
+	}
+
+	public static IdempotencyStore getInstance() {
+		return INSTANCE;
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * Claims <code>key</code> for the deposit, withdrawal or transfer
+	 * <code>request</code>, to be followed by
+	 * {@link #complete(String, Object, Object)} once it is made or failed.
+	 *
+	 * @return the movement already made with <code>key</code>, or
+	 *         <code>null</code> if the caller now holds the key
+	 * @throws IdempotencyConflictException
+	 *             if <code>key</code> is held by a request in progress or was
+	 *             used for a different movement
+	 */
+	public Object claim(String key, Object request) {
+		String scoped = scope(key, request);
+		Stripe stripe = stripe(scoped);
+		long now = System.currentTimeMillis();
+		synchronized (stripe) {
+			stripe.expire(now);
+			Entry entry = stripe.get(scoped);
+			if (entry == null) {
+				stripe.put(scoped, new Entry(request, false, now + ttl));
+				claims.increment();
+				return null;
+			}
+			if (!matches(entry.movement, request)) {
+				conflicts.increment();
+				throw new IdempotencyConflictException(key, false);
+			}
+			if (!entry.done) {
+				conflicts.increment();
+				throw new IdempotencyConflictException(key, true);
+			}
+			replays.increment();
+			return entry.movement;
+		}
+	}
+
+	/**
+	 * Stores <code>result</code> under the <code>key</code> claimed for
+	 * <code>request</code> if it is the movement made, or else releases the
+	 * key.
+	 */
+	public void complete(String key, Object request, Object result) {
+		String scoped = scope(key, request);
+		Stripe stripe = stripe(scoped);
+		boolean made = result != null && type(result) == type(request);
+		long expiresAt;
+		synchronized (stripe) {
+			Entry entry = stripe.get(scoped);
+			// evicted or expired meanwhile
+			if (entry == null || entry.done || entry.movement != request) {
+				return;
+			}
+			if (!made) {
+				stripe.remove(scoped);
+				return;
+			}
+			entry.movement = result;
+			entry.done = true;
+			expiresAt = entry.expiresAt;
+		}
+		if (path != null) {
+			fileLock.lock();
+			try {
+				write(out, key, expiresAt, result);
+				out.flush();
+			} catch (IOException e) {
+				// the key is still kept in memory
+				e.printStackTrace();
+			} finally {
+				fileLock.unlock();
+			}
+		}
+	}
+
+	private void load() throws IOException {
+		long now = System.currentTimeMillis();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			while (true) {
+				byte type = in.readByte();
+				String key = in.readUTF();
+				long expiresAt = in.readLong();
+				long id = in.readLong();
+				long account = in.readLong();
+				long toAccount = in.readLong();
+				int amount = in.readInt();
+				if (expiresAt <= now) {
+					continue;
+				}
+				Object movement = type == Journal.TRANSFER ? new Transfer(id, amount, account, toAccount)
+						: type == Journal.WITHDRAWAL ? new Withdrawal(id, amount, account)
+								: new Deposit(id, amount, account);
+				String scoped = scope(key, movement);
+				stripe(scoped).put(scoped, new Entry(movement, true, expiresAt));
+			}
+		} catch (NoSuchFileException | EOFException e) {
+			// no file yet, or the end of the file or of its last whole record
+		}
+		// keep the keys loaded only, oldest first
+		Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+		try (DataOutputStream copy = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(compacted)))) {
+			for (Stripe stripe : stripes) {
+				for (Map.Entry<String, Entry> entry : stripe.entrySet()) {
+					write(copy, entry.getKey().substring(1), entry.getValue().expiresAt, entry.getValue().movement);
+				}
+			}
+		}
+		Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.APPEND)));
+	}
+
+	private static void write(DataOutputStream out, String key, long expiresAt, Object movement) throws IOException {
+		out.writeByte(type(movement));
+		out.writeUTF(key);
+		out.writeLong(expiresAt);
+		if (movement instanceof Transfer) {
+			Transfer transfer = (Transfer) movement;
+			out.writeLong(transfer.getId());
+			out.writeLong(transfer.getFromAccount());
+			out.writeLong(transfer.getToAccount());
+			out.writeInt(transfer.getAmount());
+		} else {
+			Deposit deposit = (Deposit) movement;
+			out.writeLong(deposit.getId());
+			out.writeLong(deposit.getAccount());
+			out.writeLong(0);
+			out.writeInt(deposit.getAmount());
+		}
+	}
+
+	private static byte type(Object movement) {
+		if (movement instanceof Transfer) {
+			return Journal.TRANSFER;
+		}
+		if (movement instanceof Withdrawal) {
+			return Journal.WITHDRAWAL;
+		}
+		if (movement instanceof Deposit) {
+			return Journal.DEPOSIT;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return whether both movements move the same amount between the same
+	 *         accounts, ids aside
+	 */
+	private static boolean matches(Object a, Object b) {
+		if (type(a) != type(b)) {
+			return false;
+		}
+		if (a instanceof Transfer) {
+			Transfer x = (Transfer) a;
+			Transfer y = (Transfer) b;
+			return x.getAmount() == y.getAmount() && x.getFromAccount() == y.getFromAccount()
+					&& x.getToAccount() == y.getToAccount();
+		}
+		Deposit x = (Deposit) a;
+		Deposit y = (Deposit) b;
+		return x.getAmount() == y.getAmount() && x.getAccount() == y.getAccount();
+	}
+
+	private static String scope(String key, Object movement) {
+		return (char) type(movement) + key;
+	}
+
+	private Stripe stripe(String scoped) {
+		int h = scoped.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	@Override
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public long getTtl() {
+		return ttl;
+	}
+
+	@Override
+	public boolean isPersistent() {
+		return path != null;
+	}
+
+	@Override
+	public int getSize() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public long getClaims() {
+		return claims.sum();
+	}
+
+	@Override
+	public long getReplays() {
+		return replays.sum();
+	}
+
+	@Override
+	public long getConflicts() {
+		return conflicts.sum();
+	}
+
+	@Override
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	@Override
+	public long getExpirations() {
+		return expirations.sum();
+	}
+}
@@ -0,0 +1,25 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * JMX view of the {@link IdempotencyStore} statistics.
+ */
+public interface IdempotencyStoreMXBean {
+
+	int getMaxSize();
+
+	long getTtl();
+
+	boolean isPersistent();
+
+	int getSize();
+
+	long getClaims();
+
+	long getReplays();
+
+	long getConflicts();
+
+	long getEvictions();
+
+	long getExpirations();
+}
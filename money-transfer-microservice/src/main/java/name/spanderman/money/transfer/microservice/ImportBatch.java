@@ -0,0 +1,117 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * The accounts to open and the deposits to make of a bulk import (see
+ * {@link BulkImporter}), in primitive arrays refilled batch after batch.
+ * <p>
+ * The store fills in the id of each account opened and whether each deposit
+ * was made, which it is not on an account that is not open.
+ */
+public class ImportBatch {
+
+	private final int capacity;
+
+	private final int[] balances;
+	private final long[] accountIds;
+	private int accounts;
+
+	private final int[] amounts;
+	private final long[] depositAccounts;
+	private final long[] depositRecords;
+	private final boolean[] deposited;
+	private int deposits;
+
+	public ImportBatch(int capacity) {
+		this.capacity = capacity;
+		balances = new int[capacity];
+		accountIds = new long[capacity];
+		amounts = new int[capacity];
+		depositAccounts = new long[capacity];
+		depositRecords = new long[capacity];
+		deposited = new boolean[capacity];
+	}
+
+	public void addAccount(int balance) {
+		balances[accounts++] = balance;
+	}
+
+	/**
+	 * @param record
+	 *            the number of the record of the deposit in the import, to
+	 *            report it if it is rejected
+	 */
+	public void addDeposit(int amount, long account, long record) {
+		amounts[deposits] = amount;
+		depositAccounts[deposits] = account;
+		depositRecords[deposits++] = record;
+	}
+
+	public boolean isFull() {
+		return accounts == capacity || deposits == capacity;
+	}
+
+	public boolean isEmpty() {
+		return accounts == 0 && deposits == 0;
+	}
+
+	public void clear() {
+		accounts = 0;
+		deposits = 0;
+	}
+
+	public int accounts() {
+		return accounts;
+	}
+
+	public int balance(int i) {
+		return balances[i];
+	}
+
+	public long accountId(int i) {
+		return accountIds[i];
+	}
+
+	public void setAccountId(int i, long id) {
+		accountIds[i] = id;
+	}
+
+	public int deposits() {
+		return deposits;
+	}
+
+	public int amount(int i) {
+		return amounts[i];
+	}
+
+	public long depositAccount(int i) {
+		return depositAccounts[i];
+	}
+
+	public long depositRecord(int i) {
+		return depositRecords[i];
+	}
+
+	public boolean isDeposited(int i) {
+		return deposited[i];
+	}
+
+	public void setDeposited(int i, boolean isDeposited) {
+		deposited[i] = isDeposited;
+	}
+
+	/**
+	 * @return the amounts of the deposits, as an array of at least
+	 *         {@link #deposits()} elements
+	 */
+	int[] amounts() {
+		return amounts;
+	}
+
+	/**
+	 * @return the accounts of the deposits, as an array of at least
+	 *         {@link #deposits()} elements
+	 */
+	long[] depositAccounts() {
+		return depositAccounts;
+	}
+}
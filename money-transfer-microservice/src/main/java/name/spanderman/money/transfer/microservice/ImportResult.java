@@ -0,0 +1,70 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Summary of a bulk import: the ids of the accounts opened, as ranges of
+ * consecutive ids in record order, and the number of deposits made or
+ * rejected.
+ */
+public class ImportResult {
+
+	/**
+	 * Rejected records reported by number, the others are only counted.
+	 */
+	public static final int REJECTED_RECORDS_REPORTED = 100;
+
+	private long accounts;
+	private final List<long[]> accountIds = new ArrayList<>();
+	private long deposits;
+	private long rejected;
+	private final List<Long> rejectedRecords = new ArrayList<>();
+
+	void add(ImportBatch batch) {
+		for (int i = 0; i < batch.accounts(); i++) {
+			long id = batch.accountId(i);
+			long[] last = accountIds.isEmpty() ? null : accountIds.get(accountIds.size() - 1);
+			if (last != null && last[1] + 1 == id) {
+				last[1] = id;
+			} else {
+				accountIds.add(new long[] { id, id });
+			}
+		}
+		accounts += batch.accounts();
+		for (int i = 0; i < batch.deposits(); i++) {
+			if (batch.isDeposited(i)) {
+				deposits++;
+			} else if (rejected++ < REJECTED_RECORDS_REPORTED) {
+				rejectedRecords.add(batch.depositRecord(i));
+			}
+		}
+	}
+
+	public long getAccounts() {
+		return accounts;
+	}
+
+	/**
+	 * @return the [first, last] ranges of the ids of the accounts opened
+	 */
+	public List<long[]> getAccountIds() {
+		return accountIds;
+	}
+
+	public long getDeposits() {
+		return deposits;
+	}
+
+	public long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * @return the numbers, from 1, of the first
+	 *         {@value #REJECTED_RECORDS_REPORTED} deposit records rejected
+	 */
+	public List<Long> getRejectedRecords() {
+		return rejectedRecords;
+	}
+}
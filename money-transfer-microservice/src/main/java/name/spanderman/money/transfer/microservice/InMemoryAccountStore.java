@@ -0,0 +1,353 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link AccountStore} keeping everything on heap.
+ * <p>
+ * Accounts are spread over a power of two number of stripes
+ * (<code>moneytransfer.memory.stripes</code>), each one an
+ * {@link AccountTable} guarded by its own lock. Transfers lock the two
+ * stripes involved in stripe index order, so concurrent transfers in opposite
+ * directions cannot deadlock.
+ * <p>
+ * The movements of each account are also kept in a skip list in the order of
+ * {@link AccountHistory}, for its history.
+ * <p>
+ * Withdrawals and transfers honour <code>moneytransfer.funds.check</code>
+ * like {@link AccountDAO}.
+ */
+public class InMemoryAccountStore implements AccountStore {
+
+	private static final InMemoryAccountStore INSTANCE = new InMemoryAccountStore(
+			Config.getInt("moneytransfer.memory.stripes", 64));
+
+	private static final boolean FUNDS_CHECK = Config.getBoolean("moneytransfer.funds.check", false);
+
+	private final Stripe[] stripes;
+	private final int mask;
+
+	private final AtomicLong accountIds = new AtomicLong();
+	private final AtomicLong depositIds = new AtomicLong();
+	private final AtomicLong withdrawalIds = new AtomicLong();
+	private final AtomicLong transferIds = new AtomicLong();
+
+	private final ConcurrentHashMap<Long, Deposit> deposits = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Long, Withdrawal> withdrawals = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Long, Transfer> transfers = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Long, ConcurrentSkipListSet<HistoryItem>> histories = new ConcurrentHashMap<>();
+
+	private static final class Stripe extends ReentrantLock {
+
+		private static final long serialVersionUID = 1L;
+
+		private final AccountTable accounts = new AccountTable();
+	}
+
+	InMemoryAccountStore(int stripeCount) {
+		int n = Integer.highestOneBit(Math.max(stripeCount, 1) * 2 - 1);
+		stripes = new Stripe[n];
+		for (int i = 0; i < n; i++) {
+			stripes[i] = new Stripe();
+		}
+		mask = n - 1;
+	}
+
+	public static InMemoryAccountStore getInstance() {
+		return INSTANCE;
+	}
+
+	private int stripeIndex(long id) {
+		return (int) (id ^ (id >>> 32)) & mask;
+	}
+
+	private Stripe stripe(long id) {
+		return stripes[stripeIndex(id)];
+	}
+
+	@Override
+	public Account openAccount(Account account) {
+		long id = accountIds.incrementAndGet();
+		int balance = account.getBalance();
+		Stripe s = stripe(id);
+		s.lock();
+		try {
+			s.accounts.put(id, balance, true);
+		} finally {
+			s.unlock();
+		}
+		return new Account(id, balance, true);
+	}
+
+	@Override
+	public Account getAccount(long id) {
+		Stripe s = stripe(id);
+		s.lock();
+		try {
+			int slot = s.accounts.indexOf(id);
+			// no account found
+			if (slot < 0) {
+				return null;
+			}
+			return new Account(id, s.accounts.balance(slot), s.accounts.isActive(slot));
+		} finally {
+			s.unlock();
+		}
+	}
+
+	@Override
+	public Account closeAccount(long id) {
+		Stripe s = stripe(id);
+		s.lock();
+		try {
+			int slot = s.accounts.indexOf(id);
+			// no open account found
+			if (slot < 0 || !s.accounts.isActive(slot)) {
+				return null;
+			}
+			s.accounts.setActive(slot, false);
+			return new Account(id, s.accounts.balance(slot), false);
+		} finally {
+			s.unlock();
+		}
+	}
+
+	@Override
+	public Deposit depositMoneyOnAccount(Deposit deposit) {
+		long account = deposit.getAccount();
+		int amount = deposit.getAmount();
+		Stripe s = stripe(account);
+		s.lock();
+		try {
+			int slot = s.accounts.indexOf(account);
+			// no open account found
+			if (slot < 0 || !s.accounts.isActive(slot)) {
+				return null;
+			}
+			s.accounts.setBalance(slot, s.accounts.balance(slot) + amount);
+		} finally {
+			s.unlock();
+		}
+		Deposit d = new Deposit(depositIds.incrementAndGet(), amount, account);
+		deposits.put(d.getId(), d);
+		history(account).add(HistoryItem.deposit(d));
+		return d;
+	}
+
+	@Override
+	public Deposit getDeposit(long id) {
+		return deposits.get(id);
+	}
+
+	@Override
+	public Withdrawal withdrawMoneyFromAccount(Withdrawal withdrawal) {
+		long account = withdrawal.getAccount();
+		int amount = withdrawal.getAmount();
+		Stripe s = stripe(account);
+		s.lock();
+		try {
+			int slot = s.accounts.indexOf(account);
+			// no open account found
+			if (slot < 0 || !s.accounts.isActive(slot)) {
+				return null;
+			}
+			int balance = s.accounts.balance(slot) - amount;
+			if (FUNDS_CHECK && amount > 0 && balance < 0) {
+				throw new InsufficientFundsException(account);
+			}
+			s.accounts.setBalance(slot, balance);
+		} finally {
+			s.unlock();
+		}
+		Withdrawal w = new Withdrawal(withdrawalIds.incrementAndGet(), amount, account);
+		withdrawals.put(w.getId(), w);
+		history(account).add(HistoryItem.withdrawal(w));
+		return w;
+	}
+
+	@Override
+	public Withdrawal getWithdrawal(long id) {
+		return withdrawals.get(id);
+	}
+
+	@Override
+	public Transfer transferMoneyBetweenAccounts(Transfer transfer) {
+		long fromAccount = transfer.getFromAccount();
+		long toAccount = transfer.getToAccount();
+		int amount = transfer.getAmount();
+		int fromIndex = stripeIndex(fromAccount);
+		int toIndex = stripeIndex(toAccount);
+		// always lock the lower stripe first
+		Stripe first = stripes[Math.min(fromIndex, toIndex)];
+		Stripe second = stripes[Math.max(fromIndex, toIndex)];
+		first.lock();
+		second.lock();
+		try {
+			// no open accounts found
+			if (!move(fromAccount, toAccount, amount, FUNDS_CHECK)) {
+				return null;
+			}
+		} finally {
+			second.unlock();
+			first.unlock();
+		}
+		return record(transfer);
+	}
+
+	/**
+	 * Moves <code>amount</code> between two open accounts, with the locks of
+	 * their stripes held, refusing to make the balance of
+	 * <code>fromAccount</code> negative if <code>checkFunds</code>.
+	 *
+	 * @return <code>false</code> if either account is not open
+	 * @throws InsufficientFundsException
+	 */
+	private boolean move(long fromAccount, long toAccount, int amount, boolean checkFunds) {
+		AccountTable from = stripe(fromAccount).accounts;
+		AccountTable to = stripe(toAccount).accounts;
+		int fromSlot = from.indexOf(fromAccount);
+		int toSlot = to.indexOf(toAccount);
+		if (fromSlot < 0 || !from.isActive(fromSlot) || toSlot < 0 || !to.isActive(toSlot)) {
+			return false;
+		}
+		int balance = from.balance(fromSlot) - amount;
+		if (checkFunds && amount > 0 && balance < 0) {
+			throw new InsufficientFundsException(fromAccount);
+		}
+		from.setBalance(fromSlot, balance);
+		to.setBalance(toSlot, to.balance(toSlot) + amount);
+		return true;
+	}
+
+	private Transfer record(Transfer transfer) {
+		Transfer t = new Transfer(transferIds.incrementAndGet(), transfer.getAmount(), transfer.getFromAccount(),
+				transfer.getToAccount());
+		transfers.put(t.getId(), t);
+		history(t.getFromAccount()).add(HistoryItem.transferOut(t));
+		history(t.getToAccount()).add(HistoryItem.transferIn(t));
+		return t;
+	}
+
+	/**
+	 * Makes each transfer of a batch on its own, or all of them with every
+	 * stripe involved locked in stripe index order, undoing the moves already
+	 * made if any of them fails.
+	 */
+	@Override
+	public List<TransferBatchItem> transferMoneyBetweenAccounts(List<Transfer> batch, boolean allOrNothing) {
+		List<TransferBatchItem> items = new ArrayList<>(batch.size());
+		if (!allOrNothing) {
+			for (Transfer transfer : batch) {
+				try {
+					Transfer t = transferMoneyBetweenAccounts(transfer);
+					items.add(t == null ? TransferBatchItem.notFound() : TransferBatchItem.transferred(t.getId()));
+				} catch (InsufficientFundsException e) {
+					items.add(TransferBatchItem.insufficientFunds(e.getAccount()));
+				}
+			}
+			return items;
+		}
+		boolean[] involved = new boolean[stripes.length];
+		for (Transfer transfer : batch) {
+			involved[stripeIndex(transfer.getFromAccount())] = true;
+			involved[stripeIndex(transfer.getToAccount())] = true;
+		}
+		boolean failed = false;
+		for (int i = 0; i < stripes.length; i++) {
+			if (involved[i]) {
+				stripes[i].lock();
+			}
+		}
+		try {
+			// the moves made so far, to undo in reverse order on failure
+			List<Transfer> moved = new ArrayList<>(batch.size());
+			for (Transfer transfer : batch) {
+				try {
+					if (move(transfer.getFromAccount(), transfer.getToAccount(), transfer.getAmount(), FUNDS_CHECK)) {
+						moved.add(transfer);
+						items.add(null);
+					} else {
+						items.add(TransferBatchItem.notFound());
+						failed = true;
+					}
+				} catch (InsufficientFundsException e) {
+					items.add(TransferBatchItem.insufficientFunds(e.getAccount()));
+					failed = true;
+				}
+			}
+			if (failed) {
+				for (int i = moved.size() - 1; i >= 0; i--) {
+					Transfer transfer = moved.get(i);
+					move(transfer.getToAccount(), transfer.getFromAccount(), transfer.getAmount(), false);
+				}
+			}
+		} finally {
+			for (int i = stripes.length - 1; i >= 0; i--) {
+				if (involved[i]) {
+					stripes[i].unlock();
+				}
+			}
+		}
+		for (int i = 0; i < items.size(); i++) {
+			if (items.get(i) == null) {
+				items.set(i, failed ? TransferBatchItem.rolledBack()
+						: TransferBatchItem.transferred(record(batch.get(i)).getId()));
+			}
+		}
+		return items;
+	}
+
+	@Override
+	public Transfer getTransfer(long id) {
+		return transfers.get(id);
+	}
+
+	private ConcurrentSkipListSet<HistoryItem> history(long account) {
+		return histories.computeIfAbsent(account, a -> new ConcurrentSkipListSet<>(AccountHistory.ORDER));
+	}
+
+	@Override
+	public AccountHistory getHistory(long account, HistoryItem after, int limit) {
+		if (getAccount(account) == null) {
+			return null;
+		}
+		List<HistoryItem> items = new ArrayList<>();
+		ConcurrentSkipListSet<HistoryItem> history = histories.get(account);
+		if (history != null) {
+			for (HistoryItem item : after == null ? history : history.tailSet(after, false)) {
+				if (items.size() > limit) {
+					break;
+				}
+				items.add(item);
+			}
+		}
+		return AccountHistory.page(items, limit);
+	}
+
+	@Override
+	public void importBatch(ImportBatch batch) {
+		int accounts = batch.accounts();
+		// one block of consecutive ids for the whole batch
+		long first = accountIds.addAndGet(accounts) - accounts + 1;
+		for (int i = 0; i < accounts; i++) {
+			long id = first + i;
+			Stripe s = stripe(id);
+			s.lock();
+			try {
+				s.accounts.put(id, batch.balance(i), true);
+			} finally {
+				s.unlock();
+			}
+			batch.setAccountId(i, id);
+		}
+		for (int i = 0; i < batch.deposits(); i++) {
+			batch.setDeposited(i,
+					depositMoneyOnAccount(new Deposit(batch.amount(i), batch.depositAccount(i))) != null);
+		}
+	}
+}
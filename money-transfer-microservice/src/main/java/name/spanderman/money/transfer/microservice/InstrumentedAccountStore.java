@@ -0,0 +1,173 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * {@link AccountStore} timing every call to another one, each method with a
+ * {@link Timer} of its own published by {@link Metrics}, bulk imports
+ * aside. A call returning <code>null</code> counts as not found.
+ * <p>
+ * Only {@link MoneyTransferRESTfulAPI} goes through it:
+ * {@link AccountStores#getInstance()} stays the engine itself, which other
+ * classes check the type of.
+ */
+public class InstrumentedAccountStore implements AccountStore {
+
+	private final AccountStore store;
+
+	private final Timer openAccount;
+	private final Timer getAccount;
+	private final Timer closeAccount;
+	private final Timer deposit;
+	private final Timer getDeposit;
+	private final Timer withdrawal;
+	private final Timer getWithdrawal;
+	private final Timer transfer;
+	private final Timer transferBatch;
+	private final Timer getTransfer;
+	private final Timer getHistory;
+
+	public InstrumentedAccountStore(AccountStore store, Metrics metrics) {
+		this.store = store;
+		openAccount = metrics.storeMethod("openAccount");
+		getAccount = metrics.storeMethod("getAccount");
+		closeAccount = metrics.storeMethod("closeAccount");
+		deposit = metrics.storeMethod("depositMoneyOnAccount");
+		getDeposit = metrics.storeMethod("getDeposit");
+		withdrawal = metrics.storeMethod("withdrawMoneyFromAccount");
+		getWithdrawal = metrics.storeMethod("getWithdrawal");
+		transfer = metrics.storeMethod("transferMoneyBetweenAccounts");
+		transferBatch = metrics.storeMethod("transferMoneyBetweenAccountsBatch");
+		getTransfer = metrics.storeMethod("getTransfer");
+		getHistory = metrics.storeMethod("getHistory");
+	}
+
+	@Override
+	public Account openAccount(Account account) throws SQLException {
+		long start = openAccount.begin();
+		try {
+			return openAccount.returned(start, store.openAccount(account));
+		} catch (RuntimeException | SQLException e) {
+			openAccount.threw(start, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public Account getAccount(long id) throws SQLException {
+		long start = getAccount.begin();
+		try {
+			return getAccount.returned(start, store.getAccount(id));
+		} catch (RuntimeException | SQLException e) {
+			getAccount.threw(start, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public Account closeAccount(long id) throws SQLException {
+		long start = closeAccount.begin();
+		try {
+			return closeAccount.returned(start, store.closeAccount(id));
+		} catch (RuntimeException | SQLException e) {
+			closeAccount.threw(start, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public Deposit depositMoneyOnAccount(Deposit d) throws SQLException {
+		long start = deposit.begin();
+		try {
+			return deposit.returned(start, store.depositMoneyOnAccount(d));
+		} catch (RuntimeException | SQLException e) {
+			deposit.threw(start, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public Deposit getDeposit(long id) throws SQLException {
+		long start = getDeposit.begin();
+		try {
+			return getDeposit.returned(start, store.getDeposit(id));
+		} catch (RuntimeException | SQLException e) {
+			getDeposit.threw(start, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public Withdrawal withdrawMoneyFromAccount(Withdrawal w) throws SQLException {
+		long start = withdrawal.begin();
+		try {
+			return withdrawal.returned(start, store.withdrawMoneyFromAccount(w));
+		} catch (RuntimeException | SQLException e) {
+			withdrawal.threw(start, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public Withdrawal getWithdrawal(long id) throws SQLException {
+		long start = getWithdrawal.begin();
+		try {
+			return getWithdrawal.returned(start, store.getWithdrawal(id));
+		} catch (RuntimeException | SQLException e) {
+			getWithdrawal.threw(start, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public Transfer transferMoneyBetweenAccounts(Transfer t) throws SQLException {
+		long start = transfer.begin();
+		try {
+			return transfer.returned(start, store.transferMoneyBetweenAccounts(t));
+		} catch (RuntimeException | SQLException e) {
+			transfer.threw(start, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public List<TransferBatchItem> transferMoneyBetweenAccounts(List<Transfer> transfers, boolean allOrNothing)
+			throws SQLException {
+		long start = transferBatch.begin();
+		try {
+			return transferBatch.returned(start, store.transferMoneyBetweenAccounts(transfers, allOrNothing));
+		} catch (RuntimeException | SQLException e) {
+			transferBatch.threw(start, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public Transfer getTransfer(long id) throws SQLException {
+		long start = getTransfer.begin();
+		try {
+			return getTransfer.returned(start, store.getTransfer(id));
+		} catch (RuntimeException | SQLException e) {
+			getTransfer.threw(start, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public void importBatch(ImportBatch batch) throws SQLException {
+		// bulk imports go to the store itself, through BulkImporter
+		store.importBatch(batch);
+	}
+
+	@Override
+	public AccountHistory getHistory(long account, HistoryItem after, int limit) throws SQLException {
+		long start = getHistory.begin();
+		try {
+			return getHistory.returned(start, store.getHistory(account, after, limit));
+		} catch (RuntimeException | SQLException e) {
+			getHistory.threw(start, e);
+			throw e;
+		}
+	}
+}
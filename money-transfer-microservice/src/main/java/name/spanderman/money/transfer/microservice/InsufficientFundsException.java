@@ -0,0 +1,21 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * Thrown when <code>moneytransfer.funds.check</code> is enabled and a
+ * withdrawal or transfer would leave an account with a negative balance.
+ */
+public class InsufficientFundsException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long account;
+
+	public InsufficientFundsException(long account) {
+		super("insufficient funds on account " + account);
+		this.account = account;
+	}
+
+	public long getAccount() {
+		return account;
+	}
+}
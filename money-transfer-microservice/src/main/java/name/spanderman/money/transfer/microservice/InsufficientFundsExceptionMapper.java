@@ -0,0 +1,21 @@
+package name.spanderman.money.transfer.microservice;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Answers 409 with its message a withdrawal or transfer refused for lack of
+ * funds, thrown out of the endpoints so that their {@link Timer} counts it.
+ */
+@Provider
+public class InsufficientFundsExceptionMapper implements ExceptionMapper<InsufficientFundsException> {
+
+	@Override
+	public Response toResponse(InsufficientFundsException e) {
+		return Response.status(Status.CONFLICT).type(MediaType.APPLICATION_JSON).entity(new Error(e.getMessage()))
+				.build();
+	}
+}
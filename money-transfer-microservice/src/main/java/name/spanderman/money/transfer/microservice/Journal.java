@@ -0,0 +1,430 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import javax.management.ObjectName;
+
+/**
+ * Append-only binary journal of the writes made by {@link AccountDAO}, keeping
+ * an in-memory database durable at the cost of one sequential write and one
+ * sync per group of concurrent requests. Enabled by setting
+ * <code>moneytransfer.journal.file</code>.
+ * <p>
+ * Each record is the length of its body, the CRC32 of its body and the body:
+ * a type byte followed by the ids and amounts of the write. Writers copy
+ * their records to a buffer once their transaction is committed and wait for
+ * a {@link GroupCommit}: its leader writes the whole buffer to the file with
+ * one FileChannel write and forces it with one sync.
+ * <p>
+ * Once the file could not be written the journal is fail-stop: the records
+ * not yet on disk are dropped, and the writers are refused by
+ * {@link #checkWritable()} before they write the database, so that no write
+ * is made without its record nor made twice by the retry of a write answered
+ * as failed.
+ * <p>
+ * {@link #replay(Reader, long)} reads the records back in order at startup (see
+ * {@link JournalRecovery}), stopping at the end of the file or at the first
+ * torn or corrupt record, which is cut off. Record, byte, sync and replay
+ * counters are published over JMX.
+ */
+public class Journal implements JournalMXBean {
+
+	static final byte OPEN_ACCOUNT = 1;
+	static final byte CLOSE_ACCOUNT = 2;
+	static final byte DEPOSIT = 3;
+	static final byte WITHDRAWAL = 4;
+	static final byte TRANSFER = 5;
+
+	private static final int HEADER = 8;
+	private static final int MAX_BODY = 1 + 3 * 8 + 4;
+
+	private static final Journal INSTANCE = create(Config.getString("moneytransfer.journal.file", null));
+
+	/**
+	 * Receives the records of the journal in order.
+	 */
+	public interface Reader {
+
+		void openAccount(long id, int balance);
+
+		void closeAccount(long id);
+
+		void deposit(long id, long account, int amount);
+
+		void withdrawal(long id, long account, int amount);
+
+		void transfer(long id, long fromAccount, long toAccount, int amount);
+	}
+
+	private final Path path;
+	private final FileChannel channel;
+	private final GroupCommit groupCommit;
+
+	// guarded by this
+	private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+	private final CRC32 crc = new CRC32();
+	private int recordStart;
+	private volatile long appended;
+
+	// used by the syncing thread only
+	private ByteBuffer flushing = ByteBuffer.allocate(1 << 16);
+	private volatile IOException failure;
+	// bytes on disk, up to the end of the last record synced
+	private volatile long length;
+
+	private final LongAdder bytes = new LongAdder();
+	private volatile long replayedRecords;
+	private volatile long replayNanos;
+	private volatile long cutOffBytes;
+
+	Journal(Path path) throws IOException {
+		this.path = path;
+		channel = path == null ? null
+				: FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if (channel != null) {
+			length = channel.size();
+			channel.position(length);
+		}
+		groupCommit = new GroupCommit(() -> appended, this::flush, true);
+	}
+
+	private static Journal create(String file) {
+		try {
+			Journal journal = new Journal(file == null ? null : Paths.get(file));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(journal,
+					new ObjectName("name.spanderman.money.transfer:type=Journal"));
+			return journal;
+		} catch (IOException e) {
+			throw new UncheckedIOException("error in opening the journal " + file, e);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static Journal getInstance() {
+		return INSTANCE;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return channel != null;
+	}
+
+	/**
+	 * @return the ticket of the record to wait for with {@link #await(long)}, 0
+	 *         if the journal is disabled
+	 */
+	public long openAccount(long id, int balance) {
+		if (channel == null) {
+			return 0;
+		}
+		synchronized (this) {
+			ByteBuffer b = begin(OPEN_ACCOUNT);
+			b.putLong(id).putInt(balance);
+			return end();
+		}
+	}
+
+	/**
+	 * @see #openAccount(long, int)
+	 */
+	public long closeAccount(long id) {
+		if (channel == null) {
+			return 0;
+		}
+		synchronized (this) {
+			begin(CLOSE_ACCOUNT).putLong(id);
+			return end();
+		}
+	}
+
+	/**
+	 * @see #openAccount(long, int)
+	 */
+	public long deposit(long id, long account, int amount) {
+		return movement(DEPOSIT, id, account, amount);
+	}
+
+	/**
+	 * @see #openAccount(long, int)
+	 */
+	public long withdrawal(long id, long account, int amount) {
+		return movement(WITHDRAWAL, id, account, amount);
+	}
+
+	/**
+	 * @see #openAccount(long, int)
+	 */
+	public long transfer(long id, long fromAccount, long toAccount, int amount) {
+		if (channel == null) {
+			return 0;
+		}
+		synchronized (this) {
+			begin(TRANSFER).putLong(id).putLong(fromAccount).putLong(toAccount).putInt(amount);
+			return end();
+		}
+	}
+
+	private long movement(byte type, long id, long account, int amount) {
+		if (channel == null) {
+			return 0;
+		}
+		synchronized (this) {
+			begin(type).putLong(id).putLong(account).putInt(amount);
+			return end();
+		}
+	}
+
+	/**
+	 * Refuses a write about to be made once the journal could not be written.
+	 *
+	 * @throws UncheckedIOException
+	 *             if the journal could not be written
+	 */
+	public void checkWritable() {
+		if (failure != null) {
+			throw failed();
+		}
+	}
+
+	private UncheckedIOException failed() {
+		return new UncheckedIOException("the journal could not be written", failure);
+	}
+
+	// called with this locked
+	private ByteBuffer begin(byte type) {
+		if (failure != null) {
+			// nothing more is written, the buffer is not grown
+			throw failed();
+		}
+		if (pending.remaining() < HEADER + MAX_BODY) {
+			ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+			pending.flip();
+			larger.put(pending);
+			pending = larger;
+		}
+		recordStart = pending.position();
+		pending.position(recordStart + HEADER);
+		return pending.put(type);
+	}
+
+	// called with this locked
+	private long end() {
+		int bodyStart = recordStart + HEADER;
+		int length = pending.position() - bodyStart;
+		crc.reset();
+		crc.update(pending.array(), pending.arrayOffset() + bodyStart, length);
+		pending.putInt(recordStart, length).putInt(recordStart + 4, (int) crc.getValue());
+		return ++appended;
+	}
+
+	/**
+	 * Returns once the records up to <code>ticket</code> are on disk.
+	 *
+	 * @throws UncheckedIOException
+	 *             if the journal could not be written
+	 */
+	public void await(long ticket) {
+		if (ticket == 0) {
+			return;
+		}
+		groupCommit.await(ticket);
+		checkWritable();
+	}
+
+	private void flush() {
+		synchronized (this) {
+			if (failure != null) {
+				return;
+			}
+			ByteBuffer full = pending;
+			pending = flushing;
+			flushing = full;
+		}
+		try {
+			flushing.flip();
+			int n = flushing.remaining();
+			while (flushing.hasRemaining()) {
+				channel.write(flushing);
+			}
+			channel.force(false);
+			bytes.add(n);
+			length += n;
+		} catch (IOException e) {
+			// later records could follow a torn one, refuse them all and drop
+			// the ones appended meanwhile
+			synchronized (this) {
+				failure = e;
+				pending.clear();
+			}
+		} finally {
+			flushing.clear();
+		}
+	}
+
+	/**
+	 * Reads the records in order from offset <code>from</code>, a record
+	 * boundary, cutting off a torn or corrupt tail, and positions the journal
+	 * after the last good record.
+	 *
+	 * @return the number of records read
+	 */
+	public long replay(Reader reader, long from) throws IOException {
+		long start = System.nanoTime();
+		long size = channel.size();
+		if (from > size) {
+			throw new IOException(String.format("journal %s has %d bytes, not %d", path, size, from));
+		}
+		channel.position(from);
+		long[] read = read(Channels.newInputStream(channel), reader, Long.MAX_VALUE);
+		long good = from + read[1];
+		if (good < size) {
+			cutOffBytes = size - good;
+			channel.truncate(good);
+		}
+		channel.position(good);
+		length = good;
+		replayedRecords = read[0];
+		replayNanos = System.nanoTime() - start;
+		return read[0];
+	}
+
+	/**
+	 * @return the number of good records read and their length in bytes, up
+	 *         to <code>limit</code> bytes
+	 */
+	private static long[] read(InputStream stream, Reader reader, long limit) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+		byte[] body = new byte[MAX_BODY];
+		CRC32 check = new CRC32();
+		long records = 0;
+		long bytes = 0;
+		try {
+			while (bytes < limit) {
+				int length = in.readInt();
+				int sum = in.readInt();
+				if (length < 1 || length > MAX_BODY) {
+					break;
+				}
+				in.readFully(body, 0, length);
+				check.reset();
+				check.update(body, 0, length);
+				if ((int) check.getValue() != sum) {
+					break;
+				}
+				read(ByteBuffer.wrap(body, 0, length), reader);
+				records++;
+				bytes += HEADER + length;
+			}
+		} catch (EOFException e) {
+			// end of the journal, or a torn last record
+		}
+		return new long[] { records, bytes };
+	}
+
+	private static void read(ByteBuffer b, Reader reader) throws IOException {
+		byte type = b.get();
+		switch (type) {
+		case OPEN_ACCOUNT:
+			reader.openAccount(b.getLong(), b.getInt());
+			break;
+		case CLOSE_ACCOUNT:
+			reader.closeAccount(b.getLong());
+			break;
+		case DEPOSIT:
+			reader.deposit(b.getLong(), b.getLong(), b.getInt());
+			break;
+		case WITHDRAWAL:
+			reader.withdrawal(b.getLong(), b.getLong(), b.getInt());
+			break;
+		case TRANSFER:
+			reader.transfer(b.getLong(), b.getLong(), b.getLong(), b.getInt());
+			break;
+		default:
+			throw new IOException("unknown journal record type " + type);
+		}
+	}
+
+	void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+	}
+
+	@Override
+	public String getFile() {
+		return path == null ? null : path.toString();
+	}
+
+	/**
+	 * @return the length of the journal on disk, which ends with a whole
+	 *         record
+	 */
+	@Override
+	public long getLength() {
+		return length;
+	}
+
+	@Override
+	public long getRecords() {
+		return appended;
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	@Override
+	public long getSyncs() {
+		return groupCommit.getSyncs();
+	}
+
+	@Override
+	public double getRecordsPerSync() {
+		long n = groupCommit.getSyncs();
+		return n == 0 ? 0 : (double) groupCommit.getSynced() / n;
+	}
+
+	@Override
+	public long getMaxRecordsPerSync() {
+		return groupCommit.getMaxBatch();
+	}
+
+	@Override
+	public long getTotalSyncNanos() {
+		return groupCommit.getTotalSyncNanos();
+	}
+
+	@Override
+	public long getReplayedRecords() {
+		return replayedRecords;
+	}
+
+	@Override
+	public long getReplayMillis() {
+		return replayNanos / 1000000;
+	}
+
+	/**
+	 * @return the bytes of the torn or corrupt tail cut off by the replay
+	 */
+	@Override
+	public long getCutOffBytes() {
+		return cutOffBytes;
+	}
+}
@@ -0,0 +1,31 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * JMX view of the {@link Journal} counters.
+ */
+public interface JournalMXBean {
+
+	boolean isEnabled();
+
+	String getFile();
+
+	long getLength();
+
+	long getRecords();
+
+	long getBytes();
+
+	long getSyncs();
+
+	double getRecordsPerSync();
+
+	long getMaxRecordsPerSync();
+
+	long getTotalSyncNanos();
+
+	long getReplayedRecords();
+
+	long getReplayMillis();
+
+	long getCutOffBytes();
+}
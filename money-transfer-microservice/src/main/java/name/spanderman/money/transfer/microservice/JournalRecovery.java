@@ -0,0 +1,241 @@
+package name.spanderman.money.transfer.microservice;
+
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNTS;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_ACTIVE;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_BALANCE;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_ID;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_OPENING_BALANCE;
+import static name.spanderman.money.transfer.microservice.Schema.DEPOSITS;
+import static name.spanderman.money.transfer.microservice.Schema.MOVEMENT_ACCOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.MOVEMENT_AMOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.MOVEMENT_ID;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFERS;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_AMOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_FROM_ACCOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_ID;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_TO_ACCOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.WITHDRAWALS;
+import static org.jooq.impl.DSL.insertInto;
+import static org.jooq.impl.DSL.param;
+
+import java.io.IOException;
+
+import org.jooq.DSLContext;
+import org.jooq.Table;
+import org.jooq.impl.SQLDataType;
+
+/**
+ * Rebuilds an in-memory database from the {@link Journal} at startup.
+ * <p>
+ * The balances and active flags are folded in memory while the journal is
+ * read, the movements are inserted in JDBC batches of
+ * <code>moneytransfer.import.batch</code> rows as they come, and the accounts
+ * are inserted last with their final balances, and as opening balances the
+ * balances before the movements inserted, referential integrity being off
+ * meanwhile. The id sequences then restart after the highest ids of the
+ * journal.
+ */
+class JournalRecovery implements Journal.Reader {
+
+	private static final String INSERT_ACCOUNT = Database.render(insertInto(ACCOUNTS, ACCOUNT_ID, ACCOUNT_BALANCE,
+			ACCOUNT_OPENING_BALANCE, ACCOUNT_ACTIVE).values(param("id", SQLDataType.BIGINT),
+					param("balance", SQLDataType.INTEGER), param("openingBalance", SQLDataType.INTEGER),
+					param("active", SQLDataType.BOOLEAN)));
+	private static final String INSERT_DEPOSIT = renderInsertMovement(DEPOSITS);
+	private static final String INSERT_WITHDRAWAL = renderInsertMovement(WITHDRAWALS);
+	private static final String INSERT_TRANSFER = Database
+			.render(insertInto(TRANSFERS, TRANSFER_ID, TRANSFER_AMOUNT, TRANSFER_FROM_ACCOUNT, TRANSFER_TO_ACCOUNT).values(
+					param("id", SQLDataType.BIGINT), param("amount", SQLDataType.INTEGER),
+					param("fromAccount", SQLDataType.BIGINT), param("toAccount", SQLDataType.BIGINT)));
+
+	private final DSLContext ctx;
+	private final int batchSize;
+	private final JournalState state;
+	// net amount of the movements inserted, per account
+	private final AccountTable inserted = new AccountTable();
+
+	private final Movements deposits;
+	private final Movements withdrawals;
+	private final Movements transfers;
+
+	/**
+	 * Rows of one movement table waiting for their batch insert.
+	 */
+	private final class Movements {
+
+		private final String sql;
+		private final long[] ids = new long[batchSize];
+		private final long[] accounts = new long[batchSize];
+		private final long[] toAccounts = new long[batchSize];
+		private final int[] amounts = new int[batchSize];
+		private int count;
+
+		private Movements(String sql) {
+			this.sql = sql;
+		}
+
+		private void add(long id, long account, long toAccount, int amount) {
+			ids[count] = id;
+			accounts[count] = account;
+			toAccounts[count] = toAccount;
+			amounts[count++] = amount;
+			if (count == batchSize) {
+				flush();
+			}
+		}
+
+		private void flush() {
+			if (count == 0) {
+				return;
+			}
+			boolean transfer = this == transfers;
+			Database.executeBatch(ctx, sql, count, (ps, i) -> {
+				ps.setLong(1, ids[i]);
+				ps.setInt(2, amounts[i]);
+				ps.setLong(3, accounts[i]);
+				if (transfer) {
+					ps.setLong(4, toAccounts[i]);
+				}
+			});
+			count = 0;
+		}
+	}
+
+	private JournalRecovery(DSLContext ctx, int batchSize) {
+		this.ctx = ctx;
+		this.state = new JournalState();
+		this.batchSize = batchSize;
+		deposits = new Movements(INSERT_DEPOSIT);
+		withdrawals = new Movements(INSERT_WITHDRAWAL);
+		transfers = new Movements(INSERT_TRANSFER);
+	}
+
+	private static String renderInsertMovement(Table<?> table) {
+		return Database.render(insertInto(table, MOVEMENT_ID, MOVEMENT_AMOUNT, MOVEMENT_ACCOUNT).values(
+				param("id", SQLDataType.BIGINT), param("amount", SQLDataType.INTEGER),
+				param("account", SQLDataType.BIGINT)));
+	}
+
+	/**
+	 * Replays the journal, if enabled, into the empty tables of an in-memory
+	 * database.
+	 *
+	 * @throws IllegalStateException
+	 *             if the database is not in memory, since it would already
+	 *             hold what the journal holds
+	 */
+	static void recover() throws IOException {
+		recover(Journal.getInstance());
+	}
+
+	static void recover(Journal journal) throws IOException {
+		if (!journal.isEnabled()) {
+			return;
+		}
+		if (ConnectionPool.getInstance().isPersistent()) {
+			throw new IllegalStateException("moneytransfer.journal.file is meant for an in-memory database");
+		}
+		recover(journal, Database.dsl());
+	}
+
+	/**
+	 * Replays the journal into the empty tables of the database of
+	 * <code>ctx</code>.
+	 */
+	static void recover(Journal journal, DSLContext ctx) throws IOException {
+		JournalRecovery recovery = new JournalRecovery(ctx,
+				Math.max(Config.getInt("moneytransfer.import.batch", 1000), 1));
+		ctx.execute("SET REFERENTIAL_INTEGRITY FALSE");
+		try {
+			journal.replay(recovery, 0);
+			recovery.finish();
+		} finally {
+			ctx.execute("SET REFERENTIAL_INTEGRITY TRUE");
+		}
+	}
+
+	private void finish() {
+		deposits.flush();
+		withdrawals.flush();
+		transfers.flush();
+		AccountTable accounts = state.accounts;
+		long[] ids = new long[batchSize];
+		int count = 0;
+		for (int slot = 0; slot < accounts.capacity(); slot++) {
+			if (accounts.id(slot) != 0) {
+				ids[count++] = accounts.id(slot);
+				if (count == batchSize) {
+					insertAccounts(ids, count);
+					count = 0;
+				}
+			}
+		}
+		insertAccounts(ids, count);
+		restart(AccountDAO.ACCOUNT_IDS, state.maxAccountId);
+		restart(DepositDAO.DEPOSIT_IDS, state.maxDepositId);
+		restart(WithdrawalDAO.WITHDRAWAL_IDS, state.maxWithdrawalId);
+		restart(TransferDAO.TRANSFER_IDS, state.maxTransferId);
+	}
+
+	private void insertAccounts(long[] ids, int count) {
+		if (count == 0) {
+			return;
+		}
+		AccountTable accounts = state.accounts;
+		Database.executeBatch(ctx, INSERT_ACCOUNT, count, (ps, i) -> {
+			int slot = accounts.indexOf(ids[i]);
+			int net = inserted.indexOf(ids[i]);
+			ps.setLong(1, ids[i]);
+			ps.setInt(2, accounts.balance(slot));
+			ps.setInt(3, accounts.balance(slot) - (net < 0 ? 0 : inserted.balance(net)));
+			ps.setBoolean(4, accounts.isActive(slot));
+		});
+	}
+
+	private void restart(IdAllocator ids, long maxId) {
+		if (maxId > 0) {
+			ids.restartAfter(ctx, maxId);
+		}
+	}
+
+	private void insert(long account, int amount) {
+		int slot = inserted.indexOf(account);
+		if (slot < 0) {
+			inserted.put(account, amount, true);
+		} else {
+			inserted.setBalance(slot, inserted.balance(slot) + amount);
+		}
+	}
+
+	@Override
+	public void openAccount(long id, int balance) {
+		state.openAccount(id, balance);
+	}
+
+	@Override
+	public void closeAccount(long id) {
+		state.closeAccount(id);
+	}
+
+	@Override
+	public void deposit(long id, long account, int amount) {
+		state.deposit(id, account, amount);
+		deposits.add(id, account, 0, amount);
+		insert(account, amount);
+	}
+
+	@Override
+	public void withdrawal(long id, long account, int amount) {
+		state.withdrawal(id, account, amount);
+		withdrawals.add(id, account, 0, amount);
+		insert(account, -amount);
+	}
+
+	@Override
+	public void transfer(long id, long fromAccount, long toAccount, int amount) {
+		state.transfer(id, fromAccount, toAccount, amount);
+		transfers.add(id, fromAccount, toAccount, amount);
+		insert(fromAccount, -amount);
+		insert(toAccount, amount);
+	}
+}
@@ -0,0 +1,62 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * Balances and active flags of all the accounts, and the highest ids handed
+ * out, folded from the records of the {@link Journal}.
+ */
+class JournalState implements Journal.Reader {
+
+	final AccountTable accounts;
+	long maxAccountId;
+	long maxDepositId;
+	long maxWithdrawalId;
+	long maxTransferId;
+
+	JournalState() {
+		this(new AccountTable());
+	}
+
+	JournalState(AccountTable accounts) {
+		this.accounts = accounts;
+	}
+
+	private void add(long account, int amount) {
+		int slot = accounts.indexOf(account);
+		if (slot >= 0) {
+			accounts.setBalance(slot, accounts.balance(slot) + amount);
+		}
+	}
+
+	@Override
+	public void openAccount(long id, int balance) {
+		accounts.put(id, balance, true);
+		maxAccountId = Math.max(maxAccountId, id);
+	}
+
+	@Override
+	public void closeAccount(long id) {
+		int slot = accounts.indexOf(id);
+		if (slot >= 0) {
+			accounts.setActive(slot, false);
+		}
+	}
+
+	@Override
+	public void deposit(long id, long account, int amount) {
+		add(account, amount);
+		maxDepositId = Math.max(maxDepositId, id);
+	}
+
+	@Override
+	public void withdrawal(long id, long account, int amount) {
+		add(account, -amount);
+		maxWithdrawalId = Math.max(maxWithdrawalId, id);
+	}
+
+	@Override
+	public void transfer(long id, long fromAccount, long toAccount, int amount) {
+		add(fromAccount, -amount);
+		add(toAccount, amount);
+		maxTransferId = Math.max(maxTransferId, id);
+	}
+}
@@ -0,0 +1,568 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Reads and writes the JSON of {@link Account}, {@link Deposit},
+ * {@link Withdrawal}, {@link Transfer} and {@link Error} in place of Jackson,
+ * straight from and to the bytes of the entity, field by field, without
+ * reflection or intermediate tree. Each thread reuses its buffers, so a read
+ * allocates the entity only and a write nothing but the text of an error.
+ * <p>
+ * It reads what Jackson reads for these types: fields in any order, a
+ * missing or <code>null</code> field left to 0 or <code>false</code>, an empty
+ * entity as <code>null</code>. An unknown field, malformed JSON or a value
+ * that is not an integer, a boolean or a string as the field requires is
+ * answered 400 with an {@link Error}. The fields are written in the order
+ * Jackson writes them.
+ */
+@Provider
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+public class JsonCodec implements MessageBodyReader<Object>, MessageBodyWriter<Object> {
+
+	private static final byte INT = 0;
+	private static final byte LONG = 1;
+	private static final byte BOOLEAN = 2;
+	private static final byte STRING = 3;
+
+	private static final String[] ACCOUNT = { "id", "balance", "active" };
+	private static final byte[] ACCOUNT_KINDS = { LONG, INT, BOOLEAN };
+	private static final String[] DEPOSIT = { "id", "amount", "account" };
+	private static final byte[] DEPOSIT_KINDS = { LONG, INT, LONG };
+	private static final String[] TRANSFER = { "id", "amount", "fromAccount", "toAccount" };
+	private static final byte[] TRANSFER_KINDS = { LONG, INT, LONG, LONG };
+	private static final String[] ERROR = { "message" };
+	private static final byte[] ERROR_KINDS = { STRING };
+
+	private static final int MAX_FIELDS = 4;
+	// larger buffers are dropped once used rather than kept by their thread
+	private static final int MAX_KEPT = 64 * 1024;
+
+	private static final byte[] NULL = ascii("null");
+	private static final byte[] TRUE = ascii("true");
+	private static final byte[] FALSE = ascii("false");
+	private static final byte[][] ACCOUNT_PREFIXES = prefixes(ACCOUNT);
+	private static final byte[][] DEPOSIT_PREFIXES = prefixes(DEPOSIT);
+	private static final byte[][] TRANSFER_PREFIXES = prefixes(TRANSFER);
+	private static final byte[][] ERROR_PREFIXES = prefixes(ERROR);
+	private static final byte[] HEX = ascii("0123456789abcdef");
+
+	private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+	/**
+	 * The buffers of a thread, and the position of the read in progress.
+	 */
+	private static class Buffers {
+
+		byte[] bytes = new byte[1024];
+		int pos;
+		int end;
+		char[] chars = new char[256];
+		int length;
+		final long[] values = new long[MAX_FIELDS];
+		String text;
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return <code>{"first":</code>, then <code>,"next":</code> for each
+	 *         next field
+	 */
+	private static byte[][] prefixes(String[] names) {
+		byte[][] prefixes = new byte[names.length][];
+		for (int i = 0; i < names.length; i++) {
+			prefixes[i] = ascii((i == 0 ? "{\"" : ",\"") + names[i] + "\":");
+		}
+		return prefixes;
+	}
+
+	private static boolean isSupported(Class<?> type, MediaType mediaType) {
+		return (type == Account.class || type == Deposit.class || type == Withdrawal.class || type == Transfer.class
+				|| type == Error.class) && MediaType.APPLICATION_JSON_TYPE.isCompatible(mediaType);
+	}
+
+	@Override
+	public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return isSupported(type, mediaType);
+	}
+
+	@Override
+	public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException {
+		Buffers in = BUFFERS.get();
+		fill(in, entityStream);
+		skipWhitespace(in);
+		if (in.pos == in.end) {
+			return null;
+		}
+		Class<?> entity = type;
+		long[] v = in.values;
+		if (entity == Account.class) {
+			readObject(in, ACCOUNT, ACCOUNT_KINDS);
+			return new Account(v[0], (int) v[1], v[2] != 0);
+		}
+		if (entity == Deposit.class) {
+			readObject(in, DEPOSIT, DEPOSIT_KINDS);
+			return new Deposit(v[0], (int) v[1], v[2]);
+		}
+		if (entity == Withdrawal.class) {
+			readObject(in, DEPOSIT, DEPOSIT_KINDS);
+			return new Withdrawal(v[0], (int) v[1], v[2]);
+		}
+		if (entity == Transfer.class) {
+			readObject(in, TRANSFER, TRANSFER_KINDS);
+			return new Transfer(v[0], (int) v[1], v[2], v[3]);
+		}
+		readObject(in, ERROR, ERROR_KINDS);
+		return new Error(in.text);
+	}
+
+	private static void fill(Buffers in, InputStream entityStream) throws IOException {
+		if (in.bytes.length > MAX_KEPT) {
+			in.bytes = new byte[1024];
+		}
+		int end = 0;
+		int n;
+		while ((n = entityStream.read(in.bytes, end, in.bytes.length - end)) >= 0) {
+			end += n;
+			if (end == in.bytes.length) {
+				byte[] larger = new byte[in.bytes.length * 2];
+				System.arraycopy(in.bytes, 0, larger, 0, end);
+				in.bytes = larger;
+			}
+		}
+		in.pos = 0;
+		in.end = end;
+	}
+
+	/**
+	 * Reads an object with the fields <code>names</code> into the values of
+	 * <code>in</code>, a boolean as 1 or 0, a string into its text.
+	 */
+	private static void readObject(Buffers in, String[] names, byte[] kinds) {
+		for (int i = 0; i < names.length; i++) {
+			in.values[i] = 0;
+		}
+		in.text = null;
+		expect(in, '{');
+		skipWhitespace(in);
+		if (peek(in) == '}') {
+			in.pos++;
+		} else {
+			while (true) {
+				expect(in, '"');
+				readString(in);
+				int field = find(in, names);
+				skipWhitespace(in);
+				expect(in, ':');
+				skipWhitespace(in);
+				readValue(in, field, names[field], kinds[field]);
+				skipWhitespace(in);
+				byte next = next(in);
+				if (next == '}') {
+					break;
+				}
+				if (next != ',') {
+					throw bad("',' or '}' expected at " + (in.pos - 1));
+				}
+				skipWhitespace(in);
+			}
+		}
+		skipWhitespace(in);
+		if (in.pos != in.end) {
+			throw bad("unexpected content after the object at " + in.pos);
+		}
+	}
+
+	/**
+	 * @return the index of the name just read among <code>names</code>
+	 */
+	private static int find(Buffers in, String[] names) {
+		for (int i = 0; i < names.length; i++) {
+			String name = names[i];
+			if (name.length() == in.length) {
+				int c = 0;
+				while (c < in.length && in.chars[c] == name.charAt(c)) {
+					c++;
+				}
+				if (c == in.length) {
+					return i;
+				}
+			}
+		}
+		throw bad("unrecognized field \"" + new String(in.chars, 0, in.length) + "\"");
+	}
+
+	private static void readValue(Buffers in, int field, String name, byte kind) {
+		byte first = peek(in);
+		if (first == 'n') {
+			literal(in, NULL, name);
+			return;
+		}
+		switch (kind) {
+		case BOOLEAN:
+			if (first == 't') {
+				literal(in, TRUE, name);
+				in.values[field] = 1;
+			} else if (first == 'f') {
+				literal(in, FALSE, name);
+			} else {
+				throw bad("boolean expected for \"" + name + "\"");
+			}
+			return;
+		case STRING:
+			if (first != '"') {
+				throw bad("string expected for \"" + name + "\"");
+			}
+			in.pos++;
+			readString(in);
+			in.text = new String(in.chars, 0, in.length);
+			return;
+		default:
+			long value = readInteger(in, name);
+			if (kind == INT && (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)) {
+				throw bad("\"" + name + "\" out of range");
+			}
+			in.values[field] = value;
+		}
+	}
+
+	private static void literal(Buffers in, byte[] literal, String name) {
+		if (in.end - in.pos < literal.length) {
+			throw bad("malformed value of \"" + name + "\"");
+		}
+		for (byte b : literal) {
+			if (in.bytes[in.pos++] != b) {
+				throw bad("malformed value of \"" + name + "\"");
+			}
+		}
+	}
+
+	/**
+	 * @return a JSON integer, accumulated as a negative number so that
+	 *         {@link Long#MIN_VALUE} fits
+	 */
+	private static long readInteger(Buffers in, String name) {
+		boolean negative = in.pos < in.end && in.bytes[in.pos] == '-';
+		if (negative) {
+			in.pos++;
+		}
+		int start = in.pos;
+		long value = 0;
+		while (in.pos < in.end && in.bytes[in.pos] >= '0' && in.bytes[in.pos] <= '9') {
+			int digit = in.bytes[in.pos++] - '0';
+			if (value < (Long.MIN_VALUE + digit) / 10) {
+				throw bad("\"" + name + "\" out of range");
+			}
+			value = value * 10 - digit;
+		}
+		int digits = in.pos - start;
+		if (digits == 0 || (digits > 1 && in.bytes[start] == '0')) {
+			throw bad("integer expected for \"" + name + "\"");
+		}
+		if (in.pos < in.end && (in.bytes[in.pos] == '.' || in.bytes[in.pos] == 'e' || in.bytes[in.pos] == 'E')) {
+			throw bad("integer expected for \"" + name + "\"");
+		}
+		if (negative) {
+			return value;
+		}
+		if (value == Long.MIN_VALUE) {
+			throw bad("\"" + name + "\" out of range");
+		}
+		return -value;
+	}
+
+	/**
+	 * Reads the rest of a string whose opening quote was read into the chars
+	 * of <code>in</code>, decoding its escapes and its UTF-8.
+	 */
+	private static void readString(Buffers in) {
+		in.length = 0;
+		while (true) {
+			int b = next(in) & 0xff;
+			if (b == '"') {
+				return;
+			}
+			if (b == '\\') {
+				b = next(in);
+				switch (b) {
+				case '"':
+				case '\\':
+				case '/':
+					append(in, (char) b);
+					break;
+				case 'b':
+					append(in, '\b');
+					break;
+				case 'f':
+					append(in, '\f');
+					break;
+				case 'n':
+					append(in, '\n');
+					break;
+				case 'r':
+					append(in, '\r');
+					break;
+				case 't':
+					append(in, '\t');
+					break;
+				case 'u':
+					int c = 0;
+					for (int i = 0; i < 4; i++) {
+						int digit = Character.digit(next(in), 16);
+						if (digit < 0) {
+							throw bad("malformed unicode escape at " + (in.pos - 1));
+						}
+						c = c * 16 + digit;
+					}
+					append(in, (char) c);
+					break;
+				default:
+					throw bad("malformed escape at " + (in.pos - 1));
+				}
+			} else if (b < 0x20) {
+				throw bad("unescaped control character at " + (in.pos - 1));
+			} else if (b < 0x80) {
+				append(in, (char) b);
+			} else {
+				readMultiByte(in, b);
+			}
+		}
+	}
+
+	private static void readMultiByte(Buffers in, int first) {
+		int more;
+		int c;
+		if ((first & 0xe0) == 0xc0) {
+			more = 1;
+			c = first & 0x1f;
+		} else if ((first & 0xf0) == 0xe0) {
+			more = 2;
+			c = first & 0x0f;
+		} else if ((first & 0xf8) == 0xf0) {
+			more = 3;
+			c = first & 0x07;
+		} else {
+			throw bad("malformed UTF-8 at " + (in.pos - 1));
+		}
+		for (int i = 0; i < more; i++) {
+			int b = next(in) & 0xff;
+			if ((b & 0xc0) != 0x80) {
+				throw bad("malformed UTF-8 at " + (in.pos - 1));
+			}
+			c = (c << 6) | (b & 0x3f);
+		}
+		if (c >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+			append(in, Character.highSurrogate(c));
+			append(in, Character.lowSurrogate(c));
+		} else {
+			append(in, (char) c);
+		}
+	}
+
+	private static void append(Buffers in, char c) {
+		if (in.length == in.chars.length) {
+			char[] larger = new char[in.chars.length * 2];
+			System.arraycopy(in.chars, 0, larger, 0, in.length);
+			in.chars = larger;
+		}
+		in.chars[in.length++] = c;
+	}
+
+	private static void skipWhitespace(Buffers in) {
+		while (in.pos < in.end) {
+			byte b = in.bytes[in.pos];
+			if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+				return;
+			}
+			in.pos++;
+		}
+	}
+
+	private static byte peek(Buffers in) {
+		if (in.pos == in.end) {
+			throw bad("unexpected end of content");
+		}
+		return in.bytes[in.pos];
+	}
+
+	private static byte next(Buffers in) {
+		byte b = peek(in);
+		in.pos++;
+		return b;
+	}
+
+	private static void expect(Buffers in, char c) {
+		if (next(in) != c) {
+			throw bad("'" + c + "' expected at " + (in.pos - 1));
+		}
+	}
+
+	private static BadRequestException bad(String message) {
+		return new BadRequestException(Response.status(Status.BAD_REQUEST).type(MediaType.APPLICATION_JSON_TYPE)
+				.entity(new Error("malformed JSON: " + message)).build());
+	}
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return isSupported(type, mediaType);
+	}
+
+	@Override
+	public long getSize(Object value, Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType) {
+		return -1;
+	}
+
+	@Override
+	public void writeTo(Object value, Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType, MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+			throws IOException {
+		Buffers out = BUFFERS.get();
+		if (out.bytes.length > MAX_KEPT) {
+			out.bytes = new byte[1024];
+		}
+		out.end = 0;
+		if (value instanceof Account) {
+			Account account = (Account) value;
+			write(out, ACCOUNT_PREFIXES[0]);
+			write(out, account.getId());
+			write(out, ACCOUNT_PREFIXES[1]);
+			write(out, account.getBalance());
+			write(out, ACCOUNT_PREFIXES[2]);
+			write(out, account.isActive() ? TRUE : FALSE);
+		} else if (value instanceof Deposit) {
+			// and withdrawals
+			Deposit deposit = (Deposit) value;
+			write(out, DEPOSIT_PREFIXES[0]);
+			write(out, deposit.getId());
+			write(out, DEPOSIT_PREFIXES[1]);
+			write(out, deposit.getAmount());
+			write(out, DEPOSIT_PREFIXES[2]);
+			write(out, deposit.getAccount());
+		} else if (value instanceof Transfer) {
+			Transfer transfer = (Transfer) value;
+			write(out, TRANSFER_PREFIXES[0]);
+			write(out, transfer.getId());
+			write(out, TRANSFER_PREFIXES[1]);
+			write(out, transfer.getAmount());
+			write(out, TRANSFER_PREFIXES[2]);
+			write(out, transfer.getFromAccount());
+			write(out, TRANSFER_PREFIXES[3]);
+			write(out, transfer.getToAccount());
+		} else {
+			write(out, ERROR_PREFIXES[0]);
+			write(out, ((Error) value).getMessage());
+		}
+		write(out, (byte) '}');
+		entityStream.write(out.bytes, 0, out.end);
+	}
+
+	private static void ensure(Buffers out, int n) {
+		if (out.end + n > out.bytes.length) {
+			byte[] larger = new byte[Math.max(out.bytes.length * 2, out.end + n)];
+			System.arraycopy(out.bytes, 0, larger, 0, out.end);
+			out.bytes = larger;
+		}
+	}
+
+	private static void write(Buffers out, byte b) {
+		ensure(out, 1);
+		out.bytes[out.end++] = b;
+	}
+
+	private static void write(Buffers out, byte[] bytes) {
+		ensure(out, bytes.length);
+		System.arraycopy(bytes, 0, out.bytes, out.end, bytes.length);
+		out.end += bytes.length;
+	}
+
+	/**
+	 * Writes the digits of <code>value</code>, from a negative number so that
+	 * {@link Long#MIN_VALUE} fits.
+	 */
+	private static void write(Buffers out, long value) {
+		ensure(out, 20);
+		long negative = value < 0 ? value : -value;
+		int digits = 1;
+		for (long rest = negative / 10; rest != 0; rest /= 10) {
+			digits++;
+		}
+		if (value < 0) {
+			out.bytes[out.end++] = '-';
+		}
+		int last = out.end + digits - 1;
+		for (int i = last; i >= out.end; i--) {
+			out.bytes[i] = (byte) ('0' - negative % 10);
+			negative /= 10;
+		}
+		out.end = last + 1;
+	}
+
+	private static void write(Buffers out, String s) {
+		if (s == null) {
+			write(out, NULL);
+			return;
+		}
+		ensure(out, s.length() * 3 + 2);
+		byte[] bytes = out.bytes;
+		int end = out.end;
+		bytes[end++] = '"';
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				bytes[end++] = '\\';
+				bytes[end++] = (byte) c;
+			} else if (c < 0x20) {
+				// escapes take up to 6 bytes for 1
+				out.end = end;
+				ensure(out, (s.length() - i) * 6 + 1);
+				bytes = out.bytes;
+				bytes[end++] = '\\';
+				bytes[end++] = 'u';
+				bytes[end++] = '0';
+				bytes[end++] = '0';
+				bytes[end++] = HEX[c >> 4];
+				bytes[end++] = HEX[c & 0xf];
+			} else if (c < 0x80) {
+				bytes[end++] = (byte) c;
+			} else if (c < 0x800) {
+				bytes[end++] = (byte) (0xc0 | c >> 6);
+				bytes[end++] = (byte) (0x80 | c & 0x3f);
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				bytes[end++] = (byte) (0xf0 | cp >> 18);
+				bytes[end++] = (byte) (0x80 | cp >> 12 & 0x3f);
+				bytes[end++] = (byte) (0x80 | cp >> 6 & 0x3f);
+				bytes[end++] = (byte) (0x80 | cp & 0x3f);
+			} else {
+				bytes[end++] = (byte) (0xe0 | c >> 12);
+				bytes[end++] = (byte) (0x80 | c >> 6 & 0x3f);
+				bytes[end++] = (byte) (0x80 | c & 0x3f);
+			}
+		}
+		bytes[end++] = '"';
+		out.end = end;
+	}
+}
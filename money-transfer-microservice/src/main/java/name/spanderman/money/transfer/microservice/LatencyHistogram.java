@@ -0,0 +1,95 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, with buckets of
+ * logarithmically growing width: each power of two is split into
+ * {@value #SUB_BUCKETS} linear sub-buckets, so a recorded value is known
+ * within 1/{@value #SUB_BUCKETS} of itself over the whole range of a long,
+ * like an HdrHistogram with one significant digit.
+ * <p>
+ * Recording is one atomic increment of the bucket plus the count and sum
+ * adders, without allocating; quantiles are computed from a copy of the
+ * buckets when read.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) Math.max(value, 0);
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @return the highest value counted in the bucket <code>index</code>
+	 */
+	static long highest(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	public void record(long nanos) {
+		buckets.incrementAndGet(index(nanos));
+		count.increment();
+		sum.add(nanos);
+		long m;
+		while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+			// lost to a concurrent maximum, retried against it
+		}
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return for each quantile of <code>quantiles</code>, in increasing
+	 *         order, the highest value of the bucket holding it, at most the
+	 *         maximum recorded (0 if nothing was recorded)
+	 */
+	public long[] quantiles(double... quantiles) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		long[] values = new long[quantiles.length];
+		long seen = 0;
+		int bucket = -1;
+		for (int q = 0; q < quantiles.length && total > 0; q++) {
+			long rank = Math.max((long) Math.ceil(quantiles[q] * total), 1);
+			while (seen < rank && bucket < BUCKETS - 1) {
+				seen += counts[++bucket];
+			}
+			values[q] = Math.min(highest(bucket), max.get());
+		}
+		return values;
+	}
+}
@@ -0,0 +1,479 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jooq.DSLContext;
+import org.jooq.impl.DSL;
+
+/**
+ * Event-sourced {@link AccountStore} on H2: the opening balances of the
+ * accounts and the DEPOSITS, WITHDRAWALS and TRANSFERS rows are the source of
+ * truth, and a write only ever inserts its own row. The balances are a view
+ * of them materialised in memory, derived once at startup in parallel (see
+ * {@link LedgerVerifier#forEachPartition(LedgerVerifier.Partition)}) and then
+ * maintained incrementally: each write folds its row into the view once
+ * committed, never reading the history again.
+ * <p>
+ * The view is spread over stripes like {@link InMemoryAccountStore}. A write
+ * holds the locks of the stripes of its accounts from its checks, made
+ * against the view, until its row is committed and folded in, so the view
+ * always matches what is committed. The BALANCE column of ACCOUNTS is left
+ * as it was when each account was opened: going back to the h2 store takes a
+ * repairing run of the {@link LedgerVerifier} on the h2 store first.
+ */
+public class LedgerAccountStore implements AccountStore {
+
+	private static final LedgerAccountStore INSTANCE = new LedgerAccountStore();
+
+	private static final boolean FUNDS_CHECK = Config.getBoolean("moneytransfer.funds.check", false);
+	private static final int BATCH_GROUP = Math.max(Config.getInt("moneytransfer.batch.group", 1000), 1);
+	private static final int STRIPES = 64;
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private final Journal journal = Journal.getInstance();
+	private final long deriveNanos;
+
+	private static final class Stripe extends ReentrantLock {
+
+		private static final long serialVersionUID = 1L;
+
+		private final AccountTable accounts = new AccountTable();
+	}
+
+	private LedgerAccountStore() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+		long start = System.nanoTime();
+		// folded in on this thread: code of this class run by the partition
+		// threads would wait for the end of its initialization
+		for (AccountTable derived : LedgerVerifier.getInstance().deriveAll()) {
+			for (int slot = 0; slot < derived.capacity(); slot++) {
+				long id = derived.id(slot);
+				if (id != 0) {
+					stripe(id).accounts.put(id, derived.balance(slot), derived.isActive(slot));
+				}
+			}
+		}
+		deriveNanos = System.nanoTime() - start;
+	}
+
+	public static LedgerAccountStore getInstance() {
+		return INSTANCE;
+	}
+
+	private static int stripeIndex(long id) {
+		return (int) (id ^ (id >>> 32)) & (STRIPES - 1);
+	}
+
+	private Stripe stripe(long id) {
+		return stripes[stripeIndex(id)];
+	}
+
+	/**
+	 * @return the number of accounts in the view
+	 */
+	int size() {
+		int size = 0;
+		for (Stripe s : stripes) {
+			s.lock();
+			try {
+				size += s.accounts.size();
+			} finally {
+				s.unlock();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return how long deriving the balances took at startup
+	 */
+	long getDeriveMillis() {
+		return deriveNanos / 1000000;
+	}
+
+	/**
+	 * @return the lock holding off the writers of account <code>id</code>
+	 */
+	Lock lock(long id) {
+		return stripe(id);
+	}
+
+	/**
+	 * @return the materialised balance of account <code>id</code>,
+	 *         <code>null</code> if there is no such account
+	 */
+	Integer balance(long id) {
+		Stripe s = stripe(id);
+		s.lock();
+		try {
+			int slot = s.accounts.indexOf(id);
+			return slot < 0 ? null : s.accounts.balance(slot);
+		} finally {
+			s.unlock();
+		}
+	}
+
+	/**
+	 * @return a copy of the materialised balances of the accounts with ids
+	 *         from <code>from</code> to <code>to</code>, each stripe locked
+	 *         once
+	 */
+	AccountTable balances(long from, long to) {
+		AccountTable balances = new AccountTable();
+		for (Stripe s : stripes) {
+			s.lock();
+			try {
+				for (int slot = 0; slot < s.accounts.capacity(); slot++) {
+					long id = s.accounts.id(slot);
+					if (id >= from && id <= to) {
+						balances.put(id, s.accounts.balance(slot), s.accounts.isActive(slot));
+					}
+				}
+			} finally {
+				s.unlock();
+			}
+		}
+		return balances;
+	}
+
+	/**
+	 * Overwrites the materialised balance of account <code>id</code>.
+	 */
+	void setBalance(long id, int balance) {
+		Stripe s = stripe(id);
+		s.lock();
+		try {
+			int slot = s.accounts.indexOf(id);
+			if (slot >= 0) {
+				s.accounts.setBalance(slot, balance);
+			}
+		} finally {
+			s.unlock();
+		}
+	}
+
+	@Override
+	public Account openAccount(Account account) throws SQLException {
+		journal.checkWritable();
+		int balance = account.getBalance();
+		DSLContext ctx = Database.dsl();
+		long id = AccountDAO.ACCOUNT_IDS.next(ctx);
+		long ticket;
+		Stripe s = stripe(id);
+		s.lock();
+		try {
+			Database.execute(ctx, AccountDAO.INSERT_ACCOUNT, id, balance, balance);
+			s.accounts.put(id, balance, true);
+			ticket = journal.openAccount(id, balance);
+		} finally {
+			s.unlock();
+		}
+		Durability.getInstance().committed();
+		journal.await(ticket);
+		return new Account(id, balance, true);
+	}
+
+	@Override
+	public Account getAccount(long id) throws SQLException {
+		Stripe s = stripe(id);
+		s.lock();
+		try {
+			int slot = s.accounts.indexOf(id);
+			// no account found
+			if (slot < 0) {
+				return null;
+			}
+			return new Account(id, s.accounts.balance(slot), s.accounts.isActive(slot));
+		} finally {
+			s.unlock();
+		}
+	}
+
+	@Override
+	public Account closeAccount(long id) throws SQLException {
+		journal.checkWritable();
+		Account account;
+		long ticket;
+		Stripe s = stripe(id);
+		s.lock();
+		try {
+			int slot = s.accounts.indexOf(id);
+			// no open account found
+			if (slot < 0 || !s.accounts.isActive(slot)) {
+				return null;
+			}
+			Database.fetchOne(Database.dsl(), AccountDAO.CLOSE_ACCOUNT, rs -> rs.getInt(1), id);
+			s.accounts.setActive(slot, false);
+			account = new Account(id, s.accounts.balance(slot), false);
+			ticket = journal.closeAccount(id);
+		} finally {
+			s.unlock();
+		}
+		Durability.getInstance().committed();
+		journal.await(ticket);
+		return account;
+	}
+
+	@Override
+	public Deposit depositMoneyOnAccount(Deposit deposit) throws SQLException {
+		long account = deposit.getAccount();
+		int amount = deposit.getAmount();
+		Deposit d;
+		long ticket;
+		journal.checkWritable();
+		Stripe s = stripe(account);
+		s.lock();
+		try {
+			int slot = s.accounts.indexOf(account);
+			// no open account found
+			if (slot < 0 || !s.accounts.isActive(slot)) {
+				return null;
+			}
+			d = DepositDAO.getInstance().createDeposit(deposit, Database.dsl());
+			s.accounts.setBalance(slot, s.accounts.balance(slot) + amount);
+			ticket = journal.deposit(d.getId(), account, amount);
+		} finally {
+			s.unlock();
+		}
+		Durability.getInstance().committed();
+		journal.await(ticket);
+		return d;
+	}
+
+	@Override
+	public Deposit getDeposit(long id) throws SQLException {
+		return DepositDAO.getInstance().getDeposit(id);
+	}
+
+	@Override
+	public Withdrawal withdrawMoneyFromAccount(Withdrawal withdrawal) throws SQLException {
+		long account = withdrawal.getAccount();
+		int amount = withdrawal.getAmount();
+		Withdrawal w;
+		long ticket;
+		journal.checkWritable();
+		Stripe s = stripe(account);
+		s.lock();
+		try {
+			int slot = s.accounts.indexOf(account);
+			// no open account found
+			if (slot < 0 || !s.accounts.isActive(slot)) {
+				return null;
+			}
+			int balance = s.accounts.balance(slot) - amount;
+			if (FUNDS_CHECK && amount > 0 && balance < 0) {
+				throw new InsufficientFundsException(account);
+			}
+			w = WithdrawalDAO.getInstance().createWithdrawal(withdrawal, Database.dsl());
+			s.accounts.setBalance(slot, balance);
+			ticket = journal.withdrawal(w.getId(), account, amount);
+		} finally {
+			s.unlock();
+		}
+		Durability.getInstance().committed();
+		journal.await(ticket);
+		return w;
+	}
+
+	@Override
+	public Withdrawal getWithdrawal(long id) throws SQLException {
+		return WithdrawalDAO.getInstance().getWithdrawal(id);
+	}
+
+	@Override
+	public Transfer transferMoneyBetweenAccounts(Transfer transfer) throws SQLException {
+		long fromAccount = transfer.getFromAccount();
+		long toAccount = transfer.getToAccount();
+		int amount = transfer.getAmount();
+		int fromIndex = stripeIndex(fromAccount);
+		int toIndex = stripeIndex(toAccount);
+		// always lock the lower stripe first
+		Stripe first = stripes[Math.min(fromIndex, toIndex)];
+		Stripe second = stripes[Math.max(fromIndex, toIndex)];
+		Transfer made;
+		long ticket;
+		journal.checkWritable();
+		first.lock();
+		second.lock();
+		try {
+			AccountTable from = stripes[fromIndex].accounts;
+			AccountTable to = stripes[toIndex].accounts;
+			int fromSlot = from.indexOf(fromAccount);
+			int toSlot = to.indexOf(toAccount);
+			// no open accounts found
+			if (fromSlot < 0 || !from.isActive(fromSlot) || toSlot < 0 || !to.isActive(toSlot)) {
+				return null;
+			}
+			if (FUNDS_CHECK && amount > 0 && from.balance(fromSlot) - amount < 0) {
+				throw new InsufficientFundsException(fromAccount);
+			}
+			if (FUNDS_CHECK && amount < 0 && to.balance(toSlot) + amount < 0) {
+				throw new InsufficientFundsException(toAccount);
+			}
+			made = TransferDAO.getInstance().createTransfer(transfer, Database.dsl());
+			from.setBalance(fromSlot, from.balance(fromSlot) - amount);
+			to.setBalance(toSlot, to.balance(toSlot) + amount);
+			ticket = journal.transfer(made.getId(), fromAccount, toAccount, amount);
+		} finally {
+			second.unlock();
+			first.unlock();
+		}
+		Durability.getInstance().committed();
+		journal.await(ticket);
+		return made;
+	}
+
+	/**
+	 * Makes a batch of transfers a group at a time like
+	 * {@link TransferEngine#transfer(List, boolean)}, each group with the
+	 * stripes of its accounts locked in stripe index order, checked against a
+	 * copy of their balances and inserted with one JDBC batch.
+	 */
+	@Override
+	public List<TransferBatchItem> transferMoneyBetweenAccounts(List<Transfer> batch, boolean allOrNothing)
+			throws SQLException {
+		int size = batch.size();
+		int groupSize = allOrNothing ? Math.max(size, 1) : BATCH_GROUP;
+		List<TransferBatchItem> items = new ArrayList<>(size);
+		for (int from = 0; from < size; from += groupSize) {
+			items.addAll(transferGroup(batch.subList(from, Math.min(from + groupSize, size)), allOrNothing));
+		}
+		return items;
+	}
+
+	private List<TransferBatchItem> transferGroup(List<Transfer> group, boolean allOrNothing) {
+		journal.checkWritable();
+		Long[] ids = TransferEngine.accountIds(group);
+		boolean[] involved = new boolean[STRIPES];
+		for (Long id : ids) {
+			involved[stripeIndex(id)] = true;
+		}
+		List<TransferBatchItem> items;
+		long ticket = 0;
+		lock(involved);
+		try {
+			AccountTable accounts = new AccountTable(ids.length);
+			for (Long id : ids) {
+				AccountTable view = stripe(id).accounts;
+				int slot = view.indexOf(id);
+				if (slot >= 0) {
+					accounts.put(id, view.balance(slot), view.isActive(slot));
+				}
+			}
+			int[] deltas = new int[accounts.capacity()];
+			List<Transfer> made = new ArrayList<>(group.size());
+			TransferBatchItem[] checked = TransferEngine.check(accounts, deltas, group, made);
+			if (allOrNothing && made.size() < group.size()) {
+				return TransferEngine.items(checked, null);
+			}
+			long[] transferIds = Database.dsl().transactionResult(
+					configuration -> TransferDAO.getInstance().createTransfers(made, DSL.using(configuration)));
+			for (int slot = 0; slot < deltas.length; slot++) {
+				if (deltas[slot] != 0) {
+					AccountTable view = stripe(accounts.id(slot)).accounts;
+					int viewSlot = view.indexOf(accounts.id(slot));
+					view.setBalance(viewSlot, view.balance(viewSlot) + deltas[slot]);
+				}
+			}
+			for (int i = 0; i < made.size(); i++) {
+				Transfer transfer = made.get(i);
+				ticket = journal.transfer(transferIds[i], transfer.getFromAccount(), transfer.getToAccount(),
+						transfer.getAmount());
+			}
+			items = TransferEngine.items(checked, transferIds);
+		} finally {
+			unlock(involved);
+		}
+		journal.await(ticket);
+		return items;
+	}
+
+	private void lock(boolean[] involved) {
+		for (int i = 0; i < STRIPES; i++) {
+			if (involved[i]) {
+				stripes[i].lock();
+			}
+		}
+	}
+
+	private void unlock(boolean[] involved) {
+		for (int i = STRIPES - 1; i >= 0; i--) {
+			if (involved[i]) {
+				stripes[i].unlock();
+			}
+		}
+	}
+
+	@Override
+	public Transfer getTransfer(long id) throws SQLException {
+		return TransferDAO.getInstance().getTransfer(id);
+	}
+
+	@Override
+	public AccountHistory getHistory(long account, HistoryItem after, int limit) throws SQLException {
+		return AccountDAO.getInstance().getHistory(account, after, limit);
+	}
+
+	/**
+	 * Opens the accounts and makes the deposits of a batch in one transaction
+	 * like {@link AccountDAO#importBatch(ImportBatch)}, with the stripes of
+	 * the accounts involved locked.
+	 */
+	@Override
+	public void importBatch(ImportBatch batch) throws SQLException {
+		journal.checkWritable();
+		DSLContext ctx = Database.dsl();
+		int accounts = batch.accounts();
+		int deposits = batch.deposits();
+		long[] ids = AccountDAO.ACCOUNT_IDS.next(ctx, accounts);
+		boolean[] involved = new boolean[STRIPES];
+		for (int i = 0; i < accounts; i++) {
+			batch.setAccountId(i, ids[i]);
+			involved[stripeIndex(ids[i])] = true;
+		}
+		for (int i = 0; i < deposits; i++) {
+			involved[stripeIndex(batch.depositAccount(i))] = true;
+		}
+		long ticket = 0;
+		lock(involved);
+		try {
+			for (int i = 0; i < deposits; i++) {
+				AccountTable view = stripe(batch.depositAccount(i)).accounts;
+				int slot = view.indexOf(batch.depositAccount(i));
+				batch.setDeposited(i, slot >= 0 && view.isActive(slot));
+			}
+			long[] depositIds = ctx.transactionResult(configuration -> {
+				DSLContext tx = DSL.using(configuration);
+				if (accounts > 0) {
+					Database.executeBatch(tx, AccountDAO.INSERT_ACCOUNT, accounts, (ps, i) -> {
+						ps.setLong(1, ids[i]);
+						ps.setInt(2, batch.balance(i));
+						ps.setInt(3, batch.balance(i));
+					});
+				}
+				return DepositDAO.getInstance().createDeposits(batch, tx);
+			});
+			for (int i = 0; i < accounts; i++) {
+				stripe(ids[i]).accounts.put(ids[i], batch.balance(i), true);
+				ticket = journal.openAccount(ids[i], batch.balance(i));
+			}
+			for (int i = 0; i < deposits; i++) {
+				if (batch.isDeposited(i)) {
+					AccountTable view = stripe(batch.depositAccount(i)).accounts;
+					int slot = view.indexOf(batch.depositAccount(i));
+					view.setBalance(slot, view.balance(slot) + batch.amount(i));
+					ticket = journal.deposit(depositIds[i], batch.depositAccount(i), batch.amount(i));
+				}
+			}
+		} finally {
+			unlock(involved);
+		}
+		journal.await(ticket);
+	}
+}
@@ -0,0 +1,107 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of a run of the {@link LedgerVerifier}: the accounts checked and
+ * those whose materialised balance drifted from the balance derived from
+ * their movements.
+ */
+public class LedgerReport {
+
+	/**
+	 * Drifted accounts reported one by one, the others are only counted.
+	 */
+	public static final int DRIFTS_REPORTED = 100;
+
+	/**
+	 * An account whose balance is not what its movements make it.
+	 */
+	public static class Drift {
+
+		private final long account;
+		private final int balance;
+		private final int derived;
+
+		Drift(long account, int balance, int derived) {
+			this.account = account;
+			this.balance = balance;
+			this.derived = derived;
+		}
+
+		public long getAccount() {
+			return account;
+		}
+
+		public int getBalance() {
+			return balance;
+		}
+
+		public int getDerived() {
+			return derived;
+		}
+	}
+
+	private final String store;
+	private final int partitions;
+	private final boolean repair;
+	private long accounts;
+	private long drifted;
+	private final List<Drift> drifts = new ArrayList<>();
+	private long millis;
+
+	LedgerReport(String store, int partitions, boolean repair) {
+		this.store = store;
+		this.partitions = partitions;
+		this.repair = repair;
+	}
+
+	synchronized void checked(long count) {
+		accounts += count;
+	}
+
+	synchronized void drifted(long account, int balance, int derived) {
+		if (drifted++ < DRIFTS_REPORTED) {
+			drifts.add(new Drift(account, balance, derived));
+		}
+	}
+
+	void setMillis(long millis) {
+		this.millis = millis;
+	}
+
+	public String getStore() {
+		return store;
+	}
+
+	public int getPartitions() {
+		return partitions;
+	}
+
+	/**
+	 * @return whether the drifted balances were set to the derived ones
+	 */
+	public boolean isRepair() {
+		return repair;
+	}
+
+	public synchronized long getAccounts() {
+		return accounts;
+	}
+
+	public synchronized long getDrifted() {
+		return drifted;
+	}
+
+	/**
+	 * @return the first {@value #DRIFTS_REPORTED} drifted accounts
+	 */
+	public synchronized List<Drift> getDrifts() {
+		return drifts;
+	}
+
+	public long getMillis() {
+		return millis;
+	}
+}
@@ -0,0 +1,310 @@
+package name.spanderman.money.transfer.microservice;
+
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNTS;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_ACTIVE;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_BALANCE;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_ID;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_OPENING_BALANCE;
+import static name.spanderman.money.transfer.microservice.Schema.DEPOSITS;
+import static name.spanderman.money.transfer.microservice.Schema.MOVEMENT_ACCOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.MOVEMENT_AMOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFERS;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_AMOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_FROM_ACCOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_TO_ACCOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.WITHDRAWALS;
+import static org.jooq.impl.DSL.max;
+import static org.jooq.impl.DSL.min;
+import static org.jooq.impl.DSL.param;
+import static org.jooq.impl.DSL.select;
+import static org.jooq.impl.DSL.sum;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+
+import javax.management.ObjectName;
+
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
+
+/**
+ * Derives the balance of every account from the ledger, its opening balance
+ * plus its deposits and incoming transfers minus its withdrawals and outgoing
+ * transfers, and reports the accounts whose materialised balance drifted from
+ * it: the BALANCE column for the h2 and sharded stores, the view in memory
+ * for the ledger store (see {@link LedgerAccountStore}).
+ * <p>
+ * The accounts are split by id into <code>moneytransfer.ledger.partitions</code>
+ * ranges (default the number of processors) derived in parallel, with one
+ * grouped query per movement table and range. A drift seen this way may be a
+ * write made between the queries, so each suspect account is derived again
+ * with its writers held off, by its row lock for the h2 and sharded stores
+ * (the shards paused as well to repair it) and by its stripe lock for the
+ * ledger store: only the drifts confirmed are reported, and repaired on
+ * demand. Run counters are published over JMX, where a run can also be
+ * started.
+ */
+public class LedgerVerifier implements LedgerVerifierMXBean {
+
+	private static final LedgerVerifier INSTANCE = new LedgerVerifier(
+			Math.max(Config.getInt("moneytransfer.ledger.partitions", Runtime.getRuntime().availableProcessors()), 1));
+
+	private static final String SELECT_ID_RANGE = Database
+			.render(select(min(ACCOUNT_ID), max(ACCOUNT_ID)).from(ACCOUNTS));
+	private static final String SELECT_ACCOUNTS = Database
+			.render(select(ACCOUNT_ID, ACCOUNT_OPENING_BALANCE, ACCOUNT_BALANCE, ACCOUNT_ACTIVE).from(ACCOUNTS)
+					.where(ACCOUNT_ID.between(param("from", SQLDataType.BIGINT), param("to", SQLDataType.BIGINT))));
+	private static final String SUM_DEPOSITS = renderSums(DEPOSITS, MOVEMENT_AMOUNT, MOVEMENT_ACCOUNT);
+	private static final String SUM_WITHDRAWALS = renderSums(WITHDRAWALS, MOVEMENT_AMOUNT, MOVEMENT_ACCOUNT);
+	private static final String SUM_TRANSFERS_OUT = renderSums(TRANSFERS, TRANSFER_AMOUNT, TRANSFER_FROM_ACCOUNT);
+	private static final String SUM_TRANSFERS_IN = renderSums(TRANSFERS, TRANSFER_AMOUNT, TRANSFER_TO_ACCOUNT);
+
+	private final int partitions;
+
+	private volatile long verifications;
+	private volatile LedgerReport last;
+
+	/**
+	 * Work on the accounts with ids from <code>from</code> to <code>to</code>.
+	 */
+	@FunctionalInterface
+	interface Partition {
+
+		void run(long from, long to);
+	}
+
+	private LedgerVerifier(int partitions) {
+		this.partitions = partitions;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("name.spanderman.money.transfer:type=LedgerVerifier"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static LedgerVerifier getInstance() {
+		return INSTANCE;
+	}
+
+	private static String renderSums(Table<?> movements, Field<Integer> amount, Field<Long> account) {
+		return Database.render(select(account, sum(amount)).from(movements)
+				.where(account.between(param("from", SQLDataType.BIGINT), param("to", SQLDataType.BIGINT)))
+				.groupBy(account));
+	}
+
+	/**
+	 * Derives the balances of the accounts with ids from <code>from</code> to
+	 * <code>to</code> into <code>derived</code>, with their active flags, and
+	 * copies their BALANCE column into <code>stored</code> unless
+	 * <code>null</code>.
+	 */
+	static void derive(DSLContext ctx, long from, long to, AccountTable derived, AccountTable stored) {
+		Database.fetch(ctx, SELECT_ACCOUNTS, rs -> {
+			derived.put(rs.getLong(1), rs.getInt(2), rs.getBoolean(4));
+			if (stored != null) {
+				stored.put(rs.getLong(1), rs.getInt(3), rs.getBoolean(4));
+			}
+			return null;
+		}, from, to);
+		add(ctx, SUM_DEPOSITS, from, to, derived, 1);
+		add(ctx, SUM_WITHDRAWALS, from, to, derived, -1);
+		add(ctx, SUM_TRANSFERS_OUT, from, to, derived, -1);
+		add(ctx, SUM_TRANSFERS_IN, from, to, derived, 1);
+	}
+
+	private static void add(DSLContext ctx, String sums, long from, long to, AccountTable derived, int sign) {
+		Database.fetch(ctx, sums, rs -> {
+			// accounts opened since they were read are left out
+			int slot = derived.indexOf(rs.getLong(1));
+			if (slot >= 0) {
+				derived.setBalance(slot, derived.balance(slot) + sign * rs.getInt(2));
+			}
+			return null;
+		}, from, to);
+	}
+
+	/**
+	 * Derives the balances of all the accounts, the ranges of account ids in
+	 * parallel.
+	 *
+	 * @return the balances, one table per range
+	 */
+	List<AccountTable> deriveAll() {
+		List<AccountTable> tables = Collections.synchronizedList(new ArrayList<>());
+		forEachPartition((from, to) -> {
+			AccountTable derived = new AccountTable();
+			derive(Database.dsl(), from, to, derived, null);
+			tables.add(derived);
+		});
+		return tables;
+	}
+
+	/**
+	 * Runs <code>partition</code> on each range of account ids, in parallel.
+	 */
+	void forEachPartition(Partition partition) {
+		long[] range = Database.fetchOne(Database.dsl(), SELECT_ID_RANGE,
+				rs -> rs.getObject(1) == null ? null : new long[] { rs.getLong(1), rs.getLong(2) });
+		if (range == null) {
+			return;
+		}
+		long width = (range[1] - range[0]) / partitions + 1;
+		ExecutorService executor = Executors.newFixedThreadPool(partitions, r -> {
+			Thread thread = new Thread(r, "ledger-partition");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<Future<?>> runs = new ArrayList<>(partitions);
+			for (long from = range[0]; from <= range[1]; from += width) {
+				long to = Math.min(from + width - 1, range[1]);
+				long start = from;
+				runs.add(executor.submit(() -> partition.run(start, to)));
+			}
+			for (Future<?> run : runs) {
+				run.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while going through the ledger", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("error in going through the ledger", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Verifies the balances of all the accounts.
+	 *
+	 * @param repair
+	 *            whether to set the drifted balances to the derived ones
+	 * @throws UnsupportedOperationException
+	 *             if the account store keeps no ledger
+	 */
+	public LedgerReport verify(boolean repair) {
+		AccountStore store = AccountStores.getInstance();
+		LedgerAccountStore ledger = store instanceof LedgerAccountStore ? (LedgerAccountStore) store : null;
+		ShardedAccountStore sharded = store instanceof ShardedAccountStore ? (ShardedAccountStore) store : null;
+		if (ledger == null && sharded == null && store != AccountDAO.getInstance()) {
+			throw new UnsupportedOperationException(
+					"the " + AccountStores.getName() + " account store keeps no ledger");
+		}
+		long start = System.nanoTime();
+		LedgerReport report = new LedgerReport(AccountStores.getName(), partitions, repair);
+		forEachPartition((from, to) -> {
+			AccountTable derived = new AccountTable();
+			AccountTable stored = ledger == null ? new AccountTable() : null;
+			derive(Database.dsl(), from, to, derived, stored);
+			if (ledger != null) {
+				stored = ledger.balances(from, to);
+			}
+			for (int slot = 0; slot < derived.capacity(); slot++) {
+				long id = derived.id(slot);
+				int storedSlot = id == 0 ? -1 : stored.indexOf(id);
+				if (storedSlot >= 0 && stored.balance(storedSlot) != derived.balance(slot)) {
+					confirm(ledger, sharded, id, repair, report);
+				}
+			}
+			report.checked(derived.size());
+		});
+		report.setMillis((System.nanoTime() - start) / 1000000);
+		verifications++;
+		last = report;
+		return report;
+	}
+
+	private static void confirm(LedgerAccountStore ledger, ShardedAccountStore sharded, long id, boolean repair,
+			LedgerReport report) {
+		AccountTable derived = new AccountTable(1);
+		if (ledger == null) {
+			AccountDAO accountDAO = AccountDAO.getInstance();
+			Runnable check = () -> {
+				Integer repaired = Database.dsl().transactionResult(configuration -> {
+					DSLContext tx = DSL.using(configuration);
+					Integer balance = accountDAO.lockBalance(tx, id);
+					derive(tx, id, id, derived, null);
+					int slot = derived.indexOf(id);
+					if (balance != null && slot >= 0 && balance != derived.balance(slot)) {
+						report.drifted(id, balance, derived.balance(slot));
+						if (repair) {
+							accountDAO.setBalance(tx, id, derived.balance(slot));
+							return derived.balance(slot);
+						}
+					}
+					return null;
+				});
+				AccountCache.getInstance().invalidate(id);
+				if (sharded != null && repaired != null) {
+					sharded.setBalance(id, repaired);
+				}
+			};
+			if (sharded == null || !repair) {
+				check.run();
+			} else {
+				// the balance in memory is repaired too
+				sharded.pausedAll(check);
+			}
+			return;
+		}
+		Lock lock = ledger.lock(id);
+		lock.lock();
+		try {
+			Integer balance = ledger.balance(id);
+			derive(Database.dsl(), id, id, derived, null);
+			int slot = derived.indexOf(id);
+			if (balance != null && slot >= 0 && balance != derived.balance(slot)) {
+				report.drifted(id, balance, derived.balance(slot));
+				if (repair) {
+					ledger.setBalance(id, derived.balance(slot));
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int getPartitions() {
+		return partitions;
+	}
+
+	@Override
+	public long getVerifications() {
+		return verifications;
+	}
+
+	@Override
+	public long getLastAccounts() {
+		LedgerReport report = last;
+		return report == null ? 0 : report.getAccounts();
+	}
+
+	@Override
+	public long getLastDrifted() {
+		LedgerReport report = last;
+		return report == null ? 0 : report.getDrifted();
+	}
+
+	@Override
+	public long getLastMillis() {
+		LedgerReport report = last;
+		return report == null ? 0 : report.getMillis();
+	}
+
+	@Override
+	public long verify() {
+		return verify(false).getDrifted();
+	}
+}
@@ -0,0 +1,24 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * JMX view of the {@link LedgerVerifier}, which can also be run from here.
+ */
+public interface LedgerVerifierMXBean {
+
+	int getPartitions();
+
+	long getVerifications();
+
+	long getLastAccounts();
+
+	long getLastDrifted();
+
+	long getLastMillis();
+
+	/**
+	 * Runs a verification, without repairing.
+	 *
+	 * @return the number of drifted accounts
+	 */
+	long verify();
+}
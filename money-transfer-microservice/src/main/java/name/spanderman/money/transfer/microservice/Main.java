@@ -1,11 +1,19 @@
 package name.spanderman.money.transfer.microservice;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 
+import org.glassfish.grizzly.http.KeepAlive;
 import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.http.server.ServerConfiguration;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
 import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
 import org.glassfish.jersey.jackson.JacksonFeature;
 import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.ServerProperties;
 
 /**
  * Main class.
@@ -15,8 +23,11 @@ public class Main {
 	public static final int PORT = 1080;
 	public static String BASE_URI = "http://0.0.0.0:" + PORT + "/";
 
+	private static final boolean WADL = Config.getBoolean("moneytransfer.http.wadl", true);
+
 	/**
-	 * Setup in memory DB
+	 * Creates the tables and sequences missing from the database, leaving an
+	 * existing file database as it is
 	 * 
 	 * @throws Throwable
 	 */
@@ -25,26 +36,112 @@ public class Main {
 		DepositDAO.getInstance().dbSetup();
 		WithdrawalDAO.getInstance().dbSetup();
 		TransferDAO.getInstance().dbSetup();
+		// rebuild an in-memory database from its journal, if any
+		JournalRecovery.recover();
 	}
 
 	/**
 	 * Starts Grizzly HTTP server exposing JAX-RS resources defined in this
-	 * application.
+	 * application, sized by the <code>moneytransfer.http.workers</code>,
+	 * <code>moneytransfer.async.threads</code> and
+	 * <code>moneytransfer.async.queue</code> settings.
 	 * 
 	 * @param port
 	 *            the port server will listen on
 	 * @return Grizzly HTTP server.
 	 */
 	public static HttpServer startServer(int port) {
+		RequestExecutor executor = RequestExecutor.getInstance();
+		return startServer(port, Math.max(Config.getInt("moneytransfer.http.workers", 0), 0), executor.getThreads(),
+				executor.getQueueLimit());
+	}
+
+	/**
+	 * Starts Grizzly HTTP server exposing JAX-RS resources defined in this
+	 * application, its transport tuned by the <code>moneytransfer.http</code>
+	 * settings (see {@link #tune(HttpServer)}).
+	 * 
+	 * @param port
+	 *            the port server will listen on
+	 * @param workers
+	 *            Grizzly worker threads, parsing requests and writing
+	 *            responses (0 for the Grizzly default)
+	 * @param asyncThreads
+	 *            threads of the {@link RequestExecutor} running the requests
+	 *            (0 to run them on the workers)
+	 * @param asyncQueue
+	 *            requests that may wait for one of them before the next ones
+	 *            are answered 503
+	 * @return Grizzly HTTP server.
+	 */
+	public static HttpServer startServer(int port, int workers, int asyncThreads, int asyncQueue) {
+		RequestExecutor.getInstance().resize(asyncThreads, asyncQueue);
 		// create a resource config that scans for JAX-RS resources and
 		// providers
 		final ResourceConfig rc = new ResourceConfig().packages(Main.class.getPackage().getName())
-				.register(JacksonFeature.class);
+				.register(JacksonFeature.class).property(ServerProperties.WADL_FEATURE_DISABLE, !WADL);
 
-		// create and start a new instance of grizzly http server
-		// exposing the Jersey application at BASE_URI
+		// create a new instance of grizzly http server exposing the Jersey
+		// application at BASE_URI, started once tuned
 		BASE_URI = BASE_URI.replace(Integer.toString(PORT), Integer.toString(port));
-		return GrizzlyHttpServerFactory.createHttpServer(URI.create(BASE_URI), rc);
+		final HttpServer server = GrizzlyHttpServerFactory.createHttpServer(URI.create(BASE_URI), rc, false);
+		tune(server);
+		if (workers > 0) {
+			for (NetworkListener listener : server.getListeners()) {
+				listener.getTransport().setWorkerThreadPoolConfig(ThreadPoolConfig.defaultConfig().copy()
+						.setPoolName("http-worker").setCorePoolSize(workers).setMaxPoolSize(workers));
+			}
+		}
+		try {
+			server.start();
+		} catch (IOException e) {
+			throw new UncheckedIOException("error in starting the server on port " + port, e);
+		}
+		return server;
+	}
+
+	/**
+	 * Applies the transport settings to the listeners of <code>server</code>,
+	 * each one defaulting to the Grizzly default:
+	 * <ul>
+	 * <li><code>moneytransfer.http.selectors</code>: selector threads
+	 * accepting connections and reading them</li>
+	 * <li><code>moneytransfer.http.keepalive.requests</code> and
+	 * <code>moneytransfer.http.keepalive.timeout</code>: max requests per
+	 * connection (-1 for no limit, 0 to close each connection after its
+	 * request) and idle seconds before a connection is closed</li>
+	 * <li><code>moneytransfer.http.max.request.size</code> and
+	 * <code>moneytransfer.http.max.header.size</code>: max bytes of a request
+	 * body (-1 for no limit) and of its headers</li>
+	 * <li><code>moneytransfer.http.tcp.nodelay</code> and
+	 * <code>moneytransfer.http.backlog</code>: TCP_NODELAY and the length of
+	 * the queue of connections not accepted yet</li>
+	 * </ul>
+	 * Requests pipelined on a keep-alive connection are read one after the
+	 * other, the next once the previous one is answered, so the responses
+	 * come back in request order.
+	 */
+	private static void tune(HttpServer server) {
+		for (NetworkListener listener : server.getListeners()) {
+			TCPNIOTransport transport = listener.getTransport();
+			int selectors = Config.getInt("moneytransfer.http.selectors", 0);
+			if (selectors > 0) {
+				transport.setSelectorRunnersCount(selectors);
+			}
+			transport.setTcpNoDelay(Config.getBoolean("moneytransfer.http.tcp.nodelay", transport.isTcpNoDelay()));
+			transport.setServerConnectionBackLog(
+					Config.getInt("moneytransfer.http.backlog", transport.getServerConnectionBackLog()));
+			KeepAlive keepAlive = listener.getKeepAlive();
+			keepAlive.setMaxRequestsCount(
+					Config.getInt("moneytransfer.http.keepalive.requests", keepAlive.getMaxRequestsCount()));
+			keepAlive.setIdleTimeoutInSeconds(
+					Config.getInt("moneytransfer.http.keepalive.timeout", keepAlive.getIdleTimeoutInSeconds()));
+			listener.setMaxHttpHeaderSize(
+					Config.getInt("moneytransfer.http.max.header.size", listener.getMaxHttpHeaderSize()));
+		}
+		ServerConfiguration configuration = server.getServerConfiguration();
+		configuration.setMaxPostSize(
+				Config.getLong("moneytransfer.http.max.request.size", configuration.getMaxPostSize()));
 	}
 
 	/**
@@ -65,6 +162,28 @@ public class Main {
 	 */
 	public static void main(String[] args) throws Throwable {
 		dbSetup();
+		Journal journal = Journal.getInstance();
+		if (journal.isEnabled()) {
+			if (journal.getCutOffBytes() > 0) {
+				System.out.println(String.format("Cut off %d bytes of a torn journal tail", journal.getCutOffBytes()));
+			}
+			System.out.println(String.format("Replayed %d journal records in %d ms", journal.getReplayedRecords(),
+					journal.getReplayMillis()));
+		}
+		// pick the account store engine (moneytransfer.store) before serving
+		AccountStores.getInstance();
+		System.out.println(String.format("Using %s account store", AccountStores.getName()));
+		if (RequestExecutor.getInstance().isVirtual()) {
+			System.out.println("Running requests on virtual threads");
+		} else if (Config.getBoolean("moneytransfer.async.virtual", false)) {
+			System.out.println(String.format("Virtual threads are not supported by Java %s, running requests on a pool",
+					System.getProperty("java.version")));
+		}
+		if (AccountStores.LEDGER.equals(AccountStores.getName())) {
+			LedgerAccountStore ledger = LedgerAccountStore.getInstance();
+			System.out.println(String.format("Derived %d account balances from the ledger in %d ms", ledger.size(),
+					ledger.getDeriveMillis()));
+		}
 		String hostname = System.getenv("HOSTNAME");
 		if (hostname == null) {
 			hostname = "localhost";
@@ -75,17 +194,25 @@ public class Main {
 			heroku = true;
 		}
 		final HttpServer server = startServer(heroku ? Integer.valueOf(port) : PORT);
+		// the plain TCP listener for internal producers, if any
+		int tcpPort = Config.getInt("moneytransfer.tcp.port", -1);
+		final TcpIngress ingress = tcpPort >= 0 ? TcpIngress.start(tcpPort) : null;
+		if (ingress != null) {
+			System.out.println(String.format("TCP ingress started on port %d", ingress.getPort()));
+		}
+		String started = WADL ? String.format("Jersey app started with WADL available at %sapplication.wadl", BASE_URI)
+				: String.format("Jersey app started at %s", BASE_URI);
 		if (heroku) {
-			System.out.println(
-					String.format("Jersey app started with WADL available at " + "%sapplication.wadl", BASE_URI));
+			System.out.println(started);
 			while (true) {
 				System.in.read();
 			}
 		} else {
-			System.out.println(String.format(
-					"Jersey app started with WADL available at " + "%sapplication.wadl\nHit enter to stop it...",
-					BASE_URI));
+			System.out.println(started + "\nHit enter to stop it...");
 			System.in.read();
+			if (ingress != null) {
+				ingress.shutdownNow();
+			}
 			server.shutdownNow();
 		}
 	}
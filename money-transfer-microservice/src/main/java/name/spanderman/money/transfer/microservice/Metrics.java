@@ -0,0 +1,129 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The {@link Timer}s of the endpoints and of the account store methods, served
+ * by GET /moneytransfer/metrics in the Prometheus text format, version 0.0.4:
+ * <ul>
+ * <li><code>moneytransfer_request_seconds</code> and
+ * <code>moneytransfer_store_seconds</code>: summaries of the latencies since
+ * startup, from the arrival of a request to its response (the wait for a
+ * thread included) and of a call to the account store</li>
+ * <li><code>moneytransfer_requests_total</code> and
+ * <code>moneytransfer_store_calls_total</code>: counters of the calls by
+ * outcome (see {@link Timer.Outcome})</li>
+ * <li><code>moneytransfer_requests_in_flight</code> and
+ * <code>moneytransfer_store_calls_in_flight</code>: gauges of the calls not
+ * ended yet</li>
+ * <li><code>moneytransfer_executor_*</code>: the counters of the
+ * {@link RequestExecutor}</li>
+ * </ul>
+ * Timers are created once, when their endpoint or store is set up: a scrape
+ * reads them without stopping the calls being recorded.
+ */
+public class Metrics {
+
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final Metrics INSTANCE = new Metrics();
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	private final List<Timer> endpoints = new CopyOnWriteArrayList<>();
+	private final List<Timer> storeMethods = new CopyOnWriteArrayList<>();
+
+	private Metrics() {
+	}
+
+	public static Metrics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return a new timer of the endpoint <code>name</code>, e.g. "POST
+	 *         /moneytransfer/transfers"
+	 */
+	public Timer endpoint(String name) {
+		Timer timer = new Timer(name);
+		endpoints.add(timer);
+		return timer;
+	}
+
+	/**
+	 * @return a new timer of the account store method <code>name</code>
+	 */
+	public Timer storeMethod(String name) {
+		Timer timer = new Timer(name);
+		storeMethods.add(timer);
+		return timer;
+	}
+
+	/**
+	 * @return all the metrics in the Prometheus text format
+	 */
+	public String scrape() {
+		StringBuilder out = new StringBuilder(16384);
+		timers(out, "moneytransfer_request", "moneytransfer_requests", "endpoint", "REST requests", endpoints);
+		timers(out, "moneytransfer_store", "moneytransfer_store_calls", "method", "account store calls",
+				storeMethods);
+		RequestExecutor executor = RequestExecutor.getInstance();
+		gauge(out, "moneytransfer_executor_queued", "Requests waiting for an executor thread", executor.getQueued());
+		gauge(out, "moneytransfer_executor_active", "Requests running on an executor thread", executor.getActive());
+		counter(out, "moneytransfer_executor_rejected_total", "Requests answered 503 at once",
+				executor.getRejected());
+		counter(out, "moneytransfer_executor_expired_total", "Requests answered 503 after waiting too long",
+				executor.getExpired());
+		return out.toString();
+	}
+
+	private static void timers(StringBuilder out, String seconds, String calls, String label, String help,
+			List<Timer> timers) {
+		out.append("# HELP ").append(seconds).append("_seconds Latency of the ").append(help).append('\n');
+		out.append("# TYPE ").append(seconds).append("_seconds summary\n");
+		for (Timer timer : timers) {
+			LatencyHistogram histogram = timer.getHistogram();
+			long[] values = histogram.quantiles(QUANTILES);
+			for (int i = 0; i < QUANTILES.length; i++) {
+				out.append(seconds).append("_seconds{").append(label).append("=\"").append(timer.getName())
+						.append("\",quantile=\"").append(QUANTILES[i]).append("\"} ")
+						.append(values[i] / NANOS_PER_SECOND).append('\n');
+			}
+			sample(out, seconds + "_seconds_sum", label, timer.getName()).append(histogram.getSum() / NANOS_PER_SECOND)
+					.append('\n');
+			sample(out, seconds + "_seconds_count", label, timer.getName()).append(histogram.getCount()).append('\n');
+		}
+		out.append("# HELP ").append(calls).append("_total ").append(help).append(" by outcome\n");
+		out.append("# TYPE ").append(calls).append("_total counter\n");
+		for (Timer timer : timers) {
+			for (Timer.Outcome outcome : Timer.Outcome.values()) {
+				out.append(calls).append("_total{").append(label).append("=\"").append(timer.getName())
+						.append("\",outcome=\"").append(outcome.label()).append("\"} ").append(timer.getCount(outcome))
+						.append('\n');
+			}
+		}
+		out.append("# HELP ").append(calls).append("_in_flight ").append(help).append(" not ended yet\n");
+		out.append("# TYPE ").append(calls).append("_in_flight gauge\n");
+		for (Timer timer : timers) {
+			sample(out, calls + "_in_flight", label, timer.getName()).append(timer.getInFlight()).append('\n');
+		}
+	}
+
+	private static StringBuilder sample(StringBuilder out, String metric, String label, String value) {
+		return out.append(metric).append('{').append(label).append("=\"").append(value).append("\"} ");
+	}
+
+	private static void gauge(StringBuilder out, String metric, String help, long value) {
+		out.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(metric).append(" gauge\n");
+		out.append(metric).append(' ').append(value).append('\n');
+	}
+
+	private static void counter(StringBuilder out, String metric, String help, long value) {
+		out.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(metric).append(" counter\n");
+		out.append(metric).append(' ').append(value).append('\n');
+	}
+}
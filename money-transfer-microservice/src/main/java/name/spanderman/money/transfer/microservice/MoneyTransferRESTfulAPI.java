@@ -1,176 +1,414 @@
 package name.spanderman.money.transfer.microservice;
 
+import java.io.InputStream;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.NotFoundException;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
+/**
+ * The endpoints suspend their requests and leave the work to the
+ * {@link RequestExecutor}, which answers 503 once saturated.
+ * <p>
+ * Deposits, withdrawals and transfers made with an Idempotency-Key header are
+ * made once per key (see {@link IdempotencyStore}): a retry is answered the
+ * movement made the first time, with an Idempotent-Replayed header, a retry
+ * racing the first request 409 and a different movement with the same key
+ * 422.
+ * <p>
+ * Every request is timed by a {@link Timer} of its endpoint, and every call
+ * to the account store by an {@link InstrumentedAccountStore}, served by GET
+ * /moneytransfer/metrics (see {@link Metrics}). A sampled request is also
+ * traced phase by phase, the slowest traces being served by GET
+ * /moneytransfer/traces (see {@link Tracer}).
+ */
 @Path("moneytransfer")
 @Produces(MediaType.APPLICATION_JSON)
 public class MoneyTransferRESTfulAPI {
 
-	private AccountDAO accountDAO = AccountDAO.getInstance();
-	private DepositDAO depositDAO = DepositDAO.getInstance();
-	private WithdrawalDAO withdrawalDAO = WithdrawalDAO.getInstance();
-	private TransferDAO transferDAO = TransferDAO.getInstance();
+	public static final String ALL_OR_NOTHING = "all-or-nothing";
+	public static final String PER_ITEM = "per-item";
+
+	private static final Metrics METRICS = Metrics.getInstance();
+	private static final Timer OPEN_ACCOUNT = METRICS.endpoint("POST /moneytransfer/accounts");
+	private static final Timer GET_ACCOUNT = METRICS.endpoint("GET /moneytransfer/accounts/{id}");
+	private static final Timer CLOSE_ACCOUNT = METRICS.endpoint("DELETE /moneytransfer/accounts/{id}");
+	private static final Timer GET_ACCOUNT_HISTORY = METRICS.endpoint("GET /moneytransfer/accounts/{id}/history");
+	private static final Timer DEPOSIT = METRICS.endpoint("POST /moneytransfer/deposits");
+	private static final Timer GET_DEPOSIT = METRICS.endpoint("GET /moneytransfer/deposits/{id}");
+	private static final Timer WITHDRAWAL = METRICS.endpoint("POST /moneytransfer/withdrawals");
+	private static final Timer GET_WITHDRAWAL = METRICS.endpoint("GET /moneytransfer/withdrawals/{id}");
+	private static final Timer TRANSFER = METRICS.endpoint("POST /moneytransfer/transfers");
+	private static final Timer TRANSFER_BATCH = METRICS.endpoint("POST /moneytransfer/transfers/batch");
+	private static final Timer GET_TRANSFER = METRICS.endpoint("GET /moneytransfer/transfers/{id}");
+	private static final Timer IMPORT = METRICS.endpoint("POST /moneytransfer/import");
+	private static final Timer VERIFY_LEDGER = METRICS.endpoint("POST /moneytransfer/ledger/verifications");
+	// shared with the TcpIngress
+	static final AccountStore STORE = new InstrumentedAccountStore(AccountStores.getInstance(), METRICS);
+
+	private AccountStore accountStore = STORE;
+	private RequestExecutor executor = RequestExecutor.getInstance();
+	private IdempotencyStore idempotency = IdempotencyStore.getInstance();
+
+	/**
+	 * Makes the movement <code>request</code> by <code>call</code> unless it
+	 * was already made with <code>key</code>, when there is one.
+	 */
+	private Object idempotent(String key, Object request, Callable<Object> call) throws Exception {
+		if (key == null || request == null || !idempotency.isEnabled()) {
+			return call.call();
+		}
+		if (key.isEmpty() || key.length() > IdempotencyStore.MAX_KEY_LENGTH) {
+			String expected = "idempotency key of 1 to " + IdempotencyStore.MAX_KEY_LENGTH + " characters expected";
+			return Response.status(Status.BAD_REQUEST).entity(new Error(expected)).build();
+		}
+		Object made;
+		try {
+			made = idempotency.claim(key, request);
+		} catch (IdempotencyConflictException e) {
+			if (e.isInProgress()) {
+				return Response.status(Status.CONFLICT).header(HttpHeaders.RETRY_AFTER, "1")
+						.entity(new Error(e.getMessage())).build();
+			}
+			// Unprocessable Entity
+			return Response.status(422).entity(new Error(e.getMessage())).build();
+		}
+		if (made != null) {
+			return Response.ok(made).header(IdempotencyStore.REPLAYED, "true").build();
+		}
+		Object result = null;
+		try {
+			result = call.call();
+			return result;
+		} finally {
+			idempotency.complete(key, request, result);
+		}
+	}
 
 	@Path("accounts")
 	@POST
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Object openAccount(Account account) {
-		try {
-			return accountDAO.openAccount(account);
-		} catch (ClassNotFoundException | SQLException e) {
-			Response.status(Status.INTERNAL_SERVER_ERROR);
-			return new Error("error in opening account");
-		}
+	public void openAccount(Account account, @Suspended AsyncResponse response) {
+		executor.submit(response, OPEN_ACCOUNT, () -> {
+			try {
+				return accountStore.openAccount(account);
+			} catch (SQLException e) {
+				Response.status(Status.INTERNAL_SERVER_ERROR);
+				return new Error("error in opening account");
+			}
+		});
 	}
 
 	@Path("accounts/{id}")
 	@GET
-	public Object getAccount(@PathParam("id") long id) {
-		try {
-			Account account = accountDAO.getAccount(id);
-			if (account == null) {
-				throw new NotFoundException("account not found");
-			}
-			return account;
-		} catch (NotFoundException e) {
-			throw e;
-		} catch (Throwable e) {
-			Response.status(Status.INTERNAL_SERVER_ERROR);
-			return new Error("error in getting account");
-		}
+	public void getAccount(@PathParam("id") long id, @Suspended AsyncResponse response) {
+		executor.submit(response, GET_ACCOUNT, () -> {
+			try {
+				Account account = accountStore.getAccount(id);
+				if (account == null) {
+					throw new NotFoundException("account not found");
+				}
+				return account;
+			} catch (NotFoundException e) {
+				throw e;
+			} catch (Throwable e) {
+				Response.status(Status.INTERNAL_SERVER_ERROR);
+				return new Error("error in getting account");
+			}
+		});
 	}
 
 	@Path("accounts/{id}")
 	@DELETE
-	public Object closeAccount(@PathParam("id") long id) {
-		try {
-			Account account = accountDAO.closeAccount(id);
-			if (account == null) {
-				throw new NotFoundException("open account not found");
-			}
-			return account;
-		} catch (NotFoundException e) {
-			throw e;
-		} catch (Throwable e) {
-			Response.status(Status.INTERNAL_SERVER_ERROR);
-			return new Error("error in closing account");
-		}
+	public void closeAccount(@PathParam("id") long id, @Suspended AsyncResponse response) {
+		executor.submit(response, CLOSE_ACCOUNT, () -> {
+			try {
+				Account account = accountStore.closeAccount(id);
+				if (account == null) {
+					throw new NotFoundException("open account not found");
+				}
+				return account;
+			} catch (NotFoundException e) {
+				throw e;
+			} catch (Throwable e) {
+				Response.status(Status.INTERNAL_SERVER_ERROR);
+				return new Error("error in closing account");
+			}
+		});
+	}
+
+	/**
+	 * Lists the deposits, withdrawals and transfers of an account in id order,
+	 * a page of at most <code>limit</code> of them after the cursor
+	 * <code>after</code> answered as <code>next</code> by the previous page
+	 * (see {@link AccountHistory}).
+	 */
+	@Path("accounts/{id}/history")
+	@GET
+	public void getAccountHistory(@PathParam("id") long id, @QueryParam("after") String after,
+			@QueryParam("limit") @DefaultValue("100") int limit, @Suspended AsyncResponse response) {
+		executor.submit(response, GET_ACCOUNT_HISTORY, () -> {
+			if (limit < 1 || limit > AccountHistory.MAX_LIMIT) {
+				return Response.status(Status.BAD_REQUEST)
+						.entity(new Error("limit of 1 to " + AccountHistory.MAX_LIMIT + " expected")).build();
+			}
+			try {
+				AccountHistory history = accountStore.getHistory(id,
+						after == null ? null : AccountHistory.parseCursor(after), limit);
+				if (history == null) {
+					throw new NotFoundException("account not found");
+				}
+				return history;
+			} catch (NotFoundException e) {
+				throw e;
+			} catch (IllegalArgumentException e) {
+				return Response.status(Status.BAD_REQUEST).entity(new Error(e.getMessage())).build();
+			} catch (Throwable e) {
+				Response.status(Status.INTERNAL_SERVER_ERROR);
+				return new Error("error in getting account history");
+			}
+		});
 	}
 
 	@Path("deposits")
 	@POST
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Object depositMoneyOnAccount(Deposit deposit) {
-		try {
-			Deposit d = accountDAO.depositMoneyOnAccount(deposit);
-			if (d == null) {
-				throw new NotFoundException("open account not found");
-			}
-			return d;
-		} catch (NotFoundException e) {
-			throw e;
-		} catch (Throwable e) {
-			Response.status(Status.INTERNAL_SERVER_ERROR);
-			return new Error("error in depositing money on account");
-		}
+	public void depositMoneyOnAccount(Deposit deposit, @HeaderParam(IdempotencyStore.HEADER) String key,
+			@Suspended AsyncResponse response) {
+		executor.submit(response, DEPOSIT, () -> idempotent(key, deposit, () -> {
+			try {
+				Deposit d = accountStore.depositMoneyOnAccount(deposit);
+				if (d == null) {
+					throw new NotFoundException("open account not found");
+				}
+				return d;
+			} catch (NotFoundException e) {
+				throw e;
+			} catch (Throwable e) {
+				Response.status(Status.INTERNAL_SERVER_ERROR);
+				return new Error("error in depositing money on account");
+			}
+		}));
 	}
 
 	@Path("deposits/{id}")
 	@GET
-	public Object getDeposit(@PathParam("id") long id) {
-		try {
-			Deposit deposit = depositDAO.getDeposit(id);
-			if (deposit == null) {
-				throw new NotFoundException("deposit not found");
-			}
-			return deposit;
-		} catch (NotFoundException e) {
-			throw e;
-		} catch (Throwable e) {
-			Response.status(Status.INTERNAL_SERVER_ERROR);
-			return new Error("error in getting deposit");
-		}
+	public void getDeposit(@PathParam("id") long id, @Suspended AsyncResponse response) {
+		executor.submit(response, GET_DEPOSIT, () -> {
+			try {
+				Deposit deposit = accountStore.getDeposit(id);
+				if (deposit == null) {
+					throw new NotFoundException("deposit not found");
+				}
+				return deposit;
+			} catch (NotFoundException e) {
+				throw e;
+			} catch (Throwable e) {
+				Response.status(Status.INTERNAL_SERVER_ERROR);
+				return new Error("error in getting deposit");
+			}
+		});
 	}
 
 	@Path("withdrawals")
 	@POST
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Object withdrawMoneyFromAccount(Withdrawal withdrawal) {
-		try {
-			Withdrawal w = accountDAO.withdrawMoneyFromAccount(withdrawal);
-			if (w == null) {
-				throw new NotFoundException("open account not found");
-			}
-			return w;
-		} catch (NotFoundException e) {
-			throw e;
-		} catch (Throwable e) {
-			Response.status(Status.INTERNAL_SERVER_ERROR);
-			return new Error("error in withdrawing money on account");
-		}
+	public void withdrawMoneyFromAccount(Withdrawal withdrawal, @HeaderParam(IdempotencyStore.HEADER) String key,
+			@Suspended AsyncResponse response) {
+		executor.submit(response, WITHDRAWAL, () -> idempotent(key, withdrawal, () -> {
+			try {
+				Withdrawal w = accountStore.withdrawMoneyFromAccount(withdrawal);
+				if (w == null) {
+					throw new NotFoundException("open account not found");
+				}
+				return w;
+			} catch (NotFoundException e) {
+				throw e;
+			} catch (InsufficientFundsException e) {
+				throw e;
+			} catch (Throwable e) {
+				Response.status(Status.INTERNAL_SERVER_ERROR);
+				return new Error("error in withdrawing money on account");
+			}
+		}));
 	}
 
 	@Path("withdrawals/{id}")
 	@GET
-	public Object getWithdrawal(@PathParam("id") long id) {
-		try {
-			Withdrawal withdrawal = withdrawalDAO.getWithdrawal(id);
-			if (withdrawal == null) {
-				throw new NotFoundException("withdrawal not found");
-			}
-			return withdrawal;
-		} catch (NotFoundException e) {
-			throw e;
-		} catch (Throwable e) {
-			Response.status(Status.INTERNAL_SERVER_ERROR);
-			return new Error("error in getting withdrawal");
-		}
+	public void getWithdrawal(@PathParam("id") long id, @Suspended AsyncResponse response) {
+		executor.submit(response, GET_WITHDRAWAL, () -> {
+			try {
+				Withdrawal withdrawal = accountStore.getWithdrawal(id);
+				if (withdrawal == null) {
+					throw new NotFoundException("withdrawal not found");
+				}
+				return withdrawal;
+			} catch (NotFoundException e) {
+				throw e;
+			} catch (Throwable e) {
+				Response.status(Status.INTERNAL_SERVER_ERROR);
+				return new Error("error in getting withdrawal");
+			}
+		});
 	}
 
 	@Path("transfers")
 	@POST
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Object transferMoneyBetweenAccounts(Transfer transfer) {
-		try {
-			Transfer t = accountDAO.transferMoneyBetweenAccounts(transfer);
-			if (t == null) {
-				throw new NotFoundException("open accounts not found");
-			}
-			return t;
-		} catch (NotFoundException e) {
-			throw e;
-		} catch (Throwable e) {
-			Response.status(Status.INTERNAL_SERVER_ERROR);
-			return new Error("error in transferring money between accounts");
-		}
+	public void transferMoneyBetweenAccounts(Transfer transfer, @HeaderParam(IdempotencyStore.HEADER) String key,
+			@Suspended AsyncResponse response) {
+		executor.submit(response, TRANSFER, () -> idempotent(key, transfer, () -> {
+			try {
+				Transfer t = accountStore.transferMoneyBetweenAccounts(transfer);
+				if (t == null) {
+					throw new NotFoundException("open accounts not found");
+				}
+				return t;
+			} catch (NotFoundException e) {
+				throw e;
+			} catch (InsufficientFundsException e) {
+				throw e;
+			} catch (Throwable e) {
+				Response.status(Status.INTERNAL_SERVER_ERROR);
+				return new Error("error in transferring money between accounts");
+			}
+		}));
+	}
+
+	/**
+	 * Makes a batch of transfers, answering one item per transfer. In
+	 * {@value #ALL_OR_NOTHING} mode (default) a failed transfer fails the
+	 * whole batch with its status, in {@value #PER_ITEM} mode each transfer
+	 * stands on its own.
+	 */
+	@Path("transfers/batch")
+	@POST
+	@Consumes(MediaType.APPLICATION_JSON)
+	public void transferMoneyBetweenAccounts(List<Transfer> transfers,
+			@QueryParam("mode") @DefaultValue(ALL_OR_NOTHING) String mode, @Suspended AsyncResponse response) {
+		executor.submit(response, TRANSFER_BATCH, () -> {
+			if (!ALL_OR_NOTHING.equals(mode) && !PER_ITEM.equals(mode)) {
+				return Response.status(Status.BAD_REQUEST).entity(new Error("unknown mode " + mode)).build();
+			}
+			if (transfers == null || transfers.contains(null)) {
+				return Response.status(Status.BAD_REQUEST).entity(new Error("transfers expected")).build();
+			}
+			try {
+				boolean allOrNothing = ALL_OR_NOTHING.equals(mode);
+				List<TransferBatchItem> items = accountStore.transferMoneyBetweenAccounts(transfers, allOrNothing);
+				if (allOrNothing) {
+					for (TransferBatchItem item : items) {
+						if (item.getStatus() == TransferBatchItem.Status.NOT_FOUND) {
+							return Response.status(Status.NOT_FOUND).entity(items).build();
+						}
+						if (item.getStatus() == TransferBatchItem.Status.INSUFFICIENT_FUNDS) {
+							return Response.status(Status.CONFLICT).entity(items).build();
+						}
+					}
+				}
+				return items;
+			} catch (Throwable e) {
+				Response.status(Status.INTERNAL_SERVER_ERROR);
+				return new Error("error in transferring money between accounts");
+			}
+		});
 	}
 
 	@Path("transfers/{id}")
 	@GET
-	public Object getTransfer(@PathParam("id") long id) {
-		try {
-			Transfer transfer = transferDAO.getTransfer(id);
-			if (transfer == null) {
-				throw new NotFoundException("transfer not found");
-			}
-			return transfer;
-		} catch (NotFoundException e) {
-			throw e;
-		} catch (Throwable e) {
-			Response.status(Status.INTERNAL_SERVER_ERROR);
-			return new Error("error in getting transfer");
-		}
+	public void getTransfer(@PathParam("id") long id, @Suspended AsyncResponse response) {
+		executor.submit(response, GET_TRANSFER, () -> {
+			try {
+				Transfer transfer = accountStore.getTransfer(id);
+				if (transfer == null) {
+					throw new NotFoundException("transfer not found");
+				}
+				return transfer;
+			} catch (NotFoundException e) {
+				throw e;
+			} catch (Throwable e) {
+				Response.status(Status.INTERNAL_SERVER_ERROR);
+				return new Error("error in getting transfer");
+			}
+		});
+	}
+
+	/**
+	 * Bulk import of newline delimited JSON accounts and deposits, streamed
+	 * from the request body (see {@link BulkImporter}).
+	 */
+	@Path("import")
+	@POST
+	@Consumes(BulkImporter.NDJSON)
+	public void importRecords(InputStream records, @Suspended AsyncResponse response) {
+		executor.submit(response, IMPORT, () -> {
+			try {
+				return BulkImporter.getInstance().importRecords(records);
+			} catch (IllegalArgumentException e) {
+				return Response.status(Status.BAD_REQUEST).entity(new Error(e.getMessage())).build();
+			} catch (Throwable e) {
+				Response.status(Status.INTERNAL_SERVER_ERROR);
+				return new Error("error in importing records");
+			}
+		});
+	}
+
+	/**
+	 * Verifies the balances of the accounts against their movements, setting
+	 * the drifted ones to the derived balances if <code>repair</code> (see
+	 * {@link LedgerVerifier}).
+	 */
+	@Path("ledger/verifications")
+	@POST
+	public void verifyLedger(@QueryParam("repair") @DefaultValue("false") boolean repair,
+			@Suspended AsyncResponse response) {
+		executor.submit(response, VERIFY_LEDGER, () -> {
+			try {
+				return LedgerVerifier.getInstance().verify(repair);
+			} catch (UnsupportedOperationException e) {
+				return Response.status(Status.CONFLICT).entity(new Error(e.getMessage())).build();
+			} catch (Throwable e) {
+				Response.status(Status.INTERNAL_SERVER_ERROR);
+				return new Error("error in verifying the ledger");
+			}
+		});
+	}
+
+	/**
+	 * Serves the {@link Metrics} in the Prometheus text format, on the Grizzly
+	 * worker so that a saturated executor can still be scraped.
+	 */
+	@Path("metrics")
+	@GET
+	@Produces(Metrics.CONTENT_TYPE)
+	public String getMetrics() {
+		return METRICS.scrape();
+	}
+
+	/**
+	 * Serves the slowest requests traced by the {@link Tracer}, slowest first,
+	 * on the Grizzly worker like the metrics.
+	 */
+	@Path("traces")
+	@GET
+	public List<Trace> getTraces() {
+		return Tracer.getInstance().getTraces();
 	}
 }
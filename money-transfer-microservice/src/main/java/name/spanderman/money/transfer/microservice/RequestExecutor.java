@@ -0,0 +1,285 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+/**
+ * Runs the work of the suspended REST requests (see
+ * {@link MoneyTransferRESTfulAPI}) on a bounded pool of
+ * <code>moneytransfer.async.threads</code> threads (default the database pool
+ * size), so the Grizzly workers only parse requests and write responses
+ * instead of waiting for the database.
+ * <p>
+ * At most <code>moneytransfer.async.queue</code> requests (default 1000) wait
+ * for a thread: a request is admitted while fewer than the threads plus that
+ * limit are in flight, running or waiting, the next ones being answered 503
+ * at once, with a Retry-After header, and so is a request that waited longer
+ * than <code>moneytransfer.async.queue.timeout</code> ms (default 0, no
+ * limit) before its turn came, without being run. With no threads the requests are
+ * run on the Grizzly worker that received them. Both sizes can be changed
+ * while running, from {@link Main#startServer(int, int, int, int)} or over
+ * JMX, where the counters are published.
+ * <p>
+ * With <code>moneytransfer.async.virtual</code> set, on a JDK with virtual
+ * threads (21 or later), every request runs on a virtual thread of its own
+ * instead, including its blocking JDBC calls, so the threads and queue sizes
+ * only bound the requests in flight together. The blocking paths of the
+ * stores wait on locks rather than monitors, so as not to pin their carrier
+ * threads; H2 still runs each statement holding the monitor of its session,
+ * which pins the carrier for the statement on JDKs before 24. On an older JDK
+ * the setting falls back to the pool, as {@link #isVirtual()} tells.
+ */
+public class RequestExecutor implements RequestExecutorMXBean {
+
+	private static final RequestExecutor INSTANCE = register(new RequestExecutor(
+			Math.max(Config.getInt("moneytransfer.async.threads", Config.getInt("moneytransfer.db.pool.size", 16)), 0),
+			Math.max(Config.getInt("moneytransfer.async.queue", 1000), 0),
+			Math.max(Config.getLong("moneytransfer.async.queue.timeout", 0), 0),
+			Config.getBoolean("moneytransfer.async.virtual", false)));
+
+	private static final String RETRY_AFTER = "1";
+
+	private final ThreadPoolExecutor pool;
+	// the pool, or one virtual thread per request
+	private final ExecutorService executor;
+	private final long queueTimeout;
+
+	private volatile int threads;
+	private volatile int queueLimit;
+
+	// requests accepted and not yet done, running or waiting for a thread
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger running = new AtomicInteger();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+
+	RequestExecutor(int threads, int queueLimit, long queueTimeout, boolean virtual) {
+		AtomicInteger count = new AtomicInteger();
+		pool = new ThreadPoolExecutor(Math.max(threads, 1), Math.max(threads, 1), 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), r -> {
+					Thread thread = new Thread(r, "request-executor-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		pool.allowCoreThreadTimeOut(true);
+		ExecutorService perTask = virtual ? virtualThreadPerTask() : null;
+		executor = perTask == null ? pool : perTask;
+		this.threads = threads;
+		this.queueLimit = queueLimit;
+		this.queueTimeout = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+	}
+
+	/**
+	 * Looked up by reflection, the project being built for Java 8.
+	 *
+	 * @return an executor starting a virtual thread per task, or
+	 *         <code>null</code> if the JDK has no virtual threads
+	 */
+	private static ExecutorService virtualThreadPerTask() {
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			Object ofVirtual = Thread.class.getMethod("ofVirtual").invoke(null);
+			ofVirtual = builder.getMethod("name", String.class, long.class).invoke(ofVirtual, "request-virtual-", 1L);
+			ThreadFactory factory = (ThreadFactory) builder.getMethod("factory").invoke(ofVirtual);
+			return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+					.invoke(null, factory);
+		} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+	private static RequestExecutor register(RequestExecutor executor) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(executor,
+					new ObjectName("name.spanderman.money.transfer:type=RequestExecutor"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return executor;
+	}
+
+	public static RequestExecutor getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Sets the number of threads, 0 to run the requests on the Grizzly
+	 * workers, and the number of requests that may wait for one.
+	 */
+	public synchronized void resize(int threads, int queueLimit) {
+		if (threads < 0 || queueLimit < 0) {
+			throw new IllegalArgumentException("negative size");
+		}
+		int size = Math.max(threads, 1);
+		if (size > pool.getMaximumPoolSize()) {
+			pool.setMaximumPoolSize(size);
+			pool.setCorePoolSize(size);
+		} else {
+			pool.setCorePoolSize(size);
+			pool.setMaximumPoolSize(size);
+		}
+		this.threads = threads;
+		this.queueLimit = queueLimit;
+	}
+
+	/**
+	 * Resumes <code>response</code> with the result of <code>call</code>, or
+	 * the exception it throws, once run by a thread of the pool; answers 503
+	 * if the queue is full. <code>timer</code> times the request from now to
+	 * its response.
+	 */
+	public void submit(AsyncResponse response, Timer timer, Callable<?> call) {
+		long start = timer.begin();
+		if (threads == 0) {
+			resume(response, timer, start, call);
+			return;
+		}
+		// the trace of a sampled request follows it to the thread running it
+		Trace trace = Tracer.detach();
+		boolean accepted = offer(() -> {
+			if (trace != null) {
+				trace.add(Trace.Phase.QUEUE, start);
+				Tracer.attach(trace);
+			}
+			try {
+				if (queueTimeout > 0 && System.nanoTime() - start > queueTimeout) {
+					expired.increment();
+					timer.end(start, Timer.Outcome.REJECTED);
+					response.resume(busy());
+					return;
+				}
+				resume(response, timer, start, call);
+			} finally {
+				if (trace != null) {
+					Tracer.attach(null);
+				}
+			}
+		});
+		if (!accepted) {
+			timer.end(start, Timer.Outcome.REJECTED);
+			response.resume(busy());
+		}
+	}
+
+	/**
+	 * Queues <code>task</code> unless as many tasks as threads and waiting
+	 * places are already in flight. On the pool this admits the same tasks as
+	 * bounding the waiting ones by the queue limit, the running ones being at
+	 * most the threads, but counted as one total it also bounds the virtual
+	 * threads, where no task waits.
+	 *
+	 * @return <code>false</code> if the task was rejected
+	 */
+	boolean offer(Runnable task) {
+		if (inFlight.incrementAndGet() > threads + queueLimit) {
+			inFlight.decrementAndGet();
+			rejected.increment();
+			return false;
+		}
+		try {
+			executor.execute(() -> {
+				running.incrementAndGet();
+				try {
+					task.run();
+				} finally {
+					running.decrementAndGet();
+					inFlight.decrementAndGet();
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			inFlight.decrementAndGet();
+			rejected.increment();
+			return false;
+		}
+	}
+
+	private void resume(AsyncResponse response, Timer timer, long start, Callable<?> call) {
+		try {
+			Object result = call.call();
+			timer.end(start, Timer.Outcome.of(result));
+			response.resume(result);
+		} catch (Throwable e) {
+			timer.threw(start, e);
+			response.resume(e);
+		} finally {
+			completed.increment();
+		}
+	}
+
+	private static Response busy() {
+		return Response.status(Status.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, RETRY_AFTER)
+				.entity(new Error("server busy, retry later")).build();
+	}
+
+	@Override
+	public int getThreads() {
+		return threads;
+	}
+
+	@Override
+	public void setThreads(int threads) {
+		resize(threads, queueLimit);
+	}
+
+	@Override
+	public int getQueueLimit() {
+		return queueLimit;
+	}
+
+	@Override
+	public void setQueueLimit(int queueLimit) {
+		resize(threads, queueLimit);
+	}
+
+	@Override
+	public long getQueueTimeout() {
+		return TimeUnit.NANOSECONDS.toMillis(queueTimeout);
+	}
+
+	@Override
+	public boolean isVirtual() {
+		return executor != pool;
+	}
+
+	@Override
+	public int getQueued() {
+		return Math.max(inFlight.get() - running.get(), 0);
+	}
+
+	@Override
+	public int getActive() {
+		return running.get();
+	}
+
+	@Override
+	public long getCompleted() {
+		return completed.sum();
+	}
+
+	@Override
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	@Override
+	public long getExpired() {
+		return expired.sum();
+	}
+}
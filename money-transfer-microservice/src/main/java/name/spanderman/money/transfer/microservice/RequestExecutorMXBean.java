@@ -0,0 +1,29 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * JMX view of the {@link RequestExecutor} sizes and counters.
+ */
+public interface RequestExecutorMXBean {
+
+	int getThreads();
+
+	void setThreads(int threads);
+
+	int getQueueLimit();
+
+	void setQueueLimit(int queueLimit);
+
+	long getQueueTimeout();
+
+	boolean isVirtual();
+
+	int getQueued();
+
+	int getActive();
+
+	long getCompleted();
+
+	long getRejected();
+
+	long getExpired();
+}
@@ -0,0 +1,136 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Bounded lock-free ring buffer with many producers and a single consumer.
+ * <p>
+ * Each slot carries a sequence number telling whose turn it is: a producer
+ * claims the next position with one CAS once the slot has been emptied by the
+ * consumer (its sequence equals the position), stores its element and
+ * publishes it by setting the sequence to the position plus one, which the
+ * consumer waits for. The consumer empties the slot by setting its sequence
+ * one lap ahead.
+ * <p>
+ * The consumer spins for a while when the ring is empty, then parks until
+ * the next {@link #offer(Object)} unparks it.
+ */
+class RingBuffer<E> {
+
+	private static final int SPINS = 1000;
+
+	private final int mask;
+	private final AtomicReferenceArray<E> elements;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+
+	// used by the consumer only
+	private long head;
+
+	private final Thread consumer;
+	private volatile boolean parked;
+
+	/**
+	 * @param size
+	 *            rounded up to a power of two
+	 */
+	RingBuffer(int size, Thread consumer) {
+		int capacity = Integer.highestOneBit(Math.max(size, 2) * 2 - 1);
+		mask = capacity - 1;
+		elements = new AtomicReferenceArray<>(capacity);
+		sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			sequences.set(i, i);
+		}
+		this.consumer = consumer;
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return <code>false</code> if the ring is full
+	 */
+	boolean offer(E element) {
+		for (;;) {
+			long position = tail.get();
+			int slot = (int) position & mask;
+			long turn = sequences.get(slot) - position;
+			if (turn < 0) {
+				return false;
+			}
+			if (turn == 0 && tail.compareAndSet(position, position + 1)) {
+				elements.lazySet(slot, element);
+				sequences.set(slot, position + 1);
+				wake();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Unparks the consumer if it is waiting in
+	 * {@link #await(BooleanSupplier)}, to be called once its other work is
+	 * ready.
+	 */
+	void wake() {
+		if (parked) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * Offers <code>element</code> until the consumer makes room for it.
+	 */
+	void put(E element) {
+		while (!offer(element)) {
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Called by the consumer only.
+	 *
+	 * @return the next element or <code>null</code> if the ring is empty
+	 */
+	E poll() {
+		int slot = (int) head & mask;
+		if (sequences.get(slot) != head + 1) {
+			return null;
+		}
+		E element = elements.get(slot);
+		elements.lazySet(slot, null);
+		sequences.lazySet(slot, head + capacity());
+		head++;
+		return element;
+	}
+
+	/**
+	 * Called by the consumer only, returns once the ring may no longer be
+	 * empty or <code>ready</code> says there is other work.
+	 */
+	void await(BooleanSupplier ready) {
+		for (int i = 0; i < SPINS; i++) {
+			if (!isEmpty() || ready.getAsBoolean()) {
+				return;
+			}
+		}
+		parked = true;
+		try {
+			while (isEmpty() && !ready.getAsBoolean()) {
+				LockSupport.park(this);
+			}
+		} finally {
+			parked = false;
+		}
+	}
+
+	private boolean isEmpty() {
+		return sequences.get((int) head & mask) != head + 1;
+	}
+}
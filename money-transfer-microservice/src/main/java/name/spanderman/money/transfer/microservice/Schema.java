@@ -0,0 +1,44 @@
+package name.spanderman.money.transfer.microservice;
+
+import static org.jooq.impl.DSL.field;
+import static org.jooq.impl.DSL.name;
+import static org.jooq.impl.DSL.sequence;
+import static org.jooq.impl.DSL.table;
+
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Sequence;
+import org.jooq.Table;
+import org.jooq.impl.SQLDataType;
+
+/**
+ * Tables, columns and sequences of the database, built once and shared by the
+ * DAOs.
+ */
+public final class Schema {
+
+	public static final Table<Record> ACCOUNTS = table(name("ACCOUNTS"));
+	public static final Field<Long> ACCOUNT_ID = field(name("id"), SQLDataType.BIGINT);
+	public static final Field<Integer> ACCOUNT_BALANCE = field(name("balance"), SQLDataType.INTEGER);
+	public static final Field<Boolean> ACCOUNT_ACTIVE = field(name("active"), SQLDataType.BOOLEAN);
+	public static final Field<Integer> ACCOUNT_OPENING_BALANCE = field(name("openingBalance"), SQLDataType.INTEGER);
+	public static final Sequence<Long> SEQ_ACCOUNT_ID = sequence(name("SEQ_ACCOUNT_ID"), SQLDataType.BIGINT);
+
+	public static final Table<Record> DEPOSITS = table(name("DEPOSITS"));
+	public static final Table<Record> WITHDRAWALS = table(name("WITHDRAWALS"));
+	public static final Field<Long> MOVEMENT_ID = field(name("id"), SQLDataType.BIGINT);
+	public static final Field<Integer> MOVEMENT_AMOUNT = field(name("amount"), SQLDataType.INTEGER);
+	public static final Field<Long> MOVEMENT_ACCOUNT = field(name("account"), SQLDataType.BIGINT);
+	public static final Sequence<Long> SEQ_DEPOSIT_ID = sequence(name("SEQ_DEPOSIT_ID"), SQLDataType.BIGINT);
+	public static final Sequence<Long> SEQ_WITHDRAWAL_ID = sequence(name("SEQ_WITHDRAWAL_ID"), SQLDataType.BIGINT);
+
+	public static final Table<Record> TRANSFERS = table(name("TRANSFERS"));
+	public static final Field<Long> TRANSFER_ID = field(name("id"), SQLDataType.BIGINT);
+	public static final Field<Integer> TRANSFER_AMOUNT = field(name("amount"), SQLDataType.INTEGER);
+	public static final Field<Long> TRANSFER_FROM_ACCOUNT = field(name("fromAccount"), SQLDataType.BIGINT);
+	public static final Field<Long> TRANSFER_TO_ACCOUNT = field(name("toAccount"), SQLDataType.BIGINT);
+	public static final Sequence<Long> SEQ_TRANSFER_ID = sequence(name("SEQ_TRANSFER_ID"), SQLDataType.BIGINT);
+
+	private Schema() {
+	}
+}
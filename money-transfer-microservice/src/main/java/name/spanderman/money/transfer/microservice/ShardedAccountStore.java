@@ -0,0 +1,929 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.ObjectName;
+
+import org.jooq.DSLContext;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DSL;
+
+/**
+ * {@link AccountStore} on H2 in which every account has a single writer. The
+ * accounts are spread over <code>moneytransfer.shards</code> shards (default
+ * the number of processors), each one a thread owning the balances of its
+ * accounts in memory and fed by a {@link RingBuffer} of
+ * <code>moneytransfer.shard.ring</code> commands (default 1024). Request
+ * threads put their command in the ring of the shard of its account and wait
+ * for its completion.
+ * <p>
+ * A shard takes all the commands waiting in its ring at once, checks and
+ * applies them in order against its balances, reading an account from the
+ * database the first time it is used, and writes them in one transaction:
+ * one JDBC batch of balance changes, in account id order, and one per table
+ * of movements. Its commands are completed once the transaction is committed
+ * and journaled. A hot account thus costs no row lock wait: its writes are
+ * serialised by its shard, and thousands of them share a transaction.
+ * <p>
+ * A transfer between accounts of two shards is handed off in two phases,
+ * always from the shard of the source account to the shard of the
+ * destination: the first one checks the source account and reserves a
+ * positive amount on its balance, the second one checks the destination and
+ * writes both balance changes and the transfer in its own transaction, then
+ * settles the first shard, which gives the reservation back if the transfer
+ * was not made or credits a negative amount if it was. Hand-offs go through an
+ * unbounded queue so that two shards never wait for room in each other's
+ * ring.
+ * <p>
+ * Batches of transfers and bulk imports, checking many accounts at once,
+ * run on the calling thread with the shards of their accounts paused (see
+ * {@link #paused(long[], Runnable)}). Accounts are opened and read straight
+ * from the database like {@link AccountDAO}, which also keeps the BALANCE
+ * column, so switching back to the h2 store needs nothing.
+ */
+public class ShardedAccountStore implements AccountStore, ShardedAccountStoreMXBean {
+
+	private static final ShardedAccountStore INSTANCE = register(new ShardedAccountStore(
+			Math.max(Config.getInt("moneytransfer.shards", Runtime.getRuntime().availableProcessors()), 1),
+			Config.getInt("moneytransfer.shard.ring", 1024)));
+
+	private static final boolean FUNDS_CHECK = Config.getBoolean("moneytransfer.funds.check", false);
+	private static final int BATCH_GROUP = Math.max(Config.getInt("moneytransfer.batch.group", 1000), 1);
+
+	private static final byte CLOSE = 1;
+	private static final byte DEPOSIT = 2;
+	private static final byte WITHDRAWAL = 3;
+	// first phase of a transfer, the only one if both accounts are local
+	private static final byte TRANSFER = 4;
+	// second phase of a transfer, in the shard of the destination
+	private static final byte CREDIT = 5;
+	// adds the amount to the balance of the source of a transfer
+	private static final byte SETTLE = 6;
+	private static final byte PAUSE = 7;
+
+	private final Shard[] shards;
+	private final AccountDAO accountDAO = AccountDAO.getInstance();
+	private final AccountCache cache = AccountCache.getInstance();
+	private final Journal journal = Journal.getInstance();
+
+	// orders the pauses the same way in every ring, a lock rather than a
+	// monitor not to pin a virtual thread waiting for room in a ring
+	private final ReentrantLock pauses = new ReentrantLock();
+
+	private final LongAdder commands = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder crossShardTransfers = new LongAdder();
+	private final LongAdder pauseCount = new LongAdder();
+
+	private static final class Command {
+
+		private byte type;
+		private final long account;
+		private final long toAccount;
+		private final int amount;
+		private final Pause pause;
+		private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+		// set by the shard completing the command
+		private Object value;
+		private RuntimeException failure;
+		private boolean written;
+
+		private Command(byte type, long account, long toAccount, int amount) {
+			this.type = type;
+			this.account = account;
+			this.toAccount = toAccount;
+			this.amount = amount;
+			pause = null;
+		}
+
+		private Command(Pause pause) {
+			type = PAUSE;
+			account = 0;
+			toAccount = 0;
+			amount = 0;
+			this.pause = pause;
+		}
+	}
+
+	private static final class Pause {
+
+		private final CountDownLatch paused;
+		private final CountDownLatch resumed = new CountDownLatch(1);
+
+		private Pause(int shards) {
+			paused = new CountDownLatch(shards);
+		}
+	}
+
+	private final class Shard extends Thread {
+
+		private final int index;
+		private final int maxBatch;
+		private final RingBuffer<Command> ring;
+		private final ConcurrentLinkedQueue<Command> handoffs = new ConcurrentLinkedQueue<>();
+
+		// used by the shard thread, or by the thread pausing it
+		private final AccountTable accounts = new AccountTable();
+		// amounts reserved per account by the transfers handed off
+		private final AccountTable reserved = new AccountTable();
+
+		private final List<Command> taken = new ArrayList<>();
+
+		// the batch being applied: commands to complete, balance changes and
+		// rows to write, settlements to send once written
+		private final List<Command> batch = new ArrayList<>();
+		private AccountTable deltas = new AccountTable();
+		private final List<Command> closes = new ArrayList<>();
+		private final List<Deposit> deposits = new ArrayList<>();
+		private final List<Withdrawal> withdrawals = new ArrayList<>();
+		private final List<Transfer> transfers = new ArrayList<>();
+		private final List<Command> credits = new ArrayList<>();
+
+		private Shard(int index, int ringSize) {
+			super("shard-" + index);
+			setDaemon(true);
+			this.index = index;
+			ring = new RingBuffer<>(ringSize, this);
+			maxBatch = ring.capacity();
+		}
+
+		private void handoff(Command command) {
+			handoffs.add(command);
+			ring.wake();
+		}
+
+		@Override
+		public void run() {
+			for (;;) {
+				ring.await(() -> !handoffs.isEmpty());
+				Command command;
+				// hand-offs first, their requests have been waiting longer
+				while (taken.size() < maxBatch
+						&& ((command = handoffs.poll()) != null || (command = ring.poll()) != null)) {
+					if (command.type == PAUSE) {
+						apply();
+						pause(command.pause);
+					} else {
+						taken.add(command);
+					}
+				}
+				apply();
+			}
+		}
+
+		private void pause(Pause pause) {
+			pause.paused.countDown();
+			boolean interrupted = false;
+			for (;;) {
+				try {
+					pause.resumed.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				interrupt();
+			}
+		}
+
+		/**
+		 * Applies and writes the commands taken, reading the accounts they
+		 * use for the first time with one query.
+		 */
+		private void apply() {
+			List<Long> unread = new ArrayList<>();
+			for (Command c : taken) {
+				if (c.type != SETTLE && c.type != CREDIT && accounts.indexOf(c.account) < 0) {
+					unread.add(c.account);
+				}
+				if ((c.type == TRANSFER || c.type == CREDIT) && shard(c.toAccount) == this
+						&& accounts.indexOf(c.toAccount) < 0) {
+					unread.add(c.toAccount);
+				}
+			}
+			if (!unread.isEmpty()) {
+				try {
+					accountDAO.readAccounts(Database.dsl(), unread.toArray(new Long[0]), accounts);
+				} catch (RuntimeException e) {
+					// read one by one below
+				}
+			}
+			for (Command c : taken) {
+				try {
+					apply(c);
+				} catch (RuntimeException e) {
+					// an account could not be read, nothing applied
+					fail(c, e);
+				}
+			}
+			taken.clear();
+			write();
+		}
+
+		/**
+		 * @return the slot of open account <code>id</code>, read from the
+		 *         database the first time, or -1 if it is not open
+		 */
+		private int open(long id) {
+			int slot = accounts.indexOf(id);
+			if (slot < 0) {
+				Account account = accountDAO.readAccount(Database.dsl(), id);
+				if (account == null) {
+					return -1;
+				}
+				slot = accounts.put(id, account.getBalance(), account.isActive());
+			}
+			return accounts.isActive(slot) ? slot : -1;
+		}
+
+		private void add(int slot, int amount) {
+			accounts.setBalance(slot, accounts.balance(slot) + amount);
+		}
+
+		// a balance change to write, in this shard or not
+		private void delta(long id, int amount) {
+			int slot = deltas.indexOf(id);
+			deltas.put(id, slot < 0 ? amount : deltas.balance(slot) + amount, true);
+		}
+
+		private void apply(Command c) {
+			if (c.type == SETTLE) {
+				settled(c);
+				return;
+			}
+			if (c.type == TRANSFER && shard(c.toAccount) != this) {
+				prepare(c);
+				return;
+			}
+			if (c.type != CREDIT) {
+				commands.increment();
+			}
+			batch.add(c);
+			int amount = c.amount;
+			int slot = open(c.type == CREDIT ? c.toAccount : c.account);
+			// no open account found
+			if (slot < 0) {
+				if (c.type == CREDIT) {
+					settle(c, false);
+				}
+				return;
+			}
+			switch (c.type) {
+			case CLOSE:
+				accounts.setActive(slot, false);
+				c.value = new Account(c.account, accounts.balance(slot), false);
+				closes.add(c);
+				break;
+			case DEPOSIT:
+				add(slot, amount);
+				delta(c.account, amount);
+				deposits.add(new Deposit(amount, c.account));
+				break;
+			case WITHDRAWAL:
+				if (FUNDS_CHECK && amount > 0 && accounts.balance(slot) - amount < 0) {
+					c.failure = new InsufficientFundsException(c.account);
+					return;
+				}
+				add(slot, -amount);
+				delta(c.account, -amount);
+				withdrawals.add(new Withdrawal(amount, c.account));
+				break;
+			case TRANSFER:
+				int toSlot = open(c.toAccount);
+				if (toSlot < 0) {
+					return;
+				}
+				if (FUNDS_CHECK && amount > 0 && accounts.balance(slot) - amount < 0) {
+					c.failure = new InsufficientFundsException(c.account);
+					return;
+				}
+				if (FUNDS_CHECK && amount < 0 && accounts.balance(toSlot) + amount < 0) {
+					c.failure = new InsufficientFundsException(c.toAccount);
+					return;
+				}
+				add(slot, -amount);
+				add(toSlot, amount);
+				delta(c.account, -amount);
+				delta(c.toAccount, amount);
+				transfers.add(new Transfer(amount, c.account, c.toAccount));
+				break;
+			case CREDIT:
+				if (FUNDS_CHECK && amount < 0 && accounts.balance(slot) + amount < 0) {
+					c.failure = new InsufficientFundsException(c.toAccount);
+					settle(c, false);
+					return;
+				}
+				add(slot, amount);
+				delta(c.account, -amount);
+				delta(c.toAccount, amount);
+				transfers.add(new Transfer(amount, c.account, c.toAccount));
+				credits.add(c);
+				break;
+			default:
+				throw new IllegalStateException("unknown command " + c.type);
+			}
+			c.written = true;
+		}
+
+		private void fail(Command c, RuntimeException e) {
+			c.failure = e;
+			if (batch.isEmpty() || batch.get(batch.size() - 1) != c) {
+				batch.add(c);
+			}
+			if (c.type == CREDIT) {
+				settle(c, false);
+			}
+		}
+
+		/**
+		 * First phase of a transfer to an account of another shard: checks
+		 * the source account, reserves a positive amount on it and hands the
+		 * transfer off to the shard of the destination, which completes it.
+		 */
+		private void prepare(Command c) {
+			commands.increment();
+			int slot = open(c.account);
+			// no open account found
+			if (slot < 0) {
+				batch.add(c);
+				return;
+			}
+			if (FUNDS_CHECK && c.amount > 0 && accounts.balance(slot) - c.amount < 0) {
+				c.failure = new InsufficientFundsException(c.account);
+				batch.add(c);
+				return;
+			}
+			if (c.amount > 0) {
+				add(slot, -c.amount);
+				int reservedSlot = reserved.indexOf(c.account);
+				reserved.put(c.account, (reservedSlot < 0 ? 0 : reserved.balance(reservedSlot)) + c.amount, true);
+			}
+			c.type = CREDIT;
+			crossShardTransfers.increment();
+			shard(c.toAccount).handoff(c);
+		}
+
+		/**
+		 * Writes the batch in one transaction and completes its commands,
+		 * undoing its balance changes if the transaction fails.
+		 */
+		private void write() {
+			if (batch.isEmpty()) {
+				return;
+			}
+			long[] ids = new long[deltas.size()];
+			int changed = 0;
+			for (int slot = 0; slot < deltas.capacity(); slot++) {
+				if (deltas.id(slot) != 0 && deltas.balance(slot) != 0) {
+					ids[changed++] = deltas.id(slot);
+				}
+			}
+			// rows locked in id order, like the other writers
+			Arrays.sort(ids, 0, changed);
+			int[] amounts = new int[changed];
+			for (int i = 0; i < changed; i++) {
+				amounts[i] = deltas.balance(deltas.indexOf(ids[i]));
+			}
+			int count = changed;
+			long[][] rowIds;
+			try {
+				journal.checkWritable();
+				rowIds = Database.dsl().transactionResult(configuration -> {
+					DSLContext tx = DSL.using(configuration);
+					if (count > 0) {
+						accountDAO.adjustBalances(tx, ids, amounts, count);
+					}
+					for (Command c : closes) {
+						Database.fetchOne(tx, AccountDAO.CLOSE_ACCOUNT, rs -> rs.getInt(1), c.account);
+					}
+					return new long[][] { DepositDAO.getInstance().createDeposits(deposits, tx),
+							WithdrawalDAO.getInstance().createWithdrawals(withdrawals, tx),
+							TransferDAO.getInstance().createTransfers(transfers, tx) };
+				});
+			} catch (RuntimeException e) {
+				undo(e);
+				clear();
+				return;
+			}
+			int[] next = new int[3];
+			try {
+				long ticket = 0;
+				for (Command c : batch) {
+					if (!c.written) {
+						continue;
+					}
+					switch (c.type) {
+					case CLOSE:
+						ticket = journal.closeAccount(c.account);
+						break;
+					case DEPOSIT:
+						long depositId = rowIds[0][next[0]++];
+						c.value = new Deposit(depositId, c.amount, c.account);
+						ticket = journal.deposit(depositId, c.account, c.amount);
+						break;
+					case WITHDRAWAL:
+						long withdrawalId = rowIds[1][next[1]++];
+						c.value = new Withdrawal(withdrawalId, c.amount, c.account);
+						ticket = journal.withdrawal(withdrawalId, c.account, c.amount);
+						break;
+					default:
+						long transferId = rowIds[2][next[2]++];
+						c.value = new Transfer(transferId, c.amount, c.account, c.toAccount);
+						ticket = journal.transfer(transferId, c.account, c.toAccount, c.amount);
+					}
+				}
+				journal.await(ticket);
+			} catch (RuntimeException e) {
+				// written to the database, but not to the journal
+				for (Command c : batch) {
+					if (c.written) {
+						c.failure = e;
+					}
+				}
+			}
+			cache.invalidate(ids, count);
+			for (Command c : closes) {
+				cache.invalidate(c.account);
+			}
+			for (Command c : credits) {
+				settle(c, true);
+			}
+			complete();
+			batches.increment();
+			clear();
+		}
+
+		private void undo(RuntimeException e) {
+			for (int slot = 0; slot < deltas.capacity(); slot++) {
+				long id = deltas.id(slot);
+				if (id != 0 && shard(id) == this) {
+					add(accounts.indexOf(id), -deltas.balance(slot));
+				}
+			}
+			for (Command c : closes) {
+				accounts.setActive(accounts.indexOf(c.account), true);
+			}
+			for (Command c : batch) {
+				if (c.written) {
+					c.failure = e;
+					c.value = null;
+					if (c.type == CREDIT) {
+						settle(c, false);
+					}
+				}
+			}
+			complete();
+		}
+
+		/**
+		 * Tells the shard of the source account of a transfer handed off to
+		 * this one whether it was made.
+		 */
+		private void settle(Command c, boolean made) {
+			if (c.amount != 0) {
+				Command settlement = new Command(SETTLE, c.account, 0, c.amount);
+				settlement.written = made;
+				shard(c.account).handoff(settlement);
+			}
+		}
+
+		/**
+		 * Releases the amount reserved by a transfer handed off by this
+		 * shard, giving it back if the transfer was not made, or credits a
+		 * negative amount if it was.
+		 */
+		private void settled(Command settlement) {
+			int slot = accounts.indexOf(settlement.account);
+			int amount = settlement.amount;
+			if (amount > 0) {
+				int reservedSlot = reserved.indexOf(settlement.account);
+				reserved.setBalance(reservedSlot, reserved.balance(reservedSlot) - amount);
+				if (!settlement.written) {
+					add(slot, amount);
+				}
+			} else if (settlement.written) {
+				add(slot, -amount);
+			}
+		}
+
+		/**
+		 * Applies the settlements waiting for this paused shard.
+		 */
+		private void settle() {
+			for (Iterator<Command> i = handoffs.iterator(); i.hasNext();) {
+				Command c = i.next();
+				if (c.type == SETTLE) {
+					i.remove();
+					settled(c);
+				}
+			}
+		}
+
+		private void complete() {
+			for (Command c : batch) {
+				if (c.failure != null) {
+					c.result.completeExceptionally(c.failure);
+				} else {
+					c.result.complete(c.value);
+				}
+			}
+		}
+
+		private void clear() {
+			batch.clear();
+			if (deltas.size() > 0) {
+				deltas = new AccountTable();
+			}
+			closes.clear();
+			deposits.clear();
+			withdrawals.clear();
+			transfers.clear();
+			credits.clear();
+		}
+	}
+
+	ShardedAccountStore(int shardCount, int ringSize) {
+		shards = new Shard[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = new Shard(i, ringSize);
+			shards[i].start();
+		}
+	}
+
+	private static ShardedAccountStore register(ShardedAccountStore store) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(store,
+					new ObjectName("name.spanderman.money.transfer:type=ShardedAccountStore"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return store;
+	}
+
+	public static ShardedAccountStore getInstance() {
+		return INSTANCE;
+	}
+
+	private Shard shard(long id) {
+		return shards[(int) Long.remainderUnsigned(id, shards.length)];
+	}
+
+	/**
+	 * Puts a command in the ring of the shard of its account and waits for
+	 * its completion.
+	 */
+	private Object submit(Command command) {
+		shard(command.account).ring.put(command);
+		try {
+			return command.result.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs <code>task</code> on the calling thread with the shards of the
+	 * accounts <code>ids</code> paused after writing what they applied so
+	 * far, so that it can read and write their balances and the rows of
+	 * their accounts. Pauses are put in
+	 * every ring in the same order, so that two of them never wait for each
+	 * other.
+	 */
+	void paused(long[] ids, Runnable task) {
+		boolean[] involved = new boolean[shards.length];
+		for (long id : ids) {
+			involved[shard(id).index] = true;
+		}
+		paused(involved, task);
+	}
+
+	/**
+	 * Runs <code>task</code> with all the shards paused: no transfer is then
+	 * halfway through being written by a shard.
+	 *
+	 * @see #paused(long[], Runnable)
+	 */
+	void pausedAll(Runnable task) {
+		boolean[] involved = new boolean[shards.length];
+		Arrays.fill(involved, true);
+		paused(involved, task);
+	}
+
+	private void paused(boolean[] involved, Runnable task) {
+		int count = 0;
+		for (boolean b : involved) {
+			if (b) {
+				count++;
+			}
+		}
+		Pause pause = new Pause(count);
+		pauses.lock();
+		try {
+			for (int i = 0; i < shards.length; i++) {
+				if (involved[i]) {
+					shards[i].ring.put(new Command(pause));
+				}
+			}
+		} finally {
+			pauses.unlock();
+		}
+		pauseCount.increment();
+		try {
+			pause.paused.await();
+			task.run();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DataAccessException("interrupted while pausing the shards");
+		} finally {
+			pause.resumed.countDown();
+		}
+	}
+
+	/**
+	 * @return the balance of account <code>id</code> in its paused shard, or
+	 *         <code>null</code> if it is not open
+	 */
+	private Integer openBalance(long id) {
+		Shard s = shard(id);
+		int slot = s.open(id);
+		return slot < 0 ? null : s.accounts.balance(slot);
+	}
+
+	/**
+	 * Adds <code>amount</code> to the balance of account <code>id</code> in
+	 * its paused shard, if already read.
+	 */
+	private void addToBalance(long id, int amount) {
+		AccountTable accounts = shard(id).accounts;
+		int slot = accounts.indexOf(id);
+		if (slot >= 0) {
+			accounts.setBalance(slot, accounts.balance(slot) + amount);
+		}
+	}
+
+	/**
+	 * Sets the balance of account <code>id</code> in memory to
+	 * <code>balance</code>, its balance in the database, less the amounts
+	 * reserved on it by the transfers not written yet. All the shards must be
+	 * paused (see {@link #pausedAll(Runnable)}), so that every transfer
+	 * written is settled.
+	 */
+	void setBalance(long id, int balance) {
+		for (Shard s : shards) {
+			s.settle();
+		}
+		Shard s = shard(id);
+		int slot = s.accounts.indexOf(id);
+		if (slot >= 0) {
+			int reservedSlot = s.reserved.indexOf(id);
+			s.accounts.setBalance(slot, balance - (reservedSlot < 0 ? 0 : s.reserved.balance(reservedSlot)));
+		}
+	}
+
+	@Override
+	public Account openAccount(Account account) throws SQLException {
+		return accountDAO.openAccount(account);
+	}
+
+	@Override
+	public Account getAccount(long id) throws SQLException {
+		return accountDAO.getAccount(id);
+	}
+
+	@Override
+	public Account closeAccount(long id) throws SQLException {
+		return (Account) submit(new Command(CLOSE, id, 0, 0));
+	}
+
+	@Override
+	public Deposit depositMoneyOnAccount(Deposit deposit) throws SQLException {
+		return (Deposit) submit(new Command(DEPOSIT, deposit.getAccount(), 0, deposit.getAmount()));
+	}
+
+	@Override
+	public Deposit getDeposit(long id) throws SQLException {
+		return DepositDAO.getInstance().getDeposit(id);
+	}
+
+	@Override
+	public Withdrawal withdrawMoneyFromAccount(Withdrawal withdrawal) throws SQLException {
+		return (Withdrawal) submit(new Command(WITHDRAWAL, withdrawal.getAccount(), 0, withdrawal.getAmount()));
+	}
+
+	@Override
+	public Withdrawal getWithdrawal(long id) throws SQLException {
+		return WithdrawalDAO.getInstance().getWithdrawal(id);
+	}
+
+	@Override
+	public Transfer transferMoneyBetweenAccounts(Transfer transfer) throws SQLException {
+		return (Transfer) submit(
+				new Command(TRANSFER, transfer.getFromAccount(), transfer.getToAccount(), transfer.getAmount()));
+	}
+
+	/**
+	 * Makes a batch of transfers a group at a time like
+	 * {@link TransferEngine#transfer(List, boolean)}, each group with the
+	 * shards of its accounts paused, checked against a copy of their balances
+	 * and written in one transaction.
+	 */
+	@Override
+	public List<TransferBatchItem> transferMoneyBetweenAccounts(List<Transfer> batch, boolean allOrNothing)
+			throws SQLException {
+		int size = batch.size();
+		int groupSize = allOrNothing ? Math.max(size, 1) : BATCH_GROUP;
+		List<TransferBatchItem> items = new ArrayList<>(size);
+		for (int from = 0; from < size; from += groupSize) {
+			List<Transfer> group = batch.subList(from, Math.min(from + groupSize, size));
+			long[] ids = Arrays.stream(TransferEngine.accountIds(group)).mapToLong(Long::longValue).toArray();
+			paused(ids, () -> items.addAll(transferGroup(ids, group, allOrNothing)));
+		}
+		return items;
+	}
+
+	private List<TransferBatchItem> transferGroup(long[] ids, List<Transfer> group, boolean allOrNothing) {
+		journal.checkWritable();
+		AccountTable accounts = new AccountTable(ids.length);
+		for (long id : ids) {
+			Integer balance = openBalance(id);
+			if (balance != null) {
+				accounts.put(id, balance, true);
+			}
+		}
+		int[] deltas = new int[accounts.capacity()];
+		List<Transfer> made = new ArrayList<>(group.size());
+		TransferBatchItem[] checked = TransferEngine.check(accounts, deltas, group, made);
+		if (allOrNothing && made.size() < group.size()) {
+			return TransferEngine.items(checked, null);
+		}
+		// ids are in ascending order
+		long[] changedIds = new long[ids.length];
+		int[] changedDeltas = new int[ids.length];
+		int changed = 0;
+		for (long id : ids) {
+			int slot = accounts.indexOf(id);
+			if (slot >= 0 && deltas[slot] != 0) {
+				changedIds[changed] = id;
+				changedDeltas[changed++] = deltas[slot];
+			}
+		}
+		int count = changed;
+		long[] transferIds = Database.dsl().transactionResult(configuration -> {
+			DSLContext tx = DSL.using(configuration);
+			if (count > 0) {
+				accountDAO.adjustBalances(tx, changedIds, changedDeltas, count);
+			}
+			return TransferDAO.getInstance().createTransfers(made, tx);
+		});
+		for (int i = 0; i < count; i++) {
+			addToBalance(changedIds[i], changedDeltas[i]);
+		}
+		try {
+			long ticket = 0;
+			for (int i = 0; i < made.size(); i++) {
+				Transfer transfer = made.get(i);
+				ticket = journal.transfer(transferIds[i], transfer.getFromAccount(), transfer.getToAccount(),
+						transfer.getAmount());
+			}
+			journal.await(ticket);
+		} finally {
+			cache.invalidate(changedIds, count);
+		}
+		return TransferEngine.items(checked, transferIds);
+	}
+
+	@Override
+	public Transfer getTransfer(long id) throws SQLException {
+		return TransferDAO.getInstance().getTransfer(id);
+	}
+
+	@Override
+	public AccountHistory getHistory(long account, HistoryItem after, int limit) throws SQLException {
+		return AccountDAO.getInstance().getHistory(account, after, limit);
+	}
+
+	/**
+	 * Opens the accounts and makes the deposits of a batch in one transaction
+	 * like {@link AccountDAO#importBatch(ImportBatch)}, with the shards of the
+	 * accounts of the deposits paused.
+	 */
+	@Override
+	public void importBatch(ImportBatch batch) throws SQLException {
+		int deposits = batch.deposits();
+		long[] depositAccounts = Arrays.copyOf(batch.depositAccounts(), deposits);
+		journal.checkWritable();
+		paused(depositAccounts, () -> {
+			for (int i = 0; i < deposits; i++) {
+				batch.setDeposited(i, openBalance(batch.depositAccount(i)) != null);
+			}
+			AccountTable credited = new AccountTable(deposits);
+			for (int i = 0; i < deposits; i++) {
+				if (batch.isDeposited(i)) {
+					int slot = credited.indexOf(batch.depositAccount(i));
+					credited.put(batch.depositAccount(i), (slot < 0 ? 0 : credited.balance(slot)) + batch.amount(i),
+							true);
+				}
+			}
+			long[] ids = new long[credited.size()];
+			int count = 0;
+			for (int slot = 0; slot < credited.capacity(); slot++) {
+				if (credited.id(slot) != 0) {
+					ids[count++] = credited.id(slot);
+				}
+			}
+			Arrays.sort(ids);
+			int[] amounts = new int[count];
+			for (int i = 0; i < count; i++) {
+				amounts[i] = credited.balance(credited.indexOf(ids[i]));
+			}
+			int accounts = batch.accounts();
+			long[] depositIds = Database.dsl().transactionResult(configuration -> {
+				DSLContext tx = DSL.using(configuration);
+				long[] accountIds = AccountDAO.ACCOUNT_IDS.next(tx, accounts);
+				if (accounts > 0) {
+					Database.executeBatch(tx, AccountDAO.INSERT_ACCOUNT, accounts, (ps, i) -> {
+						ps.setLong(1, accountIds[i]);
+						ps.setInt(2, batch.balance(i));
+						ps.setInt(3, batch.balance(i));
+					});
+				}
+				for (int i = 0; i < accounts; i++) {
+					batch.setAccountId(i, accountIds[i]);
+				}
+				if (ids.length > 0) {
+					accountDAO.adjustBalances(tx, ids, amounts, ids.length);
+				}
+				return DepositDAO.getInstance().createDeposits(batch, tx);
+			});
+			for (int i = 0; i < ids.length; i++) {
+				addToBalance(ids[i], amounts[i]);
+			}
+			try {
+				long ticket = 0;
+				for (int i = 0; i < accounts; i++) {
+					ticket = journal.openAccount(batch.accountId(i), batch.balance(i));
+				}
+				for (int i = 0; i < deposits; i++) {
+					if (batch.isDeposited(i)) {
+						ticket = journal.deposit(depositIds[i], batch.depositAccount(i), batch.amount(i));
+					}
+				}
+				journal.await(ticket);
+			} finally {
+				cache.invalidate(ids, ids.length);
+			}
+		});
+	}
+
+	@Override
+	public int getShards() {
+		return shards.length;
+	}
+
+	@Override
+	public int getRingSize() {
+		return shards[0].ring.capacity();
+	}
+
+	@Override
+	public long getCommands() {
+		return commands.sum();
+	}
+
+	@Override
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	@Override
+	public double getCommandsPerBatch() {
+		long n = batches.sum();
+		return n == 0 ? 0 : (double) commands.sum() / n;
+	}
+
+	@Override
+	public long getCrossShardTransfers() {
+		return crossShardTransfers.sum();
+	}
+
+	@Override
+	public long getPauses() {
+		return pauseCount.sum();
+	}
+}
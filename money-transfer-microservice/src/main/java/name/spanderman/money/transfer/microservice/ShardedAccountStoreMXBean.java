@@ -0,0 +1,24 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * JMX view of the {@link ShardedAccountStore} metrics.
+ */
+public interface ShardedAccountStoreMXBean {
+
+	int getShards();
+
+	int getRingSize();
+
+	long getCommands();
+
+	/**
+	 * @return the number of transactions written by the shards
+	 */
+	long getBatches();
+
+	double getCommandsPerBatch();
+
+	long getCrossShardTransfers();
+
+	long getPauses();
+}
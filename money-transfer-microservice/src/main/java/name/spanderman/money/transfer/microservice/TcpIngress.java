@@ -0,0 +1,304 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.filterchain.TransportFilter;
+import org.glassfish.grizzly.nio.transport.TCPNIOServerConnection;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+
+/**
+ * A plain TCP listener taking deposits, withdrawals and transfers from
+ * internal producers without HTTP nor Jersey, started by {@link Main} on
+ * <code>moneytransfer.tcp.port</code> (default -1, none).
+ * <p>
+ * Each command is a frame: its length (4 bytes, of the rest of the frame), a
+ * request id chosen by the caller (8), the command (1, {@link #DEPOSIT},
+ * {@link #WITHDRAWAL} or {@link #TRANSFER}) and the record of the movement:
+ * its fields in the order of the JSON, big-endian, that is id (8), amount (4)
+ * and account (8) for a deposit or withdrawal, {@value #DEPOSIT_SIZE} bytes,
+ * and id (8), amount (4), fromAccount (8) and toAccount (8) for a transfer,
+ * {@value #TRANSFER_SIZE} bytes. Each command is answered by a frame of its
+ * length, its request id, a status (1, {@link #OK}, {@link #NOT_FOUND},
+ * {@link #INSUFFICIENT_FUNDS}, {@link #BAD_REQUEST}, {@link #ERROR} or
+ * {@link #BUSY}) and,
+ * when made, the record of the movement. A frame shorter than a request id
+ * and a command or longer than {@value #MAX_FRAME} bytes closes the
+ * connection.
+ * <p>
+ * Callers may send many commands without waiting for their answers. The
+ * commands of a connection are decoded straight from the buffers read by
+ * Grizzly, made one after the other on a worker thread
+ * (<code>moneytransfer.tcp.workers</code>, default the Grizzly default) by
+ * the account store of the REST API, and answered in order, the answers to
+ * the commands of one read being written at once. Idempotency keys are not
+ * supported. Each command is timed as an endpoint of the {@link Metrics}.
+ * <p>
+ * At most <code>moneytransfer.tcp.inflight</code> commands (default 1000, 0
+ * for no limit) are in flight on all the connections together, from the read
+ * holding them to the write of their answers: the commands of a read beyond
+ * that are not made but answered {@link #BUSY} at once, in their place among
+ * the answers, for the caller to send again later, as the REST API answers
+ * 503 beyond the limits of its {@link RequestExecutor}.
+ */
+public class TcpIngress {
+
+	public static final byte DEPOSIT = 1;
+	public static final byte WITHDRAWAL = 2;
+	public static final byte TRANSFER = 3;
+
+	public static final byte OK = 0;
+	public static final byte NOT_FOUND = 1;
+	public static final byte INSUFFICIENT_FUNDS = 2;
+	public static final byte BAD_REQUEST = 3;
+	public static final byte ERROR = 4;
+	public static final byte BUSY = 5;
+
+	static final int LENGTH_SIZE = 4;
+	// request id and command, or request id and status
+	static final int HEADER_SIZE = 9;
+	static final int MAX_FRAME = 1024;
+	// withdrawals included
+	static final int DEPOSIT_SIZE = 20;
+	static final int TRANSFER_SIZE = 28;
+	private static final int MAX_ANSWER = LENGTH_SIZE + HEADER_SIZE + TRANSFER_SIZE;
+
+	private static final Metrics METRICS = Metrics.getInstance();
+	private static final Timer DEPOSITS = METRICS.endpoint("TCP deposit");
+	private static final Timer WITHDRAWALS = METRICS.endpoint("TCP withdrawal");
+	private static final Timer TRANSFERS = METRICS.endpoint("TCP transfer");
+
+	private final TCPNIOTransport transport;
+	private final int port;
+
+	private TcpIngress(TCPNIOTransport transport, int port) {
+		this.transport = transport;
+		this.port = port;
+	}
+
+	/**
+	 * Starts listening on <code>port</code> (0 for any free port).
+	 */
+	public static TcpIngress start(int port) {
+		return start(port, Math.max(Config.getInt("moneytransfer.tcp.inflight", 1000), 0));
+	}
+
+	/**
+	 * Starts listening on <code>port</code> (0 for any free port), with at most
+	 * <code>maxInFlight</code> commands in flight (0 for no limit).
+	 */
+	static TcpIngress start(int port, int maxInFlight) {
+		TCPNIOTransportBuilder builder = TCPNIOTransportBuilder.newInstance();
+		int workers = Config.getInt("moneytransfer.tcp.workers", 0);
+		if (workers > 0) {
+			builder.setWorkerThreadPoolConfig(ThreadPoolConfig.defaultConfig().copy().setPoolName("tcp-worker")
+					.setCorePoolSize(workers).setMaxPoolSize(workers));
+		}
+		TCPNIOTransport transport = builder.setTcpNoDelay(true).build();
+		transport.setProcessor(FilterChainBuilder.stateless().add(new TransportFilter())
+				.add(new CommandFilter(MoneyTransferRESTfulAPI.STORE, maxInFlight)).build());
+		try {
+			TCPNIOServerConnection server = transport.bind(port);
+			transport.start();
+			return new TcpIngress(transport, ((InetSocketAddress) server.getLocalAddress()).getPort());
+		} catch (IOException e) {
+			try {
+				transport.shutdownNow();
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			throw new UncheckedIOException("error in starting the TCP ingress on port " + port, e);
+		}
+	}
+
+	/**
+	 * @return the port listened on
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	public void shutdownNow() {
+		try {
+			transport.shutdownNow();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Makes the commands of the frames read and writes their answers.
+	 */
+	static class CommandFilter extends BaseFilter {
+
+		private final AccountStore store;
+		private final int maxInFlight;
+		private final AtomicInteger inFlight = new AtomicInteger();
+
+		CommandFilter(AccountStore store, int maxInFlight) {
+			this.store = store;
+			this.maxInFlight = maxInFlight;
+		}
+
+		/**
+		 * Takes up to <code>frames</code> places among the commands in
+		 * flight, to be given back by {@link #release(int)}.
+		 *
+		 * @return the number of places taken
+		 */
+		int admit(int frames) {
+			if (maxInFlight == 0) {
+				return frames;
+			}
+			while (true) {
+				int current = inFlight.get();
+				int admitted = Math.min(frames, Math.max(maxInFlight - current, 0));
+				if (admitted == 0 || inFlight.compareAndSet(current, current + admitted)) {
+					return admitted;
+				}
+			}
+		}
+
+		void release(int admitted) {
+			if (maxInFlight > 0) {
+				inFlight.addAndGet(-admitted);
+			}
+		}
+
+		@Override
+		public NextAction handleRead(FilterChainContext ctx) throws IOException {
+			Buffer in = ctx.getMessage();
+			int start = in.position();
+			int end = in.limit();
+			int frames = 0;
+			int pos = start;
+			boolean malformed = false;
+			while (end - pos >= LENGTH_SIZE) {
+				int length = in.getInt(pos);
+				malformed = length < HEADER_SIZE || length > MAX_FRAME;
+				if (malformed || end - pos - LENGTH_SIZE < length) {
+					break;
+				}
+				frames++;
+				pos += LENGTH_SIZE + length;
+			}
+			if (frames > 0) {
+				int admitted = admit(frames);
+				try {
+					Buffer out = ctx.getMemoryManager().allocate(frames * MAX_ANSWER);
+					int made = 0;
+					for (int frame = start; frame < pos; frame += LENGTH_SIZE + in.getInt(frame)) {
+						if (made++ < admitted) {
+							answer(in, frame, out);
+						} else {
+							busy(in, frame, out);
+						}
+					}
+					out.flip();
+					ctx.write(out);
+				} finally {
+					release(admitted);
+				}
+			}
+			if (malformed) {
+				// the answers written before are flushed first
+				in.tryDispose();
+				ctx.getConnection().closeSilently();
+				return ctx.getStopAction();
+			}
+			if (pos == end) {
+				in.tryDispose();
+				return ctx.getStopAction();
+			}
+			// an incomplete frame, completed by the next read
+			Buffer rest = in.split(pos);
+			in.tryDispose();
+			return ctx.getStopAction(rest);
+		}
+
+		/**
+		 * Makes the command of the frame at <code>frame</code> and appends its
+		 * answer to <code>out</code>.
+		 */
+		private void answer(Buffer in, int frame, Buffer out) {
+			int length = in.getInt(frame);
+			long id = in.getLong(frame + LENGTH_SIZE);
+			byte command = in.get(frame + LENGTH_SIZE + 8);
+			int record = frame + LENGTH_SIZE + HEADER_SIZE;
+			int recordSize = length - HEADER_SIZE;
+			Timer timer = command == DEPOSIT ? DEPOSITS : command == WITHDRAWAL ? WITHDRAWALS : TRANSFERS;
+			long start = timer.begin();
+			try {
+				if (command == DEPOSIT && recordSize == DEPOSIT_SIZE) {
+					Deposit deposit = store.depositMoneyOnAccount(
+							new Deposit(0, in.getInt(record + 8), in.getLong(record + 12)));
+					if (deposit != null) {
+						header(out, id, OK, DEPOSIT_SIZE).putLong(deposit.getId())
+								.putInt(deposit.getAmount()).putLong(deposit.getAccount());
+					}
+					end(timer, start, deposit != null, out, id);
+				} else if (command == WITHDRAWAL && recordSize == DEPOSIT_SIZE) {
+					Withdrawal withdrawal = store.withdrawMoneyFromAccount(
+							new Withdrawal(0, in.getInt(record + 8), in.getLong(record + 12)));
+					if (withdrawal != null) {
+						header(out, id, OK, DEPOSIT_SIZE).putLong(withdrawal.getId())
+								.putInt(withdrawal.getAmount()).putLong(withdrawal.getAccount());
+					}
+					end(timer, start, withdrawal != null, out, id);
+				} else if (command == TRANSFER && recordSize == TRANSFER_SIZE) {
+					Transfer transfer = store.transferMoneyBetweenAccounts(new Transfer(0, in.getInt(record + 8),
+							in.getLong(record + 12), in.getLong(record + 20)));
+					if (transfer != null) {
+						header(out, id, OK, TRANSFER_SIZE).putLong(transfer.getId())
+								.putInt(transfer.getAmount()).putLong(transfer.getFromAccount())
+								.putLong(transfer.getToAccount());
+					}
+					end(timer, start, transfer != null, out, id);
+				} else {
+					timer.end(start, Timer.Outcome.CLIENT_ERROR);
+					header(out, id, BAD_REQUEST, 0);
+				}
+			} catch (InsufficientFundsException e) {
+				timer.end(start, Timer.Outcome.INSUFFICIENT_FUNDS);
+				header(out, id, INSUFFICIENT_FUNDS, 0);
+			} catch (Throwable e) {
+				timer.end(start, Timer.Outcome.ERROR);
+				header(out, id, ERROR, 0);
+			}
+		}
+
+		/**
+		 * Appends the answer of a command not made for lack of room in flight.
+		 */
+		private static void busy(Buffer in, int frame, Buffer out) {
+			byte command = in.get(frame + LENGTH_SIZE + 8);
+			Timer timer = command == DEPOSIT ? DEPOSITS : command == WITHDRAWAL ? WITHDRAWALS : TRANSFERS;
+			timer.end(timer.begin(), Timer.Outcome.REJECTED);
+			header(out, in.getLong(frame + LENGTH_SIZE), BUSY, 0);
+		}
+
+		private static void end(Timer timer, long start, boolean made, Buffer out, long id) {
+			timer.end(start, made ? Timer.Outcome.OK : Timer.Outcome.NOT_FOUND);
+			if (!made) {
+				header(out, id, NOT_FOUND, 0);
+			}
+		}
+
+		/**
+		 * Appends the header of an answer followed by a record of
+		 * <code>recordSize</code> bytes.
+		 */
+		private static Buffer header(Buffer out, long id, byte status, int recordSize) {
+			return out.putInt(HEADER_SIZE + recordSize).putLong(id).put(status);
+		}
+	}
+}
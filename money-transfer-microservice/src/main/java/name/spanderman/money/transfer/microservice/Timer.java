@@ -0,0 +1,138 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+/**
+ * Latency histogram, outcome counters and in-flight gauge of one endpoint or
+ * one account store method, published by {@link Metrics}. Each call is
+ * started with {@link #begin()} and ended with {@link #end(long, Outcome)},
+ * {@link #returned(long, Object)} or {@link #threw(long, Throwable)}, none of
+ * which allocates.
+ */
+public class Timer {
+
+	/**
+	 * How a call ended, as counted by its timer.
+	 */
+	public enum Outcome {
+		OK, NOT_FOUND, INSUFFICIENT_FUNDS, CONFLICT, CLIENT_ERROR, REJECTED, ERROR;
+
+		private final String label = name().toLowerCase();
+
+		public String label() {
+			return label;
+		}
+
+		/**
+		 * @return the outcome of a response with HTTP status
+		 *         <code>status</code>
+		 */
+		static Outcome of(int status) {
+			if (status < 400) {
+				return OK;
+			}
+			switch (status) {
+			case 404:
+				return NOT_FOUND;
+			case 409:
+				return CONFLICT;
+			case 503:
+				return REJECTED;
+			default:
+				return status < 500 ? CLIENT_ERROR : ERROR;
+			}
+		}
+
+		/**
+		 * @return the outcome of a call that returned <code>result</code>: an
+		 *         {@link Error} answered as is is an error, a missing result
+		 *         not found
+		 */
+		static Outcome of(Object result) {
+			if (result instanceof Response) {
+				Response response = (Response) result;
+				return response.getEntity() instanceof Error && response.getStatus() < 400 ? ERROR
+						: of(response.getStatus());
+			}
+			if (result == null) {
+				return NOT_FOUND;
+			}
+			return result instanceof Error ? ERROR : OK;
+		}
+
+		/**
+		 * @return the outcome of a call that threw <code>failure</code>
+		 */
+		static Outcome of(Throwable failure) {
+			if (failure instanceof InsufficientFundsException) {
+				return INSUFFICIENT_FUNDS;
+			}
+			if (failure instanceof WebApplicationException) {
+				return of(((WebApplicationException) failure).getResponse().getStatus());
+			}
+			return ERROR;
+		}
+	}
+
+	private final String name;
+	private final LatencyHistogram histogram = new LatencyHistogram();
+	private final LongAdder[] outcomes = new LongAdder[Outcome.values().length];
+	private final LongAdder inFlight = new LongAdder();
+
+	Timer(String name) {
+		this.name = name;
+		for (int i = 0; i < outcomes.length; i++) {
+			outcomes[i] = new LongAdder();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the start of the call, to pass to its end
+	 */
+	public long begin() {
+		inFlight.increment();
+		return System.nanoTime();
+	}
+
+	public void end(long start, Outcome outcome) {
+		histogram.record(System.nanoTime() - start);
+		outcomes[outcome.ordinal()].increment();
+		inFlight.decrement();
+	}
+
+	/**
+	 * Ends a call that returned <code>result</code>.
+	 *
+	 * @return <code>result</code>
+	 */
+	public <T> T returned(long start, T result) {
+		end(start, Outcome.of(result));
+		return result;
+	}
+
+	/**
+	 * Ends a call that threw <code>failure</code>, to be thrown again.
+	 */
+	public void threw(long start, Throwable failure) {
+		end(start, Outcome.of(failure));
+	}
+
+	public LatencyHistogram getHistogram() {
+		return histogram;
+	}
+
+	public long getCount(Outcome outcome) {
+		return outcomes[outcome.ordinal()].sum();
+	}
+
+	public long getInFlight() {
+		return inFlight.sum();
+	}
+}
@@ -0,0 +1,185 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The time one sampled REST request spent in each {@link Phase}, recorded by
+ * the {@link Tracer}. The phases do not overlap: the time of the request left
+ * out of them (see {@link #getOtherNanos()}) went to the endpoint and the
+ * account store themselves.
+ * <p>
+ * A trace is written by one thread at a time, the request being handed over
+ * from the Grizzly worker to the {@link RequestExecutor} and back.
+ */
+public class Trace {
+
+	public enum Phase {
+		/**
+		 * reading the request body into its entity (JSON binding)
+		 */
+		READ,
+		/**
+		 * waiting for a thread of the {@link RequestExecutor}
+		 */
+		QUEUE,
+		/**
+		 * waiting for a connection of the {@link ConnectionPool}
+		 */
+		CONNECTION,
+		/**
+		 * rendering a query built by jOOQ at run time into SQL
+		 */
+		RENDER,
+		/**
+		 * executing a statement and fetching its rows, and for a statement rendered
+		 * once (see {@link Database}) preparing it
+		 */
+		EXECUTE,
+		/**
+		 * committing a transaction
+		 */
+		COMMIT,
+		/**
+		 * waiting for a commit to be on disk (see {@link Durability})
+		 */
+		SYNC,
+		/**
+		 * writing the response entity
+		 */
+		WRITE;
+
+		private final String label = name().toLowerCase();
+
+		public String label() {
+			return label;
+		}
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+
+	private final String request;
+	private final long started = System.currentTimeMillis();
+	private final long start = System.nanoTime();
+	private final long[] nanos = new long[PHASES.length];
+	private final int[] counts = new int[PHASES.length];
+	// start of the phase in progress, when begun and ended by a listener
+	private long phaseStart;
+	private int status;
+	private long totalNanos = -1;
+
+	Trace(String request) {
+		this.request = request;
+	}
+
+	/**
+	 * Adds the time from <code>since</code> to now to <code>phase</code>.
+	 */
+	void add(Phase phase, long since) {
+		nanos[phase.ordinal()] += System.nanoTime() - since;
+		counts[phase.ordinal()]++;
+	}
+
+	void begin() {
+		phaseStart = System.nanoTime();
+	}
+
+	/**
+	 * Adds the time from the last {@link #begin()} to now to
+	 * <code>phase</code>.
+	 */
+	void end(Phase phase) {
+		add(phase, phaseStart);
+	}
+
+	void setStatus(int status) {
+		this.status = status;
+	}
+
+	/**
+	 * @return <code>false</code> if the trace was already finished
+	 */
+	boolean finish() {
+		if (totalNanos >= 0) {
+			return false;
+		}
+		totalNanos = System.nanoTime() - start;
+		return true;
+	}
+
+	/**
+	 * @return the method and path of the request, e.g. "POST
+	 *         /moneytransfer/transfers"
+	 */
+	public String getRequest() {
+		return request;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return when the request arrived, in milliseconds since the epoch
+	 */
+	public long getStarted() {
+		return started;
+	}
+
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	/**
+	 * @return the nanoseconds spent in each phase the request went through
+	 */
+	public Map<String, Long> getPhases() {
+		Map<String, Long> phases = new LinkedHashMap<>();
+		for (Phase phase : PHASES) {
+			if (counts[phase.ordinal()] > 0) {
+				phases.put(phase.label(), nanos[phase.ordinal()]);
+			}
+		}
+		return phases;
+	}
+
+	/**
+	 * @return how many times the request went through each phase, e.g. the
+	 *         number of statements executed
+	 */
+	public Map<String, Integer> getCounts() {
+		Map<String, Integer> phaseCounts = new LinkedHashMap<>();
+		for (Phase phase : PHASES) {
+			if (counts[phase.ordinal()] > 0) {
+				phaseCounts.put(phase.label(), counts[phase.ordinal()]);
+			}
+		}
+		return phaseCounts;
+	}
+
+	/**
+	 * @return the nanoseconds of the request spent outside of the phases
+	 */
+	public long getOtherNanos() {
+		long other = totalNanos;
+		for (long phase : nanos) {
+			other -= phase;
+		}
+		return other;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder(request).append(' ').append(status).append(" in ")
+				.append(totalNanos / 1000).append(" us:");
+		for (Phase phase : PHASES) {
+			if (counts[phase.ordinal()] > 0) {
+				out.append(' ').append(phase.label()).append(' ').append(nanos[phase.ordinal()] / 1000).append(" us");
+				if (counts[phase.ordinal()] > 1) {
+					out.append(" (").append(counts[phase.ordinal()]).append(')');
+				}
+			}
+		}
+		return out.append(" other ").append(getOtherNanos() / 1000).append(" us").toString();
+	}
+}
@@ -0,0 +1,81 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.io.IOException;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+/**
+ * Starts the {@link Trace} of a request sampled by the {@link Tracer} as it
+ * arrives, times the reading of its entity and the writing of the response
+ * entity, and finishes the trace once the response is written.
+ */
+@Provider
+@PreMatching
+public class TraceFilter implements ContainerRequestFilter, ContainerResponseFilter, ReaderInterceptor,
+		WriterInterceptor {
+
+	private static final String PROPERTY = Trace.class.getName();
+
+	private final Tracer tracer = Tracer.getInstance();
+
+	@Override
+	public void filter(ContainerRequestContext request) {
+		Trace trace = tracer.start(request.getMethod() + " /" + request.getUriInfo().getPath());
+		if (trace != null) {
+			request.setProperty(PROPERTY, trace);
+		}
+	}
+
+	@Override
+	public Object aroundReadFrom(ReaderInterceptorContext context) throws IOException {
+		Trace trace = (Trace) context.getProperty(PROPERTY);
+		if (trace == null) {
+			return context.proceed();
+		}
+		long start = System.nanoTime();
+		try {
+			return context.proceed();
+		} finally {
+			trace.add(Trace.Phase.READ, start);
+		}
+	}
+
+	@Override
+	public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+		Trace trace = (Trace) request.getProperty(PROPERTY);
+		if (trace == null) {
+			return;
+		}
+		trace.setStatus(response.getStatus());
+		// the request of a synchronous endpoint is still run by this thread
+		Tracer.detach();
+		if (!response.hasEntity()) {
+			tracer.finish(trace);
+		}
+	}
+
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+		Trace trace = (Trace) context.getProperty(PROPERTY);
+		if (trace == null) {
+			context.proceed();
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			context.proceed();
+		} finally {
+			trace.add(Trace.Phase.WRITE, start);
+			tracer.finish(trace);
+		}
+	}
+}
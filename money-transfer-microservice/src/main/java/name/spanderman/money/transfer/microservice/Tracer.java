@@ -0,0 +1,271 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import org.jooq.ExecuteContext;
+import org.jooq.TransactionContext;
+import org.jooq.TransactionListener;
+import org.jooq.impl.DefaultExecuteListener;
+import org.jooq.impl.DefaultTransactionListener;
+
+/**
+ * Optional tracing of the phases of the REST requests (see
+ * {@link Trace.Phase}), one request in <code>moneytransfer.trace.sample</code>
+ * being traced (default 0, none; 1 for all of them).
+ * <p>
+ * A sampled request gets a {@link Trace} from the {@link TraceFilter}, which
+ * times the reading and writing of its entities. The trace is the current
+ * one of the thread running the request, handed over to the
+ * {@link RequestExecutor} with the request, so the {@link ConnectionPool},
+ * {@link Database} and {@link Durability} add their phases to it, and so do
+ * the jOOQ queries and transactions of the shared context through
+ * {@link #EXECUTE_LISTENER} and {@link #TRANSACTION_LISTENER}.
+ * <p>
+ * The <code>moneytransfer.trace.slowest</code> slowest traces (default 20)
+ * are kept for GET /moneytransfer/traces, and the traces slower than
+ * <code>moneytransfer.trace.log</code> milliseconds (default -1, none) are
+ * written to the standard output. With sampling off, the hooks of the
+ * statements cost one volatile read each and those of the filter a lookup of
+ * a request property. Sampling, logging and clearing are also available over
+ * JMX.
+ */
+public class Tracer implements TracerMXBean {
+
+	private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+
+	private static final Comparator<Trace> FASTEST_FIRST = Comparator.comparingLong(Trace::getTotalNanos);
+
+	private static final Tracer INSTANCE = register(new Tracer(
+			Math.max(Config.getInt("moneytransfer.trace.sample", 0), 0),
+			Math.max(Config.getInt("moneytransfer.trace.slowest", 20), 0),
+			Config.getLong("moneytransfer.trace.log", -1)));
+
+	/**
+	 * Times the rendering and the execution of the queries built by jOOQ at
+	 * run time.
+	 */
+	static final DefaultExecuteListener EXECUTE_LISTENER = new DefaultExecuteListener() {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public void renderStart(ExecuteContext ctx) {
+			beginPhase();
+		}
+
+		@Override
+		public void renderEnd(ExecuteContext ctx) {
+			endPhase(Trace.Phase.RENDER);
+		}
+
+		@Override
+		public void executeStart(ExecuteContext ctx) {
+			beginPhase();
+		}
+
+		@Override
+		public void executeEnd(ExecuteContext ctx) {
+			endPhase(Trace.Phase.EXECUTE);
+		}
+
+		@Override
+		public void fetchStart(ExecuteContext ctx) {
+			beginPhase();
+		}
+
+		@Override
+		public void fetchEnd(ExecuteContext ctx) {
+			endPhase(Trace.Phase.EXECUTE);
+		}
+	};
+
+	/**
+	 * Times the commits of the transactions, to be set before
+	 * {@link Durability} so that the sync is left to it.
+	 */
+	static final TransactionListener TRANSACTION_LISTENER = new DefaultTransactionListener() {
+
+		@Override
+		public void commitStart(TransactionContext ctx) {
+			beginPhase();
+		}
+
+		@Override
+		public void commitEnd(TransactionContext ctx) {
+			endPhase(Trace.Phase.COMMIT);
+		}
+	};
+
+	private volatile int sampling;
+	private volatile long logThreshold;
+	private final int slowest;
+	// the slowest traces, fastest first
+	private final PriorityQueue<Trace> traces;
+	private final LongAdder traced = new LongAdder();
+
+	Tracer(int sampling, int slowest, long logThreshold) {
+		this.sampling = sampling;
+		this.slowest = slowest;
+		this.logThreshold = logThreshold;
+		traces = new PriorityQueue<>(slowest + 1, FASTEST_FIRST);
+	}
+
+	private static Tracer register(Tracer tracer) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(tracer,
+					new ObjectName("name.spanderman.money.transfer:type=Tracer"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return tracer;
+	}
+
+	public static Tracer getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the trace of the request run by the current thread, or
+	 *         <code>null</code> if it is not sampled
+	 */
+	public static Trace current() {
+		return INSTANCE.sampling == 0 ? null : CURRENT.get();
+	}
+
+	/**
+	 * Makes <code>trace</code>, possibly <code>null</code>, the one of the
+	 * request run by the current thread.
+	 */
+	static void attach(Trace trace) {
+		if (trace == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(trace);
+		}
+	}
+
+	/**
+	 * @return the trace of the current thread, which no longer has any, to
+	 *         be attached to the thread running the rest of the request
+	 */
+	static Trace detach() {
+		Trace trace = current();
+		if (trace != null) {
+			CURRENT.remove();
+		}
+		return trace;
+	}
+
+	private static void beginPhase() {
+		Trace trace = current();
+		if (trace != null) {
+			trace.begin();
+		}
+	}
+
+	private static void endPhase(Trace.Phase phase) {
+		Trace trace = current();
+		if (trace != null) {
+			trace.end(phase);
+		}
+	}
+
+	/**
+	 * Starts tracing the request <code>request</code> if it is sampled.
+	 *
+	 * @return its trace, attached to the current thread, or
+	 *         <code>null</code>
+	 */
+	Trace start(String request) {
+		int n = sampling;
+		if (n == 0) {
+			return null;
+		}
+		Trace trace = n == 1 || ThreadLocalRandom.current().nextInt(n) == 0 ? new Trace(request) : null;
+		attach(trace);
+		return trace;
+	}
+
+	/**
+	 * Keeps <code>trace</code> if it is among the slowest ones, once
+	 * finished.
+	 */
+	void finish(Trace trace) {
+		if (!trace.finish()) {
+			return;
+		}
+		traced.increment();
+		long threshold = logThreshold;
+		if (threshold >= 0 && trace.getTotalNanos() >= threshold * 1000000) {
+			System.out.println("trace " + trace);
+		}
+		synchronized (traces) {
+			if (traces.size() < slowest) {
+				traces.add(trace);
+			} else if (slowest > 0 && trace.getTotalNanos() > traces.peek().getTotalNanos()) {
+				traces.poll();
+				traces.add(trace);
+			}
+		}
+	}
+
+	/**
+	 * @return the slowest traces kept, slowest first
+	 */
+	public List<Trace> getTraces() {
+		List<Trace> slowestFirst;
+		synchronized (traces) {
+			slowestFirst = new ArrayList<>(traces);
+		}
+		slowestFirst.sort(FASTEST_FIRST.reversed());
+		return slowestFirst;
+	}
+
+	@Override
+	public int getSampling() {
+		return sampling;
+	}
+
+	@Override
+	public void setSampling(int sampling) {
+		if (sampling < 0) {
+			throw new IllegalArgumentException("negative sampling");
+		}
+		this.sampling = sampling;
+	}
+
+	@Override
+	public int getSlowest() {
+		return slowest;
+	}
+
+	@Override
+	public long getLogThreshold() {
+		return logThreshold;
+	}
+
+	@Override
+	public void setLogThreshold(long logThreshold) {
+		this.logThreshold = logThreshold;
+	}
+
+	@Override
+	public long getTraced() {
+		return traced.sum();
+	}
+
+	@Override
+	public void clear() {
+		synchronized (traces) {
+			traces.clear();
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * JMX view and control of the {@link Tracer}.
+ */
+public interface TracerMXBean {
+
+	int getSampling();
+
+	void setSampling(int sampling);
+
+	int getSlowest();
+
+	long getLogThreshold();
+
+	void setLogThreshold(long logThreshold);
+
+	long getTraced();
+
+	void clear();
+}
@@ -0,0 +1,58 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * Outcome of one transfer of a batch: the id of the transfer made, or why it
+ * was not made.
+ */
+public class TransferBatchItem {
+
+	public enum Status {
+		TRANSFERRED, NOT_FOUND, INSUFFICIENT_FUNDS, ROLLED_BACK
+	}
+
+	private Status status;
+	private Long id;
+	private String error;
+
+	public TransferBatchItem() {
+	}
+
+	private TransferBatchItem(Status aStatus, Long anId, String anError) {
+		status = aStatus;
+		id = anId;
+		error = anError;
+	}
+
+	public static TransferBatchItem transferred(long id) {
+		return new TransferBatchItem(Status.TRANSFERRED, id, null);
+	}
+
+	public static TransferBatchItem notFound() {
+		return new TransferBatchItem(Status.NOT_FOUND, null, "open accounts not found");
+	}
+
+	public static TransferBatchItem insufficientFunds(long account) {
+		return new TransferBatchItem(Status.INSUFFICIENT_FUNDS, null,
+				new InsufficientFundsException(account).getMessage());
+	}
+
+	/**
+	 * @return the outcome of a transfer that could have been made but was not,
+	 *         because another transfer of its all-or-nothing batch failed
+	 */
+	public static TransferBatchItem rolledBack() {
+		return new TransferBatchItem(Status.ROLLED_BACK, null, "rolled back");
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public String getError() {
+		return error;
+	}
+}
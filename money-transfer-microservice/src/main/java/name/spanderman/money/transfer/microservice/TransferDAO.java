@@ -1,25 +1,42 @@
 package name.spanderman.money.transfer.microservice;
 
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNTS;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_ID;
+import static name.spanderman.money.transfer.microservice.Schema.SEQ_TRANSFER_ID;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFERS;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_AMOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_FROM_ACCOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_ID;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_TO_ACCOUNT;
 import static org.jooq.impl.DSL.constraint;
-import static org.jooq.impl.DSL.field;
-import static org.jooq.impl.DSL.name;
-import static org.jooq.impl.DSL.sequence;
-import static org.jooq.impl.DSL.table;
+import static org.jooq.impl.DSL.insertInto;
+import static org.jooq.impl.DSL.param;
+import static org.jooq.impl.DSL.select;
 
-import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
 
 import org.jooq.DSLContext;
-import org.jooq.Record;
-import org.jooq.SQLDialect;
-import org.jooq.impl.DSL;
+import org.jooq.Field;
 import org.jooq.impl.SQLDataType;
-import org.jooq.tools.jdbc.JDBCUtils;
 
 public class TransferDAO {
 
 	private static final TransferDAO INSTANCE = new TransferDAO();
 
+	static final IdAllocator TRANSFER_IDS = new IdAllocator(SEQ_TRANSFER_ID);
+
+	private static final String INSERT_TRANSFER = Database
+			.render(insertInto(TRANSFERS, TRANSFER_ID, TRANSFER_AMOUNT, TRANSFER_FROM_ACCOUNT, TRANSFER_TO_ACCOUNT).values(
+					param("id", SQLDataType.BIGINT), param("amount", SQLDataType.INTEGER),
+					param("fromAccount", SQLDataType.BIGINT), param("toAccount", SQLDataType.BIGINT)));
+	private static final String SELECT_TRANSFERS_FROM = renderAccountTransfers(TRANSFER_FROM_ACCOUNT);
+	private static final String SELECT_TRANSFERS_TO = renderAccountTransfers(TRANSFER_TO_ACCOUNT);
+	private static final String SELECT_TRANSFER = Database
+			.render(select(TRANSFER_AMOUNT, TRANSFER_FROM_ACCOUNT, TRANSFER_TO_ACCOUNT).from(TRANSFERS)
+					.where(TRANSFER_ID.eq(param("id", SQLDataType.BIGINT))));
+
 	private TransferDAO() {
 	}
 
@@ -27,87 +44,117 @@ public class TransferDAO {
 		return INSTANCE;
 	}
 
-	private Connection getConnection() throws SQLException, ClassNotFoundException {
-		Class.forName("org.h2.Driver");
-		return java.sql.DriverManager.getConnection("jdbc:h2:mem:money-transfer;DB_CLOSE_DELAY=-1");
+	/**
+	 * Ordered by the columns of the index on <code>account</code>, H2 reads
+	 * the rows in index order and stops at the limit instead of sorting all
+	 * the transfers of the account.
+	 */
+	private static String renderAccountTransfers(Field<Long> account) {
+		return Database.render(select(TRANSFER_ID, TRANSFER_AMOUNT, TRANSFER_FROM_ACCOUNT, TRANSFER_TO_ACCOUNT)
+				.from(TRANSFERS)
+				.where(account.eq(param("account", SQLDataType.BIGINT))
+						.and(TRANSFER_ID.ge(param("from", SQLDataType.BIGINT))))
+				.orderBy(account, TRANSFER_ID).limit(param("limit", SQLDataType.INTEGER)));
 	}
 
 	private TransferDAO createTransfersTable() throws Throwable {
-		Connection c = null;
 		try {
-			c = getConnection();
-			DSLContext ctx = DSL.using(c, SQLDialect.H2);
-			ctx.createTable(name("TRANSFERS"))
-					.columns(field(name("id"), SQLDataType.BIGINT), field(name("amount"), SQLDataType.INTEGER),
-							field(name("fromAccount"), SQLDataType.BIGINT),
-							field(name("toAccount"), SQLDataType.BIGINT))
-					.constraints(constraint("PK_TRANSFERS").primaryKey(field(name("id"))),
-							constraint("FK_TRANSFERS_ACCOUNTS_FROM").foreignKey(field(name("fromAccount")))
-									.references(table(name("ACCOUNTS")), field(name("id"))),
-							constraint("FK_TRANSFERS_ACCOUNTS_TO").foreignKey(field(name("toAccount")))
-									.references(table(name("ACCOUNTS")), field(name("id"))))
+			Database.dsl().createTableIfNotExists(TRANSFERS)
+					.columns(TRANSFER_ID, TRANSFER_AMOUNT, TRANSFER_FROM_ACCOUNT, TRANSFER_TO_ACCOUNT)
+					.constraints(constraint("PK_TRANSFERS").primaryKey(TRANSFER_ID),
+							constraint("FK_TRANSFERS_ACCOUNTS_FROM").foreignKey(TRANSFER_FROM_ACCOUNT)
+									.references(ACCOUNTS, ACCOUNT_ID),
+							constraint("FK_TRANSFERS_ACCOUNTS_TO").foreignKey(TRANSFER_TO_ACCOUNT).references(ACCOUNTS,
+									ACCOUNT_ID))
 					.execute();
 			return this;
 		} catch (Throwable e) {
 			e.printStackTrace();
 			throw e;
-		} finally {
-			JDBCUtils.safeClose(c);
 		}
 	}
 
 	private TransferDAO createTransfersTableIdSequence() throws Throwable {
-		Connection c = null;
 		try {
-			c = getConnection();
-			DSLContext ctx = DSL.using(c, SQLDialect.H2);
-			ctx.createSequence(sequence(name("SEQ_TRANSFER_ID"), SQLDataType.BIGINT)).execute();
+			TRANSFER_IDS.createSequence(Database.dsl());
+			return this;
+		} catch (Throwable e) {
+			e.printStackTrace();
+			throw e;
+		}
+	}
+
+	private TransferDAO createTransfersTableAccountIndexes() throws Throwable {
+		try {
+			// the transfers from and to an account in id order, for its history
+			Database.dsl().createIndexIfNotExists("IDX_TRANSFERS_FROM_ACCOUNT_ID")
+					.on(TRANSFERS, TRANSFER_FROM_ACCOUNT, TRANSFER_ID).execute();
+			Database.dsl().createIndexIfNotExists("IDX_TRANSFERS_TO_ACCOUNT_ID")
+					.on(TRANSFERS, TRANSFER_TO_ACCOUNT, TRANSFER_ID).execute();
 			return this;
 		} catch (Throwable e) {
 			e.printStackTrace();
 			throw e;
-		} finally {
-			JDBCUtils.safeClose(c);
 		}
 	}
 
 	public void dbSetup() throws Throwable {
-		createTransfersTable().createTransfersTableIdSequence();
+		createTransfersTable().createTransfersTableIdSequence().createTransfersTableAccountIndexes();
 	}
 
 	public Transfer createTransfer(Transfer transfer, DSLContext ctx) {
 		long fromAccount = transfer.getFromAccount();
 		long toAccount = transfer.getToAccount();
-		long id = ctx.nextval(sequence(name("SEQ_TRANSFER_ID"))).longValueExact();
 		int amount = transfer.getAmount();
-		return ctx.transactionResult(configuration -> {
-			DSL.using(configuration)
-					.insertInto(table(name("TRANSFERS")), field(name("id")), field(name("amount")),
-							field(name("fromAccount")), field(name("toAccount")))
-					.values(id, amount, fromAccount, toAccount).execute();
-			return new Transfer(id, amount, fromAccount, toAccount);
+		long id = TRANSFER_IDS.next(ctx);
+		Database.execute(ctx, INSERT_TRANSFER, id, amount, fromAccount, toAccount);
+		return new Transfer(id, amount, fromAccount, toAccount);
+	}
+
+	/**
+	 * Inserts transfers with one JDBC batch.
+	 *
+	 * @return the ids of the transfers, in order
+	 */
+	public long[] createTransfers(List<Transfer> transfers, DSLContext ctx) {
+		int count = transfers.size();
+		long[] ids = TRANSFER_IDS.next(ctx, count);
+		if (count == 0) {
+			return ids;
+		}
+		Database.executeBatch(ctx, INSERT_TRANSFER, count, (ps, i) -> {
+			Transfer transfer = transfers.get(i);
+			ps.setLong(1, ids[i]);
+			ps.setInt(2, transfer.getAmount());
+			ps.setLong(3, transfer.getFromAccount());
+			ps.setLong(4, transfer.getToAccount());
 		});
+		return ids;
+	}
 
+	public Transfer getTransfer(long id) throws SQLException {
+		// null if no transfer found
+		return Database.fetchOne(Database.dsl(), SELECT_TRANSFER,
+				rs -> new Transfer(id, rs.getInt(1), rs.getLong(2), rs.getLong(3)), id);
 	}
 
-	public Transfer getTransfer(long id) throws ClassNotFoundException, SQLException {
-		Connection c = null;
-		try {
-			c = getConnection();
-			DSLContext ctx = DSL.using(c, SQLDialect.H2);
-			Record r = ctx
-					.select(field(name("id")), field(name("amount")), field(name("fromAccount")),
-							field(name("toAccount")))
-					.from(table("TRANSFERS")).where(field(name("id"), SQLDataType.BIGINT).eq(id)).fetchOne();
-			// no transfer found
-			if (r == null) {
-				return null;
-			}
-			return new Transfer(id, r.get(field(name("amount"), SQLDataType.INTEGER)),
-					r.get(field(name("fromAccount"), SQLDataType.BIGINT)),
-					r.get(field(name("toAccount"), SQLDataType.BIGINT)));
-		} finally {
-			JDBCUtils.safeClose(c);
-		}
+	/**
+	 * @return the first <code>limit</code> transfers from <code>account</code>
+	 *         with ids from <code>from</code> on, in id order
+	 */
+	public List<Transfer> getTransfersFrom(DSLContext ctx, long account, long from, int limit) {
+		return Database.fetch(ctx, SELECT_TRANSFERS_FROM, TransferDAO::transfer, account, from, limit);
+	}
+
+	/**
+	 * @return the first <code>limit</code> transfers to <code>account</code>
+	 *         with ids from <code>from</code> on, in id order
+	 */
+	public List<Transfer> getTransfersTo(DSLContext ctx, long account, long from, int limit) {
+		return Database.fetch(ctx, SELECT_TRANSFERS_TO, TransferDAO::transfer, account, from, limit);
+	}
+
+	private static Transfer transfer(ResultSet rs) throws SQLException {
+		return new Transfer(rs.getLong(1), rs.getInt(2), rs.getLong(3), rs.getLong(4));
 	}
 }
@@ -0,0 +1,281 @@
+package name.spanderman.money.transfer.microservice;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import org.jooq.Configuration;
+import org.jooq.DSLContext;
+import org.jooq.impl.DSL;
+
+/**
+ * Moves money between two H2 accounts in one flat transaction of three
+ * statements: the debit, the credit (both conditional single statement
+ * updates, see {@link AccountDAO#updateBalance(DSLContext, long, int)}) and the
+ * TRANSFERS insert, whose id comes from an {@link IdAllocator}.
+ * <p>
+ * The two balance updates are issued in account id order so that concurrent
+ * transfers in opposite directions lock the rows in the same order. The
+ * number of statements actually executed per transfer is published over JMX.
+ * <p>
+ * Batches of transfers are made a group at a time (see
+ * {@link #transfer(List, boolean)}), with a constant number of statements
+ * per group.
+ */
+public class TransferEngine implements TransferEngineMXBean {
+
+	private static final TransferEngine INSTANCE = new TransferEngine();
+
+	private static final boolean FUNDS_CHECK = Config.getBoolean("moneytransfer.funds.check", false);
+
+	/**
+	 * Transfers per transaction of a batch that is not all or nothing.
+	 */
+	private static final int BATCH_GROUP = Math.max(Config.getInt("moneytransfer.batch.group", 1000), 1);
+
+	private final LongAdder transfers = new LongAdder();
+	private final LongAdder statements = new LongAdder();
+	private final AccountCache cache = AccountCache.getInstance();
+	private final Journal journal = Journal.getInstance();
+
+	/**
+	 * The shared context, counting the statements it executes.
+	 */
+	private final DSLContext ctx;
+
+	/**
+	 * Rolls back a transfer involving an account that is not open.
+	 */
+	private static final class NoOpenAccountException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		private NoOpenAccountException() {
+			super(null, null, false, false);
+		}
+	}
+
+	private TransferEngine() {
+		Configuration configuration = Database.dsl().configuration().derive();
+		configuration.data(Database.STATEMENT_COUNTER, statements);
+		ctx = DSL.using(configuration);
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("name.spanderman.money.transfer:type=TransferEngine"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static TransferEngine getInstance() {
+		return INSTANCE;
+	}
+
+	public Transfer transfer(Transfer transfer) throws SQLException {
+		long fromAccount = transfer.getFromAccount();
+		long toAccount = transfer.getToAccount();
+		int amount = transfer.getAmount();
+		journal.checkWritable();
+		try {
+			Transfer made = ctx.transactionResult(configuration -> {
+				DSLContext tx = DSL.using(configuration);
+				AccountDAO accountDAO = AccountDAO.getInstance();
+				if (fromAccount <= toAccount) {
+					debit(accountDAO, tx, fromAccount, amount);
+					credit(accountDAO, tx, toAccount, amount);
+				} else {
+					credit(accountDAO, tx, toAccount, amount);
+					debit(accountDAO, tx, fromAccount, amount);
+				}
+				return TransferDAO.getInstance().createTransfer(transfer, tx);
+			});
+			try {
+				journal.await(journal.transfer(made.getId(), fromAccount, toAccount, amount));
+			} finally {
+				cache.invalidate(fromAccount);
+				cache.invalidate(toAccount);
+			}
+			return made;
+		} catch (NoOpenAccountException e) {
+			// no open accounts found
+			return null;
+		} finally {
+			transfers.increment();
+		}
+	}
+
+	/**
+	 * Makes a batch of transfers one group at a time, each group in its own
+	 * transaction: the whole batch when <code>allOrNothing</code>,
+	 * <code>moneytransfer.batch.group</code> transfers otherwise.
+	 */
+	public List<TransferBatchItem> transfer(List<Transfer> batch, boolean allOrNothing) throws SQLException {
+		int size = batch.size();
+		int groupSize = allOrNothing ? Math.max(size, 1) : BATCH_GROUP;
+		List<TransferBatchItem> items = new ArrayList<>(size);
+		try {
+			for (int from = 0; from < size; from += groupSize) {
+				List<Transfer> group = batch.subList(from, Math.min(from + groupSize, size));
+				journal.checkWritable();
+				List<TransferBatchItem> groupItems = ctx.transactionResult(
+						configuration -> transferGroup(DSL.using(configuration), group, allOrNothing));
+				try {
+					long ticket = 0;
+					for (int i = 0; i < group.size(); i++) {
+						TransferBatchItem item = groupItems.get(i);
+						if (item.getStatus() == TransferBatchItem.Status.TRANSFERRED) {
+							Transfer transfer = group.get(i);
+							ticket = journal.transfer(item.getId(), transfer.getFromAccount(),
+									transfer.getToAccount(), transfer.getAmount());
+						}
+					}
+					journal.await(ticket);
+				} finally {
+					for (Transfer transfer : group) {
+						cache.invalidate(transfer.getFromAccount());
+						cache.invalidate(transfer.getToAccount());
+					}
+				}
+				items.addAll(groupItems);
+			}
+			return items;
+		} finally {
+			transfers.add(size);
+		}
+	}
+
+	/**
+	 * Makes a group of transfers in the transaction of <code>tx</code>, in
+	 * three statements whatever its size: all the accounts involved are locked
+	 * and read at once, the transfers are checked in order against the
+	 * balances in memory, then the balances of the accounts that changed are
+	 * written in one JDBC batch and the transfers made are inserted with
+	 * another batch.
+	 */
+	private static List<TransferBatchItem> transferGroup(DSLContext tx, List<Transfer> group, boolean allOrNothing) {
+		AccountDAO accountDAO = AccountDAO.getInstance();
+		AccountTable accounts = accountDAO.lockOpenAccounts(tx, accountIds(group));
+		// net balance change per slot of accounts
+		int[] deltas = new int[accounts.capacity()];
+		List<Transfer> made = new ArrayList<>(group.size());
+		TransferBatchItem[] items = check(accounts, deltas, group, made);
+		if (allOrNothing && made.size() < group.size()) {
+			// nothing written, the locks go with the transaction
+			return items(items, null);
+		}
+		long[] changedIds = new long[accounts.size()];
+		int[] changedDeltas = new int[accounts.size()];
+		int changed = 0;
+		for (int slot = 0; slot < deltas.length; slot++) {
+			if (deltas[slot] != 0) {
+				changedIds[changed] = accounts.id(slot);
+				changedDeltas[changed++] = deltas[slot];
+			}
+		}
+		if (changed > 0) {
+			accountDAO.addToBalances(tx, changedIds, changedDeltas, changed);
+		}
+		return items(items, TransferDAO.getInstance().createTransfers(made, tx));
+	}
+
+	/**
+	 * Checks a group of transfers in order against the balances of the open
+	 * accounts involved, applying the transfers that can be made to the
+	 * balances and to <code>deltas</code>, the net change per slot of
+	 * <code>accounts</code>, and adding them to <code>made</code>.
+	 *
+	 * @return the items of the transfers that can not be made,
+	 *         <code>null</code> for the others
+	 */
+	static TransferBatchItem[] check(AccountTable accounts, int[] deltas, List<Transfer> group, List<Transfer> made) {
+		TransferBatchItem[] items = new TransferBatchItem[group.size()];
+		for (int i = 0; i < items.length; i++) {
+			Transfer transfer = group.get(i);
+			int amount = transfer.getAmount();
+			int fromSlot = accounts.indexOf(transfer.getFromAccount());
+			int toSlot = accounts.indexOf(transfer.getToAccount());
+			if (fromSlot < 0 || toSlot < 0 || !accounts.isActive(fromSlot) || !accounts.isActive(toSlot)) {
+				items[i] = TransferBatchItem.notFound();
+			} else if (FUNDS_CHECK && amount > 0 && accounts.balance(fromSlot) - amount < 0) {
+				items[i] = TransferBatchItem.insufficientFunds(transfer.getFromAccount());
+			} else if (FUNDS_CHECK && amount < 0 && accounts.balance(toSlot) + amount < 0) {
+				items[i] = TransferBatchItem.insufficientFunds(transfer.getToAccount());
+			} else {
+				accounts.setBalance(fromSlot, accounts.balance(fromSlot) - amount);
+				accounts.setBalance(toSlot, accounts.balance(toSlot) + amount);
+				deltas[fromSlot] -= amount;
+				deltas[toSlot] += amount;
+				made.add(transfer);
+			}
+		}
+		return items;
+	}
+
+	/**
+	 * @return the items of a checked group, the transfers made getting their
+	 *         <code>ids</code> in order, or being rolled back if
+	 *         <code>ids</code> is <code>null</code>
+	 */
+	static List<TransferBatchItem> items(TransferBatchItem[] items, long[] ids) {
+		for (int i = 0, j = 0; i < items.length; i++) {
+			if (items[i] == null) {
+				items[i] = ids == null ? TransferBatchItem.rolledBack() : TransferBatchItem.transferred(ids[j++]);
+			}
+		}
+		return Arrays.asList(items);
+	}
+
+	/**
+	 * @return the distinct ids of the accounts involved in
+	 *         <code>transfers</code>, in ascending order
+	 */
+	static Long[] accountIds(List<Transfer> transfers) {
+		long[] ids = new long[transfers.size() * 2];
+		for (int i = 0; i < transfers.size(); i++) {
+			ids[2 * i] = transfers.get(i).getFromAccount();
+			ids[2 * i + 1] = transfers.get(i).getToAccount();
+		}
+		Arrays.sort(ids);
+		Long[] distinct = new Long[ids.length];
+		int n = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (i == 0 || ids[i] != ids[i - 1]) {
+				distinct[n++] = ids[i];
+			}
+		}
+		return Arrays.copyOf(distinct, n);
+	}
+
+	private static void debit(AccountDAO accountDAO, DSLContext tx, long account, int amount) {
+		if (accountDAO.updateBalance(tx, account, -amount) == null) {
+			throw new NoOpenAccountException();
+		}
+	}
+
+	private static void credit(AccountDAO accountDAO, DSLContext tx, long account, int amount) {
+		if (accountDAO.updateBalance(tx, account, amount) == null) {
+			throw new NoOpenAccountException();
+		}
+	}
+
+	@Override
+	public long getTransfers() {
+		return transfers.sum();
+	}
+
+	@Override
+	public long getStatements() {
+		return statements.sum();
+	}
+
+	@Override
+	public double getStatementsPerTransfer() {
+		long n = transfers.sum();
+		return n == 0 ? 0 : (double) statements.sum() / n;
+	}
+}
@@ -0,0 +1,13 @@
+package name.spanderman.money.transfer.microservice;
+
+/**
+ * JMX view of the {@link TransferEngine} metrics.
+ */
+public interface TransferEngineMXBean {
+
+	long getTransfers();
+
+	long getStatements();
+
+	double getStatementsPerTransfer();
+}
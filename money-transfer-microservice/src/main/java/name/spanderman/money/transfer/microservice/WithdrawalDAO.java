@@ -1,25 +1,42 @@
 package name.spanderman.money.transfer.microservice;
 
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNTS;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_ID;
+import static name.spanderman.money.transfer.microservice.Schema.MOVEMENT_ACCOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.MOVEMENT_AMOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.MOVEMENT_ID;
+import static name.spanderman.money.transfer.microservice.Schema.SEQ_WITHDRAWAL_ID;
+import static name.spanderman.money.transfer.microservice.Schema.WITHDRAWALS;
 import static org.jooq.impl.DSL.constraint;
-import static org.jooq.impl.DSL.field;
-import static org.jooq.impl.DSL.name;
-import static org.jooq.impl.DSL.sequence;
-import static org.jooq.impl.DSL.table;
+import static org.jooq.impl.DSL.insertInto;
+import static org.jooq.impl.DSL.param;
+import static org.jooq.impl.DSL.select;
 
-import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.List;
 
 import org.jooq.DSLContext;
-import org.jooq.Record;
-import org.jooq.SQLDialect;
-import org.jooq.impl.DSL;
 import org.jooq.impl.SQLDataType;
-import org.jooq.tools.jdbc.JDBCUtils;
 
 public class WithdrawalDAO {
 
 	private static final WithdrawalDAO INSTANCE = new WithdrawalDAO();
 
+	static final IdAllocator WITHDRAWAL_IDS = new IdAllocator(SEQ_WITHDRAWAL_ID);
+
+	private static final String INSERT_WITHDRAWAL = Database
+			.render(insertInto(WITHDRAWALS, MOVEMENT_ID, MOVEMENT_AMOUNT, MOVEMENT_ACCOUNT).values(
+					param("id", SQLDataType.BIGINT), param("amount", SQLDataType.INTEGER),
+					param("account", SQLDataType.BIGINT)));
+	// ordered by the columns of the account index, read in index order up to the limit
+	private static final String SELECT_ACCOUNT_WITHDRAWALS = Database.render(select(MOVEMENT_ID, MOVEMENT_AMOUNT)
+			.from(WITHDRAWALS)
+			.where(MOVEMENT_ACCOUNT.eq(param("account", SQLDataType.BIGINT))
+					.and(MOVEMENT_ID.ge(param("from", SQLDataType.BIGINT))))
+			.orderBy(MOVEMENT_ACCOUNT, MOVEMENT_ID).limit(param("limit", SQLDataType.INTEGER)));
+	private static final String SELECT_WITHDRAWAL = Database.render(select(MOVEMENT_AMOUNT, MOVEMENT_ACCOUNT)
+			.from(WITHDRAWALS).where(MOVEMENT_ID.eq(param("id", SQLDataType.BIGINT))));
+
 	private WithdrawalDAO() {
 	}
 
@@ -27,78 +44,84 @@ public class WithdrawalDAO {
 		return INSTANCE;
 	}
 
-	private Connection getConnection() throws SQLException, ClassNotFoundException {
-		Class.forName("org.h2.Driver");
-		return java.sql.DriverManager.getConnection("jdbc:h2:mem:money-transfer;DB_CLOSE_DELAY=-1");
-	}
-
 	private WithdrawalDAO createWithdrawalsTable() throws Throwable {
-		Connection c = null;
 		try {
-			c = getConnection();
-			DSLContext ctx = DSL.using(c, SQLDialect.H2);
-			ctx.createTable(name("WITHDRAWALS"))
-					.columns(field(name("id"), SQLDataType.BIGINT), field(name("amount"), SQLDataType.INTEGER),
-							field(name("account"), SQLDataType.BIGINT))
-					.constraints(constraint("PK_WITHDRAWALS").primaryKey(field(name("id"))),
-							constraint("FK_WITHDRAWALS_ACCOUNTS").foreignKey(field(name("account")))
-									.references(table(name("ACCOUNTS")), field(name("id"))))
+			Database.dsl().createTableIfNotExists(WITHDRAWALS).columns(MOVEMENT_ID, MOVEMENT_AMOUNT, MOVEMENT_ACCOUNT)
+					.constraints(constraint("PK_WITHDRAWALS").primaryKey(MOVEMENT_ID),
+							constraint("FK_WITHDRAWALS_ACCOUNTS").foreignKey(MOVEMENT_ACCOUNT).references(ACCOUNTS,
+									ACCOUNT_ID))
 					.execute();
 			return this;
 		} catch (Throwable e) {
 			e.printStackTrace();
 			throw e;
-		} finally {
-			JDBCUtils.safeClose(c);
 		}
 	}
 
 	private WithdrawalDAO createWithdrawalsTableIdSequence() throws Throwable {
-		Connection c = null;
 		try {
-			c = getConnection();
-			DSLContext ctx = DSL.using(c, SQLDialect.H2);
-			ctx.createSequence(sequence(name("SEQ_WITHDRAWAL_ID"), SQLDataType.BIGINT)).execute();
+			WITHDRAWAL_IDS.createSequence(Database.dsl());
+			return this;
+		} catch (Throwable e) {
+			e.printStackTrace();
+			throw e;
+		}
+	}
+
+	private WithdrawalDAO createWithdrawalsTableAccountIndex() throws Throwable {
+		try {
+			// the withdrawals of an account in id order, for its history
+			Database.dsl().createIndexIfNotExists("IDX_WITHDRAWALS_ACCOUNT_ID")
+					.on(WITHDRAWALS, MOVEMENT_ACCOUNT, MOVEMENT_ID).execute();
 			return this;
 		} catch (Throwable e) {
 			e.printStackTrace();
 			throw e;
-		} finally {
-			JDBCUtils.safeClose(c);
 		}
 	}
 
 	public void dbSetup() throws Throwable {
-		createWithdrawalsTable().createWithdrawalsTableIdSequence();
+		createWithdrawalsTable().createWithdrawalsTableIdSequence().createWithdrawalsTableAccountIndex();
 	}
 
 	public Withdrawal createWithdrawal(Withdrawal withdrawal, DSLContext ctx) {
 		long account = withdrawal.getAccount();
-		long id = ctx.nextval(sequence(name("SEQ_WITHDRAWAL_ID"))).longValueExact();
 		int amount = withdrawal.getAmount();
-		return ctx.transactionResult(configuration -> {
-			DSL.using(configuration).insertInto(table(name("WITHDRAWALS")), field(name("id")), field(name("amount")),
-					field(name("account"))).values(id, amount, account).execute();
-			return new Withdrawal(id, amount, account);
-		});
-
+		long id = WITHDRAWAL_IDS.next(ctx);
+		Database.execute(ctx, INSERT_WITHDRAWAL, id, amount, account);
+		return new Withdrawal(id, amount, account);
 	}
 
-	public Withdrawal getWithdrawal(long id) throws ClassNotFoundException, SQLException {
-		Connection c = null;
-		try {
-			c = getConnection();
-			DSLContext ctx = DSL.using(c, SQLDialect.H2);
-			Record r = ctx.select(field(name("id")), field(name("amount")), field(name("account")))
-					.from(table("WITHDRAWALS")).where(field(name("id"), SQLDataType.BIGINT).eq(id)).fetchOne();
-			// no withdrawal found
-			if (r == null) {
-				return null;
-			}
-			return new Withdrawal(id, r.get(field(name("amount"), SQLDataType.INTEGER)),
-					r.get(field(name("account"), SQLDataType.BIGINT)));
-		} finally {
-			JDBCUtils.safeClose(c);
+	/**
+	 * Inserts withdrawals with one JDBC batch.
+	 *
+	 * @return the ids of the withdrawals, in order
+	 */
+	public long[] createWithdrawals(List<Withdrawal> withdrawals, DSLContext ctx) {
+		int count = withdrawals.size();
+		long[] ids = WITHDRAWAL_IDS.next(ctx, count);
+		if (count > 0) {
+			Database.executeBatch(ctx, INSERT_WITHDRAWAL, count, (ps, i) -> {
+				Withdrawal withdrawal = withdrawals.get(i);
+				ps.setLong(1, ids[i]);
+				ps.setInt(2, withdrawal.getAmount());
+				ps.setLong(3, withdrawal.getAccount());
+			});
 		}
+		return ids;
+	}
+
+	public Withdrawal getWithdrawal(long id) throws SQLException {
+		// null if no withdrawal found
+		return Database.fetchOne(Database.dsl(), SELECT_WITHDRAWAL, rs -> new Withdrawal(id, rs.getInt(1), rs.getLong(2)), id);
+	}
+
+	/**
+	 * @return the first <code>limit</code> withdrawals from <code>account</code>
+	 *         with ids from <code>from</code> on, in id order
+	 */
+	public List<Withdrawal> getWithdrawals(DSLContext ctx, long account, long from, int limit) {
+		return Database.fetch(ctx, SELECT_ACCOUNT_WITHDRAWALS,
+				rs -> new Withdrawal(rs.getLong(1), rs.getInt(2), account), account, from, limit);
 	}
 }
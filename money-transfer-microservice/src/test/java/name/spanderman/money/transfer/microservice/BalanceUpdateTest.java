@@ -0,0 +1,109 @@
+package name.spanderman.money.transfer.microservice;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.jooq.DSLContext;
+import org.jooq.impl.DSL;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Moves money in each balance update mode (<code>moneytransfer.balance.update</code>,
+ * read once per JVM) with the funds check on, each in a JVM of its own (see
+ * {@link RestartTest#run(Path, Class, List, String...)}).
+ */
+public class BalanceUpdateTest {
+
+	private static final int MOVES = 25;
+
+	private Path dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = Files.createTempDirectory("balance");
+	}
+
+	@After
+	public void deleteDir() throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	/**
+	 * Opens two accounts with 100 and, from 4 threads, deposits 1 on the
+	 * first, withdraws 1 from it and transfers 1 from it to the second
+	 * {@value #MOVES} times each, then prints their balances, the withdrawal
+	 * refused for lack of funds, the deposit on a closed account and the
+	 * balance locked then overwritten by the ledger repair.
+	 */
+	public static void main(String[] args) throws Throwable {
+		Main.dbSetup();
+		AccountDAO accounts = AccountDAO.getInstance();
+		long from = accounts.openAccount(new Account(100)).getId();
+		long to = accounts.openAccount(new Account(100)).getId();
+		ExecutorService movers = Executors.newFixedThreadPool(4);
+		List<Future<?>> moves = new ArrayList<>();
+		for (int i = 0; i < MOVES; i++) {
+			moves.add(movers.submit(() -> accounts.depositMoneyOnAccount(new Deposit(1, from))));
+			moves.add(movers.submit(() -> accounts.withdrawMoneyFromAccount(new Withdrawal(1, from))));
+			moves.add(movers.submit(() -> accounts.transferMoneyBetweenAccounts(new Transfer(1, from, to))));
+		}
+		for (Future<?> move : moves) {
+			move.get();
+		}
+		movers.shutdown();
+		System.out.println("balances " + accounts.getAccount(from).getBalance() + " "
+				+ accounts.getAccount(to).getBalance());
+		try {
+			accounts.withdrawMoneyFromAccount(new Withdrawal(1000, from));
+			System.out.println("withdrawn");
+		} catch (InsufficientFundsException e) {
+			System.out.println("refused");
+		}
+		accounts.closeAccount(to);
+		System.out.println("closed " + accounts.depositMoneyOnAccount(new Deposit(1, to)));
+		int locked = Database.dsl().transactionResult(configuration -> {
+			DSLContext tx = DSL.using(configuration);
+			int balance = accounts.lockBalance(tx, from);
+			accounts.setBalance(tx, from, 42);
+			return balance;
+		});
+		AccountCache.getInstance().invalidate(from);
+		System.out.println("locked " + locked + " set " + accounts.getAccount(from).getBalance());
+	}
+
+	private void assertMoves(String mode) throws IOException, InterruptedException {
+		List<String> lines = new ArrayList<>();
+		for (String line : RestartTest.run(dir, BalanceUpdateTest.class, Arrays.asList(
+				"-Dmoneytransfer.balance.update=" + mode, "-Dmoneytransfer.funds.check=true"))) {
+			if (line.matches("(balances|withdrawn|refused|closed|locked) ?.*")) {
+				lines.add(line);
+			}
+		}
+		assertEquals(Arrays.asList("balances 75 125", "refused", "closed null", "locked 75 set 42"), lines);
+	}
+
+	@Test
+	public void testSelectForUpdate() throws IOException, InterruptedException {
+		assertMoves("select-for-update");
+	}
+
+	@Test
+	public void testAtomic() throws IOException, InterruptedException {
+		assertMoves("atomic");
+	}
+}
@@ -0,0 +1,86 @@
+package name.spanderman.money.transfer.microservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Pools connections to an in-memory database of its own, not the one of the
+ * account stores.
+ */
+public class ConnectionPoolTest {
+
+	private ConnectionPool pool;
+
+	@Before
+	public void createPool() {
+		pool = new ConnectionPool("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", 2, 200);
+	}
+
+	@After
+	public void closePool() throws SQLException {
+		try (Connection c = pool.connect(); Statement statement = c.createStatement()) {
+			statement.execute("SHUTDOWN");
+		}
+		pool.close();
+		assertEquals(0, pool.getIdleConnections());
+	}
+
+	@Test
+	public void testReusesPhysicalConnections() throws SQLException {
+		for (int i = 0; i < 3; i++) {
+			try (Connection c = pool.getConnection()) {
+				assertTrue(c.isValid(1));
+				assertEquals(1, pool.getActiveConnections());
+			}
+			assertEquals(0, pool.getActiveConnections());
+			assertEquals(1, pool.getIdleConnections());
+		}
+		assertEquals(3, pool.getAcquisitions());
+		assertEquals(1, pool.getCreatedConnections());
+	}
+
+	@Test
+	public void testTimesOutWhenExhausted() throws SQLException {
+		Connection first = pool.getConnection();
+		try (Connection second = pool.getConnection()) {
+			assertTrue(second.isValid(1));
+			try {
+				pool.getConnection();
+				fail("more connections than the pool size");
+			} catch (SQLTimeoutException e) {
+				// expected
+			}
+			assertEquals(1, pool.getTimeouts());
+			assertTrue(pool.getMaxWaitNanos() >= 200 * 1000000L);
+			first.close();
+			// the connection given back is handed out again
+			try (Connection third = pool.getConnection()) {
+				assertTrue(third.isValid(1));
+				assertEquals(2, pool.getCreatedConnections());
+			}
+		}
+		assertEquals(2, pool.getIdleConnections());
+	}
+
+	@Test
+	public void testStatementCache() throws SQLException {
+		try (Connection c = pool.getConnection(); Statement statement = c.createStatement();
+				ResultSet settings = statement.executeQuery("SELECT SETTING_VALUE FROM INFORMATION_SCHEMA.SETTINGS"
+						+ " WHERE SETTING_NAME = 'QUERY_CACHE_SIZE'")) {
+			assertTrue(settings.next());
+			assertEquals(Config.getInt("moneytransfer.db.statement.cache", 64), settings.getInt(1));
+		}
+	}
+}
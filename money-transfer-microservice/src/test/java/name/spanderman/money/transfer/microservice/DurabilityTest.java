@@ -0,0 +1,138 @@
+package name.spanderman.money.transfer.microservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes to a file database in each durability mode in a JVM of its own,
+ * halted without closing the database as in a crash, then reads what is left
+ * in another JVM (see {@link RestartTest#run(Path, Class, List, String...)}).
+ */
+public class DurabilityTest {
+
+	private static final int DEPOSITS = 20;
+
+	private Path dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = Files.createTempDirectory("durability");
+	}
+
+	@After
+	public void deleteDir() throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	/**
+	 * With <code>write</code>, opens an account with 100 and makes
+	 * {@value #DEPOSITS} deposits of 1 on it from 4 threads, prints its id,
+	 * its balance read back from the database and the commit and sync
+	 * counters, then halts. With <code>read</code> and an account id, prints
+	 * its balance, <code>none</code> if there is no such account.
+	 */
+	public static void main(String[] args) throws Throwable {
+		Main.dbSetup();
+		AccountDAO accounts = AccountDAO.getInstance();
+		if ("read".equals(args[0])) {
+			Account account = accounts.readAccount(Database.dsl(), Long.parseLong(args[1]));
+			System.out.println("balance " + (account == null ? "none" : account.getBalance()));
+			return;
+		}
+		long id = accounts.openAccount(new Account(100)).getId();
+		ExecutorService writers = Executors.newFixedThreadPool(4);
+		List<Future<Deposit>> deposits = new ArrayList<>();
+		for (int i = 0; i < DEPOSITS; i++) {
+			deposits.add(writers.submit(() -> accounts.depositMoneyOnAccount(new Deposit(1, id))));
+		}
+		for (Future<Deposit> deposit : deposits) {
+			deposit.get();
+		}
+		writers.shutdown();
+		Durability durability = Durability.getInstance();
+		System.out.println("account " + id);
+		System.out.println("balance " + accounts.readAccount(Database.dsl(), id).getBalance());
+		System.out.println("commits " + durability.getCommits() + " syncs " + durability.getSyncs());
+		System.out.flush();
+		// no shutdown hook: H2 does not close the database
+		Runtime.getRuntime().halt(0);
+	}
+
+	/**
+	 * @return the values printed by {@link #main(String[])}, by name
+	 */
+	private List<String> run(String mode, String... args) throws IOException, InterruptedException {
+		List<String> values = new ArrayList<>();
+		for (String line : RestartTest.run(dir, DurabilityTest.class,
+				Collections.singletonList("-Dmoneytransfer.db.durability=" + mode), args)) {
+			if (line.matches("(account|balance|commits) .*")) {
+				values.addAll(Arrays.asList(line.split(" ")));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Writes in <code>mode</code>, checking that the writes are visible once
+	 * answered.
+	 *
+	 * @return the account id, the commits and the syncs
+	 */
+	private long[] crash(String mode) throws IOException, InterruptedException {
+		List<String> values = run(mode, "write");
+		assertEquals(Arrays.asList("account", values.get(1), "balance", Integer.toString(100 + DEPOSITS), "commits",
+				values.get(5), "syncs", values.get(7)), values);
+		return new long[] { Long.parseLong(values.get(1)), Long.parseLong(values.get(5)),
+				Long.parseLong(values.get(7)) };
+	}
+
+	private String balanceAfterRestart(String mode, long account) throws IOException, InterruptedException {
+		List<String> values = run(mode, "read", Long.toString(account));
+		assertEquals("balance", values.get(0));
+		return values.get(1);
+	}
+
+	@Test
+	public void testSync() throws IOException, InterruptedException {
+		long[] written = crash("sync");
+		// one sync per commit
+		assertEquals(written[1], written[2]);
+		assertEquals(Integer.toString(100 + DEPOSITS), balanceAfterRestart("sync", written[0]));
+	}
+
+	@Test
+	public void testGroup() throws IOException, InterruptedException {
+		long[] written = crash("group");
+		assertTrue(written[2] > 0);
+		assertTrue(written[2] <= written[1]);
+		assertEquals(Integer.toString(100 + DEPOSITS), balanceAfterRestart("group", written[0]));
+	}
+
+	@Test
+	public void testAsync() throws IOException, InterruptedException {
+		long[] written = crash("async");
+		assertEquals(0, written[2]);
+		// the last commits may be lost, but the database opens again
+		String balance = balanceAfterRestart("async", written[0]);
+		assertTrue(balance, "none".equals(balance) || Integer.parseInt(balance) <= 100 + DEPOSITS);
+	}
+}
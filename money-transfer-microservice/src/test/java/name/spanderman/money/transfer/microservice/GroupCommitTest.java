@@ -0,0 +1,78 @@
+package name.spanderman.money.transfer.microservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class GroupCommitTest {
+
+	private static final int WRITERS = 8;
+
+	/**
+	 * Starts a writer waiting for <code>ticket</code>.
+	 */
+	private static Thread await(GroupCommit groupCommit, long ticket) {
+		Thread writer = new Thread(() -> groupCommit.await(ticket));
+		writer.start();
+		return writer;
+	}
+
+	@Test
+	public void testWritersShareASync() throws InterruptedException {
+		AtomicLong written = new AtomicLong();
+		CountDownLatch syncing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicLong syncs = new AtomicLong();
+		GroupCommit groupCommit = new GroupCommit(written::get, () -> {
+			if (syncs.incrementAndGet() == 1) {
+				syncing.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, true);
+		written.set(1);
+		List<Thread> writers = new ArrayList<>();
+		writers.add(await(groupCommit, 1));
+		assertTrue(syncing.await(10, TimeUnit.SECONDS));
+		// the writers arriving during the first sync wait for the next one
+		written.set(1 + WRITERS);
+		for (int i = 2; i <= 1 + WRITERS; i++) {
+			writers.add(await(groupCommit, i));
+		}
+		release.countDown();
+		for (Thread writer : writers) {
+			writer.join(10000);
+			assertTrue(!writer.isAlive());
+		}
+		assertEquals(2, groupCommit.getSyncs());
+		assertEquals(WRITERS, groupCommit.getMaxBatch());
+		assertEquals(1 + WRITERS, groupCommit.getSynced());
+	}
+
+	@Test
+	public void testOneSyncPerWriterWhenNotShared() throws InterruptedException {
+		AtomicLong written = new AtomicLong(WRITERS);
+		GroupCommit groupCommit = new GroupCommit(written::get, () -> {
+		}, false);
+		List<Thread> writers = new ArrayList<>();
+		for (int i = 1; i <= WRITERS; i++) {
+			writers.add(await(groupCommit, i));
+		}
+		for (Thread writer : writers) {
+			writer.join(10000);
+			assertTrue(!writer.isAlive());
+		}
+		assertEquals(WRITERS, groupCommit.getSyncs());
+		assertEquals(WRITERS, groupCommit.getSynced());
+	}
+}
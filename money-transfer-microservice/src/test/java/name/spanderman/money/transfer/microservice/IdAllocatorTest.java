@@ -0,0 +1,115 @@
+package name.spanderman.money.transfer.microservice;
+
+import static org.jooq.impl.DSL.name;
+import static org.jooq.impl.DSL.sequence;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.Sequence;
+import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Allocates ids from a file database of its own, restarted by closing its
+ * only connection, each restart starting over with a new
+ * {@link IdAllocator} as a new server would.
+ */
+public class IdAllocatorTest {
+
+	private static final Sequence<Long> SEQUENCE = sequence(name("SEQ_TEST_ID"), SQLDataType.BIGINT);
+
+	private Path dir;
+	private Connection connection;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = Files.createTempDirectory("ids");
+	}
+
+	@After
+	public void deleteDir() throws IOException, SQLException {
+		if (connection != null) {
+			connection.close();
+		}
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	/**
+	 * Closes the database, if open, and opens it again.
+	 */
+	private DSLContext restart() throws SQLException {
+		if (connection != null) {
+			connection.close();
+		}
+		connection = DriverManager.getConnection("jdbc:h2:file:" + dir.resolve("ids").toAbsolutePath());
+		DSLContext ctx = DSL.using(connection, SQLDialect.H2);
+		new IdAllocator(SEQUENCE).createSequence(ctx);
+		return ctx;
+	}
+
+	/**
+	 * Takes <code>count</code> ids one at a time then <code>count</code> at
+	 * once from a new allocator, checking that none was handed out before and
+	 * that all are higher than <code>after</code>.
+	 *
+	 * @return the highest id taken
+	 */
+	private static long allocate(DSLContext ctx, int count, long after, Set<Long> ids) {
+		IdAllocator allocator = new IdAllocator(SEQUENCE);
+		long[] taken = new long[2 * count];
+		for (int i = 0; i < count; i++) {
+			taken[i] = allocator.next(ctx);
+		}
+		System.arraycopy(allocator.next(ctx, count), 0, taken, count, count);
+		long max = after;
+		for (long id : taken) {
+			assertTrue("id " + id + " handed out twice", ids.add(id));
+			assertTrue("id " + id + " not after " + after, id > after);
+			max = Math.max(max, id);
+		}
+		return max;
+	}
+
+	@Test
+	public void testUniqueAcrossRestarts() throws SQLException {
+		Set<Long> ids = new HashSet<>();
+		long max = allocate(restart(), 3, 0, ids);
+		// each restart skips the rest of the last block of the stopped server
+		for (int i = 0; i < 3; i++) {
+			max = allocate(restart(), IdAllocator.BLOCK_SIZE + 1, max, ids);
+		}
+		assertEquals(2 * 3 + 3 * 2 * (IdAllocator.BLOCK_SIZE + 1), ids.size());
+	}
+
+	@Test
+	public void testRestartAfter() throws SQLException {
+		Set<Long> ids = new HashSet<>();
+		DSLContext ctx = restart();
+		allocate(ctx, 3, 0, ids);
+		// ids written without the allocator, e.g. replayed from a journal
+		long written = 10 * IdAllocator.BLOCK_SIZE + 7;
+		IdAllocator allocator = new IdAllocator(SEQUENCE);
+		allocator.restartAfter(ctx, written);
+		assertEquals(written + 1, allocator.next(ctx));
+		// and still after them once restarted
+		allocate(restart(), 3, written + 1, ids);
+	}
+}
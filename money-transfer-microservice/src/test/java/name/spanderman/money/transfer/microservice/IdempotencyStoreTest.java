@@ -0,0 +1,65 @@
+package name.spanderman.money.transfer.microservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class IdempotencyStoreTest {
+
+	private static final int KEYS = 200;
+
+	private static void assertInProgress(IdempotencyStore store, String key, Deposit request) {
+		try {
+			store.claim(key, request);
+			fail("key " + key + " released while in progress");
+		} catch (IdempotencyConflictException e) {
+			assertTrue(e.isInProgress());
+		}
+	}
+
+	@Test
+	public void testClaimsInProgressNotEvicted() throws IOException {
+		// a share of one key per stripe
+		IdempotencyStore store = new IdempotencyStore(1, 60000, null);
+		Deposit request = new Deposit(10, 1);
+		for (int i = 0; i < KEYS; i++) {
+			assertNull(store.claim("a" + i, request));
+		}
+		assertEquals(KEYS, store.getSize());
+		assertEquals(0, store.getEvictions());
+		for (int i = 0; i < KEYS; i++) {
+			assertInProgress(store, "a" + i, request);
+		}
+		for (int i = 0; i < KEYS; i++) {
+			store.complete("a" + i, request, new Deposit(i + 1, 10, 1));
+		}
+		// new claims evict the movements made, not one another
+		for (int i = 0; i < KEYS; i++) {
+			assertNull(store.claim("b" + i, request));
+		}
+		assertTrue(store.getEvictions() > 0);
+		assertEquals(2 * KEYS, store.getSize() + store.getEvictions());
+		for (int i = 0; i < KEYS; i++) {
+			assertInProgress(store, "b" + i, request);
+		}
+	}
+
+	@Test
+	public void testMovementsMadeEvictedOldestFirst() throws IOException {
+		IdempotencyStore store = new IdempotencyStore(1, 60000, null);
+		Deposit request = new Deposit(10, 1);
+		for (int i = 0; i < KEYS; i++) {
+			assertNull(store.claim("a" + i, request));
+			store.complete("a" + i, request, new Deposit(i + 1, 10, 1));
+		}
+		assertTrue(store.getSize() <= 64);
+		assertEquals(KEYS, store.getSize() + store.getEvictions());
+		// the last key made is kept and replayed
+		assertEquals(KEYS, ((Deposit) store.claim("a" + (KEYS - 1), request)).getId());
+	}
+}
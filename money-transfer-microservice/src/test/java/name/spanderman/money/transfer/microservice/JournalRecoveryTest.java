@@ -0,0 +1,135 @@
+package name.spanderman.money.transfer.microservice;
+
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNTS;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_ACTIVE;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_BALANCE;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_ID;
+import static name.spanderman.money.transfer.microservice.Schema.ACCOUNT_OPENING_BALANCE;
+import static name.spanderman.money.transfer.microservice.Schema.DEPOSITS;
+import static name.spanderman.money.transfer.microservice.Schema.MOVEMENT_ACCOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.MOVEMENT_AMOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.MOVEMENT_ID;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFERS;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_AMOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_FROM_ACCOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_ID;
+import static name.spanderman.money.transfer.microservice.Schema.TRANSFER_TO_ACCOUNT;
+import static name.spanderman.money.transfer.microservice.Schema.WITHDRAWALS;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.UUID;
+
+import org.jooq.DSLContext;
+import org.jooq.Record3;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Recovers journals into an in-memory database of its own, not the one of
+ * the account stores.
+ */
+public class JournalRecoveryTest {
+
+	private Path file;
+	private Connection connection;
+	private DSLContext ctx;
+
+	@Before
+	public void setup() throws IOException, SQLException {
+		file = Files.createTempFile("journal", ".bin");
+		connection = DriverManager.getConnection("jdbc:h2:mem:" + UUID.randomUUID());
+		ctx = DSL.using(connection, SQLDialect.H2);
+		ctx.createTable(ACCOUNTS).columns(ACCOUNT_ID, ACCOUNT_BALANCE, ACCOUNT_ACTIVE, ACCOUNT_OPENING_BALANCE)
+				.execute();
+		ctx.createTable(DEPOSITS).columns(MOVEMENT_ID, MOVEMENT_AMOUNT, MOVEMENT_ACCOUNT).execute();
+		ctx.createTable(WITHDRAWALS).columns(MOVEMENT_ID, MOVEMENT_AMOUNT, MOVEMENT_ACCOUNT).execute();
+		ctx.createTable(TRANSFERS).columns(TRANSFER_ID, TRANSFER_AMOUNT, TRANSFER_FROM_ACCOUNT, TRANSFER_TO_ACCOUNT)
+				.execute();
+		for (IdAllocator ids : new IdAllocator[] { AccountDAO.ACCOUNT_IDS, DepositDAO.DEPOSIT_IDS,
+				WithdrawalDAO.WITHDRAWAL_IDS, TransferDAO.TRANSFER_IDS }) {
+			ids.createSequence(ctx);
+		}
+	}
+
+	@After
+	public void tearDown() throws IOException, SQLException {
+		connection.close();
+		Files.deleteIfExists(file);
+	}
+
+	/**
+	 * Opens accounts 1 and 2 with 100 each, deposits 10 on 1, withdraws 20
+	 * from 2 and transfers 30 from 1 to 2.
+	 */
+	private static void writeHead(Journal journal) {
+		journal.openAccount(1, 100);
+		journal.openAccount(2, 100);
+		journal.deposit(1, 1, 10);
+		journal.withdrawal(1, 2, 20);
+		journal.await(journal.transfer(1, 1, 2, 30));
+	}
+
+	/**
+	 * Opens account 3 with 50, deposits 5 on 2, transfers 40 from 2 to 3 and
+	 * closes account 1.
+	 */
+	private static void writeTail(Journal journal) {
+		journal.openAccount(3, 50);
+		journal.deposit(2, 2, 5);
+		journal.transfer(2, 2, 3, 40);
+		journal.await(journal.closeAccount(1));
+	}
+
+	/**
+	 * Recovers the journal with a new {@link Journal}, as at startup.
+	 */
+	private void recover() throws IOException {
+		Journal journal = new Journal(file);
+		try {
+			JournalRecovery.recover(journal, ctx);
+		} finally {
+			journal.close();
+		}
+	}
+
+	private void assertAccount(long id, int balance, int openingBalance, boolean active) {
+		Record3<Integer, Integer, Boolean> account = ctx.select(ACCOUNT_BALANCE, ACCOUNT_OPENING_BALANCE, ACCOUNT_ACTIVE)
+				.from(ACCOUNTS).where(ACCOUNT_ID.eq(id)).fetchOne();
+		assertEquals(balance, account.value1().intValue());
+		assertEquals(openingBalance, account.value2().intValue());
+		assertEquals(active, account.value3());
+	}
+
+	private void assertRecovered() {
+		assertAccount(1, 80, 100, false);
+		assertAccount(2, 75, 100, true);
+		assertAccount(3, 90, 50, true);
+		assertEquals(2, ctx.fetchCount(DEPOSITS));
+		assertEquals(1, ctx.fetchCount(WITHDRAWALS));
+		assertEquals(2, ctx.fetchCount(TRANSFERS));
+		assertEquals(1, ctx.fetchCount(WITHDRAWALS, MOVEMENT_ID.eq(1L).and(MOVEMENT_ACCOUNT.eq(2L))));
+		assertEquals(1, ctx.fetchCount(TRANSFERS, TRANSFER_ID.eq(1L).and(TRANSFER_AMOUNT.eq(30))));
+	}
+
+	@Test
+	public void testRecover() throws IOException {
+		Journal journal = new Journal(file);
+		try {
+			writeHead(journal);
+			writeTail(journal);
+		} finally {
+			journal.close();
+		}
+		recover();
+		assertRecovered();
+	}
+}
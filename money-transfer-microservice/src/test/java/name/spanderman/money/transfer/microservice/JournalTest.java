@@ -0,0 +1,191 @@
+package name.spanderman.money.transfer.microservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JournalTest {
+
+	private Path file;
+
+	/**
+	 * Records the records read as strings.
+	 */
+	static class Recorder implements Journal.Reader {
+
+		final List<String> records = new ArrayList<>();
+
+		@Override
+		public void openAccount(long id, int balance) {
+			records.add("open " + id + " " + balance);
+		}
+
+		@Override
+		public void closeAccount(long id) {
+			records.add("close " + id);
+		}
+
+		@Override
+		public void deposit(long id, long account, int amount) {
+			records.add("deposit " + id + " " + account + " " + amount);
+		}
+
+		@Override
+		public void withdrawal(long id, long account, int amount) {
+			records.add("withdrawal " + id + " " + account + " " + amount);
+		}
+
+		@Override
+		public void transfer(long id, long fromAccount, long toAccount, int amount) {
+			records.add("transfer " + id + " " + fromAccount + " " + toAccount + " " + amount);
+		}
+	}
+
+	@Before
+	public void createFile() throws IOException {
+		file = Files.createTempFile("journal", ".bin");
+	}
+
+	@After
+	public void deleteFile() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	/**
+	 * Writes one record of each type.
+	 *
+	 * @return the length of the journal
+	 */
+	private long write() throws IOException {
+		Journal journal = new Journal(file);
+		try {
+			journal.openAccount(1, 100);
+			journal.deposit(2, 1, 10);
+			journal.withdrawal(3, 1, 20);
+			journal.transfer(4, 1, 5, 30);
+			journal.await(journal.closeAccount(1));
+			assertEquals(5, journal.getRecords());
+			assertEquals(Files.size(file), journal.getLength());
+			return journal.getLength();
+		} finally {
+			journal.close();
+		}
+	}
+
+	private Recorder replay(long from) throws IOException {
+		Recorder recorder = new Recorder();
+		Journal journal = new Journal(file);
+		try {
+			long records = journal.replay(recorder, from);
+			assertEquals(recorder.records.size(), records);
+			assertEquals(Files.size(file), journal.getLength());
+		} finally {
+			journal.close();
+		}
+		return recorder;
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		write();
+		assertEquals(Arrays.asList("open 1 100", "deposit 2 1 10", "withdrawal 3 1 20", "transfer 4 1 5 30", "close 1"),
+				replay(0).records);
+	}
+
+	@Test
+	public void testReplayFromOffset() throws IOException {
+		Journal journal = new Journal(file);
+		long offset;
+		try {
+			journal.await(journal.openAccount(1, 100));
+			offset = journal.getLength();
+			journal.await(journal.deposit(2, 1, 10));
+		} finally {
+			journal.close();
+		}
+		assertEquals(Arrays.asList("deposit 2 1 10"), replay(offset).records);
+	}
+
+	@Test
+	public void testTornTailCutOff() throws IOException {
+		long length = write();
+		// the first bytes of a record whose write was torn
+		try (FileChannel out = FileChannel.open(file, StandardOpenOption.APPEND)) {
+			out.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 13, 1, 2 }));
+		}
+		Journal journal = new Journal(file);
+		try {
+			assertEquals(5, journal.replay(new Recorder(), 0));
+			assertEquals(6, journal.getCutOffBytes());
+		} finally {
+			journal.close();
+		}
+		assertEquals(length, Files.size(file));
+		// appends go after the last good record
+		journal = new Journal(file);
+		try {
+			journal.replay(new Recorder(), 0);
+			assertEquals(0, journal.getCutOffBytes());
+			journal.await(journal.deposit(6, 5, 1));
+		} finally {
+			journal.close();
+		}
+		List<String> records = replay(0).records;
+		assertEquals(6, records.size());
+		assertEquals("deposit 6 5 1", records.get(5));
+	}
+
+	@Test
+	public void testCorruptRecordCutOff() throws IOException {
+		write();
+		// a byte of the body of the second record, after the 8 byte header and
+		// the 13 byte body of the first one and its own header
+		try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			out.write(ByteBuffer.wrap(new byte[] { 42 }), 8 + 13 + 8 + 3);
+		}
+		assertEquals(Arrays.asList("open 1 100"), replay(0).records);
+		assertEquals(8 + 13, Files.size(file));
+	}
+
+	@Test
+	public void testFailStop() throws IOException {
+		Journal journal = new Journal(file);
+		journal.await(journal.openAccount(1, 100));
+		// the next write to the file fails
+		journal.close();
+		long ticket = journal.deposit(2, 1, 10);
+		try {
+			journal.await(ticket);
+			fail("the record can not be on disk");
+		} catch (UncheckedIOException e) {
+			// expected
+		}
+		try {
+			journal.checkWritable();
+			fail("the writes must be refused before they are made");
+		} catch (UncheckedIOException e) {
+			// expected
+		}
+		try {
+			journal.deposit(3, 1, 10);
+			fail("no record is appended once the journal could not be written");
+		} catch (UncheckedIOException e) {
+			// expected
+		}
+		assertEquals(Arrays.asList("open 1 100"), replay(0).records);
+	}
+}
@@ -3,9 +3,38 @@ package name.spanderman.money.transfer.microservice;
 import static com.github.jsonj.tools.JsonBuilder.field;
 import static com.github.jsonj.tools.JsonBuilder.object;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.Application;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
@@ -77,6 +106,19 @@ public class MoneyTransferRESTfulAPITest extends JerseyTest {
 				.post(Entity.json(object(field("amount", amount), field("fromAccount", idFrom), field("toAccount", idTo)).toString()), String.class);
 	}
 
+	private Response transferMoneyBetweenAccounts(String mode, Object... transfers) {
+		StringJoiner batch = new StringJoiner(",", "[", "]");
+		for (Object transfer : transfers) {
+			batch.add(transfer.toString());
+		}
+		return target("moneytransfer/transfers/batch").queryParam("mode", mode).request()
+				.post(Entity.json(batch.toString()));
+	}
+
+	private Object transfer(Integer amount, Long idFrom, Long idTo) {
+		return object(field("amount", amount), field("fromAccount", idFrom), field("toAccount", idTo));
+	}
+
 	private String getTransfer(Long id) {
 		return target("moneytransfer/transfers").path("{id}").resolveTemplate("id", id).request().get(String.class);
 	}
@@ -106,6 +148,32 @@ public class MoneyTransferRESTfulAPITest extends JerseyTest {
 		assertEquals(Status.BAD_REQUEST.getStatusCode(), response.getStatus());
 	}
 
+
+	@Test
+	public void testJsonCodec() throws IOException {
+		JsonElement response = new JsonParser().parse(target("moneytransfer/accounts").request()
+				.post(Entity.json(" {\"active\": null, \"bal\\u0061nce\" : 42 } "), String.class));
+		assertEquals(42, (int) response.asObject().getInt("balance"));
+		for (String malformed : new String[] { "{\"balance\":1.5}", "{\"balance\":12345678901}", "{\"balance\":\"1\"}",
+				"{\"balance\":1", "{\"balance\":1}{}", "[]" }) {
+			Response bad = target("moneytransfer/accounts").request().post(Entity.json(malformed));
+			assertEquals(malformed, Status.BAD_REQUEST.getStatusCode(), bad.getStatus());
+			assertNotNull(new JsonParser().parse(bad.readEntity(String.class)).asObject().getString("message"));
+		}
+		// strings are escaped and encoded both ways
+		String message = "\"quoted\" \\ tab\t \u00e9t\u00e9 \u20ac \ud83d\udcb8 \u0001";
+		JsonCodec codec = new JsonCodec();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.writeTo(new Error(message), Error.class, Error.class, null, MediaType.APPLICATION_JSON_TYPE, null, out);
+		assertEquals(message, new JsonParser().parse(new String(out.toByteArray(), StandardCharsets.UTF_8)).asObject()
+				.getString("message"));
+		@SuppressWarnings("unchecked")
+		Class<Object> type = (Class<Object>) (Class<?>) Error.class;
+		Object read = codec.readFrom(type, Error.class, null, MediaType.APPLICATION_JSON_TYPE, null,
+				new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(message, ((Error) read).getMessage());
+	}
+
 	@Test
 	public void testGetAccount() {
 		JsonElement response = new JsonParser().parse(openAccount(123));
@@ -139,6 +207,26 @@ public class MoneyTransferRESTfulAPITest extends JerseyTest {
 		assertEquals(active, response.asObject().getBoolean("active"));
 	}
 
+	@Test
+	public void testGetAccountAfterWrites() {
+		JsonElement response = new JsonParser().parse(openAccount(100));
+		Long id = response.asObject().getLong("id");
+		response = new JsonParser().parse(openAccount(0));
+		Long other = response.asObject().getLong("id");
+		// each read follows a completed write, so it must see it
+		getAccount(id);
+		depositMoneyOnAccount(20, id);
+		assertEquals(Integer.valueOf(120), new JsonParser().parse(getAccount(id)).asObject().getInt("balance"));
+		withdrawMoneyFromAccount(5, id);
+		assertEquals(Integer.valueOf(115), new JsonParser().parse(getAccount(id)).asObject().getInt("balance"));
+		transferMoneyBetweenAccounts(15, id, other);
+		assertEquals(Integer.valueOf(100), new JsonParser().parse(getAccount(id)).asObject().getInt("balance"));
+		transferMoneyBetweenAccounts(MoneyTransferRESTfulAPI.PER_ITEM, transfer(10, other, id)).close();
+		assertEquals(Integer.valueOf(110), new JsonParser().parse(getAccount(id)).asObject().getInt("balance"));
+		closeAccount(id);
+		assertEquals(false, new JsonParser().parse(getAccount(id)).asObject().getBoolean("active"));
+	}
+
 	@Test
 	public void testGetAccountBadRequest() {
 		Response getResponse = target("moneytransfer/accounts").path("{id}").resolveTemplate("id", "iAmNotAnID")
@@ -189,6 +277,46 @@ public class MoneyTransferRESTfulAPITest extends JerseyTest {
 		assertEquals(Status.NOT_FOUND.getStatusCode(), getResponse.getStatus());
 	}
 
+	private Response getAccountHistory(Long id, String after, int limit) {
+		return target("moneytransfer/accounts").path("{id}/history").resolveTemplate("id", id)
+				.queryParam("after", after).queryParam("limit", limit).request().get();
+	}
+
+	@Test
+	public void testGetAccountHistory() {
+		JsonElement response = new JsonParser().parse(openAccount(1000));
+		Long id = response.asObject().getLong("id");
+		response = new JsonParser().parse(openAccount(100));
+		Long other = response.asObject().getLong("id");
+		depositMoneyOnAccount(10, id);
+		withdrawMoneyFromAccount(20, id);
+		transferMoneyBetweenAccounts(30, id, other);
+		transferMoneyBetweenAccounts(40, other, id);
+		Response page = getAccountHistory(id, null, 3);
+		assertEquals(Status.OK.getStatusCode(), page.getStatus());
+		JsonElement first = new JsonParser().parse(page.readEntity(String.class));
+		List<JsonElement> items = new ArrayList<>(first.asObject().getArray("items"));
+		assertEquals(3, items.size());
+		String next = first.asObject().getString("next");
+		assertNotNull(next);
+		page = getAccountHistory(id, next, 3);
+		JsonElement last = new JsonParser().parse(page.readEntity(String.class));
+		items.addAll(last.asObject().getArray("items"));
+		assertNull(last.asObject().getString("next"));
+		assertEquals(4, items.size());
+		List<String> types = new ArrayList<>();
+		for (int i = 0; i < items.size(); i++) {
+			types.add(items.get(i).asObject().getString("type"));
+			if (i > 0) {
+				assertTrue(items.get(i - 1).asObject().getLong("id") <= items.get(i).asObject().getLong("id"));
+			}
+		}
+		assertEquals(new HashSet<>(Arrays.asList("DEPOSIT", "WITHDRAWAL", "TRANSFER_OUT", "TRANSFER_IN")),
+				new HashSet<>(types));
+		assertEquals(Status.NOT_FOUND.getStatusCode(), getAccountHistory(-1L, null, 3).getStatus());
+		assertEquals(Status.BAD_REQUEST.getStatusCode(), getAccountHistory(id, "bogus", 3).getStatus());
+	}
+
 	@Test
 	public void testDepositMoneyOnAccount() {
 		JsonElement response = new JsonParser().parse(openAccount(123));
@@ -225,6 +353,29 @@ public class MoneyTransferRESTfulAPITest extends JerseyTest {
 		assertEquals(newBalance, response.asObject().getInt("balance"));
 	}
 
+	@Test
+	public void testDepositMoneyOnAccountConcurrently() throws Exception {
+		Integer balance = 1000;
+		JsonElement response = new JsonParser().parse(openAccount(balance));
+		Long id = response.asObject().getLong("id");
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> futures = new ArrayList<>();
+			for (int i = 0; i < 50; i++) {
+				futures.add(executor.submit(() -> depositMoneyOnAccount(7, id)));
+				futures.add(executor.submit(() -> withdrawMoneyFromAccount(3, id)));
+			}
+			for (Future<String> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		response = new JsonParser().parse(getAccount(id));
+		Integer newBalance = balance + 50 * 7 - 50 * 3;
+		assertEquals(newBalance, response.asObject().getInt("balance"));
+	}
+
 	@Test
 	public void testDepositMoneyOnAccountBadRequest() {
 		Response depositResponse = target("moneytransfer/deposits").request()
@@ -480,6 +631,84 @@ public class MoneyTransferRESTfulAPITest extends JerseyTest {
 		assertEquals(Status.NOT_FOUND.getStatusCode(), withdrawalResponse.getStatus());
 	}
 
+	@Test
+	public void testTransferMoneyBetweenAccountsAccountToNotFound() {
+		Integer balance = 123;
+		JsonElement response = new JsonParser().parse(openAccount(balance));
+		Long idFrom = response.asObject().getLong("id");
+		Response transferResponse = target("moneytransfer/transfers").request().post(Entity.json(
+				object(field("amount", 100), field("fromAccount", idFrom), field("toAccount", -1)).toString()));
+		assertEquals(Status.NOT_FOUND.getStatusCode(), transferResponse.getStatus());
+		// the debit is rolled back
+		response = new JsonParser().parse(getAccount(idFrom));
+		assertEquals(balance, response.asObject().getInt("balance"));
+	}
+
+	@Test
+	public void testTransferMoneyBetweenAccountsBatch() {
+		JsonElement response = new JsonParser().parse(openAccount(100));
+		Long idA = response.asObject().getLong("id");
+		response = new JsonParser().parse(openAccount(0));
+		Long idB = response.asObject().getLong("id");
+		Response batchResponse = transferMoneyBetweenAccounts(MoneyTransferRESTfulAPI.ALL_OR_NOTHING,
+				transfer(30, idA, idB), transfer(20, idB, idA));
+		assertEquals(Status.OK.getStatusCode(), batchResponse.getStatus());
+		List<JsonElement> items = new JsonParser().parse(batchResponse.readEntity(String.class)).asArray();
+		assertEquals(2, items.size());
+		assertEquals("TRANSFERRED", items.get(1).asObject().getString("status"));
+		Long transferId = items.get(1).asObject().getLong("id");
+		response = new JsonParser().parse(getTransfer(transferId));
+		assertEquals(idB, response.asObject().getLong("fromAccount"));
+		response = new JsonParser().parse(getAccount(idA));
+		assertEquals(Integer.valueOf(90), response.asObject().getInt("balance"));
+		response = new JsonParser().parse(getAccount(idB));
+		assertEquals(Integer.valueOf(10), response.asObject().getInt("balance"));
+	}
+
+	@Test
+	public void testTransferMoneyBetweenAccountsBatchAllOrNothing() {
+		JsonElement response = new JsonParser().parse(openAccount(100));
+		Long idA = response.asObject().getLong("id");
+		response = new JsonParser().parse(openAccount(0));
+		Long idB = response.asObject().getLong("id");
+		Response batchResponse = transferMoneyBetweenAccounts(MoneyTransferRESTfulAPI.ALL_OR_NOTHING,
+				transfer(30, idA, idB), transfer(10, idA, -1L));
+		assertEquals(Status.NOT_FOUND.getStatusCode(), batchResponse.getStatus());
+		List<JsonElement> items = new JsonParser().parse(batchResponse.readEntity(String.class)).asArray();
+		assertEquals("ROLLED_BACK", items.get(0).asObject().getString("status"));
+		assertEquals("NOT_FOUND", items.get(1).asObject().getString("status"));
+		// nothing is transferred
+		response = new JsonParser().parse(getAccount(idA));
+		assertEquals(Integer.valueOf(100), response.asObject().getInt("balance"));
+		response = new JsonParser().parse(getAccount(idB));
+		assertEquals(Integer.valueOf(0), response.asObject().getInt("balance"));
+	}
+
+	@Test
+	public void testTransferMoneyBetweenAccountsBatchPerItem() {
+		JsonElement response = new JsonParser().parse(openAccount(100));
+		Long idA = response.asObject().getLong("id");
+		response = new JsonParser().parse(openAccount(0));
+		Long idB = response.asObject().getLong("id");
+		Response batchResponse = transferMoneyBetweenAccounts(MoneyTransferRESTfulAPI.PER_ITEM,
+				transfer(30, idA, idB), transfer(10, idA, -1L), transfer(5, idA, idB));
+		assertEquals(Status.OK.getStatusCode(), batchResponse.getStatus());
+		List<JsonElement> items = new JsonParser().parse(batchResponse.readEntity(String.class)).asArray();
+		assertEquals("TRANSFERRED", items.get(0).asObject().getString("status"));
+		assertEquals("NOT_FOUND", items.get(1).asObject().getString("status"));
+		assertEquals("TRANSFERRED", items.get(2).asObject().getString("status"));
+		response = new JsonParser().parse(getAccount(idA));
+		assertEquals(Integer.valueOf(65), response.asObject().getInt("balance"));
+		response = new JsonParser().parse(getAccount(idB));
+		assertEquals(Integer.valueOf(35), response.asObject().getInt("balance"));
+	}
+
+	@Test
+	public void testTransferMoneyBetweenAccountsBatchBadRequest() {
+		Response batchResponse = transferMoneyBetweenAccounts("sometimes", transfer(1, 1L, 2L));
+		assertEquals(Status.BAD_REQUEST.getStatusCode(), batchResponse.getStatus());
+	}
+
 	@Test
 	public void testGetTransfer() {
 		JsonElement response = new JsonParser().parse(openAccount(123));
@@ -553,4 +782,301 @@ public class MoneyTransferRESTfulAPITest extends JerseyTest {
 				.get();
 		assertEquals(Status.NOT_FOUND.getStatusCode(), getResponse.getStatus());
 	}
+
+	@Test
+	public void testImportRecords() {
+		Integer balance = 100;
+		JsonElement response = new JsonParser().parse(openAccount(balance));
+		Long id = response.asObject().getLong("id");
+		String records = object(field("balance", 10)) + "\n" + object(field("balance", 20)) + "\n"
+				+ object(field("amount", 5), field("account", id)) + "\n"
+				+ object(field("amount", 5), field("account", -1)) + "\n";
+		Response importResponse = target("moneytransfer/import").request()
+				.post(Entity.entity(records, BulkImporter.NDJSON));
+		assertEquals(Status.OK.getStatusCode(), importResponse.getStatus());
+		response = new JsonParser().parse(importResponse.readEntity(String.class));
+		assertEquals(Long.valueOf(2), response.asObject().getLong("accounts"));
+		assertEquals(Long.valueOf(1), response.asObject().getLong("deposits"));
+		assertEquals(Long.valueOf(1), response.asObject().getLong("rejected"));
+		response = new JsonParser().parse(getAccount(id));
+		assertEquals(Integer.valueOf(balance + 5), response.asObject().getInt("balance"));
+	}
+
+	@Test
+	public void testImportRecordsBadRequest() {
+		String records = object(field("balance", 10)) + "\n" + object(field("iamnotafield", 20)) + "\n";
+		Response importResponse = target("moneytransfer/import").request()
+				.post(Entity.entity(records, BulkImporter.NDJSON));
+		assertEquals(Status.BAD_REQUEST.getStatusCode(), importResponse.getStatus());
+	}
+
+	@Test
+	public void testVerifyLedger() {
+		JsonElement response = new JsonParser().parse(openAccount(100));
+		Long idA = response.asObject().getLong("id");
+		response = new JsonParser().parse(openAccount(50));
+		Long idB = response.asObject().getLong("id");
+		depositMoneyOnAccount(20, idA);
+		withdrawMoneyFromAccount(5, idB);
+		transferMoneyBetweenAccounts(30, idA, idB);
+		Response verifyResponse = target("moneytransfer/ledger/verifications").request().post(Entity.json(""));
+		if (AccountStores.MEMORY.equals(AccountStores.getName())) {
+			assertEquals(Status.CONFLICT.getStatusCode(), verifyResponse.getStatus());
+			return;
+		}
+		assertEquals(Status.OK.getStatusCode(), verifyResponse.getStatus());
+		response = new JsonParser().parse(verifyResponse.readEntity(String.class));
+		assertEquals(Long.valueOf(0), response.asObject().getLong("drifted"));
+		response = new JsonParser().parse(getAccount(idB));
+		assertEquals(Integer.valueOf(75), response.asObject().getInt("balance"));
+	}
+
+	@Test
+	public void testRequestExecutorRejects() throws InterruptedException {
+		// its own executor, the shared one serving the tests run in parallel
+		RequestExecutor executor = new RequestExecutor(1, 1, 0, false);
+		CountDownLatch release = new CountDownLatch(1);
+		Runnable blocked = () -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		};
+		try {
+			assertTrue(executor.offer(blocked));
+			assertTrue(executor.offer(blocked));
+			// the only thread is busy and one task is waiting for it
+			assertFalse(executor.offer(blocked));
+			assertEquals(1, executor.getRejected());
+		} finally {
+			release.countDown();
+		}
+		CountDownLatch done = new CountDownLatch(1);
+		while (!executor.offer(done::countDown)) {
+			Thread.sleep(10);
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testPipelinedRequests() throws IOException {
+		JsonElement response = new JsonParser().parse(openAccount(100));
+		Long id = response.asObject().getLong("id");
+		String deposit = object(field("amount", 10), field("account", id)).toString();
+		// written at once, before reading any response
+		String requests = "GET /moneytransfer/accounts/" + id + " HTTP/1.1\r\nHost: localhost\r\n\r\n"
+				+ "POST /moneytransfer/deposits HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\n"
+				+ "Content-Length: " + deposit.length() + "\r\n\r\n" + deposit
+				+ "GET /moneytransfer/accounts/-1 HTTP/1.1\r\nHost: localhost\r\n\r\n"
+				+ "GET /moneytransfer/accounts/" + id + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+		List<String> statuses = new ArrayList<>();
+		String last = null;
+		try (Socket socket = new Socket(getBaseUri().getHost(), getBaseUri().getPort())) {
+			socket.setSoTimeout(10000);
+			socket.getOutputStream().write(requests.getBytes(StandardCharsets.US_ASCII));
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			for (String line; (line = reader.readLine()) != null;) {
+				int status = line.indexOf("HTTP/1.1 ");
+				if (status >= 0) {
+					statuses.add(line.substring(status + 9, status + 12));
+				}
+				if (line.startsWith("{")) {
+					last = status > 0 ? line.substring(0, status) : line;
+				}
+			}
+		}
+		assertEquals(Arrays.asList("200", "200", "404", "200"), statuses);
+		assertEquals(Integer.valueOf(110), new JsonParser().parse(last).asObject().getInt("balance"));
+	}
+
+	@Test
+	public void testTcpIngress() throws IOException {
+		long from = new JsonParser().parse(openAccount(100)).asObject().getLong("id");
+		long to = new JsonParser().parse(openAccount(0)).asObject().getLong("id");
+		ByteBuffer commands = ByteBuffer.allocate(256);
+		commands.putInt(TcpIngress.HEADER_SIZE + TcpIngress.DEPOSIT_SIZE).putLong(1).put(TcpIngress.DEPOSIT)
+				.putLong(0).putInt(20).putLong(from);
+		commands.putInt(TcpIngress.HEADER_SIZE + TcpIngress.TRANSFER_SIZE).putLong(2).put(TcpIngress.TRANSFER)
+				.putLong(0).putInt(50).putLong(from).putLong(to);
+		commands.putInt(TcpIngress.HEADER_SIZE + TcpIngress.TRANSFER_SIZE).putLong(3).put(TcpIngress.TRANSFER)
+				.putLong(0).putInt(50).putLong(from).putLong(-1);
+		commands.putInt(TcpIngress.HEADER_SIZE).putLong(4).put((byte) 42);
+		commands.putInt(TcpIngress.HEADER_SIZE + TcpIngress.DEPOSIT_SIZE).putLong(5).put(TcpIngress.WITHDRAWAL)
+				.putLong(0).putInt(5).putLong(to);
+		TcpIngress ingress = TcpIngress.start(0);
+		try (Socket socket = new Socket("localhost", ingress.getPort())) {
+			socket.setSoTimeout(10000);
+			// written before reading any answer, the last command split in two
+			int split = commands.position() - 7;
+			socket.getOutputStream().write(commands.array(), 0, split);
+			socket.getOutputStream().flush();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			assertEquals(TcpIngress.HEADER_SIZE + TcpIngress.DEPOSIT_SIZE, in.readInt());
+			assertEquals(1, in.readLong());
+			assertEquals(TcpIngress.OK, in.readByte());
+			in.readLong();
+			assertEquals(20, in.readInt());
+			assertEquals(from, in.readLong());
+			socket.getOutputStream().write(commands.array(), split, commands.position() - split);
+			assertEquals(TcpIngress.HEADER_SIZE + TcpIngress.TRANSFER_SIZE, in.readInt());
+			assertEquals(2, in.readLong());
+			assertEquals(TcpIngress.OK, in.readByte());
+			long transfer = in.readLong();
+			assertEquals(50, in.readInt());
+			assertEquals(from, in.readLong());
+			assertEquals(to, in.readLong());
+			byte[] statuses = { TcpIngress.NOT_FOUND, TcpIngress.BAD_REQUEST };
+			for (int i = 0; i < statuses.length; i++) {
+				assertEquals(TcpIngress.HEADER_SIZE, in.readInt());
+				assertEquals(3 + i, in.readLong());
+				assertEquals(statuses[i], in.readByte());
+			}
+			assertEquals(TcpIngress.HEADER_SIZE + TcpIngress.DEPOSIT_SIZE, in.readInt());
+			assertEquals(5, in.readLong());
+			assertEquals(TcpIngress.OK, in.readByte());
+			in.readLong();
+			assertEquals(5, in.readInt());
+			assertEquals(to, in.readLong());
+			assertEquals(transfer, (long) new JsonParser().parse(target("moneytransfer/transfers").path("" + transfer)
+					.request().get(String.class)).asObject().getLong("id"));
+			assertEquals(70, (int) new JsonParser().parse(getAccount(from)).asObject().getInt("balance"));
+			assertEquals(45, (int) new JsonParser().parse(getAccount(to)).asObject().getInt("balance"));
+			// a frame too long closes the connection
+			socket.getOutputStream().write(ByteBuffer.allocate(4).putInt(TcpIngress.MAX_FRAME + 1).array());
+			assertEquals(-1, in.read());
+		} finally {
+			ingress.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testTcpIngressBusy() throws IOException {
+		TcpIngress.CommandFilter filter = new TcpIngress.CommandFilter(null, 3);
+		assertEquals(2, filter.admit(2));
+		assertEquals(1, filter.admit(2));
+		assertEquals(0, filter.admit(1));
+		filter.release(2);
+		assertEquals(2, filter.admit(5));
+		long id = new JsonParser().parse(openAccount(100)).asObject().getLong("id");
+		ByteBuffer commands = ByteBuffer.allocate(256);
+		for (int i = 1; i <= 3; i++) {
+			commands.putInt(TcpIngress.HEADER_SIZE + TcpIngress.DEPOSIT_SIZE).putLong(i).put(TcpIngress.DEPOSIT)
+					.putLong(0).putInt(10).putLong(id);
+		}
+		TcpIngress ingress = TcpIngress.start(0, 1);
+		try (Socket socket = new Socket("localhost", ingress.getPort())) {
+			socket.setSoTimeout(10000);
+			socket.getOutputStream().write(commands.array(), 0, commands.position());
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			int made = 0;
+			for (int i = 1; i <= 3; i++) {
+				int length = in.readInt();
+				assertEquals(i, in.readLong());
+				byte status = in.readByte();
+				// the first command of a read always made, the others of the
+				// same read answered busy
+				assertTrue(status == TcpIngress.OK || i > 1 && status == TcpIngress.BUSY);
+				if (status == TcpIngress.OK) {
+					assertEquals(TcpIngress.HEADER_SIZE + TcpIngress.DEPOSIT_SIZE, length);
+					in.readFully(new byte[TcpIngress.DEPOSIT_SIZE]);
+					made++;
+				} else {
+					assertEquals(TcpIngress.HEADER_SIZE, length);
+				}
+			}
+			assertEquals(100 + 10 * made, (int) new JsonParser().parse(getAccount(id)).asObject().getInt("balance"));
+		} finally {
+			ingress.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testIdempotentTransfer() {
+		JsonElement response = new JsonParser().parse(openAccount(500));
+		Long idFrom = response.asObject().getLong("id");
+		response = new JsonParser().parse(openAccount(0));
+		Long idTo = response.asObject().getLong("id");
+		String key = UUID.randomUUID().toString();
+		String transfer = transfer(100, idFrom, idTo).toString();
+		Response first = target("moneytransfer/transfers").request().header(IdempotencyStore.HEADER, key)
+				.post(Entity.json(transfer));
+		assertEquals(Status.OK.getStatusCode(), first.getStatus());
+		Long id = new JsonParser().parse(first.readEntity(String.class)).asObject().getLong("id");
+		Response retry = target("moneytransfer/transfers").request().header(IdempotencyStore.HEADER, key)
+				.post(Entity.json(transfer));
+		assertEquals(Status.OK.getStatusCode(), retry.getStatus());
+		assertEquals("true", retry.getHeaderString(IdempotencyStore.REPLAYED));
+		assertEquals(id, new JsonParser().parse(retry.readEntity(String.class)).asObject().getLong("id"));
+		Response other = target("moneytransfer/transfers").request().header(IdempotencyStore.HEADER, key)
+				.post(Entity.json(transfer(200, idFrom, idTo).toString()));
+		assertEquals(422, other.getStatus());
+		response = new JsonParser().parse(getAccount(idFrom));
+		assertEquals(Integer.valueOf(400), response.asObject().getInt("balance"));
+		response = new JsonParser().parse(getAccount(idTo));
+		assertEquals(Integer.valueOf(100), response.asObject().getInt("balance"));
+	}
+
+	@Test
+	public void testIdempotencyStorePersisted() throws IOException {
+		Path file = Files.createTempFile("idempotency", ".keys");
+		try {
+			// its own store, the shared one serving the tests run in parallel
+			IdempotencyStore store = new IdempotencyStore(100, 60000, file);
+			Deposit deposit = new Deposit(10, 1);
+			assertNull(store.claim("a", deposit));
+			try {
+				store.claim("a", new Deposit(10, 1));
+				fail("claimed twice");
+			} catch (IdempotencyConflictException e) {
+				assertTrue(e.isInProgress());
+			}
+			store.complete("a", deposit, new Deposit(42, 10, 1));
+			// the same key on another endpoint is another key
+			Withdrawal withdrawal = new Withdrawal(10, 1);
+			assertNull(store.claim("a", withdrawal));
+			store.complete("a", withdrawal, new Error("failed"));
+			assertNull(store.claim("a", withdrawal));
+			IdempotencyStore reloaded = new IdempotencyStore(100, 60000, file);
+			assertEquals(42, ((Deposit) reloaded.claim("a", new Deposit(10, 1))).getId());
+			assertNull(reloaded.claim("a", new Withdrawal(10, 1)));
+			assertEquals(1, reloaded.getReplays());
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void testMetrics() {
+		JsonElement response = new JsonParser().parse(openAccount(100));
+		Long id = response.asObject().getLong("id");
+		depositMoneyOnAccount(10, id);
+		assertEquals(Status.NOT_FOUND.getStatusCode(),
+				target("moneytransfer/accounts").path("-1").request().get().getStatus());
+		Response metrics = target("moneytransfer/metrics").request().get();
+		assertEquals(Status.OK.getStatusCode(), metrics.getStatus());
+		assertTrue(metrics.getMediaType().toString().startsWith("text/plain"));
+		String text = metrics.readEntity(String.class);
+		assertTrue(text.contains("# TYPE moneytransfer_request_seconds summary"));
+		assertTrue(text.contains("moneytransfer_request_seconds{endpoint=\"POST /moneytransfer/deposits\",quantile=\"0.99\"}"));
+		assertFalse(text.contains("moneytransfer_request_seconds_count{endpoint=\"POST /moneytransfer/deposits\"} 0\n"));
+		assertFalse(text.contains(
+				"moneytransfer_requests_total{endpoint=\"GET /moneytransfer/accounts/{id}\",outcome=\"not_found\"} 0\n"));
+		assertFalse(text.contains("moneytransfer_store_calls_total{method=\"depositMoneyOnAccount\",outcome=\"ok\"} 0\n"));
+	}
+
+	@Test
+	public void testLatencyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long micros = 1; micros <= 1000; micros++) {
+			histogram.record(micros * 1000);
+		}
+		long[] quantiles = histogram.quantiles(0.5, 0.99, 1);
+		// within the width of a bucket above the exact values
+		assertTrue(quantiles[0] >= 500000 && quantiles[0] <= 500000 * 17 / 16);
+		assertTrue(quantiles[1] >= 990000 && quantiles[1] <= 990000 * 17 / 16);
+		assertEquals(1000000, quantiles[2]);
+		assertEquals(1000, histogram.getCount());
+	}
 }
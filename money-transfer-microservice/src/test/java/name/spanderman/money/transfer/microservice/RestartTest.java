@@ -0,0 +1,138 @@
+package name.spanderman.money.transfer.microservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Restarts the service on a file database: each run of
+ * {@link #main(String[])} is a JVM of its own, set up by
+ * {@link Main#dbSetup()} on the tables left by the previous one.
+ */
+public class RestartTest {
+
+	private Path dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = Files.createTempDirectory("restart");
+	}
+
+	@After
+	public void deleteDir() throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	/**
+	 * Sets up the database, prints the balance of the account and the amount
+	 * of the deposit given by their ids, if any, then opens an account with
+	 * 100, deposits 10 on it and prints their ids, all through the account
+	 * store of <code>moneytransfer.store</code>.
+	 */
+	public static void main(String[] args) throws Throwable {
+		Main.dbSetup();
+		AccountStore accounts = AccountStores.getInstance();
+		if (args.length == 2) {
+			System.out.println("balance " + accounts.getAccount(Long.parseLong(args[0])).getBalance());
+			System.out.println("deposit " + accounts.getDeposit(Long.parseLong(args[1])).getAmount());
+		}
+		Account account = accounts.openAccount(new Account(100));
+		Deposit deposit = accounts.depositMoneyOnAccount(new Deposit(10, account.getId()));
+		System.out.println("opened " + account.getId() + " " + deposit.getId());
+	}
+
+	/**
+	 * Runs {@link #main(String[])} in a new JVM on the file database of the
+	 * test.
+	 *
+	 * @return the lines printed by main
+	 */
+	private List<String> run(String store, String... args) throws IOException, InterruptedException {
+		List<String> lines = new ArrayList<>();
+		for (String line : run(dir, RestartTest.class, Collections.singletonList("-Dmoneytransfer.store=" + store),
+				args)) {
+			if (line.matches("(balance|deposit|opened) .*")) {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Runs the main method of <code>main</code> in a new JVM, on the test
+	 * classpath, with the file database <code>money-transfer</code> of
+	 * <code>dir</code> and the system properties <code>properties</code>.
+	 *
+	 * @return all the lines it printed
+	 */
+	static List<String> run(Path dir, Class<?> main, List<String> properties, String... args)
+			throws IOException, InterruptedException {
+		List<String> command = new ArrayList<>(Arrays.asList(
+				Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp",
+				System.getProperty("java.class.path"),
+				"-Dmoneytransfer.db.url=jdbc:h2:file:" + dir.resolve("money-transfer").toAbsolutePath()));
+		command.addAll(properties);
+		command.add(main.getName());
+		command.addAll(Arrays.asList(args));
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		List<String> output = new ArrayList<>();
+		try (BufferedReader in = new BufferedReader(
+				new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				output.add(line);
+			}
+		}
+		assertTrue("still running", process.waitFor(60, TimeUnit.SECONDS));
+		assertEquals(String.join("\n", output), 0, process.exitValue());
+		return output;
+	}
+
+	private void assertRestarts(String store) throws IOException, InterruptedException {
+		String[] first = run(store).get(0).split(" ");
+		long account = Long.parseLong(first[1]);
+		long deposit = Long.parseLong(first[2]);
+		for (int i = 0; i < 2; i++) {
+			List<String> lines = run(store, Long.toString(account), Long.toString(deposit));
+			// what the previous run wrote is still there
+			assertEquals(Arrays.asList("balance 110", "deposit 10"), lines.subList(0, 2));
+			// and the ids of this run come after its ids
+			String[] opened = lines.get(2).split(" ");
+			assertTrue(Long.parseLong(opened[1]) > account);
+			assertTrue(Long.parseLong(opened[2]) > deposit);
+			account = Long.parseLong(opened[1]);
+			deposit = Long.parseLong(opened[2]);
+		}
+	}
+
+	@Test
+	public void testRestart() throws IOException, InterruptedException {
+		assertRestarts(AccountStores.H2);
+	}
+
+	@Test
+	public void testLedgerRestart() throws IOException, InterruptedException {
+		// the balances derived from the ledger left by the previous run
+		assertRestarts(AccountStores.LEDGER);
+	}
+}
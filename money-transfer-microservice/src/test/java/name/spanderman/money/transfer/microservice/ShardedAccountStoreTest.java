@@ -0,0 +1,213 @@
+package name.spanderman.money.transfer.microservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs stores of its own with {@value #SHARDS} shards and small rings on the
+ * database of the account stores, whichever store the other tests use.
+ */
+public class ShardedAccountStoreTest {
+
+	private static final int SHARDS = 4;
+	private static final int THREADS = 8;
+	private static final int MOVES = 100;
+
+	@BeforeClass
+	public static void dbSetup() throws Throwable {
+		MoneyTransferRESTfulAPITest.dbSetup();
+	}
+
+	/**
+	 * Opens an account with <code>balance</code> in shard
+	 * <code>shard</code>.
+	 */
+	private static long openAccount(int balance, int shard) throws SQLException {
+		while (true) {
+			long id = AccountDAO.getInstance().openAccount(new Account(balance)).getId();
+			if (Long.remainderUnsigned(id, SHARDS) == shard) {
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * Checks the balance of account <code>id</code> through the cache of the
+	 * store and in the database.
+	 */
+	private static void assertBalance(ShardedAccountStore store, int balance, long id) throws SQLException {
+		assertEquals(balance, store.getAccount(id).getBalance());
+		assertEquals(balance, AccountDAO.getInstance().readAccount(Database.dsl(), id).getBalance());
+	}
+
+	private static void run(List<Runnable> tasks) throws Exception {
+		ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (Runnable task : tasks) {
+				futures.add(threads.submit(task));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			threads.shutdown();
+		}
+	}
+
+	@Test
+	public void testCrossShardTransfers() throws Exception {
+		ShardedAccountStore store = new ShardedAccountStore(SHARDS, 4);
+		long a = openAccount(1000, 0);
+		long b = openAccount(1000, 1);
+		long c = openAccount(1000, 1);
+		List<Runnable> tasks = new ArrayList<>();
+		for (int i = 0; i < MOVES; i++) {
+			tasks.add(() -> transfer(store, 1, a, b));
+			tasks.add(() -> transfer(store, 1, b, a));
+			tasks.add(() -> transfer(store, 2, b, c));
+			tasks.add(() -> transfer(store, 1, c, a));
+		}
+		run(tasks);
+		assertBalance(store, 1000 + MOVES, a);
+		assertBalance(store, 1000 - 2 * MOVES, b);
+		assertBalance(store, 1000 + MOVES, c);
+		assertEquals(3 * MOVES, store.getCrossShardTransfers());
+	}
+
+	private static void transfer(ShardedAccountStore store, int amount, long from, long to) {
+		try {
+			assertNotNull(store.transferMoneyBetweenAccounts(new Transfer(amount, from, to)));
+		} catch (SQLException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void testReservationGivenBack() throws Exception {
+		ShardedAccountStore store = new ShardedAccountStore(SHARDS, 4);
+		long from = openAccount(100, 2);
+		long to = openAccount(0, 3);
+		store.closeAccount(to);
+		// the destination, in another shard, refuses it
+		assertNull(store.transferMoneyBetweenAccounts(new Transfer(30, from, to)));
+		assertBalance(store, 100, from);
+		long open = openAccount(0, 3);
+		assertNotNull(store.transferMoneyBetweenAccounts(new Transfer(100, from, open)));
+		assertBalance(store, 0, from);
+		assertBalance(store, 100, open);
+	}
+
+	@Test
+	public void testSmallRings() throws Exception {
+		// fewer places in the rings than writers
+		ShardedAccountStore store = new ShardedAccountStore(SHARDS, 2);
+		long[] ids = new long[SHARDS];
+		for (int shard = 0; shard < SHARDS; shard++) {
+			ids[shard] = openAccount(0, shard);
+		}
+		List<Runnable> tasks = new ArrayList<>();
+		for (int i = 0; i < MOVES; i++) {
+			for (long id : ids) {
+				tasks.add(() -> {
+					try {
+						assertNotNull(store.depositMoneyOnAccount(new Deposit(2, id)));
+						assertNotNull(store.withdrawMoneyFromAccount(new Withdrawal(1, id)));
+					} catch (SQLException e) {
+						throw new AssertionError(e);
+					}
+				});
+			}
+		}
+		run(tasks);
+		for (long id : ids) {
+			assertBalance(store, MOVES, id);
+		}
+		assertEquals(2 * MOVES * SHARDS, store.getCommands());
+		assertTrue(store.getBatches() <= store.getCommands());
+	}
+
+	@Test
+	public void testBatchPausesShards() throws Exception {
+		ShardedAccountStore store = new ShardedAccountStore(SHARDS, 4);
+		long a = openAccount(100, 0);
+		long b = openAccount(100, 1);
+		List<TransferBatchItem> items = store.transferMoneyBetweenAccounts(
+				Arrays.asList(new Transfer(10, a, b), new Transfer(10, b, -1)), true);
+		assertEquals(TransferBatchItem.Status.ROLLED_BACK, items.get(0).getStatus());
+		assertEquals(TransferBatchItem.Status.NOT_FOUND, items.get(1).getStatus());
+		assertBalance(store, 100, a);
+		items = store.transferMoneyBetweenAccounts(Arrays.asList(new Transfer(10, a, b), new Transfer(30, b, a)),
+				true);
+		assertEquals(TransferBatchItem.Status.TRANSFERRED, items.get(1).getStatus());
+		assertEquals(2, store.getPauses());
+		// the shards read the balances written by the batch
+		assertNotNull(store.depositMoneyOnAccount(new Deposit(1, a)));
+		assertBalance(store, 121, a);
+		assertBalance(store, 80, b);
+	}
+
+	@Test
+	public void testPausedWhileReservationsPending() throws Exception {
+		ShardedAccountStore store = new ShardedAccountStore(SHARDS, 4);
+		long[] ids = new long[SHARDS];
+		for (int shard = 0; shard < SHARDS; shard++) {
+			ids[shard] = openAccount(1000, shard);
+		}
+		int groups = MOVES / 10;
+		List<Runnable> tasks = new ArrayList<>();
+		for (int i = 0; i < MOVES; i++) {
+			// every account gives one to the account of the next shard
+			for (int shard = 0; shard < SHARDS; shard++) {
+				long from = ids[shard];
+				long to = ids[(shard + 1) % SHARDS];
+				tasks.add(() -> transfer(store, 1, from, to));
+			}
+			if (i % 10 == 5) {
+				// pause shards holding reservations of the transfers above
+				tasks.add(() -> {
+					try {
+						for (TransferBatchItem item : store.transferMoneyBetweenAccounts(
+								Arrays.asList(new Transfer(3, ids[0], ids[2]), new Transfer(2, ids[3], ids[1])),
+								false)) {
+							assertEquals(TransferBatchItem.Status.TRANSFERRED, item.getStatus());
+						}
+						ImportBatch batch = new ImportBatch(2);
+						batch.addDeposit(5, ids[1], 1);
+						batch.addDeposit(5, ids[3], 2);
+						store.importBatch(batch);
+						assertTrue(batch.isDeposited(0) && batch.isDeposited(1));
+					} catch (SQLException e) {
+						throw new AssertionError(e);
+					}
+				});
+			}
+		}
+		run(tasks);
+		// each transfer applied once, as each group and deposit
+		assertBalance(store, 1000 - 3 * groups, ids[0]);
+		assertBalance(store, 1000 + 2 * groups + 5 * groups, ids[1]);
+		assertBalance(store, 1000 + 3 * groups, ids[2]);
+		assertBalance(store, 1000 - 2 * groups + 5 * groups, ids[3]);
+		int total = 0;
+		for (long id : ids) {
+			total += AccountDAO.getInstance().readAccount(Database.dsl(), id).getBalance();
+		}
+		assertEquals(SHARDS * 1000 + 2 * 5 * groups, total);
+		assertEquals(SHARDS * MOVES, store.getCrossShardTransfers());
+		assertEquals(2 * groups, store.getPauses());
+	}
+}
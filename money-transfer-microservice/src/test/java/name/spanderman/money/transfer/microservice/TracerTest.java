@@ -0,0 +1,76 @@
+package name.spanderman.money.transfer.microservice;
+
+import static com.github.jsonj.tools.JsonBuilder.field;
+import static com.github.jsonj.tools.JsonBuilder.object;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Application;
+
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.glassfish.jersey.test.TestProperties;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.github.jsonj.JsonElement;
+import com.github.jsonj.tools.JsonParser;
+
+/**
+ * Turns sampling on in the {@link Tracer} shared by all the requests, so its
+ * only test runs alone: surefire runs the methods of a class in parallel but
+ * the classes one after the other.
+ */
+public class TracerTest extends JerseyTest {
+
+	@BeforeClass
+	public static void dbSetup() throws Throwable {
+		MoneyTransferRESTfulAPITest.dbSetup();
+	}
+
+	@Override
+	protected Application configure() {
+		forceSet(TestProperties.CONTAINER_PORT, "0");
+		return new ResourceConfig().packages(Main.class.getPackage().getName());
+	}
+
+	private long openAccount(int balance) {
+		return new JsonParser().parse(target("moneytransfer/accounts").request()
+				.post(Entity.json(object(field("balance", balance)).toString()), String.class)).asObject()
+				.getLong("id");
+	}
+
+	@Test
+	public void testTraces() {
+		Tracer tracer = Tracer.getInstance();
+		long traced = tracer.getTraced();
+		int sampling = tracer.getSampling();
+		tracer.setSampling(1);
+		try {
+			long from = openAccount(100);
+			long to = openAccount(0);
+			target("moneytransfer/transfers").request().post(Entity.json(
+					object(field("amount", 10), field("fromAccount", from), field("toAccount", to)).toString()),
+					String.class);
+		} finally {
+			tracer.setSampling(sampling);
+		}
+		assertTrue(tracer.getTraced() >= traced + 3);
+		List<JsonElement> traces = new JsonParser()
+				.parse(target("moneytransfer/traces").request().get(String.class)).asArray();
+		assertFalse(traces.isEmpty());
+		long slowest = Long.MAX_VALUE;
+		for (JsonElement trace : traces) {
+			// slowest first, the phases not overlapping
+			long total = trace.asObject().getLong("totalNanos");
+			assertTrue(total <= slowest);
+			assertTrue(trace.asObject().getLong("otherNanos") >= 0);
+			assertNotNull(trace.asObject().getString("request"));
+			slowest = total;
+		}
+	}
+}